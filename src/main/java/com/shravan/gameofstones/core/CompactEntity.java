@@ -0,0 +1,24 @@
+package com.shravan.gameofstones.core;
+
+/**
+ * An entity that can be stored in a compact binary form, instead of a
+ * document having all its fields. With
+ * {@link MongoConfig#isCompactEntities()}, the {@link Mongodb} client stores
+ * such an entity as {_id: ObjectId, packed: BinData}. The entity reads its
+ * fields back from the "packed" property, so documents in either form are
+ * read.
+ *
+ * @author shravanshetty
+ */
+public interface CompactEntity {
+
+    /**
+     * @return The mongo object id of this entity
+     */
+    String getId();
+
+    /**
+     * @return All the other fields of this entity, packed in a few bytes
+     */
+    byte[] getPacked();
+}
@@ -0,0 +1,28 @@
+package com.shravan.gameofstones.core;
+
+import java.io.IOException;
+import org.bson.types.ObjectId;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+
+/**
+ * Writes a {@link CompactEntity} as {_id: ObjectId, packed: BinData}
+ *
+ * @author shravanshetty
+ */
+class CompactEntitySerializer extends JsonSerializer<CompactEntity> {
+
+    @Override
+    public void serialize(CompactEntity entity, JsonGenerator generator, SerializerProvider provider)
+        throws IOException {
+
+        generator.writeStartObject();
+        if (entity.getId() != null) {
+            generator.writeFieldName("_id");
+            generator.writeObject(new ObjectId(entity.getId()));
+        }
+        generator.writeBinaryField("packed", entity.getPacked());
+        generator.writeEndObject();
+    }
+}
@@ -0,0 +1,91 @@
+package com.shravan.gameofstones.core;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Assigns keys to nodes by consistent hashing. Every node is placed on a ring
+ * of hashes many times (virtual nodes), and a key is owned by the first node
+ * found on the ring from the hash of the key. When a node joins or leaves,
+ * only the keys it gains or owned move; the other keys keep their owner.
+ * <p>
+ * A ring never changes: a new ring is built for a new set of nodes.
+ *
+ * @author shravanshetty
+ */
+public class ConsistentHashRing {
+
+    private final List<String> nodes;
+    private final TreeMap<Long, String> ring = new TreeMap<Long, String>();
+
+    /**
+     * @param nodes
+     *            The nodes of the ring. Duplicates are ignored.
+     * @param virtualNodes
+     *            The number of times each node is placed on the ring. More
+     *            virtual nodes spread the keys more evenly.
+     */
+    public ConsistentHashRing(Collection<String> nodes, int virtualNodes) {
+        this.nodes = Collections.unmodifiableList(new ArrayList<String>(new LinkedHashSet<String>(nodes)));
+        for (String node : this.nodes) {
+            for (int virtualNode = 0; virtualNode < virtualNodes; virtualNode++) {
+                ring.put(hash(node + "#" + virtualNode), node);
+            }
+        }
+    }
+
+    /**
+     * Gets the nodes of this ring
+     *
+     * @return
+     */
+    public List<String> getNodes() {
+
+        return nodes;
+    }
+
+    /**
+     * Gets the node owning the given key
+     *
+     * @param key
+     * @return The node, or null if the ring has no nodes
+     */
+    public String getOwner(String key) {
+
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hash(key));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    //private methods
+
+    /**
+     * Hashes the given value with MD5, whose first 8 bytes are spread evenly
+     * on the ring, unlike {@link String#hashCode()} of similar ids
+     */
+    private static long hash(String value) {
+
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not supported", e);
+        }
+        long hash = 0;
+        for (int index = 0; index < 8; index++) {
+            hash = (hash << 8) | (digest[index] & 0xff);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,125 @@
+package com.shravan.gameofstones.core;
+
+import java.util.Arrays;
+import java.util.List;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Builds the mongo update turning a saved document into its current state,
+ * changing only the fields that differ. E.g. a move on a play only sets the
+ * pits that changed, and increments the move counter and the version:
+ *
+ * <pre>
+ * {$set: {'board.player1Pits.0': 0, 'board.player1Pits.6': 1, isPlayer1sMove: true},
+ *  $inc: {'board.player1Moves': 1, version: 1}}
+ * </pre>
+ * <p>
+ * Embedded documents are compared field by field, and arrays of the same
+ * length item by item. Integral fields (counters, versions) are incremented by
+ * their difference, other changed values and array items are set, and fields
+ * missing from the current state are unset.
+ *
+ * @author shravanshetty
+ */
+final class DocumentDiff {
+
+    private DocumentDiff() {
+    }
+
+    /**
+     * Gets the update turning the saved document into the current one
+     *
+     * @param saved
+     *            The document as saved in mongo
+     * @param current
+     *            The document to be saved, having the same _id
+     * @return The update, empty if the documents are equal
+     */
+    static DBObject getModifier(DBObject saved, DBObject current) {
+
+        BasicDBObject set = new BasicDBObject();
+        BasicDBObject inc = new BasicDBObject();
+        BasicDBObject unset = new BasicDBObject();
+        diffFields("", saved, current, set, inc, unset);
+        BasicDBObject modifier = new BasicDBObject();
+        if (!set.isEmpty()) {
+            modifier.append("$set", set);
+        }
+        if (!inc.isEmpty()) {
+            modifier.append("$inc", inc);
+        }
+        if (!unset.isEmpty()) {
+            modifier.append("$unset", unset);
+        }
+        return modifier;
+    }
+
+    //private methods
+
+    private static void diffFields(String prefix, DBObject saved, DBObject current, BasicDBObject set,
+        BasicDBObject inc, BasicDBObject unset) {
+
+        for (String field : current.keySet()) {
+            if (prefix.isEmpty() && "_id".equals(field)) {
+                continue;
+            }
+            if (saved.containsField(field)) {
+                diffValue(prefix + field, false, saved.get(field), current.get(field), set, inc, unset);
+            }
+            else {
+                set.append(prefix + field, current.get(field));
+            }
+        }
+        for (String field : saved.keySet()) {
+            if (!current.containsField(field)) {
+                unset.append(prefix + field, "");
+            }
+        }
+    }
+
+    private static void diffValue(String path, boolean isArrayItem, Object saved, Object current,
+        BasicDBObject set, BasicDBObject inc, BasicDBObject unset) {
+
+        if (saved instanceof List && current instanceof List) {
+            List<?> savedItems = (List<?>) saved;
+            List<?> currentItems = (List<?>) current;
+            if (savedItems.size() == currentItems.size()) {
+                for (int index = 0; index < currentItems.size(); index++) {
+                    diffValue(path + "." + index, true, savedItems.get(index), currentItems.get(index), set, inc,
+                        unset);
+                }
+                return;
+            }
+        }
+        else if (saved instanceof DBObject && current instanceof DBObject && !(saved instanceof List) &&
+            !(current instanceof List)) {
+            diffFields(path + ".", (DBObject) saved, (DBObject) current, set, inc, unset);
+            return;
+        }
+        else if (!isArrayItem && saved instanceof Integer && current instanceof Integer) {
+            int difference = (Integer) current - (Integer) saved;
+            if (difference != 0) {
+                inc.append(path, difference);
+            }
+            return;
+        }
+        else if (!isArrayItem && saved instanceof Long && current instanceof Long) {
+            long difference = (Long) current - (Long) saved;
+            if (difference != 0) {
+                inc.append(path, difference);
+            }
+            return;
+        }
+        else if (saved instanceof byte[] && current instanceof byte[]) {
+            //binary data, e.g. a packed board, is set whole
+            if (!Arrays.equals((byte[]) saved, (byte[]) current)) {
+                set.append(path, current);
+            }
+            return;
+        }
+        if (saved == null ? current != null : !saved.equals(current)) {
+            set.append(path, current);
+        }
+    }
+}
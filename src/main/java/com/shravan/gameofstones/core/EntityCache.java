@@ -0,0 +1,302 @@
+package com.shravan.gameofstones.core;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded cache of the documents read by the {@link Mongodb} client, by
+ * collection and query. Each cached collection keeps up to maxSize documents,
+ * evicting the least recently read one, and a document is served for up to
+ * ttlMillis after it was read.
+ * <p>
+ * A write of entities drops the cached documents of these entities, by their
+ * _id, and a write by query drops all the documents of its collection. A
+ * document read while the collection is written is not cached, so a read that
+ * started before a write never caches the state before it. Writes by other
+ * processes, and queries that match another entity after a write, are only
+ * seen once the cached documents expire.
+ *
+ * @author shravanshetty
+ */
+class EntityCache {
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final Map<String, CollectionCache> collectionCaches = new HashMap<String, CollectionCache>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * @param collectionNames
+     *            The collections whose documents are cached
+     * @param maxSize
+     *            Maximum documents cached per collection. 0 to cache none.
+     * @param ttlMillis
+     *            Time a document is served after it was read
+     */
+    EntityCache(Collection<String> collectionNames, int maxSize, long ttlMillis) {
+        this(collectionNames, maxSize, ttlMillis, new LongSupplier() {
+
+            @Override
+            public long getAsLong() {
+
+                return System.currentTimeMillis();
+            }
+        });
+    }
+
+    /**
+     * @param collectionNames
+     *            The collections whose documents are cached
+     * @param maxSize
+     *            Maximum documents cached per collection. 0 to cache none.
+     * @param ttlMillis
+     *            Time a document is served after it was read
+     * @param clock
+     *            The current time in millis, the documents expire by
+     */
+    EntityCache(Collection<String> collectionNames, int maxSize, long ttlMillis, LongSupplier clock) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        if (maxSize > 0) {
+            for (String collectionName : collectionNames) {
+                collectionCaches.put(collectionName, new CollectionCache());
+            }
+        }
+    }
+
+    /**
+     * Checks if the documents of the given collection are cached
+     *
+     * @param collectionName
+     * @return
+     */
+    boolean isCached(String collectionName) {
+
+        return collectionCaches.containsKey(collectionName);
+    }
+
+    /**
+     * Gets the version of the given collection, to be passed to
+     * {@link #put(String, Object, Object, byte[], long)} once its document is
+     * read
+     *
+     * @param collectionName
+     *            A cached collection
+     * @return
+     */
+    long getGeneration(String collectionName) {
+
+        CollectionCache collectionCache = collectionCaches.get(collectionName);
+        synchronized (collectionCache) {
+            return collectionCache.generation;
+        }
+    }
+
+    /**
+     * Gets the document cached for the given query, and counts a hit or a miss
+     *
+     * @param collectionName
+     *            A cached collection
+     * @param key
+     *            The query and its values
+     * @return The document, or null if it is not cached or expired
+     */
+    byte[] get(String collectionName, Object key) {
+
+        CollectionCache collectionCache = collectionCaches.get(collectionName);
+        CachedDocument cachedDocument;
+        synchronized (collectionCache) {
+            cachedDocument = collectionCache.documents.get(key);
+            if (cachedDocument != null && cachedDocument.expireAtMillis <= clock.getAsLong()) {
+                collectionCache.remove(key);
+                evictions.incrementAndGet();
+                cachedDocument = null;
+            }
+        }
+        if (cachedDocument == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cachedDocument.document;
+    }
+
+    /**
+     * Caches the document read for the given query, unless the collection was
+     * written since the given generation
+     *
+     * @param collectionName
+     *            A cached collection
+     * @param key
+     *            The query and its values
+     * @param id
+     *            The _id of the document
+     * @param document
+     *            The document read
+     * @param generation
+     *            The {@link #getGeneration(String)} of the collection before
+     *            the document was read
+     */
+    void put(String collectionName, Object key, Object id, byte[] document, long generation) {
+
+        CollectionCache collectionCache = collectionCaches.get(collectionName);
+        synchronized (collectionCache) {
+            if (collectionCache.generation == generation) {
+                collectionCache.remove(key);
+                String cachedId = String.valueOf(id);
+                collectionCache.documents.put(key,
+                    new CachedDocument(cachedId, document, clock.getAsLong() + ttlMillis));
+                Set<Object> keys = collectionCache.keysById.get(cachedId);
+                if (keys == null) {
+                    keys = new HashSet<Object>();
+                    collectionCache.keysById.put(cachedId, keys);
+                }
+                keys.add(key);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached documents of the given entities, after they are
+     * written
+     *
+     * @param collectionName
+     * @param ids
+     *            The _ids of the written entities. Null ids are ignored.
+     */
+    void invalidate(String collectionName, Collection<?> ids) {
+
+        CollectionCache collectionCache = collectionCaches.get(collectionName);
+        if (collectionCache != null) {
+            synchronized (collectionCache) {
+                collectionCache.generation++;
+                for (Object id : ids) {
+                    Set<Object> keys = id != null ? collectionCache.keysById.get(String.valueOf(id)) : null;
+                    if (keys != null) {
+                        for (Object key : new HashSet<Object>(keys)) {
+                            collectionCache.remove(key);
+                        }
+                    }
+                }
+            }
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops all the cached documents of the given collection, after a write
+     * whose entities are not known, e.g. by query
+     *
+     * @param collectionName
+     */
+    void invalidate(String collectionName) {
+
+        CollectionCache collectionCache = collectionCaches.get(collectionName);
+        if (collectionCache != null) {
+            synchronized (collectionCache) {
+                collectionCache.generation++;
+                collectionCache.documents.clear();
+                collectionCache.keysById.clear();
+            }
+            invalidations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Gets the lookups served by this cache so far
+     *
+     * @return
+     */
+    MongoCacheStats getStats() {
+
+        int size = 0;
+        for (CollectionCache collectionCache : collectionCaches.values()) {
+            synchronized (collectionCache) {
+                size += collectionCache.documents.size();
+            }
+        }
+        MongoCacheStats stats = new MongoCacheStats();
+        stats.setCollections(collectionCaches.keySet().toArray(new String[collectionCaches.size()]));
+        stats.setMaxSize(maxSize);
+        stats.setTtlMillis(ttlMillis);
+        stats.setSize(size);
+        stats.setHits(hits.get());
+        stats.setMisses(misses.get());
+        stats.setEvictions(evictions.get());
+        stats.setInvalidations(invalidations.get());
+        return stats;
+    }
+
+    //private methods
+
+    /**
+     * The documents of one collection, least recently read first
+     */
+    private class CollectionCache {
+
+        private long generation;
+        private final LinkedHashMap<Object, CachedDocument> documents = new LinkedHashMap<Object, CachedDocument>(
+            16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, CachedDocument> eldest) {
+
+                if (size() > maxSize) {
+                    evictions.incrementAndGet();
+                    removeKey(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        /**
+         * The queries of the cached documents, by the _id of the document
+         */
+        private final Map<String, Set<Object>> keysById = new HashMap<String, Set<Object>>();
+
+        /**
+         * Removes the document cached for the given query, if any
+         */
+        private void remove(Object key) {
+
+            CachedDocument cachedDocument = documents.remove(key);
+            if (cachedDocument != null) {
+                removeKey(key, cachedDocument);
+            }
+        }
+
+        private void removeKey(Object key, CachedDocument cachedDocument) {
+
+            Set<Object> keys = keysById.get(cachedDocument.id);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                keysById.remove(cachedDocument.id);
+            }
+        }
+    }
+
+    private static class CachedDocument {
+
+        private final String id;
+        private final byte[] document;
+        private final long expireAtMillis;
+
+        CachedDocument(String id, byte[] document, long expireAtMillis) {
+            this.id = id;
+            this.document = document;
+            this.expireAtMillis = expireAtMillis;
+        }
+    }
+}
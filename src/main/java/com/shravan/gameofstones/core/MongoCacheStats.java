@@ -0,0 +1,132 @@
+package com.shravan.gameofstones.core;
+
+/**
+ * The lookups served by the read-through cache of the {@link Mongodb} client
+ * so far, for monitoring. A hit is a lookup served from memory, a miss is a
+ * lookup read from mongo. An eviction drops a document because the cache of
+ * its collection is full or the document expired, an invalidation drops all
+ * the documents of a collection after it is written.
+ *
+ * @author shravanshetty
+ */
+public class MongoCacheStats {
+
+    private String[] collections;
+    private int maxSize;
+    private long ttlMillis;
+    private int size;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public MongoCacheStats() {
+    }
+
+    /**
+     * Gets the share of the lookups served from memory
+     *
+     * @return
+     */
+    public double getHitRatio() {
+
+        return hits + misses > 0 ? (double) hits / (hits + misses) : 0;
+    }
+
+    //getters and setters
+    /**
+     * Gets the names of the collections whose documents are cached. Empty if
+     * the cache is disabled.
+     *
+     * @return
+     */
+    public String[] getCollections() {
+
+        return collections;
+    }
+
+    public void setCollections(String[] collections) {
+
+        this.collections = collections;
+    }
+
+    /**
+     * Gets the maximum number of documents cached per collection
+     *
+     * @return
+     */
+    public int getMaxSize() {
+
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+
+        this.maxSize = maxSize;
+    }
+
+    public long getTtlMillis() {
+
+        return ttlMillis;
+    }
+
+    public void setTtlMillis(long ttlMillis) {
+
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Gets the number of documents cached in all the collections
+     *
+     * @return
+     */
+    public int getSize() {
+
+        return size;
+    }
+
+    public void setSize(int size) {
+
+        this.size = size;
+    }
+
+    public long getHits() {
+
+        return hits;
+    }
+
+    public void setHits(long hits) {
+
+        this.hits = hits;
+    }
+
+    public long getMisses() {
+
+        return misses;
+    }
+
+    public void setMisses(long misses) {
+
+        this.misses = misses;
+    }
+
+    public long getEvictions() {
+
+        return evictions;
+    }
+
+    public void setEvictions(long evictions) {
+
+        this.evictions = evictions;
+    }
+
+    public long getInvalidations() {
+
+        return invalidations;
+    }
+
+    public void setInvalidations(long invalidations) {
+
+        this.invalidations = invalidations;
+    }
+}
@@ -0,0 +1,202 @@
+package com.shravan.gameofstones.core;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.logging.Logger;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.event.CommandListener;
+
+/**
+ * The connection settings of the {@link Mongodb} client. Every setting is read
+ * from the system property of the same name, else from the config file, else
+ * the default is used. The config file is the file given by the system property
+ * gameofstones.config, else gameofstones.properties from the classpath, if any.
+ *
+ * <pre>
+ * gameofstones.mongo.host                          default localhost
+ * gameofstones.mongo.port                          default 27017
+ * gameofstones.mongo.database                      default gameofstones
+ * gameofstones.mongo.minPoolSize                   default 0
+ * gameofstones.mongo.maxPoolSize                   default 100
+ * gameofstones.mongo.waitQueueMultiple             default 5 (waiters per pooled connection)
+ * gameofstones.mongo.maxWaitTimeMillis             default 10000 (to get a pooled connection)
+ * gameofstones.mongo.connectTimeoutMillis          default 10000
+ * gameofstones.mongo.socketTimeoutMillis           default 0 (none)
+ * gameofstones.mongo.serverSelectionTimeoutMillis  default 10000
+ * gameofstones.mongo.coalesceWindowMillis          default 0 (write batches are flushed on their own)
+ * gameofstones.mongo.cacheSize                     default 1000 (documents per cached collection, 0 for none)
+ *                                                  default 0 on a node of a cluster (gameofstones.cluster.self)
+ * gameofstones.mongo.cacheTtlMillis                default 60000
+ * gameofstones.mongo.cachedCollections             default Player (comma separated)
+ * gameofstones.mongo.compactEntities               default false (entities are written field by field)
+ * </pre>
+ *
+ * @author shravanshetty
+ */
+public class MongoConfig {
+
+    private static Logger log = Logger.getLogger(MongoConfig.class.getSimpleName());
+    private static final String PREFIX = "gameofstones.mongo.";
+    private static final String CONFIG_RESOURCE = "gameofstones.properties";
+
+    private final Properties fileProperties;
+
+    MongoConfig(Properties fileProperties) {
+        this.fileProperties = fileProperties;
+    }
+
+    /**
+     * Reads the config file, if any
+     *
+     * @return The settings to connect to mongo
+     */
+    public static MongoConfig load() {
+
+        Properties fileProperties = new Properties();
+        String configFile = System.getProperty("gameofstones.config");
+        try (InputStream configStream = configFile != null ? new FileInputStream(configFile)
+            : MongoConfig.class.getClassLoader().getResourceAsStream(CONFIG_RESOURCE)) {
+            if (configStream != null) {
+                fileProperties.load(configStream);
+            }
+        }
+        catch (IOException e) {
+            //a config file given explicitly must be readable
+            throw new IllegalStateException("Config file: " + configFile + " could not be read", e);
+        }
+        return new MongoConfig(fileProperties);
+    }
+
+    public String getHost() {
+
+        return getSetting("host", "localhost");
+    }
+
+    public int getPort() {
+
+        return getIntSetting("port", 27017);
+    }
+
+    public String getDatabase() {
+
+        return getSetting("database", "gameofstones");
+    }
+
+    public int getMinPoolSize() {
+
+        return getIntSetting("minPoolSize", 0);
+    }
+
+    public int getMaxPoolSize() {
+
+        return getIntSetting("maxPoolSize", 100);
+    }
+
+    /**
+     * Gets the time the write batches of concurrent requests are collected,
+     * to be flushed together. 0 to flush every batch on its own.
+     *
+     * @return
+     */
+    public int getCoalesceWindowMillis() {
+
+        return getIntSetting("coalesceWindowMillis", 0);
+    }
+
+    /**
+     * Gets the maximum number of documents of each cached collection kept in
+     * memory. 0 to disable the cache. Disabled by default on a node of a
+     * cluster, as the writes of the other nodes would not invalidate it.
+     *
+     * @return
+     */
+    public int getCacheSize() {
+
+        return getIntSetting("cacheSize", System.getProperty("gameofstones.cluster.self") != null ? 0 : 1000);
+    }
+
+    /**
+     * Gets the time a cached document is served, after it was read
+     *
+     * @return
+     */
+    public int getCacheTtlMillis() {
+
+        return getIntSetting("cacheTtlMillis", 60000);
+    }
+
+    /**
+     * Gets the collections whose documents are cached when read by a single
+     * entity lookup
+     *
+     * @return
+     */
+    public List<String> getCachedCollections() {
+
+        List<String> collectionNames = new ArrayList<String>();
+        for (String collectionName : getSetting("cachedCollections", "Player").split(",")) {
+            if (!collectionName.trim().isEmpty()) {
+                collectionNames.add(collectionName.trim());
+            }
+        }
+        return collectionNames;
+    }
+
+    /**
+     * Checks if the {@link CompactEntity}s (boards) are written in their
+     * compact binary form. Documents in either form are read.
+     *
+     * @return
+     */
+    public boolean isCompactEntities() {
+
+        return Boolean.parseBoolean(getSetting("compactEntities", "false").trim());
+    }
+
+    /**
+     * Builds the options of the client from these settings
+     *
+     * @param commandListener
+     *            Listener to the commands sent by the client
+     * @return
+     */
+    public MongoClientOptions toClientOptions(CommandListener commandListener) {
+
+        MongoClientOptions options = MongoClientOptions.builder().minConnectionsPerHost(getMinPoolSize())
+                                                       .connectionsPerHost(getMaxPoolSize())
+                                                       .threadsAllowedToBlockForConnectionMultiplier(
+                                                           getIntSetting("waitQueueMultiple", 5))
+                                                       .maxWaitTime(getIntSetting("maxWaitTimeMillis", 10000))
+                                                       .connectTimeout(getIntSetting("connectTimeoutMillis", 10000))
+                                                       .socketTimeout(getIntSetting("socketTimeoutMillis", 0))
+                                                       .serverSelectionTimeout(
+                                                           getIntSetting("serverSelectionTimeoutMillis", 10000))
+                                                       .addCommandListener(commandListener).build();
+        log.info(String.format("Mongo client for %s:%s, pool of %s to %s connections", getHost(), getPort(),
+            options.getMinConnectionsPerHost(), options.getConnectionsPerHost()));
+        return options;
+    }
+
+    //private methods
+
+    private String getSetting(String name, String defaultValue) {
+
+        return System.getProperty(PREFIX + name, fileProperties.getProperty(PREFIX + name, defaultValue));
+    }
+
+    private int getIntSetting(String name, int defaultValue) {
+
+        String value = getSetting(name, null);
+        try {
+            return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Setting: %s%s must be a number, not: %s", PREFIX,
+                name, value), e);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.shravan.gameofstones.core;
+
+/**
+ * A point in time view of the connection pool of the {@link Mongodb} client,
+ * for monitoring. The wait time of a request is the time from the request to
+ * the start of its command on a pooled connection, so it includes the server
+ * selection. Only the requests whose command is started from the requesting
+ * thread are timed: the cursors read later by the callers are not.
+ *
+ * @author shravanshetty
+ */
+public class MongoPoolStats {
+
+    private String host;
+    private int port;
+    private int size;
+    private int maxSize;
+    private int inUse;
+    private int waiters;
+    private long roundTrips;
+    private long timedRequests;
+    private double totalWaitMillis;
+    private double maxWaitMillis;
+
+    public MongoPoolStats() {
+    }
+
+    /**
+     * Gets the average wait time of the timed requests for a pooled connection
+     *
+     * @return
+     */
+    public double getAverageWaitMillis() {
+
+        return timedRequests > 0 ? totalWaitMillis / timedRequests : 0;
+    }
+
+    //getters and setters
+    public String getHost() {
+
+        return host;
+    }
+
+    public void setHost(String host) {
+
+        this.host = host;
+    }
+
+    public int getPort() {
+
+        return port;
+    }
+
+    public void setPort(int port) {
+
+        this.port = port;
+    }
+
+    /**
+     * Gets the number of open connections in the pool
+     *
+     * @return
+     */
+    public int getSize() {
+
+        return size;
+    }
+
+    public void setSize(int size) {
+
+        this.size = size;
+    }
+
+    public int getMaxSize() {
+
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Gets the number of connections checked out of the pool
+     *
+     * @return
+     */
+    public int getInUse() {
+
+        return inUse;
+    }
+
+    public void setInUse(int inUse) {
+
+        this.inUse = inUse;
+    }
+
+    /**
+     * Gets the number of requests waiting for a connection
+     *
+     * @return
+     */
+    public int getWaiters() {
+
+        return waiters;
+    }
+
+    public void setWaiters(int waiters) {
+
+        this.waiters = waiters;
+    }
+
+    public long getRoundTrips() {
+
+        return roundTrips;
+    }
+
+    public void setRoundTrips(long roundTrips) {
+
+        this.roundTrips = roundTrips;
+    }
+
+    public long getTimedRequests() {
+
+        return timedRequests;
+    }
+
+    public void setTimedRequests(long timedRequests) {
+
+        this.timedRequests = timedRequests;
+    }
+
+    public double getTotalWaitMillis() {
+
+        return totalWaitMillis;
+    }
+
+    public void setTotalWaitMillis(double totalWaitMillis) {
+
+        this.totalWaitMillis = totalWaitMillis;
+    }
+
+    public double getMaxWaitMillis() {
+
+        return maxWaitMillis;
+    }
+
+    public void setMaxWaitMillis(double maxWaitMillis) {
+
+        this.maxWaitMillis = maxWaitMillis;
+    }
+}
@@ -0,0 +1,137 @@
+package com.shravan.gameofstones.core;
+
+/**
+ * The write batches flushed by the {@link Mongodb} client so far, for
+ * monitoring. A flush writes one or more {@link WriteBatch}es (more when they
+ * are coalesced within the write window) with one ordered bulk write per run
+ * of writes to the same collection.
+ *
+ * @author shravanshetty
+ */
+public class MongoWriteStats {
+
+    private int coalesceWindowMillis;
+    private long flushes;
+    private long batches;
+    private long writes;
+    private long bulkWrites;
+    private int maxFlushSize;
+    private double totalFlushMillis;
+    private double maxFlushMillis;
+
+    public MongoWriteStats() {
+    }
+
+    /**
+     * Gets the average number of writes of a flush
+     *
+     * @return
+     */
+    public double getAverageFlushSize() {
+
+        return flushes > 0 ? (double) writes / flushes : 0;
+    }
+
+    /**
+     * Gets the average time of a flush, from its first bulk write to the
+     * result of its last one
+     *
+     * @return
+     */
+    public double getAverageFlushMillis() {
+
+        return flushes > 0 ? totalFlushMillis / flushes : 0;
+    }
+
+    //getters and setters
+    /**
+     * Gets the time the batches of concurrent requests are collected before
+     * they are flushed together. 0 if every batch is flushed on its own.
+     *
+     * @return
+     */
+    public int getCoalesceWindowMillis() {
+
+        return coalesceWindowMillis;
+    }
+
+    public void setCoalesceWindowMillis(int coalesceWindowMillis) {
+
+        this.coalesceWindowMillis = coalesceWindowMillis;
+    }
+
+    public long getFlushes() {
+
+        return flushes;
+    }
+
+    public void setFlushes(long flushes) {
+
+        this.flushes = flushes;
+    }
+
+    public long getBatches() {
+
+        return batches;
+    }
+
+    public void setBatches(long batches) {
+
+        this.batches = batches;
+    }
+
+    public long getWrites() {
+
+        return writes;
+    }
+
+    public void setWrites(long writes) {
+
+        this.writes = writes;
+    }
+
+    /**
+     * Gets the number of bulk writes (round trips) of all the flushes
+     *
+     * @return
+     */
+    public long getBulkWrites() {
+
+        return bulkWrites;
+    }
+
+    public void setBulkWrites(long bulkWrites) {
+
+        this.bulkWrites = bulkWrites;
+    }
+
+    public int getMaxFlushSize() {
+
+        return maxFlushSize;
+    }
+
+    public void setMaxFlushSize(int maxFlushSize) {
+
+        this.maxFlushSize = maxFlushSize;
+    }
+
+    public double getTotalFlushMillis() {
+
+        return totalFlushMillis;
+    }
+
+    public void setTotalFlushMillis(double totalFlushMillis) {
+
+        this.totalFlushMillis = totalFlushMillis;
+    }
+
+    public double getMaxFlushMillis() {
+
+        return maxFlushMillis;
+    }
+
+    public void setMaxFlushMillis(double maxFlushMillis) {
+
+        this.maxFlushMillis = maxFlushMillis;
+    }
+}
@@ -1,61 +1,163 @@
 package com.shravan.gameofstones.core;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import org.bson.types.ObjectId;
+import org.jongo.Find;
+import org.jongo.FindOne;
 import org.jongo.Jongo;
+import org.jongo.Mapper;
 import org.jongo.MongoCollection;
+import org.jongo.MongoCursor;
+import org.jongo.ObjectIdUpdater;
+import org.jongo.ResultHandler;
+import org.jongo.bson.Bson;
+import org.jongo.marshall.Marshaller;
 import org.jongo.marshall.jackson.JacksonMapper;
 import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.datatype.joda.JodaModule;
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
 import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteResult;
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+import com.mongodb.management.ConnectionPoolStatisticsMBean;
 
 /**
  * Mongodb class to interact with mongo database.
+ * <p>
+ * A single client, with its connection pool, is created with the first access
+ * from the {@link MongoConfig} settings. The client connects lazily: if mongo
+ * is not reachable, every request fails with the {@link MongoException} of the
+ * driver, and {@link Mongodb#isAvailable()} can be used to check the
+ * connection.
  * 
  * @author shravanshetty
  */
 
 public class Mongodb {
 
-    private Jongo jongo;
-    private static Mongodb mongodb;
-    Logger log = Logger.getLogger(Mongodb.class.getSimpleName());
+    private static volatile Mongodb mongodb;
+    private static Logger log = Logger.getLogger(Mongodb.class.getSimpleName());
     public static boolean IS_TEST = false;
-    private static String DB_NAME;
-    private static final String MONGO_HOST = "localhost";
-    private static final int MONGO_PORT = 27017;
+    private static final String TEST_DB_NAME = "gameofstones-test";
+    private static final String POOL_MBEANS = "org.mongodb.driver:type=ConnectionPool,*";
 
-    private Mongodb() {
-        DB_NAME = IS_TEST ? "gameofstones-test" : "gameofstones";
+    private final MongoConfig config;
+    private final MongoClient mongoClient;
+    private final Jongo jongo;
+    /**
+     * Number of requests sent to mongo by this instance
+     */
+    private final AtomicLong roundTrips = new AtomicLong();
+    /**
+     * Start of the current request of a thread, until its command is started
+     * on a pooled connection
+     */
+    private final ThreadLocal<Long> requestStartNanos = new ThreadLocal<Long>();
+    private final AtomicLong timedRequests = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final WriteCoalescer writeCoalescer;
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedBatches = new AtomicLong();
+    private final AtomicLong flushedWrites = new AtomicLong();
+    private final AtomicLong bulkWrites = new AtomicLong();
+    private final AtomicLong maxFlushSize = new AtomicLong();
+    private final AtomicLong totalFlushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private final EntityCache entityCache;
+
+    @SuppressWarnings("deprecation")
+    private Mongodb(MongoConfig config) {
+        this.config = config;
+        mongoClient = new MongoClient(new ServerAddress(config.getHost(), config.getPort()),
+            config.toClientOptions(new WaitTimeListener()));
+        DB db = mongoClient.getDB(IS_TEST ? TEST_DB_NAME : config.getDatabase());
+        jongo = new Jongo(db, createMapper(config.isCompactEntities()));
+        entityCache = new EntityCache(config.getCachedCollections(), config.getCacheSize(),
+            config.getCacheTtlMillis());
+        writeCoalescer = config.getCoalesceWindowMillis() > 0 ? new WriteCoalescer(
+            config.getCoalesceWindowMillis(), new WriteCoalescer.Flusher() {
+
+                @Override
+                public void flush(List<WriteBatch> batches) {
+
+                    Mongodb.this.flush(batches);
+                }
+            }) : null;
     }
 
     /**
-     * Retuns a singeton instance of this type
+     * Creates the mapper converting the entities to and from mongo documents
+     * 
+     * @return
+     */
+    public static Mapper createMapper() {
+
+        return createMapper(false);
+    }
+
+    /**
+     * Creates the mapper converting the entities to and from mongo documents
+     * 
+     * @param compactEntities
+     *            Write the {@link CompactEntity}s in their compact form
+     * @return
+     */
+    public static Mapper createMapper(boolean compactEntities) {
+
+        JacksonMapper.Builder builder = new JacksonMapper.Builder().registerModule(new JodaModule())
+                                                                   .enable(MapperFeature.AUTO_DETECT_GETTERS);
+        if (compactEntities) {
+            builder.addSerializer(CompactEntity.class, new CompactEntitySerializer());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Retuns a singeton instance of this type. The client is created once,
+     * even with concurrent first accesses; if it cannot be created (e.g. the
+     * settings are invalid) the exception is thrown and the next access tries
+     * again.
      * 
      * @return Mongodb singleton instance
      */
-    @SuppressWarnings({"resource", "deprecation"})
     public static Mongodb getInstance() {
 
-        mongodb = mongodb != null ? mongodb : new Mongodb();
-        if (mongodb.jongo == null) {
-            try {
-                MongoClient mongoClient = new MongoClient(MONGO_HOST, MONGO_PORT);
-                //check to see if the client is connected
-                mongoClient.getDatabaseNames();
-                DB db = mongoClient.getDB(DB_NAME);
-                mongodb.jongo = new Jongo(db,
-                    new JacksonMapper.Builder().registerModule(new JodaModule())
-                                               .enable(MapperFeature.AUTO_DETECT_GETTERS).build());
-            }
-            //return null if connection to mongo fails
-            catch (Exception ex) {
-                return null;
+        Mongodb instance = mongodb;
+        if (instance == null) {
+            synchronized (Mongodb.class) {
+                instance = mongodb;
+                if (instance == null) {
+                    instance = new Mongodb(MongoConfig.load());
+                    mongodb = instance;
+                }
             }
         }
-        return mongodb;
+        return instance;
     }
 
     /**
@@ -69,7 +171,107 @@ public class Mongodb {
     }
 
     /**
-     * Generic method to read one entity from db.
+     * Checks if mongo can be reached, waiting at most the configured server
+     * selection timeout
+     * 
+     * @return true if mongo answered a ping
+     */
+    public boolean isAvailable() {
+
+        try {
+            startRoundTrip();
+            return jongo.getDatabase().command("ping").ok();
+        }
+        catch (MongoException e) {
+            log.warning(String.format("Mongo at %s:%s is not available: %s", config.getHost(), config.getPort(),
+                e.getMessage()));
+            return false;
+        }
+        finally {
+            endRoundTrip();
+        }
+    }
+
+    /**
+     * Gets the number of requests sent to mongo via this instance. Can be used
+     * to monitor (or assert) the number of round trips of an operation.
+     * 
+     * @return Total number of round trips to mongo so far
+     */
+    public long getRoundTripCount() {
+
+        return roundTrips.get();
+    }
+
+    /**
+     * Gets the current usage of the connection pool, and the time requests
+     * waited for a connection so far
+     * 
+     * @return
+     */
+    public MongoPoolStats getPoolStats() {
+
+        MongoPoolStats stats = new MongoPoolStats();
+        stats.setHost(config.getHost());
+        stats.setPort(config.getPort());
+        stats.setMaxSize(config.getMaxPoolSize());
+        stats.setRoundTrips(roundTrips.get());
+        stats.setTimedRequests(timedRequests.get());
+        stats.setTotalWaitMillis(totalWaitNanos.get() / 1e6);
+        stats.setMaxWaitMillis(maxWaitNanos.get() / 1e6);
+        //the driver publishes the usage of its pools as mbeans
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (ObjectName poolName : mBeanServer.queryNames(new ObjectName(POOL_MBEANS), null)) {
+                ConnectionPoolStatisticsMBean pool = JMX.newMBeanProxy(mBeanServer, poolName,
+                    ConnectionPoolStatisticsMBean.class);
+                if (pool.getPort() == config.getPort() && pool.getHost().equals(config.getHost())) {
+                    stats.setSize(stats.getSize() + pool.getSize());
+                    stats.setInUse(stats.getInUse() + pool.getCheckedOutCount());
+                    stats.setWaiters(stats.getWaiters() + pool.getWaitQueueSize());
+                }
+            }
+        }
+        catch (MalformedObjectNameException e) {
+            log.warning("Connection pool stats not read: " + e.getMessage());
+        }
+        return stats;
+    }
+
+    /**
+     * Gets the write batches flushed so far, and the time they took
+     * 
+     * @return
+     */
+    public MongoWriteStats getWriteStats() {
+
+        MongoWriteStats stats = new MongoWriteStats();
+        stats.setCoalesceWindowMillis(config.getCoalesceWindowMillis());
+        stats.setFlushes(flushes.get());
+        stats.setBatches(flushedBatches.get());
+        stats.setWrites(flushedWrites.get());
+        stats.setBulkWrites(bulkWrites.get());
+        stats.setMaxFlushSize((int) maxFlushSize.get());
+        stats.setTotalFlushMillis(totalFlushNanos.get() / 1e6);
+        stats.setMaxFlushMillis(maxFlushNanos.get() / 1e6);
+        return stats;
+    }
+
+    /**
+     * Gets the lookups served by the read-through cache so far
+     * 
+     * @return
+     */
+    public MongoCacheStats getCacheStats() {
+
+        return entityCache.getStats();
+    }
+
+    /**
+     * Generic method to read one entity from db. Entities of the collections
+     * configured in {@link MongoConfig#getCachedCollections()} are served from
+     * memory when the same query was read recently, and its entity was not
+     * written since. See {@link EntityCache}
      * 
      * @param query
      *            The query against which the entities has to be fetched
@@ -86,11 +288,20 @@ public class Mongodb {
             return null;
         }
         MongoCollection collection = jongo.getCollection(collectionName);
-        if (params == null) {
-            return collection.findOne(query).as(expected);
+        if (entityCache.isCached(collectionName)) {
+            return getCachedEntity(collection, query, expected, params);
+        }
+        startRoundTrip();
+        try {
+            if (params == null) {
+                return collection.findOne(query).as(expected);
 
+            }
+            return collection.findOne(query, params).as(expected);
+        }
+        finally {
+            endRoundTrip();
         }
-        return collection.findOne(query, params).as(expected);
     }
 
     /**
@@ -113,18 +324,145 @@ public class Mongodb {
         MongoCollection collection = jongo.getCollection(collectionName);
         List<T> entityList = new ArrayList<T>();
         Iterable<T> iterableEntities;
-        if (params == null) {
-            iterableEntities = collection.find(query).as(expected);
+        startRoundTrip();
+        try {
+            if (params == null) {
+                iterableEntities = collection.find(query).as(expected);
+            }
+            else {
+                iterableEntities = collection.find(query, params).as(expected);
+            }
+            for (T entity : iterableEntities) {
+                entityList.add(entity);
+            }
         }
-        else {
-            iterableEntities = collection.find(query, params).as(expected);
+        finally {
+            endRoundTrip();
         }
-        for (T entity : iterableEntities) {
-            entityList.add(entity);
+        return entityList;
+    }
+
+    /**
+     * Gets a list of the entities matching the given query, in the given
+     * order
+     * 
+     * @param query
+     *            The query against which the entities has to be fetched
+     * @param sort
+     *            The sort order. E.g. {seq: 1}
+     * @param limit
+     *            Maximum entities to be fetched. 0 for no limit
+     * @param expected
+     *            The expected bean/collection to query against.
+     * @param params
+     *            The query values
+     * @return Returns a sorted list of entities.
+     */
+    public <T> List<T> getSortedEntities(String query, String sort, int limit, Class<T> expected,
+        Object... params) {
+
+        String collectionName = getCollectionName(expected);
+        if (collectionName == null) {
+            return null;
+        }
+        MongoCollection collection = jongo.getCollection(collectionName);
+        List<T> entityList = new ArrayList<T>();
+        startRoundTrip();
+        try {
+            for (T entity : collection.find(query, params).sort(sort).limit(limit).as(expected)) {
+                entityList.add(entity);
+            }
+        }
+        finally {
+            endRoundTrip();
         }
         return entityList;
     }
 
+    /**
+     * Streams the entities matching the given query, in the given order. The
+     * entities are fetched from mongo in batches while iterating, so they are
+     * never all held in memory. The returned cursor must be closed.
+     * 
+     * @param query
+     *            The query against which the entities has to be fetched
+     * @param sort
+     *            The sort order. E.g. {seq: 1}
+     * @param expected
+     *            The expected bean/collection to query against.
+     * @param params
+     *            The query values
+     * @return Returns a cursor over the entities. Null if the collection is
+     *         not known.
+     */
+    public <T> MongoCursor<T> streamEntities(String query, String sort, Class<T> expected, Object... params) {
+
+        return streamEntities(query, null, sort, expected, params);
+    }
+
+    /**
+     * Streams the given fields of the entities matching the given query, like
+     * {@link #streamEntities(String, String, Class, Object...)}. Only these
+     * fields are read from mongo: the other fields of the entities are left
+     * unset, so the entities must not be saved whole.
+     * 
+     * @param query
+     *            The query against which the entities has to be fetched
+     * @param projection
+     *            The fields to be read. E.g. {playId: 1, 'board._id': 1}.
+     *            If null, all fields.
+     * @param sort
+     *            The sort order. E.g. {seq: 1}
+     * @param expected
+     *            The expected bean/collection to query against.
+     * @param params
+     *            The query values
+     * @return Returns a cursor over the entities. Null if the collection is
+     *         not known.
+     */
+    public <T> MongoCursor<T> streamEntities(String query, String projection, String sort, Class<T> expected,
+        Object... params) {
+
+        String collectionName = getCollectionName(expected);
+        if (collectionName == null) {
+            return null;
+        }
+        MongoCollection collection = jongo.getCollection(collectionName);
+        Find find = collection.find(query, params).sort(sort);
+        if (projection != null) {
+            find.projection(projection);
+        }
+        //the cursor is read later, by the caller: its request is counted, but not timed
+        roundTrips.incrementAndGet();
+        return find.as(expected);
+    }
+
+    /**
+     * Creates an index on the collection of the given entity, if it does not
+     * exist yet
+     * 
+     * @param expected
+     *            Bean class whose collection is indexed
+     * @param keys
+     *            The index keys. E.g. {playId: 1, seq: 1}
+     * @param options
+     *            The index options. E.g. {unique: true}
+     */
+    public <T> void ensureIndex(Class<T> expected, String keys, String options) {
+
+        String collectionName = getCollectionName(expected);
+        if (collectionName == null)
+            return;
+        MongoCollection collection = jongo.getCollection(collectionName);
+        startRoundTrip();
+        try {
+            collection.ensureIndex(keys, options);
+        }
+        finally {
+            endRoundTrip();
+        }
+    }
+
     /**
      * Insert an entity object to mongodb
      * 
@@ -137,7 +475,14 @@ public class Mongodb {
         if (collectionName == null)
             return null;
         MongoCollection collection = jongo.getCollection(collectionName);
-        collection.insert(entity);
+        startRoundTrip();
+        try {
+            collection.insert(entity);
+        }
+        finally {
+            endRoundTrip();
+            entityCache.invalidate(collectionName, getIds(entity));
+        }
         return entity;
     }
 
@@ -154,10 +499,335 @@ public class Mongodb {
         if (collectionName == null)
             return null;
         MongoCollection collection = jongo.getCollection(collectionName);
-        collection.save(entity);
+        startRoundTrip();
+        try {
+            collection.save(entity);
+        }
+        finally {
+            endRoundTrip();
+            entityCache.invalidate(collectionName, getIds(entity));
+        }
         return entity;
     }
 
+    /**
+     * Writes all the entities of the batch, in order, with one ordered bulk
+     * write per run of entities of the same collection. E.g. two players and
+     * then a play are written with two round trips.
+     * <p>
+     * With a coalesce window configured, the batches of concurrent requests
+     * submitted within the window are flushed together, and this method
+     * returns once the flush is done. If a write fails, only the batch holding
+     * it fails, like when flushed on its own; see {@link WriteCoalescer}.
+     * 
+     * @param batch
+     *            The writes to be done
+     * @throws MongoException
+     *             If a write failed
+     */
+    public void write(WriteBatch batch) {
+
+        if (batch.isEmpty()) {
+            return;
+        }
+        if (writeCoalescer != null) {
+            writeCoalescer.write(batch);
+            return;
+        }
+        try {
+            flush(Collections.singletonList(batch));
+        }
+        catch (WriteCoalescer.FailedBatchException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Updates the given entity in mongo, only if the saved entity still has
+     * the expected version (compare-and-set). The caller must have already
+     * updated the version in the given entity.
+     * 
+     * @param entity
+     *            The entity that has to be saved.
+     * @param id
+     *            The id of the entity
+     * @param expectedVersion
+     *            The version of the entity when it was read. Null if it was
+     *            saved without a version.
+     * @return Returns true if the entity is saved, false if it was modified or
+     *         removed in the meantime.
+     */
+    public <T> boolean updateEntityIfVersion(T entity, Object id, Long expectedVersion) {
+
+        String collectionName = getCollectionName(entity.getClass());
+        if (collectionName == null)
+            return false;
+        MongoCollection collection = jongo.getCollection(collectionName);
+        startRoundTrip();
+        WriteResult writeResult;
+        try {
+            if (expectedVersion != null) {
+                writeResult = collection.update("{_id: #, version: #}", id, expectedVersion).with(entity);
+            }
+            else {
+                writeResult = collection.update("{_id: #, version: {$exists: false}}", id).with(entity);
+            }
+        }
+        finally {
+            endRoundTrip();
+            entityCache.invalidate(collectionName, Collections.singletonList(id));
+        }
+        return writeResult.getN() == 1;
+    }
+
+    /**
+     * Saves all the given entities with a single bulk write. Each entity only
+     * replaces the saved one if the saved version is older, so a delayed write
+     * can never overwrite a newer state. Entities missing in mongo are not
+     * created.
+     * 
+     * @param expected
+     *            Expected bean/collection that is updated
+     * @param entities
+     *            The entities to be saved
+     * @return The number of entities that were saved
+     */
+    public <T extends VersionedEntity> Integer updateEntitiesIfNewer(Class<T> expected, Collection<T> entities) {
+
+        String collectionName = getCollectionName(expected);
+        if (collectionName == null)
+            return null;
+        if (entities.isEmpty()) {
+            return 0;
+        }
+        DBCollection collection = jongo.getCollection(collectionName).getDBCollection();
+        BulkWriteOperation bulkWrite = collection.initializeUnorderedBulkOperation();
+        for (T entity : entities) {
+            DBObject document = jongo.getMapper().getMarshaller().marshall(entity).toDBObject();
+            BasicDBList olderVersions = new BasicDBList();
+            olderVersions.add(new BasicDBObject("version", new BasicDBObject("$lt", entity.getVersion())));
+            olderVersions.add(new BasicDBObject("version", null));
+            bulkWrite.find(new BasicDBObject("_id", new ObjectId(entity.getId())).append("$or", olderVersions))
+                     .replaceOne(document);
+        }
+        startRoundTrip();
+        BulkWriteResult bulkWriteResult;
+        try {
+            bulkWriteResult = bulkWrite.execute();
+        }
+        finally {
+            endRoundTrip();
+            entityCache.invalidate(collectionName, getIds(entities.toArray()));
+        }
+        return bulkWriteResult.getMatchedCount();
+    }
+
+    /**
+     * Saves the changes of the given entities with a single bulk write, like
+     * {@link #updateEntitiesIfNewer(Class, Collection)}, but only sending the
+     * fields that changed since each entity was saved (see
+     * {@link DocumentDiff}). The changes are only applied if the saved entity
+     * still has the version it was saved with. Entities whose saved state is
+     * not known, or whose saved version has changed meanwhile, are replaced
+     * whole, if older.
+     * 
+     * @param expected
+     *            Expected bean/collection that is updated
+     * @param savedEntities
+     *            The entities as last saved in mongo, in the order of the
+     *            entities. An item is null if the saved state is not known.
+     * @param entities
+     *            The entities to be saved
+     * @return The number of entities that were saved
+     */
+    public <T extends VersionedEntity> Integer updateChangesIfNewer(Class<T> expected, List<T> savedEntities,
+        List<T> entities) {
+
+        String collectionName = getCollectionName(expected);
+        if (collectionName == null)
+            return null;
+        Marshaller marshaller = jongo.getMapper().getMarshaller();
+        DBCollection collection = jongo.getCollection(collectionName).getDBCollection();
+        BulkWriteOperation bulkWrite = collection.initializeUnorderedBulkOperation();
+        List<T> changedEntities = new ArrayList<T>(entities.size());
+        List<T> replacedEntities = new ArrayList<T>();
+        int unchangedEntities = 0;
+        for (int index = 0; index < entities.size(); index++) {
+            T savedEntity = savedEntities.get(index);
+            T entity = entities.get(index);
+            if (savedEntity == null || savedEntity.getVersion() == null) {
+                replacedEntities.add(entity);
+                continue;
+            }
+            DBObject modifier = DocumentDiff.getModifier(marshaller.marshall(savedEntity).toDBObject(),
+                marshaller.marshall(entity).toDBObject());
+            if (modifier.keySet().isEmpty()) {
+                unchangedEntities++;
+                continue;
+            }
+            bulkWrite.find(new BasicDBObject("_id", new ObjectId(entity.getId())).append("version",
+                savedEntity.getVersion())).updateOne(modifier);
+            changedEntities.add(entity);
+        }
+        int savedCount = unchangedEntities;
+        if (!changedEntities.isEmpty()) {
+            startRoundTrip();
+            int updatedCount;
+            try {
+                updatedCount = bulkWrite.execute().getMatchedCount();
+            }
+            finally {
+                endRoundTrip();
+                entityCache.invalidate(collectionName, getIds(changedEntities.toArray()));
+            }
+            savedCount += updatedCount;
+            //some entities were changed meanwhile. the ones not updated yet are older than their new state
+            if (updatedCount < changedEntities.size()) {
+                log.info(String.format("%s of %s %s changed since they were saved. Replacing them",
+                    changedEntities.size() - updatedCount, changedEntities.size(), collectionName));
+                replacedEntities.addAll(changedEntities);
+            }
+        }
+        if (!replacedEntities.isEmpty()) {
+            savedCount += updateEntitiesIfNewer(expected, replacedEntities);
+        }
+        return savedCount;
+    }
+
+    /**
+     * Sets the given fields of many entities with a single bulk write, only
+     * where the field is missing (or null). Each entity gets its own values.
+     * Used to fill in denormalized fields without overwriting newer values.
+     * 
+     * @param expected
+     *            Expected bean/collection that is updated
+     * @param fieldsById
+     *            The field values to be set, by the id of the entity
+     * @return The number of fields that were set
+     */
+    public <T> Integer setMissingFields(Class<T> expected, Map<String, Map<String, Object>> fieldsById) {
+
+        String collectionName = getCollectionName(expected);
+        if (collectionName == null)
+            return null;
+        if (fieldsById.isEmpty()) {
+            return 0;
+        }
+        DBCollection collection = jongo.getCollection(collectionName).getDBCollection();
+        BulkWriteOperation bulkWrite = collection.initializeUnorderedBulkOperation();
+        for (Map.Entry<String, Map<String, Object>> fields : fieldsById.entrySet()) {
+            DBObject values = jongo.getMapper().getMarshaller().marshall(fields.getValue()).toDBObject();
+            for (String field : values.keySet()) {
+                bulkWrite.find(new BasicDBObject("_id", new ObjectId(fields.getKey())).append(field, null))
+                         .updateOne(new BasicDBObject("$set", new BasicDBObject(field, values.get(field))));
+            }
+        }
+        startRoundTrip();
+        BulkWriteResult bulkWriteResult;
+        try {
+            bulkWriteResult = bulkWrite.execute();
+        }
+        finally {
+            endRoundTrip();
+            entityCache.invalidate(collectionName, fieldsById.keySet());
+        }
+        return bulkWriteResult.getModifiedCount();
+    }
+
+    /**
+     * Applies the given modifier to all the entities matching the query
+     * 
+     * @param expected
+     *            Expected bean/collection that is updated
+     * @param query
+     *            The query against which the entities has to be updated
+     * @param queryParams
+     *            The query values
+     * @param modifier
+     *            The update to be performed. E.g. {$set: {name: #}}
+     * @param modifierParams
+     *            The modifier values
+     * @return The number of entities updated
+     */
+    public <T> Integer updateEntities(Class<T> expected, String query, Object[] queryParams, String modifier,
+        Object... modifierParams) {
+
+        String collectionName = getCollectionName(expected);
+        if (collectionName == null)
+            return null;
+        MongoCollection collection = jongo.getCollection(collectionName);
+        startRoundTrip();
+        try {
+            return collection.update(query, queryParams).multi().with(modifier, modifierParams).getN();
+        }
+        finally {
+            endRoundTrip();
+            entityCache.invalidate(collectionName);
+        }
+    }
+
+    /**
+     * Applies the given modifier to the entity matching the query, creating
+     * the entity if it does not exist (upsert), and returns the updated
+     * entity. All in a single request.
+     * 
+     * @param expected
+     *            Expected bean/collection that is updated
+     * @param query
+     *            The query against which the entity has to be updated
+     * @param queryParams
+     *            The query values
+     * @param modifier
+     *            The update to be performed. E.g. {$inc: {wins: 1}}
+     * @param modifierParams
+     *            The modifier values
+     * @return The entity, as updated
+     */
+    public <T> T upsertEntity(Class<T> expected, String query, Object[] queryParams, String modifier,
+        Object... modifierParams) {
+
+        String collectionName = getCollectionName(expected);
+        if (collectionName == null)
+            return null;
+        MongoCollection collection = jongo.getCollection(collectionName);
+        startRoundTrip();
+        try {
+            return collection.findAndModify(query, queryParams).upsert().returnNew().with(modifier, modifierParams)
+                             .as(expected);
+        }
+        finally {
+            endRoundTrip();
+            entityCache.invalidate(collectionName);
+        }
+    }
+
+    /**
+     * Removes all the entities matching the query
+     * 
+     * @param expected
+     *            Expected bean/collection from which entities are removed
+     * @param query
+     *            The query against which the entities has to be removed
+     * @param params
+     *            The query values
+     * @return The number of entities removed
+     */
+    public <T> Integer removeEntities(Class<T> expected, String query, Object... params) {
+
+        String collectionName = getCollectionName(expected);
+        if (collectionName == null)
+            return null;
+        MongoCollection collection = jongo.getCollection(collectionName);
+        startRoundTrip();
+        try {
+            return collection.remove(query, params).getN();
+        }
+        finally {
+            endRoundTrip();
+            entityCache.invalidate(collectionName);
+        }
+    }
+
     /**
      * Performs a size() on the query given. Returns the total number of
      * entities fetched for the given query
@@ -176,7 +846,13 @@ public class Mongodb {
         if (collectionName == null)
             return null;
         MongoCollection collection = jongo.getCollection(collectionName);
-        return collection.count(query, queryParams);
+        startRoundTrip();
+        try {
+            return collection.count(query, queryParams);
+        }
+        finally {
+            endRoundTrip();
+        }
     }
 
     /**
@@ -190,4 +866,211 @@ public class Mongodb {
 
         return expected.getSimpleName();
     }
+
+    /**
+     * Gets the _ids of the given entities, to drop their cached documents once
+     * they are written
+     */
+    private List<Object> getIds(Object... entities) {
+
+        ObjectIdUpdater objectIdUpdater = jongo.getMapper().getObjectIdUpdater();
+        List<Object> ids = new ArrayList<Object>(entities.length);
+        for (Object entity : entities) {
+            ids.add(objectIdUpdater.getId(entity));
+        }
+        return ids;
+    }
+
+    /**
+     * Reads one entity through the cache. The raw document is cached, and a
+     * new entity is read from it on every hit, so callers never share an
+     * entity.
+     */
+    private <T> T getCachedEntity(MongoCollection collection, String query, Class<T> expected, Object... params) {
+
+        String collectionName = collection.getName();
+        List<Object> key = Arrays.asList(query, params != null ? Arrays.asList(params) : null);
+        byte[] document = entityCache.get(collectionName, key);
+        if (document == null) {
+            long generation = entityCache.getGeneration(collectionName);
+            startRoundTrip();
+            FindOne findOne = params == null ? collection.findOne(query) : collection.findOne(query, params);
+            final Object[] id = new Object[1];
+            try {
+                document = findOne.map(new ResultHandler<byte[]>() {
+
+                    @Override
+                    public byte[] map(DBObject result) {
+
+                        id[0] = result.get("_id");
+                        return Bson.createDocument(result).toByteArray();
+                    }
+                });
+            }
+            finally {
+                endRoundTrip();
+            }
+            if (document == null) {
+                return null;
+            }
+            entityCache.put(collectionName, key, id[0], document, generation);
+        }
+        return jongo.getMapper().getUnmarshaller().unmarshall(Bson.createDocument(document), expected);
+    }
+
+    /**
+     * Writes the given batches, in order, with one ordered bulk write per run
+     * of entities of the same collection
+     *
+     * @throws WriteCoalescer.FailedBatchException
+     *             If a write failed
+     */
+    private void flush(List<WriteBatch> batches) {
+
+        long startNanos = System.nanoTime();
+        ObjectIdUpdater objectIdUpdater = jongo.getMapper().getObjectIdUpdater();
+        int writes = 0;
+        String bulkCollectionName = null;
+        BulkWriteOperation bulkWrite = null;
+        //the batch and the _id of each write of the current bulk write
+        List<Integer> bulkBatchIndexes = new ArrayList<Integer>();
+        List<Object> bulkIds = new ArrayList<Object>();
+        for (int batchIndex = 0; batchIndex < batches.size(); batchIndex++) {
+            for (WriteBatch.Write write : batches.get(batchIndex).getWrites()) {
+                Object entity = write.getEntity();
+                String collectionName = getCollectionName(entity.getClass());
+                if (!collectionName.equals(bulkCollectionName)) {
+                    executeBulkWrite(bulkCollectionName, bulkWrite, bulkBatchIndexes, bulkIds);
+                    bulkBatchIndexes.clear();
+                    bulkIds.clear();
+                    bulkCollectionName = collectionName;
+                    bulkWrite = jongo.getCollection(collectionName).getDBCollection()
+                                     .initializeOrderedBulkOperation();
+                }
+                if (objectIdUpdater.mustGenerateObjectId(entity)) {
+                    objectIdUpdater.setObjectId(entity, new ObjectId());
+                }
+                DBObject document = jongo.getMapper().getMarshaller().marshall(entity).toDBObject();
+                if (write.isInsert()) {
+                    bulkWrite.insert(document);
+                }
+                else {
+                    bulkWrite.find(new BasicDBObject("_id", document.get("_id"))).upsert().replaceOne(document);
+                }
+                bulkBatchIndexes.add(batchIndex);
+                bulkIds.add(document.get("_id"));
+                writes++;
+            }
+        }
+        executeBulkWrite(bulkCollectionName, bulkWrite, bulkBatchIndexes, bulkIds);
+        long flushNanos = System.nanoTime() - startNanos;
+        flushes.incrementAndGet();
+        flushedBatches.addAndGet(batches.size());
+        flushedWrites.addAndGet(writes);
+        setMax(maxFlushSize, writes);
+        totalFlushNanos.addAndGet(flushNanos);
+        setMax(maxFlushNanos, flushNanos);
+    }
+
+    /**
+     * Executes an ordered bulk write of a flush
+     *
+     * @param batchIndexes
+     *            The index of the batch of each write of the bulk write
+     * @param ids
+     *            The _id of the entity of each write of the bulk write
+     * @throws WriteCoalescer.FailedBatchException
+     *             If a write failed
+     */
+    private void executeBulkWrite(String collectionName, BulkWriteOperation bulkWrite, List<Integer> batchIndexes,
+        List<Object> ids) {
+
+        if (bulkWrite != null) {
+            bulkWrites.incrementAndGet();
+            startRoundTrip();
+            try {
+                bulkWrite.execute();
+            }
+            catch (BulkWriteException e) {
+                //an ordered bulk write stops at its failed write, unless only the write concern failed
+                if (e.getWriteErrors().isEmpty() || e.getWriteConcernError() != null) {
+                    throw new WriteCoalescer.FailedBatchException(batchIndexes.get(0), false, e);
+                }
+                throw new WriteCoalescer.FailedBatchException(batchIndexes.get(e.getWriteErrors().get(0).getIndex()),
+                    true, e);
+            }
+            catch (MongoException e) {
+                //not known which writes are done
+                throw new WriteCoalescer.FailedBatchException(batchIndexes.get(0), false, e);
+            }
+            finally {
+                endRoundTrip();
+                entityCache.invalidate(collectionName, ids);
+            }
+        }
+    }
+
+    /**
+     * Sets the given value, if it is larger than the current one
+     */
+    private static void setMax(AtomicLong max, long value) {
+
+        long previousMax = max.get();
+        while (value > previousMax && !max.compareAndSet(previousMax, value)) {
+            previousMax = max.get();
+        }
+    }
+
+    /**
+     * Counts a request, and starts timing its wait for a pooled connection.
+     * Must be followed by {@link #endRoundTrip()} once the request is done.
+     */
+    private void startRoundTrip() {
+
+        roundTrips.incrementAndGet();
+        requestStartNanos.set(System.nanoTime());
+    }
+
+    /**
+     * Stops timing the request of the thread, whether its command was started
+     * or not (e.g. when no pooled connection could be checked out), so that
+     * its start is never taken for the one of a later command
+     */
+    private void endRoundTrip() {
+
+        requestStartNanos.remove();
+    }
+
+    /**
+     * Records the wait of the current request of the thread, when its command
+     * is started on a connection. Commands of the sync driver are started on
+     * the requesting thread.
+     */
+    private class WaitTimeListener implements CommandListener {
+
+        @Override
+        public void commandStarted(CommandStartedEvent event) {
+
+            Long startNanos = requestStartNanos.get();
+            if (startNanos != null) {
+                requestStartNanos.remove();
+                long waitNanos = System.nanoTime() - startNanos;
+                timedRequests.incrementAndGet();
+                totalWaitNanos.addAndGet(waitNanos);
+                setMax(maxWaitNanos, waitNanos);
+            }
+        }
+
+        @Override
+        public void commandSucceeded(CommandSucceededEvent event) {
+
+            //the start is cleared by the caller, see endRoundTrip
+        }
+
+        @Override
+        public void commandFailed(CommandFailedEvent event) {
+
+            //the start is cleared by the caller, see endRoundTrip
+        }
+    }
 }
@@ -0,0 +1,130 @@
+package com.shravan.gameofstones.core;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
+
+/**
+ * Serializes the updates on a single play within this process, while updates on
+ * different plays proceed in parallel. Every play being updated gets its own
+ * lane (a fair lock), which is removed as soon as no request holds or waits for
+ * it, so memory is bounded by the number of plays being updated right now.
+ *
+ * <pre>
+ * PlayLocks.Lane lane = PlayLocks.getInstance().acquire(playId);
+ * try {
+ *     //read, update and save the play
+ * }
+ * finally {
+ *     lane.close();
+ * }
+ * </pre>
+ *
+ * @author shravanshetty
+ */
+public class PlayLocks {
+
+    private static final PlayLocks playLocks = new PlayLocks();
+    private final ConcurrentHashMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+    /**
+     * Registers one more user of a lane, creating the lane if needed
+     */
+    private final BiFunction<String, Lane, Lane> joinLane = new BiFunction<String, Lane, Lane>() {
+
+        @Override
+        public Lane apply(String playId, Lane lane) {
+
+            lane = lane != null ? lane : new Lane(playId);
+            lane.users++;
+            return lane;
+        }
+    };
+
+    /**
+     * Unregisters a user of a lane, removing the lane if it was the last one
+     */
+    private final BiFunction<String, Lane, Lane> leaveLane = new BiFunction<String, Lane, Lane>() {
+
+        @Override
+        public Lane apply(String playId, Lane lane) {
+
+            lane.users--;
+            return lane.users == 0 ? null : lane;
+        }
+    };
+
+    PlayLocks() {
+    }
+
+    /**
+     * Retuns a singeton instance of this type
+     *
+     * @return PlayLocks singleton instance
+     */
+    public static PlayLocks getInstance() {
+
+        return playLocks;
+    }
+
+    /**
+     * Waits until no other request is updating the given play within this
+     * process, and takes over the lane of the play. The lane must be closed
+     * once the update is done.
+     *
+     * @param playId
+     *            Id of the play that is going to be updated
+     * @return The lane held for the given play
+     */
+    public Lane acquire(String playId) {
+
+        Lane lane = lanes.compute(playId, joinLane);
+        lane.lock.lock();
+        return lane;
+    }
+
+    /**
+     * Gets the number of plays being updated (or waited on) right now
+     *
+     * @return Number of lanes currently in use
+     */
+    public int getActiveLaneCount() {
+
+        return lanes.size();
+    }
+
+    /**
+     * The single writer lane of a play. Only one request holds a lane at a
+     * time.
+     */
+    public final class Lane implements AutoCloseable {
+
+        private final String playId;
+        private final ReentrantLock lock = new ReentrantLock(true);
+        /**
+         * Number of requests holding or waiting on this lane. Only modified
+         * while computing the lanes entry of the play.
+         */
+        private int users;
+
+        private Lane(String playId) {
+            this.playId = playId;
+        }
+
+        public String getPlayId() {
+
+            return playId;
+        }
+
+        /**
+         * Releases this lane, to be taken over by the next request waiting on
+         * the same play
+         */
+        @Override
+        public void close() {
+
+            lock.unlock();
+            lanes.computeIfPresent(playId, leaveLane);
+        }
+    }
+}
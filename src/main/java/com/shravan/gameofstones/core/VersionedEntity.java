@@ -0,0 +1,20 @@
+package com.shravan.gameofstones.core;
+
+/**
+ * An entity whose version is incremented on every change. Used by
+ * {@link Mongodb} to make sure an older state never overwrites a newer one.
+ *
+ * @author shravanshetty
+ */
+public interface VersionedEntity {
+
+    /**
+     * @return The mongo object id of this entity
+     */
+    String getId();
+
+    /**
+     * @return The version of this entity. Null if never versioned.
+     */
+    Long getVersion();
+}
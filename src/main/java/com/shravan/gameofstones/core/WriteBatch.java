@@ -0,0 +1,81 @@
+package com.shravan.gameofstones.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The writes of one operation (a unit of work), sent to mongo together by
+ * {@link Mongodb#write(WriteBatch)}, in the order they are added. Entities
+ * without an id get a new one when the batch is written.
+ *
+ * @author shravanshetty
+ */
+public class WriteBatch {
+
+    private final List<Write> writes = new ArrayList<Write>();
+
+    /**
+     * Adds the insert of a new entity
+     *
+     * @param entity
+     * @return This batch
+     */
+    public WriteBatch insert(Object entity) {
+
+        writes.add(new Write(entity, true));
+        return this;
+    }
+
+    /**
+     * Adds the save of an entity: it replaces the saved entity with the same
+     * id, or is inserted
+     *
+     * @param entity
+     * @return This batch
+     */
+    public WriteBatch save(Object entity) {
+
+        writes.add(new Write(entity, false));
+        return this;
+    }
+
+    public int size() {
+
+        return writes.size();
+    }
+
+    public boolean isEmpty() {
+
+        return writes.isEmpty();
+    }
+
+    public List<Write> getWrites() {
+
+        return Collections.unmodifiableList(writes);
+    }
+
+    /**
+     * The insert or save of an entity
+     */
+    public static class Write {
+
+        private final Object entity;
+        private final boolean isInsert;
+
+        Write(Object entity, boolean isInsert) {
+            this.entity = entity;
+            this.isInsert = isInsert;
+        }
+
+        public Object getEntity() {
+
+            return entity;
+        }
+
+        public boolean isInsert() {
+
+            return isInsert;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.shravan.gameofstones.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import com.mongodb.MongoException;
+
+/**
+ * Collects the {@link WriteBatch}es of concurrent requests for a coalesce
+ * window, and flushes them together on a single flusher thread. Every batch
+ * gets the result of its own writes: a failed write only fails the batch
+ * holding it. The batches flushed before it are written, and the ones after
+ * it are flushed again without it, if the flush is known to have stopped at
+ * the failed write. Otherwise every batch not known to be written fails.
+ *
+ * @author shravanshetty
+ */
+class WriteCoalescer {
+
+    private final long windowMillis;
+    private final Flusher flusher;
+    /**
+     * Write batches waiting for the end of the coalesce window, in the order
+     * they were submitted
+     */
+    private final List<PendingBatch> pendingBatches = new ArrayList<PendingBatch>();
+    private final ScheduledExecutorService writeFlusher;
+
+    WriteCoalescer(long windowMillis, Flusher flusher) {
+        this.windowMillis = windowMillis;
+        this.flusher = flusher;
+        writeFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "mongo-write-flusher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Adds the batch to the current coalesce window, and waits till it is
+     * flushed
+     *
+     * @param batch
+     *            The writes to be done
+     * @throws MongoException
+     *             If a write of the batch failed
+     */
+    void write(WriteBatch batch) {
+
+        PendingBatch pendingBatch = new PendingBatch(batch);
+        synchronized (pendingBatches) {
+            pendingBatches.add(pendingBatch);
+            //the first batch of a window schedules its flush
+            if (pendingBatches.size() == 1) {
+                writeFlusher.schedule(new Runnable() {
+
+                    @Override
+                    public void run() {
+
+                        flushPendingBatches();
+                    }
+                }, windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        try {
+            pendingBatch.written.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MongoException("Interrupted while the write batch is flushed", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new MongoException("Write batch failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    //private methods
+
+    /**
+     * Flushes the batches collected in the current coalesce window
+     */
+    private void flushPendingBatches() {
+
+        List<PendingBatch> batchesToFlush;
+        synchronized (pendingBatches) {
+            batchesToFlush = new ArrayList<PendingBatch>(pendingBatches);
+            pendingBatches.clear();
+        }
+        while (!batchesToFlush.isEmpty()) {
+            List<WriteBatch> batches = new ArrayList<WriteBatch>(batchesToFlush.size());
+            for (PendingBatch pendingBatch : batchesToFlush) {
+                batches.add(pendingBatch.batch);
+            }
+            try {
+                flusher.flush(batches);
+                complete(batchesToFlush);
+                return;
+            }
+            catch (FailedBatchException e) {
+                complete(batchesToFlush.subList(0, e.getBatchIndex()));
+                batchesToFlush.get(e.getBatchIndex()).written.completeExceptionally(e.getCause());
+                List<PendingBatch> nextBatches = batchesToFlush.subList(e.getBatchIndex() + 1,
+                    batchesToFlush.size());
+                if (!e.isNextBatchesUnwritten()) {
+                    fail(nextBatches, e.getCause());
+                    return;
+                }
+                //flush the batches after the failed one again
+                batchesToFlush = new ArrayList<PendingBatch>(nextBatches);
+            }
+            catch (RuntimeException e) {
+                fail(batchesToFlush, e);
+                return;
+            }
+        }
+    }
+
+    private static void complete(List<PendingBatch> writtenBatches) {
+
+        for (PendingBatch pendingBatch : writtenBatches) {
+            pendingBatch.written.complete(null);
+        }
+    }
+
+    private static void fail(List<PendingBatch> failedBatches, Throwable cause) {
+
+        for (PendingBatch pendingBatch : failedBatches) {
+            pendingBatch.written.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Writes the batches of a coalesce window
+     */
+    interface Flusher {
+
+        /**
+         * Writes the given batches, in order
+         *
+         * @param batches
+         * @throws FailedBatchException
+         *             If a write failed
+         */
+        void flush(List<WriteBatch> batches);
+    }
+
+    /**
+     * The failure of a write of a flush, and the batch holding it. The batches
+     * before it are written.
+     */
+    static class FailedBatchException extends MongoException {
+
+        private static final long serialVersionUID = 1L;
+        private final int batchIndex;
+        private final boolean isNextBatchesUnwritten;
+
+        /**
+         * @param batchIndex
+         *            The index of the batch holding the failed write
+         * @param isNextBatchesUnwritten
+         *            True if the flush stopped at the failed write, so none
+         *            of the batches after it is written
+         * @param cause
+         *            The failure of the write
+         */
+        FailedBatchException(int batchIndex, boolean isNextBatchesUnwritten, RuntimeException cause) {
+            super(cause.getMessage(), cause);
+            this.batchIndex = batchIndex;
+            this.isNextBatchesUnwritten = isNextBatchesUnwritten;
+        }
+
+        int getBatchIndex() {
+
+            return batchIndex;
+        }
+
+        boolean isNextBatchesUnwritten() {
+
+            return isNextBatchesUnwritten;
+        }
+
+        @Override
+        public synchronized RuntimeException getCause() {
+
+            return (RuntimeException) super.getCause();
+        }
+    }
+
+    /**
+     * A write batch waiting to be flushed, and the result of its flush
+     */
+    private static class PendingBatch {
+
+        private final WriteBatch batch;
+        private final CompletableFuture<Void> written = new CompletableFuture<Void>();
+
+        PendingBatch(WriteBatch batch) {
+            this.batch = batch;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.shravan.gameofstones.engine;
+
+import com.shravan.gameofstones.exception.BadMoveException;
+
+/**
+ * Side-effect-free implementation of the game rules. Works on a plain int array
+ * of 14 pits: index 0...6 are player1's pits and 7...13 are player2's pits,
+ * where the last pit of each player is the big pit. Nothing here is persisted,
+ * so it can be used for search, simulation and validation.
+ *
+ * @author shravanshetty
+ */
+public final class MoveEngine {
+
+    /**
+     * Number of pits per player: 6 small pits followed by the big pit
+     */
+    public static final int PITS_PER_PLAYER = 7;
+    /**
+     * Index of the big pit within a players pits
+     */
+    public static final int BIG_PIT_INDEX = 6;
+    /**
+     * Total number of pits on the board
+     */
+    public static final int BOARD_SIZE = PITS_PER_PLAYER * 2;
+    /**
+     * Flag set by {@link #applyMove(int[], boolean, int)} when the last stone
+     * lands in the players big pit
+     */
+    public static final int EXTRA_TURN = 1;
+    /**
+     * Flag set by {@link #applyMove(int[], boolean, int)} when the opponents
+     * stones are captured
+     */
+    public static final int CAPTURE = 1 << 1;
+    /**
+     * Flag set by {@link #applyMove(int[], boolean, int)} when either player
+     * has run out of stones after the move
+     */
+    public static final int GAME_OVER = 1 << 2;
+
+    private MoveEngine() {
+    }
+
+    /**
+     * Creates the pits for a new game, with 6 stones in each small pit
+     *
+     * @return The pits of a newly setup board
+     */
+    public static int[] setupPits() {
+
+        int[] pits = new int[BOARD_SIZE];
+        for (int pitIndex = 0; pitIndex < BIG_PIT_INDEX; pitIndex++) {
+            pits[pitIndex] = 6;
+            pits[PITS_PER_PLAYER + pitIndex] = 6;
+        }
+        return pits;
+    }
+
+    /**
+     * Executes a move on a copy of the given pits. The given pits are not
+     * modified.
+     *
+     * @param pits
+     *            The current state of the board
+     * @param isPlayer1sMove
+     *            Flag to mark whose move it is. true indicates player1, false
+     *            is player2
+     * @param pitIndex
+     *            The 0-based pit index on which the Player is making his move
+     * @return The new state of the board along with the outcome of the move
+     * @throws BadMoveException
+     *             This exception is thrown when a move is not allowed.
+     */
+    public static MoveOutcome makeMove(int[] pits, boolean isPlayer1sMove, int pitIndex) throws BadMoveException {
+
+        int[] nextPits = pits.clone();
+        int flags = applyMove(nextPits, isPlayer1sMove, pitIndex);
+        return new MoveOutcome(nextPits, flags);
+    }
+
+    /**
+     * Executes a move in place on the given pits. This does not allocate, so it
+     * can be used to evaluate a large number of moves.
+     *
+     * @param pits
+     *            The current state of the board, updated by this move
+     * @param isPlayer1sMove
+     *            Flag to mark whose move it is. true indicates player1, false
+     *            is player2
+     * @param pitIndex
+     *            The 0-based pit index on which the Player is making his move
+     * @return A combination of the {@link #EXTRA_TURN}, {@link #CAPTURE} and
+     *         {@link #GAME_OVER} flags
+     * @throws BadMoveException
+     *             This exception is thrown when a move is not allowed.
+     */
+    public static int applyMove(int[] pits, boolean isPlayer1sMove, int pitIndex) throws BadMoveException {
+
+        if (pitIndex < 0 || pitIndex >= BIG_PIT_INDEX) {
+            throw new BadMoveException(String.format("Player%s move at index: %s is not allowed. No such pit.",
+                isPlayer1sMove ? 1 : 2, pitIndex));
+        }
+        int playerOffset = isPlayer1sMove ? 0 : PITS_PER_PLAYER;
+        int opponentOffset = isPlayer1sMove ? PITS_PER_PLAYER : 0;
+        int stonesInPit = pits[playerOffset + pitIndex];
+        //check if the number of stones are greater than 0
+        if (stonesInPit == 0) {
+            throw new BadMoveException(String.format("Player%s move at index: %s is not allowed. No stones here.",
+                isPlayer1sMove ? 1 : 2, pitIndex));
+        }
+        int flags = 0;
+        pits[playerOffset + pitIndex] = 0;
+        //stones are sown one by one to the right over the players 7 pits, wrapping around after the
+        //big pit. So every pit gets one stone per full lap and the next few pits get the remainder
+        int laps = stonesInPit / PITS_PER_PLAYER;
+        int remainder = stonesInPit % PITS_PER_PLAYER;
+        for (int step = 1; step <= PITS_PER_PLAYER; step++) {
+            pits[playerOffset + (pitIndex + step) % PITS_PER_PLAYER] += step <= remainder ? laps + 1 : laps;
+        }
+        //the pit on which the last stone lands
+        pitIndex = (pitIndex + stonesInPit) % PITS_PER_PLAYER;
+        //if pitIndex is the last big pit, give this user to playAgain
+        if (pitIndex == BIG_PIT_INDEX) {
+            flags |= EXTRA_TURN;
+        }
+        //move all the stones from the opponent pit to this players, if the current pit has one stone after the move
+        else if (pits[playerOffset + pitIndex] == 1) {
+            //the opponent is ofcourse indexes in opposite order. E.g. 0 is 5, 1 is 4,..., and 5 is 0
+            int opponentIndex = opponentOffset + 5 - pitIndex;
+            pits[playerOffset + pitIndex] = pits[opponentIndex] + 1;
+            //remove all stones in the opponent pit
+            pits[opponentIndex] = 0;
+            flags |= CAPTURE;
+        }
+        //if either player has no stones left, move all the stones from the small pits to the big pit
+        if (isCompleted(pits)) {
+            moveStonesToBigPit(pits, 0);
+            moveStonesToBigPit(pits, PITS_PER_PLAYER);
+            flags |= GAME_OVER;
+        }
+        return flags;
+    }
+
+    /**
+     * Checks if either of the players has no stones left in the small pits
+     *
+     * @param pits
+     *            The current state of the board
+     * @return True if the game is completed
+     */
+    public static boolean isCompleted(int[] pits) {
+
+        return !isStonesLeft(pits, 0) || !isStonesLeft(pits, PITS_PER_PLAYER);
+    }
+
+    /**
+     * Simple method to check if any stone is left in a players small pits
+     */
+    private static boolean isStonesLeft(int[] pits, int offset) {
+
+        for (int pitIndex = 0; pitIndex < BIG_PIT_INDEX; pitIndex++) {
+            if (pits[offset + pitIndex] > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * This will move all stones from small pits (index 0...5) to the big pit
+     * (index 6) of the player starting at the given offset
+     */
+    private static void moveStonesToBigPit(int[] pits, int offset) {
+
+        for (int pitIndex = 0; pitIndex < BIG_PIT_INDEX; pitIndex++) {
+            pits[offset + BIG_PIT_INDEX] += pits[offset + pitIndex];
+            pits[offset + pitIndex] = 0;
+        }
+    }
+}
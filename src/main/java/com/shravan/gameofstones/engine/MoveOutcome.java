@@ -0,0 +1,71 @@
+package com.shravan.gameofstones.engine;
+
+/**
+ * Immutable result of a move executed by the {@link MoveEngine}. Holds the new
+ * state of the board and what happened during the move.
+ *
+ * @author shravanshetty
+ */
+public class MoveOutcome {
+
+    private final int[] pits;
+    private final int flags;
+
+    MoveOutcome(int[] pits, int flags) {
+        this.pits = pits;
+        this.flags = flags;
+    }
+
+    /**
+     * Gets the state of the board after the move
+     *
+     * @return A copy of the 14 pits after the move
+     */
+    public int[] getPits() {
+
+        return pits.clone();
+    }
+
+    /**
+     * If true, the last stone landed in the players big pit and the same
+     * player moves again
+     *
+     * @return
+     */
+    public boolean isExtraTurn() {
+
+        return (flags & MoveEngine.EXTRA_TURN) != 0;
+    }
+
+    /**
+     * If true, the last stone landed in an empty pit of the player and the
+     * stones of the opposite pit were captured
+     *
+     * @return
+     */
+    public boolean isCapture() {
+
+        return (flags & MoveEngine.CAPTURE) != 0;
+    }
+
+    /**
+     * If true, either of the players has run out of stones and all the stones
+     * are moved to the big pits
+     *
+     * @return
+     */
+    public boolean isGameOver() {
+
+        return (flags & MoveEngine.GAME_OVER) != 0;
+    }
+
+    public int getPlayer1Score() {
+
+        return pits[MoveEngine.BIG_PIT_INDEX];
+    }
+
+    public int getPlayer2Score() {
+
+        return pits[MoveEngine.PITS_PER_PLAYER + MoveEngine.BIG_PIT_INDEX];
+    }
+}
@@ -0,0 +1,29 @@
+package com.shravan.gameofstones.exception;
+
+/**
+ * This can be used as a checked exception to show that an entity could not be
+ * saved as it was modified by someone else since it was read.
+ *
+ * @author shravanshetty
+ *
+ */
+public class ConflictException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Simple constructor
+     */
+    public ConflictException() {
+    }
+
+    /**
+     * Constuctor for passing a message to show information of what was
+     * modified concurrently
+     *
+     * @param messsage
+     */
+    public ConflictException(String messsage) {
+        super(messsage);
+    }
+}
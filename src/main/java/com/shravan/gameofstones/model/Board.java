@@ -1,31 +1,45 @@
 package com.shravan.gameofstones.model;
 
-import java.util.ArrayList;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
 import java.util.List;
+import java.util.RandomAccess;
 import java.util.logging.Logger;
 import org.bson.types.ObjectId;
 import org.jongo.marshall.jackson.oid.MongoId;
 import org.jongo.marshall.jackson.oid.MongoObjectId;
 import com.fasterxml.jackson.annotation.JsonIgnore;
-import com.shravan.gameofstones.core.Mongodb;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.shravan.gameofstones.core.CompactEntity;
+import com.shravan.gameofstones.engine.MoveEngine;
 import com.shravan.gameofstones.exception.BadMoveException;
+import com.shravan.gameofstones.repository.Repositories;
 
 /**
  * Simple class to encapsulate the board data. (Player pits, and the number of
  * stones in each pit)
+ * <p>
+ * In its compact form (see {@link CompactEntity}) a board is stored as 23
+ * bytes: the format, one byte per pit, and the move counters of both players.
  * 
  * @author shravanshetty
  */
-public class Board {
+public class Board implements CompactEntity {
 
     private static Logger log = Logger.getLogger(Board.class.getSimpleName());
+    private static final byte PACKED_FORMAT = 1;
+    private static final int PACKED_SIZE = 1 + MoveEngine.BOARD_SIZE + 2 * Integer.BYTES;
 
     @MongoId
     @MongoObjectId
     private String id;
-    private List<Integer> player1Pits;
-    private List<Integer> player2Pits;
+    /**
+     * All the pits on the board. Index 0...6 are player1's pits and 7...13 are
+     * player2's pits. The {@link List} views of these are only built for the
+     * JSON/Mongo representation.
+     */
+    @JsonIgnore
+    private final int[] pits = new int[MoveEngine.BOARD_SIZE];
     private Integer player1Moves = 0;
     private Integer player2Moves = 0;
 
@@ -34,23 +48,41 @@ public class Board {
     }
 
     /**
-     * Method to setup the board with 6 stones in each pit.
+     * Method to setup the board with 6 stones in each pit. The board is given
+     * an id right away, as boards are usually embedded in the {@link Play}
+     * and mongo only assigns ids to the top level document.
      * 
      * @param persistBoard
-     *            Persist this board in mongo, if set to true.
+     *            Persist this board in its own collection in mongo, if set to
+     *            true.
      * @return Returns a {@link Board} instance that is setup
      */
     public static Board setupBoard(boolean persistBoard) {
 
         Board board = new Board();
-        board.player1Pits = setUpPits(new ArrayList<Integer>(7));
-        board.player2Pits = setUpPits(new ArrayList<Integer>(7));
+        board.id = new ObjectId().toString();
+        System.arraycopy(MoveEngine.setupPits(), 0, board.pits, 0, MoveEngine.BOARD_SIZE);
         if (persistBoard) {
             board.createOrUpdate();
         }
         return board;
     }
 
+    /**
+     * Creates a copy of this board
+     * 
+     * @return A board that does not share any state with this one
+     */
+    Board copy() {
+
+        Board board = new Board();
+        board.id = id;
+        System.arraycopy(pits, 0, board.pits, 0, MoveEngine.BOARD_SIZE);
+        board.player1Moves = player1Moves;
+        board.player2Moves = player2Moves;
+        return board;
+    }
+
     // getters and setters
     public String getId() {
 
@@ -62,32 +94,38 @@ public class Board {
         this.id = id;
     }
 
+    /**
+     * Gets a write-through view of player1's pits
+     * 
+     * @return A fixed size list of 7 pits backed by this board
+     */
+    @JsonProperty("player1Pits")
     public List<Integer> getPlayer1Pits() {
 
-        return player1Pits;
+        return new PitsView(0);
     }
 
+    @JsonProperty("player1Pits")
     public void setPlayer1Pits(List<Integer> player1Pits) {
 
-        //a player pit cannot be more than 7
-        if (player1Pits != null && player1Pits.size() > 7) {
-            player1Pits.subList(0, 7);
-        }
-        this.player1Pits = player1Pits;
+        copyPits(player1Pits, 0);
     }
 
+    /**
+     * Gets a write-through view of player2's pits
+     * 
+     * @return A fixed size list of 7 pits backed by this board
+     */
+    @JsonProperty("player2Pits")
     public List<Integer> getPlayer2Pits() {
 
-        return player2Pits;
+        return new PitsView(MoveEngine.PITS_PER_PLAYER);
     }
 
+    @JsonProperty("player2Pits")
     public void setPlayer2Pits(List<Integer> player2Pits) {
 
-        //a player pit cannot be more than 7
-        if (player2Pits != null && player2Pits.size() > 7) {
-            player2Pits.subList(0, 7);
-        }
-        this.player2Pits = player2Pits;
+        copyPits(player2Pits, MoveEngine.PITS_PER_PLAYER);
     }
 
     public Integer getPlayer1Moves() {
@@ -110,6 +148,49 @@ public class Board {
         this.player2Moves = player2Moves;
     }
 
+    /**
+     * Gets the pits and move counters of this board, in its compact form
+     * 
+     * @return
+     */
+    @JsonIgnore
+    @Override
+    public byte[] getPacked() {
+
+        ByteBuffer packed = ByteBuffer.allocate(PACKED_SIZE);
+        packed.put(PACKED_FORMAT);
+        for (int stones : pits) {
+            //all the stones of the board fit in one pit byte
+            if (stones > 0xFF) {
+                throw new IllegalStateException(String.format("Pit of board: %s has %s stones", id, stones));
+            }
+            packed.put((byte) stones);
+        }
+        packed.putInt(player1Moves != null ? player1Moves : 0);
+        packed.putInt(player2Moves != null ? player2Moves : 0);
+        return packed.array();
+    }
+
+    /**
+     * Sets the pits and move counters of this board from its compact form
+     * 
+     * @param packed
+     */
+    @JsonProperty("packed")
+    public void setPacked(byte[] packed) {
+
+        if (packed == null || packed.length != PACKED_SIZE || packed[0] != PACKED_FORMAT) {
+            throw new IllegalArgumentException(String.format("Board: %s is not packed in format: %s", id,
+                PACKED_FORMAT));
+        }
+        ByteBuffer packedBuffer = ByteBuffer.wrap(packed, 1, PACKED_SIZE - 1);
+        for (int pitIndex = 0; pitIndex < MoveEngine.BOARD_SIZE; pitIndex++) {
+            pits[pitIndex] = packedBuffer.get() & 0xFF;
+        }
+        player1Moves = packedBuffer.getInt();
+        player2Moves = packedBuffer.getInt();
+    }
+
     /**
      * Simple method to fetch the number of stones in the big pit for player1
      * 
@@ -118,12 +199,9 @@ public class Board {
     @JsonIgnore
     public Integer getPlayer1Score() {
 
-        if (player1Pits != null && player1Pits.size() == 7) {
-            return player1Pits.get(6);
-        }
-        return 0;
+        return pits[MoveEngine.BIG_PIT_INDEX];
     }
-    
+
     /**
      * Simple method to fetch the number of stones in the big pit for player2
      * 
@@ -132,10 +210,7 @@ public class Board {
     @JsonIgnore
     public Integer getPlayer2Score() {
 
-        if (player2Pits != null && player2Pits.size() == 7) {
-            return player2Pits.get(6);
-        }
-        return 0;
+        return pits[MoveEngine.PITS_PER_PLAYER + MoveEngine.BIG_PIT_INDEX];
     }
 
     /**
@@ -144,137 +219,100 @@ public class Board {
      * player2.
      * 
      * @return True if player1 is leading, false if player2 is leading or null
-     *         if no winner is established (not properly setup boards or on a
-     *         draw)
+     *         on a draw
      */
     @JsonIgnore
     public Boolean isPlayer1Leader() {
 
-        Boolean result = false;
-        if (player1Pits != null && player1Pits.size() == 7) {
-            if (player2Pits != null && player2Pits.size() == 7) {
-                if (player1Pits.get(6) > player2Pits.get(6)) {
-                    result = true;
-                }
-                else if (player1Pits.get(6) == player2Pits.get(6)) {
-                    result = null;
-                }
-                else {
-                    result = false;
-                }
-            }
-            else {
-                log.severe(String.format("Improperly setup board. Player2 pit count: %s",
-                    player2Pits != null ? player2Pits.size() : null));
-            }
-        }
-        else {
-            log.severe(String.format("Improperly setup board. Player1 pit count: %s",
-                player1Pits != null ? player1Pits.size() : null));
+        int player1Score = pits[MoveEngine.BIG_PIT_INDEX];
+        int player2Score = pits[MoveEngine.PITS_PER_PLAYER + MoveEngine.BIG_PIT_INDEX];
+        if (player1Score == player2Score) {
+            return null;
         }
-        return result;
+        return player1Score > player2Score;
     }
 
     /**
-     * Method to see if either of {@link Board#player1Pits} or
-     * {@link Board#player2Pits} has small empty pits
+     * Method to see if either of player1 or player2 has small empty pits. The
+     * stones are already moved to the big pits by the move that completed the
+     * board.
      * 
      * @return
      */
     @JsonIgnore
     public boolean isCompleted() {
 
-        boolean isStonesLeftForPlayer1 = isStonesLeft(player1Pits);
-        boolean isStonesLeftForPlayer2 = isStonesLeft(player2Pits);
-        //if either player1 or player2 has no stones left, then game is completed
-        boolean isCompleted = !isStonesLeftForPlayer1 || !isStonesLeftForPlayer2;
-        //if the board is completed, move all the stones from the small pits to the big pit
-        if (isCompleted) {
-            moveStonesToBigPit(player1Pits);
-            moveStonesToBigPit(player2Pits);
-            //update board in mongo
-            createOrUpdate();
-        }
-        return isCompleted;
+        return MoveEngine.isCompleted(pits);
     }
 
-    //private methods
     /**
-     * Simple method to setup 6 stones in the small pit and no stones in the big
-     * pit for a particular player
+     * Gets the state of the board in the form used by the {@link MoveEngine}
      * 
-     * @param playerPits
-     *            A player pit
-     * @return A setup player pit.
+     * @return A copy of all the 14 pits on the board
      */
-    private static List<Integer> setUpPits(List<Integer> playerPits) {
+    @JsonIgnore
+    public int[] getPits() {
 
-        playerPits = playerPits != null ? playerPits : new ArrayList<Integer>(7);
-        //put 6 stones to all intial 6 pits and 0 in the last big pit
-        playerPits = Arrays.asList(6, 6, 6, 6, 6, 6, 0);
-        return playerPits;
+        return pits.clone();
     }
 
+    //private methods
     /**
-     * Simple method to check if any stone is left in a players small pits
+     * Copies the given player pits into the board pits. Only the first 7 pits
+     * are considered, as a player pit cannot be more than 7
      */
-    private boolean isStonesLeft(List<Integer> playerPits) {
+    private void copyPits(List<Integer> playerPits, int offset) {
 
         if (playerPits != null) {
-            for (int pitIndex = 0; pitIndex < 6; pitIndex++) {
-                if (playerPits.get(pitIndex) > 0) {
-                    return true;
-                }
+            int pitCount = Math.min(playerPits.size(), MoveEngine.PITS_PER_PLAYER);
+            for (int pitIndex = 0; pitIndex < pitCount; pitIndex++) {
+                Integer stones = playerPits.get(pitIndex);
+                pits[offset + pitIndex] = stones != null ? stones : 0;
             }
         }
-        //assume stones are left if playerPit is null. just log it
-        else {
-            log.severe("Player pit is null to check if any stones left. Returning true");
-            return true;
-        }
-        return false;
-    }
-
-    /**
-     * This will move all stones from small pits (index 0...5) to the big pit
-     * (index 6)
-     * 
-     * @param playerPits
-     * @return The updated pits after the move
-     */
-    private static List<Integer> moveStonesToBigPit(List<Integer> playerPits) {
-
-        if (playerPits != null && playerPits.size() == 7) {
-            for (int pitIndex = 0; pitIndex < 6; pitIndex++) {
-                //fetch stones in bit pit
-                Integer stonesInBigPit = playerPits.get(6);
-                playerPits.set(6, stonesInBigPit + playerPits.get(pitIndex));
-                playerPits.set(pitIndex, 0);
-            }
-        }
-        return playerPits;
     }
 
     //mongo access methods
     /**
-     * Simple method to create or update this entity in the mongoDb
+     * Simple method to create or update this entity in the mongoDb. If this
+     * board is embedded in a {@link Play}, the play is updated (in the
+     * {@link PlaySessionStore} if active) and its version is incremented. Else
+     * the board is saved in its own collection.
      */
     public Board createOrUpdate() {
 
-        return Mongodb.getInstance().updateEntity(this);
+        if (PlaySessionStore.getInstance().updateBoard(this)) {
+            return this;
+        }
+        if (id != null) {
+            if (Repositories.getGameRepository().updatePlayBoard(this) > 0) {
+                return this;
+            }
+        }
+        return Repositories.getGameRepository().saveBoard(this);
     }
 
     /**
-     * Get a specific Player entity by id
+     * Get a specific Board entity by id. Boards of active plays in the
+     * {@link PlaySessionStore} and boards embedded in a {@link Play} are looked
+     * up first, followed by the boards saved in their own collection.
      * 
-     * @param playerId
-     *            PlayerId to be fetched
-     * @return Player if match is successfull, else returns null.
+     * @param boardId
+     *            BoardId to be fetched
+     * @return Board if match is successfull, else returns null.
      */
     public static Board getBoard(String boardId) {
 
         if (boardId != null) {
-            return Mongodb.getInstance().getEntity("{_id: #}", Board.class, new ObjectId(boardId));
+            Play play = PlaySessionStore.getInstance().getByBoardId(boardId);
+            if (play != null) {
+                return play.getBoard();
+            }
+            play = Repositories.getGameRepository().getPlayByBoardId(boardId);
+            if (play != null) {
+                return play.getBoard();
+            }
+            return Repositories.getGameRepository().getBoard(boardId);
         }
         else {
             return null;
@@ -283,81 +321,66 @@ public class Board {
 
     /**
      * Execute a move performed by the Player. This moves the stones to the
-     * right pit. This will also persit/update this entity
+     * right pit, as per the {@link MoveEngine}. This is not persisted, the
+     * caller must save the board.
      * 
-     * @param playerPit
-     *            The corresponding player pits on which this move is made
-     * @param opponentPlayerPit
-     *            The opponent player pits from which stones can be taken after
-     *            the move of current player, if last pit to which a stone is
-     *            placed has only 1 stone. So before the move had no stones.
      * @param isPlayer1Move
      *            Flag to mark whose move it is. true indicates player1, false
      *            is player2
      * @param pitIndex
      *            The 0-based pit index on which the Player is making his move
-     * @return Returns true if this player is given a chance again. Null if some
-     *         error or precondition did not match
+     * @return Returns true if this player is given a chance again.
      * @throws BadMoveException
      *             This exception is thrown when a move is not allowed.
      */
     public Boolean makeMove(boolean isPlayer1sMove, Integer pitIndex) throws BadMoveException {
 
-        Boolean result = false;
-        List<Integer> playerPit = null;
-        List<Integer> opponentPlayerPit = null;
-        if (isPlayer1sMove) {
-            playerPit = player1Pits;
-            opponentPlayerPit = player2Pits;
+        if (pitIndex == null) {
+            throw new BadMoveException(String.format("Player%s move without a pit index is not allowed.",
+                isPlayer1sMove ? 1 : 2));
         }
-        else {
-            playerPit = player2Pits;
-            opponentPlayerPit = player1Pits;
+        int flags = MoveEngine.applyMove(pits, isPlayer1sMove, pitIndex);
+        return (flags & MoveEngine.EXTRA_TURN) != 0;
+    }
+
+    /**
+     * A fixed size, write-through {@link List} view over one players pits. This
+     * keeps the JSON/Mongo shape of the board as two lists of 7 integers.
+     */
+    private class PitsView extends AbstractList<Integer> implements RandomAccess {
+
+        private final int offset;
+
+        PitsView(int offset) {
+            this.offset = offset;
         }
-        if (playerPit != null && pitIndex >= 0 && pitIndex <= 5 && playerPit.size() == 7 &&
-            opponentPlayerPit.size() == 7) {
-            Integer stonesInPit = playerPit.get(pitIndex);
-            //check if the number of stones are greater than 0
-            if (stonesInPit == 0) {
-                throw new BadMoveException(String.format("Player%s move at index: %s is not allowed. No stones here.",
-                    isPlayer1sMove ? 1 : 2, pitIndex));
-            }
-            else {
-                playerPit.set(pitIndex, 0);
-                while (stonesInPit != 0) {
-                    //move one stone to the right
-                    pitIndex++;
-                    //if pitIndex has come to the right most big pit, reset it to first small pit
-                    if (pitIndex == 7) {
-                        pitIndex = 0;
-                    }
-                    playerPit.set(pitIndex, playerPit.get(pitIndex) + 1);
-                    stonesInPit--;
-                }
-                //if pitIndex is the last big pit, give this user to playAgain
-                if (pitIndex == 6) {
-                    result = true;
-                }
-                //move all the stones from the opponent pit to this players, if the current pit has one stone after the move
-                else if (playerPit.get(pitIndex) == 1) {
-                    //the opponent is ofcourse indexes in opposite order. E.g. 0 is 5, 1 is 4,..., and 5 is 0
-                    Integer opponentIndex = 5 - pitIndex;
-                    playerPit.set(pitIndex, opponentPlayerPit.get(opponentIndex) + 1);
-                    //remove all stones in the opponent pit
-                    opponentPlayerPit.set(opponentIndex, 0);
-                    result = false;
-                }
-                //update the entity
-                Board board = createOrUpdate();
-                this.player1Pits = board.player1Pits;
-                this.player2Pits = board.player2Pits;
-            }
+
+        @Override
+        public Integer get(int pitIndex) {
+
+            return pits[offset + checkIndex(pitIndex)];
         }
-        else {
-            log.severe(String.format("Cannot perform move. Invalid number of pits: %s, %s pitIndex: %s. Ignoring move",
-                playerPit != null ? playerPit.size() : null,
-                opponentPlayerPit != null ? opponentPlayerPit.size() : null, pitIndex));
+
+        @Override
+        public Integer set(int pitIndex, Integer stones) {
+
+            int previousStones = pits[offset + checkIndex(pitIndex)];
+            pits[offset + pitIndex] = stones;
+            return previousStones;
+        }
+
+        @Override
+        public int size() {
+
+            return MoveEngine.PITS_PER_PLAYER;
+        }
+
+        private int checkIndex(int pitIndex) {
+
+            if (pitIndex < 0 || pitIndex >= MoveEngine.PITS_PER_PLAYER) {
+                throw new IndexOutOfBoundsException("Pit index: " + pitIndex);
+            }
+            return pitIndex;
         }
-        return result;
     }
 }
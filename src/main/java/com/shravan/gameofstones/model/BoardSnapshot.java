@@ -0,0 +1,132 @@
+package com.shravan.gameofstones.model;
+
+import org.jongo.marshall.jackson.oid.MongoId;
+import org.jongo.marshall.jackson.oid.MongoObjectId;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.shravan.gameofstones.repository.Repositories;
+
+/**
+ * The state of the board of a play right after one of its moves. Snapshots are
+ * taken every few moves by the {@link MoveLog}, so that a play is rebuilt by
+ * replaying only the moves made after the latest snapshot.
+ *
+ * @author shravanshetty
+ */
+public class BoardSnapshot {
+
+    @MongoId
+    @MongoObjectId
+    private String id;
+    private String playId;
+    /**
+     * The {@link Move#seq} of the move after which this snapshot was taken
+     */
+    private Integer seq;
+    private Board board;
+    private boolean isPlayer1sMove;
+    private Long timestamp;
+
+    public BoardSnapshot() {
+    }
+
+    public BoardSnapshot(Play play, Integer seq) {
+        this.playId = play.getId();
+        this.seq = seq;
+        this.board = play.getBoard().copy();
+        this.isPlayer1sMove = play.isPlayer1sMove();
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    //getters and setters
+    public String getId() {
+
+        return id;
+    }
+
+    public void setId(String id) {
+
+        this.id = id;
+    }
+
+    public String getPlayId() {
+
+        return playId;
+    }
+
+    public void setPlayId(String playId) {
+
+        this.playId = playId;
+    }
+
+    public Integer getSeq() {
+
+        return seq;
+    }
+
+    public void setSeq(Integer seq) {
+
+        this.seq = seq;
+    }
+
+    public Board getBoard() {
+
+        return board;
+    }
+
+    public void setBoard(Board board) {
+
+        this.board = board;
+    }
+
+    @JsonProperty("isPlayer1sMove")
+    public boolean isPlayer1sMove() {
+
+        return isPlayer1sMove;
+    }
+
+    @JsonProperty("isPlayer1sMove")
+    public void setPlayer1sMove(boolean isPlayer1sMove) {
+
+        this.isPlayer1sMove = isPlayer1sMove;
+    }
+
+    public Long getTimestamp() {
+
+        return timestamp;
+    }
+
+    public void setTimestamp(Long timestamp) {
+
+        this.timestamp = timestamp;
+    }
+
+    //mongo access methods
+
+    /**
+     * Appends this snapshot to the mongo collection
+     *
+     * @return Returns the persisted snapshot
+     */
+    @JsonIgnore
+    public BoardSnapshot insert() {
+
+        Repositories.getGameRepository().insertSnapshot(this);
+        return this;
+    }
+
+    /**
+     * Gets the latest snapshot of a play taken at or before the given move
+     *
+     * @param playId
+     *            The play whose snapshot is fetched
+     * @param maxSeq
+     *            The last move the snapshot can be taken at. If null, the
+     *            latest snapshot is returned.
+     * @return The snapshot, or null if there is none
+     */
+    public static BoardSnapshot getLatest(String playId, Integer maxSeq) {
+
+        return Repositories.getGameRepository().getLatestSnapshot(playId, maxSeq != null ? maxSeq : Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,194 @@
+package com.shravan.gameofstones.model;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.logging.Logger;
+import com.shravan.gameofstones.repository.Repositories;
+
+/**
+ * The top players by {@link PlayerStats#getPoints()}, kept sorted in memory.
+ * The stats of the players are incremented when a play is completed, and the
+ * top players are updated right away, so reading the leaderboard never touches
+ * mongo. As the points of a player never decrease, a player outside the top
+ * can only get in with a new result, which is always seen here.
+ * <p>
+ * The top players are read from mongo once, with the first access. The number
+ * of top players kept is configured with the system property
+ * gameofstones.leaderboard.size. Default 100
+ * <p>
+ * The nodes of a cluster record different results, so on a node of a cluster
+ * (see {@link PlayRouter#isEnabled()}) the top players are read from mongo
+ * with every access instead.
+ *
+ * @author shravanshetty
+ */
+public class Leaderboard {
+
+    private static Logger log = Logger.getLogger(Leaderboard.class.getSimpleName());
+    /**
+     * Most points first, then most wins. Ties are ordered by player id.
+     */
+    public static final Comparator<PlayerStats> RANKING = new Comparator<PlayerStats>() {
+
+        @Override
+        public int compare(PlayerStats stats, PlayerStats otherStats) {
+
+            if (stats.getPoints() != otherStats.getPoints()) {
+                return Integer.compare(otherStats.getPoints(), stats.getPoints());
+            }
+            if (stats.getWins() != otherStats.getWins()) {
+                return Integer.compare(otherStats.getWins(), stats.getWins());
+            }
+            return stats.getId().compareTo(otherStats.getId());
+        }
+    };
+    private static final Leaderboard leaderboard = new Leaderboard(
+        Integer.getInteger("gameofstones.leaderboard.size", 100));
+
+    private final int size;
+    private final ConcurrentSkipListSet<PlayerStats> topPlayers = new ConcurrentSkipListSet<PlayerStats>(RANKING);
+    /**
+     * The entries of {@link Leaderboard#topPlayers}, by player id
+     */
+    private final ConcurrentHashMap<String, PlayerStats> topPlayersById = new ConcurrentHashMap<String, PlayerStats>();
+    private volatile boolean isLoaded;
+
+    Leaderboard(int size) {
+        this.size = size;
+    }
+
+    /**
+     * Retuns a singeton instance of this type
+     *
+     * @return Leaderboard singleton instance
+     */
+    public static Leaderboard getInstance() {
+
+        return leaderboard;
+    }
+
+    public int getSize() {
+
+        return size;
+    }
+
+    /**
+     * Gets the top players, best first
+     *
+     * @param limit
+     *            Maximum number of players returned. At most the configured
+     *            size.
+     * @return The stats of the top players
+     */
+    public List<PlayerStats> getTopPlayers(int limit) {
+
+        if (PlayRouter.getInstance().isEnabled()) {
+            return Repositories.getGameRepository().getTopPlayerStats(Math.min(limit, size));
+        }
+        load();
+        List<PlayerStats> players = new ArrayList<PlayerStats>(Math.min(limit, size));
+        Iterator<PlayerStats> topPlayerIterator = topPlayers.iterator();
+        while (topPlayerIterator.hasNext() && players.size() < limit) {
+            players.add(topPlayerIterator.next());
+        }
+        return players;
+    }
+
+    /**
+     * Increments the stats and adjusts the ratings of both players of a
+     * completed play, and updates the top players
+     *
+     * @param play
+     *            A play that was just completed
+     */
+    public void recordResult(Play play) {
+
+        try {
+            String winnerId = play.getLeaderId();
+            Player[] players = new Player[] {play.getPlayer1(), play.getPlayer2()};
+            double[] ratingChanges = new double[2];
+            if (players[0] != null && players[1] != null) {
+                double player1Score = winnerId == null ? 0.5 : winnerId.equals(players[0].getId()) ? 1 : 0;
+                ratingChanges = RatingIndex.getInstance().recordResult(players[0].getId(), players[1].getId(),
+                    player1Score);
+            }
+            for (int playerIndex = 0; playerIndex < players.length; playerIndex++) {
+                Player player = players[playerIndex];
+                if (player != null) {
+                    int wins = winnerId != null && winnerId.equals(player.getId()) ? 1 : 0;
+                    int losses = winnerId != null && wins == 0 ? 1 : 0;
+                    int draws = winnerId == null ? 1 : 0;
+                    update(PlayerStats.increment(player, wins, losses, draws, ratingChanges[playerIndex]));
+                }
+            }
+        }
+        catch (Exception e) {
+            log.severe(String.format("Result of play: %s not recorded: %s", play.getId(), e.getMessage()));
+        }
+    }
+
+    /**
+     * Replaces the stats of a player in the top players, if the player is (or
+     * gets) in the top. Concurrent results of a player can be applied out of
+     * order: stats having no more plays than the ones kept are older, and
+     * ignored, so the points of a player never go back.
+     *
+     * @param stats
+     *            The latest stats of a player
+     */
+    synchronized void update(PlayerStats stats) {
+
+        if (PlayRouter.getInstance().isEnabled()) {
+            return;
+        }
+        load();
+        PlayerStats previousStats = topPlayersById.get(stats.getId());
+        if (previousStats != null) {
+            if (getPlayCount(previousStats) >= getPlayCount(stats)) {
+                return;
+            }
+            topPlayersById.remove(stats.getId());
+            topPlayers.remove(previousStats);
+        }
+        if (topPlayers.size() < size || RANKING.compare(stats, topPlayers.last()) < 0) {
+            topPlayers.add(stats);
+            topPlayersById.put(stats.getId(), stats);
+            if (topPlayers.size() > size) {
+                topPlayersById.remove(topPlayers.pollLast().getId());
+            }
+        }
+    }
+
+    //private methods
+
+    /**
+     * Gets the number of plays counted in the given stats, which only grows
+     * with every result of the player
+     */
+    private static int getPlayCount(PlayerStats stats) {
+
+        return stats.getWins() + stats.getLosses() + stats.getDraws();
+    }
+
+    /**
+     * Reads the top players from mongo, once
+     */
+    private void load() {
+
+        if (!isLoaded) {
+            synchronized (this) {
+                if (!isLoaded) {
+                    for (PlayerStats stats : Repositories.getGameRepository().getTopPlayerStats(size)) {
+                        topPlayers.add(stats);
+                        topPlayersById.put(stats.getId(), stats);
+                    }
+                    isLoaded = true;
+                }
+            }
+        }
+    }
+}
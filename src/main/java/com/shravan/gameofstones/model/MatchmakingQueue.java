@@ -0,0 +1,202 @@
+package com.shravan.gameofstones.model;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.logging.Logger;
+
+/**
+ * Lobby of the players waiting for an opponent. A player entering the lobby is
+ * paired right away with the longest waiting player, if any, else waits to be
+ * paired with the next one. The waiting players are kept in a lock-free queue:
+ * every ticket is claimed by exactly one pairing (or its own timeout) with a
+ * compare-and-set on its state.
+ * <p>
+ * The time a player waits for an opponent is configured with the system
+ * property gameofstones.matchmaking.timeoutMillis. Default 30 seconds
+ *
+ * @author shravanshetty
+ */
+public class MatchmakingQueue {
+
+    private static Logger log = Logger.getLogger(MatchmakingQueue.class.getSimpleName());
+    private static final MatchmakingQueue matchmakingQueue = new MatchmakingQueue(
+        Long.getLong("gameofstones.matchmaking.timeoutMillis", TimeUnit.SECONDS.toMillis(30)),
+        new BiFunction<Player, Player, Play>() {
+
+            @Override
+            public Play apply(Player player1, Player player2) {
+
+                return Play.startGame(player1, player2);
+            }
+        });
+
+    private static final int WAITING = 0;
+    private static final int CLAIMED = 1;
+    private static final int DONE = 2;
+
+    private final long timeoutMillis;
+    /**
+     * Creates the play between the paired players
+     */
+    private final BiFunction<Player, Player, Play> startGame;
+    private final ConcurrentLinkedQueue<Ticket> waitingTickets = new ConcurrentLinkedQueue<Ticket>();
+
+    MatchmakingQueue(long timeoutMillis, BiFunction<Player, Player, Play> startGame) {
+        this.timeoutMillis = timeoutMillis;
+        this.startGame = startGame;
+    }
+
+    /**
+     * Retuns a singeton instance of this type
+     *
+     * @return MatchmakingQueue singleton instance
+     */
+    public static MatchmakingQueue getInstance() {
+
+        return matchmakingQueue;
+    }
+
+    public long getTimeoutMillis() {
+
+        return timeoutMillis;
+    }
+
+    /**
+     * Pairs the given player with another waiting player, waiting for one if
+     * needed. The player who waited longer is player1 of the created play.
+     *
+     * @param player
+     *            A player that is already saved
+     * @return The play created for the pair, or null if no opponent entered
+     *         the lobby within the timeout
+     * @throws InterruptedException
+     *             If the thread was interrupted while waiting
+     * @throws ExecutionException
+     *             If the play could not be created. Its cause is the actual
+     *             error.
+     */
+    public Play match(Player player) throws InterruptedException, ExecutionException {
+
+        Ticket ticket = new Ticket(player);
+        waitingTickets.offer(ticket);
+        pairWaitingTickets();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            long remainingMillis = Math.max(deadline - System.currentTimeMillis(), 1);
+            try {
+                return ticket.play.get(remainingMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                //give up, unless the ticket is being paired right now
+                if (ticket.state.compareAndSet(WAITING, DONE)) {
+                    waitingTickets.remove(ticket);
+                    return null;
+                }
+                deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(1);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of tickets in the lobby. Tickets that timed out or are
+     * being paired could be included.
+     *
+     * @return
+     */
+    public int getWaitingCount() {
+
+        return waitingTickets.size();
+    }
+
+    //private methods
+
+    /**
+     * Pairs the waiting tickets two at a time, until at most one is left
+     * waiting
+     */
+    private void pairWaitingTickets() {
+
+        Ticket first = claimWaitingTicket();
+        while (first != null) {
+            Ticket second = claimWaitingTicket();
+            if (second == null) {
+                //no opponent yet. put the ticket back
+                first.state.set(WAITING);
+                waitingTickets.offer(first);
+                //another ticket could have been put back meanwhile, in which case pair them now
+                if (waitingTickets.peek() == first) {
+                    return;
+                }
+                first = claimWaitingTicket();
+            }
+            else if (second.player.getId() != null && second.player.getId().equals(first.player.getId())) {
+                //the same player entered the lobby again. the older ticket is dropped
+                first.state.set(DONE);
+                first.play.complete(null);
+                first = second;
+            }
+            else {
+                startGame(first, second);
+                first = claimWaitingTicket();
+            }
+        }
+    }
+
+    /**
+     * Takes the longest waiting ticket out of the queue, skipping the tickets
+     * that timed out
+     *
+     * @return The claimed ticket, or null if none is waiting
+     */
+    private Ticket claimWaitingTicket() {
+
+        Ticket ticket;
+        while ((ticket = waitingTickets.poll()) != null) {
+            if (ticket.state.compareAndSet(WAITING, CLAIMED)) {
+                return ticket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates the play between two claimed tickets, and hands it over to both
+     */
+    private void startGame(Ticket first, Ticket second) {
+
+        try {
+            Play play = startGame.apply(first.player, second.player);
+            first.state.set(DONE);
+            second.state.set(DONE);
+            first.play.complete(play);
+            second.play.complete(play);
+        }
+        catch (RuntimeException e) {
+            log.severe(String.format("Play between players: %s and %s could not be created: %s",
+                first.player.getId(), second.player.getId(), e.getMessage()));
+            first.state.set(DONE);
+            second.state.set(DONE);
+            first.play.completeExceptionally(e);
+            second.play.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * A player waiting in the lobby
+     */
+    private static class Ticket {
+
+        private final Player player;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private final CompletableFuture<Play> play = new CompletableFuture<Play>();
+
+        Ticket(Player player) {
+            this.player = player;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.shravan.gameofstones.model;
+
+import java.util.Date;
+import org.jongo.marshall.jackson.oid.MongoId;
+import com.shravan.gameofstones.repository.Repositories;
+
+/**
+ * Record of a one-time data migration that was completed, so that it is never
+ * run again
+ *
+ * @author shravanshetty
+ */
+public class Migration {
+
+    /**
+     * The unique name of the migration
+     */
+    @MongoId
+    private String id;
+    private Date completedAt;
+
+    public Migration() {
+    }
+
+    public Migration(String id) {
+        this.id = id;
+        this.completedAt = new Date();
+    }
+
+    //getters and setters
+    public String getId() {
+
+        return id;
+    }
+
+    public void setId(String id) {
+
+        this.id = id;
+    }
+
+    public Date getCompletedAt() {
+
+        return completedAt;
+    }
+
+    public void setCompletedAt(Date completedAt) {
+
+        this.completedAt = completedAt;
+    }
+
+    //mongo access methods
+
+    /**
+     * Checks if the migration with the given name was completed
+     *
+     * @param id
+     *            The name of the migration
+     * @return True if it was completed
+     */
+    public static boolean isCompleted(String id) {
+
+        return Repositories.getGameRepository().isMigrationCompleted(id);
+    }
+
+    /**
+     * Records this migration as completed
+     *
+     * @return The saved migration
+     */
+    public Migration createOrUpdate() {
+
+        Repositories.getGameRepository().saveMigration(this);
+        return this;
+    }
+}
@@ -0,0 +1,188 @@
+package com.shravan.gameofstones.model;
+
+import java.util.List;
+import org.jongo.marshall.jackson.oid.MongoId;
+import org.jongo.marshall.jackson.oid.MongoObjectId;
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.shravan.gameofstones.repository.EntityCursor;
+import com.shravan.gameofstones.repository.Repositories;
+
+/**
+ * A single move made in a play. Moves are only ever appended, numbered by
+ * {@link Move#seq} within their play, so the full history of a play can be
+ * replayed from them. See {@link MoveLog}.
+ *
+ * @author shravanshetty
+ */
+public class Move {
+
+    @MongoId
+    @MongoObjectId
+    private String id;
+    private String playId;
+    /**
+     * 1-based number of this move within its play
+     */
+    private Integer seq;
+    private String playerId;
+    /**
+     * True if the move is made by player1 of the play, else player2
+     */
+    private boolean isPlayer1;
+    private Integer pitIndex;
+    /**
+     * The time of the move in epoch millis
+     */
+    private Long timestamp;
+
+    public Move() {
+    }
+
+    public Move(String playId, Integer seq, String playerId, boolean isPlayer1, Integer pitIndex) {
+        this.playId = playId;
+        this.seq = seq;
+        this.playerId = playerId;
+        this.isPlayer1 = isPlayer1;
+        this.pitIndex = pitIndex;
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    //getters and setters
+    public String getId() {
+
+        return id;
+    }
+
+    public void setId(String id) {
+
+        this.id = id;
+    }
+
+    public String getPlayId() {
+
+        return playId;
+    }
+
+    public void setPlayId(String playId) {
+
+        this.playId = playId;
+    }
+
+    public Integer getSeq() {
+
+        return seq;
+    }
+
+    public void setSeq(Integer seq) {
+
+        this.seq = seq;
+    }
+
+    public String getPlayerId() {
+
+        return playerId;
+    }
+
+    public void setPlayerId(String playerId) {
+
+        this.playerId = playerId;
+    }
+
+    @JsonProperty("isPlayer1")
+    public boolean isPlayer1() {
+
+        return isPlayer1;
+    }
+
+    @JsonProperty("isPlayer1")
+    public void setPlayer1(boolean isPlayer1) {
+
+        this.isPlayer1 = isPlayer1;
+    }
+
+    public Integer getPitIndex() {
+
+        return pitIndex;
+    }
+
+    public void setPitIndex(Integer pitIndex) {
+
+        this.pitIndex = pitIndex;
+    }
+
+    public Long getTimestamp() {
+
+        return timestamp;
+    }
+
+    public void setTimestamp(Long timestamp) {
+
+        this.timestamp = timestamp;
+    }
+
+    //mongo access methods
+
+    /**
+     * Appends this move to the mongo collection. Moves are never updated.
+     *
+     * @return Returns the persisted move
+     */
+    @JsonIgnore
+    public Move insert() {
+
+        Repositories.getGameRepository().insertMove(this);
+        return this;
+    }
+
+    /**
+     * Gets the moves of a play, ordered by their {@link Move#seq}
+     *
+     * @param playId
+     *            The play whose moves are fetched
+     * @param fromSeq
+     *            The first move to be fetched. If null, from the first move.
+     * @param toSeq
+     *            The last move to be fetched. If null, till the last move.
+     * @return The moves within the given range
+     */
+    public static List<Move> getMoves(String playId, Integer fromSeq, Integer toSeq) {
+
+        return Repositories.getGameRepository().getMoves(playId, fromSeq != null ? fromSeq : 1,
+            toSeq != null ? toSeq : Integer.MAX_VALUE);
+    }
+
+    /**
+     * Streams the moves of a play, ordered by their {@link Move#seq}. The
+     * moves are fetched in batches while iterating.
+     *
+     * @param playId
+     *            The play whose moves are fetched
+     * @param fromSeq
+     *            The first move to be fetched. If null, from the first move.
+     * @param toSeq
+     *            The last move to be fetched. If null, till the last move.
+     * @return A cursor over the moves within the given range. Must be closed.
+     */
+    public static EntityCursor<Move> streamMoves(String playId, Integer fromSeq, Integer toSeq) {
+
+        return Repositories.getGameRepository().streamMoves(playId, fromSeq != null ? fromSeq : 1,
+            toSeq != null ? toSeq : Integer.MAX_VALUE);
+    }
+
+    /**
+     * Counts the moves of a play within the given range
+     *
+     * @param playId
+     *            The play whose moves are counted
+     * @param fromSeq
+     *            The first move counted
+     * @param toSeq
+     *            The last move counted
+     * @return
+     */
+    public static long countMoves(String playId, int fromSeq, int toSeq) {
+
+        return Repositories.getGameRepository().countMoves(playId, fromSeq, toSeq);
+    }
+}
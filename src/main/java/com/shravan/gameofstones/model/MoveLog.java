@@ -0,0 +1,434 @@
+package com.shravan.gameofstones.model;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.shravan.gameofstones.core.WriteBatch;
+import com.shravan.gameofstones.exception.BadMoveException;
+import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.repository.AsyncGameRepository;
+import com.shravan.gameofstones.repository.EntityCursor;
+import com.shravan.gameofstones.util.JSONFormatter;
+
+/**
+ * Append-only log of the {@link Move}s of all plays. Every move is appended
+ * once it is applied to its play, and a {@link BoardSnapshot} is taken every
+ * few moves. The state of a play after any move is rebuilt from the latest
+ * snapshot before it, by replaying the moves since that snapshot on the
+ * {@link com.shravan.gameofstones.engine.MoveEngine}.
+ * <p>
+ * The snapshot interval is configured with the system property
+ * gameofstones.moves.snapshotInterval. Default 20
+ *
+ * @author shravanshetty
+ */
+public class MoveLog {
+
+    /**
+     * Media type of the history written by this log
+     */
+    public static final String NDJSON = "application/x-ndjson";
+    private static Logger log = Logger.getLogger(MoveLog.class.getSimpleName());
+    private static final int SNAPSHOT_INTERVAL = Math.max(1,
+        Integer.getInteger("gameofstones.moves.snapshotInterval", 20));
+    /**
+     * Number of history lines written between two flushes of the response
+     */
+    private static final int HISTORY_FLUSH_LINES = 50;
+    /**
+     * The last append of each play having appends still being written
+     */
+    private static final ConcurrentHashMap<String, CompletableFuture<Void>> pendingAppends =
+        new ConcurrentHashMap<String, CompletableFuture<Void>>();
+
+    private MoveLog() {
+    }
+
+    /**
+     * Appends a move to the log, after it is applied to the given play.
+     * Snapshots the board of the play if the move completes a snapshot
+     * interval, or ends the play. The move is written by the
+     * {@link AsyncGameRepository}, after the moves appended before it to the
+     * same play, even if these failed. See {@link #awaitAppends(String)}.
+     * The future orders the appends of a play; it does not make the move
+     * asynchronous, as {@link Play#makeMove} waits for it before answering.
+     *
+     * @param play
+     *            The play, right after the move
+     * @param move
+     *            The move that was applied
+     * @return Completed once the move is written, or exceptionally if it
+     *         could not be. The failure is already logged.
+     */
+    public static CompletableFuture<Void> append(Play play, final Move move) {
+
+        final WriteBatch batch = new WriteBatch().insert(move);
+        if (move.getSeq() % SNAPSHOT_INTERVAL == 0 || !PlayState.IN_PROGRESS.equals(play.getPlayState())) {
+            batch.insert(new BoardSnapshot(play, move.getSeq()));
+        }
+        final String playId = move.getPlayId();
+        final CompletableFuture<Void> appended = new CompletableFuture<Void>();
+        //only the pending append is swapped atomically. the write is started outside of the map
+        CompletableFuture<Void> previousAppend = pendingAppends.put(playId, appended);
+        appended.whenComplete(new BiConsumer<Void, Throwable>() {
+
+            @Override
+            public void accept(Void result, Throwable e) {
+
+                pendingAppends.remove(playId, appended);
+            }
+        });
+        if (previousAppend == null) {
+            write(batch, move, appended);
+        }
+        else {
+            previousAppend.whenComplete(new BiConsumer<Void, Throwable>() {
+
+                @Override
+                public void accept(Void result, Throwable e) {
+
+                    write(batch, move, appended);
+                }
+            });
+        }
+        return appended;
+    }
+
+    /**
+     * Waits till the moves appended to the given play are written to the
+     * storage, so that they can be read back
+     *
+     * @param playId
+     */
+    public static void awaitAppends(String playId) {
+
+        CompletableFuture<Void> appended = pendingAppends.get(playId);
+        if (appended != null) {
+            await(appended);
+        }
+    }
+
+    /**
+     * Waits till the moves appended to all plays so far are written to the
+     * storage
+     */
+    public static void awaitAppends() {
+
+        for (CompletableFuture<Void> appended : pendingAppends.values()) {
+            await(appended);
+        }
+    }
+
+    /**
+     * Gets the number of moves made in the given play
+     *
+     * @param play
+     * @return The {@link Move#seq} of the last move of the play
+     */
+    public static int getLastSeq(Play play) {
+
+        Board board = play.getBoard();
+        return board != null ? board.getPlayer1Moves() + board.getPlayer2Moves() : 0;
+    }
+
+    /**
+     * Counts the moves of a play missing in the given moves, up to the given
+     * move. See {@link #countMissingMoves(Play, Integer)}
+     *
+     * @param play
+     * @param moves
+     *            The moves of the play, ordered by their {@link Move#seq}
+     * @param toSeq
+     *            The last move checked. If null, till the last move of the
+     *            play.
+     * @return The number of moves missing
+     */
+    public static int countMissingMoves(Play play, List<Move> moves, Integer toSeq) {
+
+        int lastSeq = toSeq != null ? Math.min(toSeq, getLastSeq(play)) : getLastSeq(play);
+        int presentMoves = 0;
+        for (Move move : moves) {
+            if (move.getSeq() >= 1 && move.getSeq() <= lastSeq) {
+                presentMoves++;
+            }
+        }
+        return lastSeq < 1 ? 0 : lastSeq - presentMoves;
+    }
+
+    /**
+     * Counts the moves of a play missing in the log, up to the given move.
+     * The history of a play is only complete if none is missing.
+     *
+     * @param play
+     * @param toSeq
+     *            The last move checked. If null, till the last move of the
+     *            play.
+     * @return The number of moves not logged
+     */
+    public static int countMissingMoves(Play play, Integer toSeq) {
+
+        awaitAppends(play.getId());
+        int lastSeq = toSeq != null ? Math.min(toSeq, getLastSeq(play)) : getLastSeq(play);
+        return lastSeq < 1 ? 0 : lastSeq - (int) Move.countMoves(play.getId(), 1, lastSeq);
+    }
+
+    /**
+     * Rebuilds the state of a play right after the given move, from the latest
+     * snapshot before it and the moves logged since then
+     *
+     * @param play
+     *            The play to be rebuilt. It is not modified, and the rebuilt
+     *            play must not be saved in its place.
+     * @param toSeq
+     *            The last move to be replayed. If null, all logged moves are
+     *            replayed.
+     * @return A copy of the play, having the replayed board. Null if the
+     *         moves of the play are not completely logged.
+     */
+    public static Play replay(Play play, Integer toSeq) {
+
+        awaitAppends(play.getId());
+        BoardSnapshot snapshot = BoardSnapshot.getLatest(play.getId(), toSeq);
+        Play replayedPlay = startReplay(play, snapshot, toSeq);
+        int lastSeq = snapshot != null ? snapshot.getSeq() : 0;
+        return applyMoves(replayedPlay, lastSeq, Move.getMoves(play.getId(), lastSeq + 1, toSeq)) ? replayedPlay
+            : null;
+    }
+
+    /**
+     * Writes the history of a play as newline delimited JSON: one line per
+     * move, having the move and the state of the play right after it. The
+     * moves are streamed from mongo and replayed one at a time from the
+     * latest snapshot before the range, so the history is never held in
+     * memory as a whole.
+     *
+     * @param play
+     *            The play whose history is written. It is not modified.
+     * @param fromSeq
+     *            The first move to be written. If null, from the first move.
+     * @param toSeq
+     *            The last move to be written. If null, till the last move.
+     * @param outputStream
+     *            The stream the lines are written to. It is flushed every few
+     *            lines, and not closed.
+     * @throws IOException
+     *             If the stream could not be written
+     */
+    public static void writeHistory(Play play, Integer fromSeq, Integer toSeq, OutputStream outputStream)
+        throws IOException {
+
+        int firstSeq = fromSeq != null ? Math.max(fromSeq, 1) : 1;
+        Play replayedPlay = replay(play, firstSeq - 1);
+        if (replayedPlay == null) {
+            return;
+        }
+        try (EntityCursor<Move> moves = Move.streamMoves(play.getId(), getLastSeq(replayedPlay) + 1, toSeq)) {
+            writeMoves(replayedPlay, getLastSeq(replayedPlay), firstSeq, toSeq, moves, outputStream);
+        }
+    }
+
+    /**
+     * Writes the history of a play from the given moves, rather than from the
+     * log, e.g. the moves archived along with the play by the
+     * {@link PlayArchive}. The play is replayed from its first move. See
+     * {@link #writeHistory(Play, Integer, Integer, OutputStream)}
+     *
+     * @param play
+     *            The play whose history is written. It is not modified.
+     * @param moves
+     *            All the moves of the play, ordered by their {@link Move#seq}
+     * @param fromSeq
+     *            The first move to be written. If null, from the first move.
+     * @param toSeq
+     *            The last move to be written. If null, till the last move.
+     * @param outputStream
+     *            The stream the lines are written to. It is flushed every few
+     *            lines, and not closed.
+     * @throws IOException
+     *             If the stream could not be written
+     */
+    public static void writeHistory(Play play, List<Move> moves, Integer fromSeq, Integer toSeq,
+        OutputStream outputStream) throws IOException {
+
+        int firstSeq = fromSeq != null ? Math.max(fromSeq, 1) : 1;
+        writeMoves(startReplay(play, null, 0), 0, firstSeq, toSeq, moves, outputStream);
+    }
+
+    /**
+     * Applies the moves logged after the last move saved in the given play.
+     * These moves are missing only if the play was not saved after them, e.g.
+     * when the process stopped before the {@link PlaySessionStore} was
+     * flushed.
+     *
+     * @param play
+     *            The play as read from mongo
+     * @return True if any move was applied to the play
+     */
+    static boolean applyMissingMoves(Play play) {
+
+        if (!PlayState.IN_PROGRESS.equals(play.getPlayState()) || play.getBoard() == null) {
+            return false;
+        }
+        awaitAppends(play.getId());
+        int lastSeq = getLastSeq(play);
+        List<Move> missingMoves = Move.getMoves(play.getId(), lastSeq + 1, null);
+        if (missingMoves.isEmpty()) {
+            return false;
+        }
+        log.warning(String.format("Play: %s is missing %s moves after move: %s. Replaying them", play.getId(),
+            missingMoves.size(), lastSeq));
+        applyMoves(play, lastSeq, missingMoves);
+        return getLastSeq(play) > lastSeq;
+    }
+
+    //private methods
+
+    /**
+     * Writes the batch of a move, and completes the given append with its
+     * result. A failure is logged.
+     */
+    private static void write(WriteBatch batch, final Move move, final CompletableFuture<Void> appended) {
+
+        AsyncGameRepository.getInstance().write(batch).whenComplete(new BiConsumer<Void, Throwable>() {
+
+            @Override
+            public void accept(Void result, Throwable e) {
+
+                if (e == null) {
+                    appended.complete(null);
+                    return;
+                }
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                log.severe(String.format("Move: %s of play: %s could not be logged: %s", move.getSeq(),
+                    move.getPlayId(), cause.getMessage()));
+                appended.completeExceptionally(cause);
+            }
+        });
+    }
+
+    /**
+     * Waits till the given append is done, whether it was written or not
+     */
+    private static void await(CompletableFuture<Void> appended) {
+
+        try {
+            appended.join();
+        }
+        catch (CompletionException e) {
+            //already logged by the append
+        }
+    }
+
+    /**
+     * Copies a play to be replayed from the given snapshot, or from its first
+     * move if there is none
+     *
+     * @param toSeq
+     *            The last move to be replayed. If null, all moves.
+     */
+    private static Play startReplay(Play play, BoardSnapshot snapshot, Integer toSeq) {
+
+        Play replayedPlay = play.copy();
+        if (snapshot != null) {
+            replayedPlay.setBoard(snapshot.getBoard());
+            replayedPlay.setPlayer1sMove(snapshot.isPlayer1sMove());
+        }
+        else {
+            Board board = Board.setupBoard(false);
+            board.setId(play.getBoardId());
+            replayedPlay.setBoard(board);
+            replayedPlay.setPlayer1sMove(true);
+        }
+        //the play is completed again by the move that completes the board
+        if (toSeq != null || PlayState.COMPLETED.equals(play.getPlayState())) {
+            replayedPlay.setPlayState(PlayState.IN_PROGRESS);
+        }
+        replayedPlay.setLeaderId(null);
+        return replayedPlay;
+    }
+
+    /**
+     * Replays the given moves on a play, writing one history line per move
+     * from firstSeq on. Stops at the first move that is missing or cannot be
+     * replayed.
+     *
+     * @param replayedPlay
+     *            The play right after move lastSeq
+     */
+    private static void writeMoves(Play replayedPlay, int lastSeq, int firstSeq, Integer toSeq,
+        Iterable<Move> moves, OutputStream outputStream) throws IOException {
+
+        ObjectMapper mapper = JSONFormatter.getMapper();
+        int linesWritten = 0;
+        for (Move move : moves) {
+            if (toSeq != null && move.getSeq() > toSeq) {
+                break;
+            }
+            if (move.getSeq() != lastSeq + 1) {
+                log.severe(String.format("Move: %s of play: %s is not logged", lastSeq + 1, replayedPlay.getId()));
+                break;
+            }
+            try {
+                replayedPlay.applyMove(move.isPlayer1(), move.getPitIndex());
+            }
+            catch (BadMoveException e) {
+                log.severe(String.format("Move: %s of play: %s cannot be replayed: %s", move.getSeq(),
+                    replayedPlay.getId(), e.getMessage()));
+                break;
+            }
+            lastSeq = move.getSeq();
+            if (lastSeq < firstSeq) {
+                continue;
+            }
+            //write the state after every move
+            Board board = replayedPlay.getBoard();
+            ObjectNode historyNode = mapper.createObjectNode();
+            historyNode.put("seq", move.getSeq());
+            historyNode.putPOJO("move", move);
+            historyNode.putPOJO("board", board);
+            historyNode.put("player1Score", board.getPlayer1Score());
+            historyNode.put("player2Score", board.getPlayer2Score());
+            historyNode.put("isPlayer1sMove", replayedPlay.isPlayer1sMove());
+            historyNode.putPOJO("playState", replayedPlay.getPlayState());
+            historyNode.put("leaderId", replayedPlay.getLeaderId());
+            outputStream.write(mapper.writeValueAsBytes(historyNode));
+            outputStream.write('\n');
+            if (++linesWritten % HISTORY_FLUSH_LINES == 0) {
+                outputStream.flush();
+            }
+        }
+        outputStream.flush();
+    }
+
+    /**
+     * Applies the given moves in order, making sure that none is missing
+     *
+     * @return False if a move is missing or could not be applied
+     */
+    private static boolean applyMoves(Play play, int lastSeq, List<Move> moves) {
+
+        for (Move move : moves) {
+            if (move.getSeq() != lastSeq + 1) {
+                log.severe(String.format("Move: %s of play: %s is not logged", lastSeq + 1, play.getId()));
+                return false;
+            }
+            try {
+                play.applyMove(move.isPlayer1(), move.getPitIndex());
+            }
+            catch (BadMoveException e) {
+                log.severe(String.format("Move: %s of play: %s cannot be replayed: %s", move.getSeq(), play.getId(),
+                    e.getMessage()));
+                return false;
+            }
+            lastSeq = move.getSeq();
+        }
+        return true;
+    }
+}
@@ -1,5 +1,9 @@
 package com.shravan.gameofstones.model;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Logger;
 import org.bson.types.ObjectId;
 import org.jongo.marshall.jackson.oid.MongoId;
@@ -8,8 +12,12 @@ import com.fasterxml.jackson.annotation.JsonCreator;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.shravan.gameofstones.core.Mongodb;
+import com.shravan.gameofstones.core.VersionedEntity;
+import com.shravan.gameofstones.core.WriteBatch;
 import com.shravan.gameofstones.exception.BadMoveException;
+import com.shravan.gameofstones.exception.ConflictException;
+import com.shravan.gameofstones.repository.GameRepository;
+import com.shravan.gameofstones.repository.Repositories;
 import com.shravan.gameofstones.util.JSONFormatter;
 
 /**
@@ -17,7 +25,7 @@ import com.shravan.gameofstones.util.JSONFormatter;
  * 
  * @author shravanshetty
  */
-public class Play {
+public class Play implements VersionedEntity {
 
     private static Logger log = Logger.getLogger(Play.class.getSimpleName());
 
@@ -62,8 +70,22 @@ public class Play {
     @MongoObjectId
     private String id;
     private String boardId;
+    /**
+     * The board is embedded in the play, so that a move is read and written
+     * with a single request to mongo
+     */
+    @JsonProperty("board")
+    private Board board;
     private String player1Id;
     private String player2Id;
+    /**
+     * Snapshots of the players are embedded in the play, so that the full
+     * play is read with a single request to mongo
+     */
+    @JsonProperty("player1")
+    private Player player1;
+    @JsonProperty("player2")
+    private Player player2;
     private PlayState playState;
     private String leaderId;
     /**
@@ -71,8 +93,75 @@ public class Play {
      * player2
      */
     private boolean isPlayer1sMove = true;
+    /**
+     * Incremented on every save of this play (and its embedded board). Used to
+     * reject concurrent updates of the same play.
+     */
+    private Long version;
+    /**
+     * Time of the last change of this play. Plays WAITING or IN_PROGRESS that
+     * are idle for too long are aborted by the {@link PlayReaper}
+     */
+    private Date lastActivity;
+    /**
+     * Time after which this play is removed from mongo, by a TTL index. Only
+     * set for plays aborted by the {@link PlayReaper}
+     */
+    private Date expireAt;
+    /**
+     * Set when a move completes this play, until the play is saved and its
+     * result is recorded in the {@link Leaderboard}. Never persisted.
+     */
+    @JsonIgnore
+    private transient boolean isResultPending;
+
+    /**
+     * Creates a copy of this play, along with its board
+     * 
+     * @return A play that does not share any state with this one
+     */
+    Play copy() {
+
+        Play play = new Play();
+        play.id = id;
+        play.boardId = boardId;
+        play.board = board != null ? board.copy() : null;
+        play.player1Id = player1Id;
+        play.player2Id = player2Id;
+        play.player1 = player1 != null ? player1.snapshot() : null;
+        play.player2 = player2 != null ? player2.snapshot() : null;
+        play.playState = playState;
+        play.leaderId = leaderId;
+        play.isPlayer1sMove = isPlayer1sMove;
+        play.version = version;
+        play.lastActivity = lastActivity;
+        play.expireAt = expireAt;
+        return play;
+    }
+
+    /**
+     * Checks which snapshots are not embedded in this play yet, without
+     * fetching them
+     * 
+     * @return The names of the fields whose snapshot is missing
+     */
+    List<String> getMissingSnapshots() {
+
+        List<String> missingSnapshots = new ArrayList<String>(3);
+        if (board == null && boardId != null) {
+            missingSnapshots.add("board");
+        }
+        if (player1 == null && player1Id != null) {
+            missingSnapshots.add("player1");
+        }
+        if (player2 == null && player2Id != null) {
+            missingSnapshots.add("player2");
+        }
+        return missingSnapshots;
+    }
 
     //getters and setters
+    @Override
     public String getId() {
 
         return id;
@@ -133,6 +222,37 @@ public class Play {
         this.boardId = boardId;
     }
 
+    @Override
+    public Long getVersion() {
+
+        return version;
+    }
+
+    public void setVersion(Long version) {
+
+        this.version = version;
+    }
+
+    public Date getLastActivity() {
+
+        return lastActivity;
+    }
+
+    public void setLastActivity(Date lastActivity) {
+
+        this.lastActivity = lastActivity;
+    }
+
+    public Date getExpireAt() {
+
+        return expireAt;
+    }
+
+    public void setExpireAt(Date expireAt) {
+
+        this.expireAt = expireAt;
+    }
+
     /**
      * If true, its player1's chance to play next, else player2's
      * 
@@ -150,41 +270,101 @@ public class Play {
         this.isPlayer1sMove = isPlayer1sMove;
     }
 
+    /**
+     * Gets the snapshot of player1 embedded in this play. Plays saved before
+     * the players were embedded only have the {@link Play#player1Id}, in
+     * which case the player is fetched and embedded here.
+     * 
+     * @return The snapshot of player1
+     */
     @JsonIgnore
     public Player getPlayer1() {
 
-        if (player1Id != null) {
-            return Player.getPlayer(player1Id);
+        if (player1 == null && player1Id != null) {
+            setPlayer1(Player.getPlayer(player1Id));
         }
-        log.warning("PlayerId1 is null");
-        return null;
+        if (player1Id == null) {
+            log.warning("PlayerId1 is null");
+        }
+        return player1;
     }
 
+    /**
+     * Embeds a snapshot of the given player as player1 of this play
+     * 
+     * @param player
+     */
+    public void setPlayer1(Player player) {
+
+        this.player1 = player != null ? player.snapshot() : null;
+        this.player1Id = player != null ? player.getId() : player1Id;
+    }
+
+    /**
+     * Gets the snapshot of player2 embedded in this play. See
+     * {@link Play#getPlayer1()}
+     * 
+     * @return The snapshot of player2
+     */
     @JsonIgnore
     public Player getPlayer2() {
 
-        if (player2Id != null) {
-            return Player.getPlayer(player2Id);
+        if (player2 == null && player2Id != null) {
+            setPlayer2(Player.getPlayer(player2Id));
         }
-        log.warning("PlayerId2 is null");
-        return null;
+        if (player2Id == null) {
+            log.warning("PlayerId2 is null");
+        }
+        return player2;
+    }
+
+    /**
+     * Embeds a snapshot of the given player as player2 of this play
+     * 
+     * @param player
+     */
+    public void setPlayer2(Player player) {
+
+        this.player2 = player != null ? player.snapshot() : null;
+        this.player2Id = player != null ? player.getId() : player2Id;
     }
 
+    /**
+     * Gets the board embedded in this play. Plays saved before the board was
+     * embedded are linked by {@link Play#boardId}, in which case the board is
+     * fetched and embedded here, to be saved along with this play from then on.
+     * 
+     * @return The board of this play
+     */
     @JsonIgnore
     public Board getBoard() {
 
-        if (boardId != null) {
-            return Board.getBoard(boardId);
+        if (board == null && boardId != null) {
+            board = Repositories.getGameRepository().getBoard(boardId);
         }
-        log.warning("BoardId is null");
-        return null;
+        if (board == null) {
+            log.warning(String.format("No board found for boardId: %s", boardId));
+        }
+        return board;
+    }
+
+    /**
+     * Embeds the given board in this play
+     * 
+     * @param board
+     */
+    public void setBoard(Board board) {
+
+        this.board = board;
+        this.boardId = board != null ? board.getId() : null;
     }
 
     //mongo access methods
 
     /**
      * Gets the full details in the form of an objectNode, with full entities in
-     * places of entity ids
+     * places of entity ids. The board and players are embedded, so no further
+     * reads are needed.
      * 
      * @return ObjectNode having full player details and full board details
      */
@@ -199,31 +379,93 @@ public class Play {
             playNode.put("player1Score", board.getPlayer1Score());
             playNode.put("player2Score", board.getPlayer2Score());
         }
-        //fetch player details
+        //player details are embedded, unless the play was saved without them
         Player player1 = getPlayer1();
         Player player2 = getPlayer2();
         if (player1 != null) {
             playNode.putPOJO("player1", player1);
         }
+        else {
+            playNode.remove("player1");
+        }
         if (player2 != null) {
             playNode.putPOJO("player2", player2);
         }
+        else {
+            playNode.remove("player2");
+        }
         return playNode;
     }
 
     /**
-     * Create or update this instance to the mongoDb
+     * Create or update this instance to the mongoDb. An update is only
+     * performed if the play was not modified since it was read, based on its
+     * {@link Play#version}. Plays that are {@link PlayState#IN_PROGRESS} are
+     * updated in the {@link PlaySessionStore} and saved in mongo later.
      * 
      * @return Returns the created/updated entity that is persisted
+     * @throws ConflictException
+     *             This exception is thrown when the play was modified by
+     *             someone else since it was read.
      */
     @JsonIgnore
-    public Play createOrUpdate() {
+    public Play createOrUpdate() throws ConflictException {
+
+        if (id == null) {
+            return insert();
+        }
+        Long expectedVersion = version;
+        Date previousActivity = lastActivity;
+        version = expectedVersion != null ? expectedVersion + 1 : 1L;
+        lastActivity = new Date();
+        Boolean updated = PlaySessionStore.getInstance().update(this, expectedVersion);
+        if (updated == null) {
+            //not an active play. update it in mongo
+            updated = Repositories.getGameRepository().updatePlayIfVersion(this, expectedVersion);
+            if (updated) {
+                PlaySessionStore.getInstance().activate(this);
+            }
+        }
+        if (!updated) {
+            version = expectedVersion;
+            lastActivity = previousActivity;
+            throw new ConflictException(String.format(
+                "Play with id: %s was modified by another request. Version: %s is outdated", id, expectedVersion));
+        }
+        if (isResultPending) {
+            //only the request that saved the completed play records its result
+            isResultPending = false;
+            Leaderboard.getInstance().recordResult(this);
+        }
+        return this;
+    }
+
+    /**
+     * Inserts this new play in mongo, and keeps it in memory if it is
+     * {@link PlayState#IN_PROGRESS}
+     * 
+     * @return Returns the inserted play
+     */
+    private Play insert() {
+
+        return insert(new WriteBatch());
+    }
+
+    /**
+     * Inserts this play after the given writes, with a single batch
+     */
+    private Play insert(WriteBatch precedingWrites) {
 
-        return Mongodb.getInstance().updateEntity(this);
+        version = 0L;
+        lastActivity = new Date();
+        Repositories.getGameRepository().write(precedingWrites.insert(this));
+        PlaySessionStore.getInstance().activate(this);
+        return this;
     }
 
     /**
-     * Fetch a play by its Id.
+     * Fetch a play by its Id. Plays that are {@link PlayState#IN_PROGRESS} are
+     * kept in memory by the {@link PlaySessionStore} once fetched.
      * 
      * @param playId
      *            PlayId to be fetched
@@ -232,11 +474,43 @@ public class Play {
     public static Play getPlay(String playId) {
 
         if (playId != null) {
-            return Mongodb.getInstance().getEntity("{_id: #}", Play.class, new ObjectId(playId));
+            //active plays are served from memory
+            Play play = PlaySessionStore.getInstance().get(playId);
+            if (play == null) {
+                play = loaded(playId, Repositories.getGameRepository().getPlay(playId));
+            }
+            return play;
         }
         return null;
     }
 
+    /**
+     * Gets a page of plays, newest first. Active plays are served from
+     * memory. See {@link GameRepository#getPlays(String, PlayState, String, int)}
+     *
+     * @param playerId
+     *            If not null, only the plays of this player
+     * @param playState
+     *            If not null, only the plays in this state
+     * @param afterPlayId
+     *            If not null, only the plays after this one: the last play of
+     *            the previous page
+     * @param limit
+     *            Maximum number of plays returned
+     * @return
+     */
+    public static List<Play> getPlays(String playerId, PlayState playState, String afterPlayId, int limit) {
+
+        List<Play> plays = Repositories.getGameRepository().getPlays(playerId, playState, afterPlayId, limit);
+        for (int playIndex = 0; playIndex < plays.size(); playIndex++) {
+            Play activePlay = PlaySessionStore.getInstance().get(plays.get(playIndex).getId());
+            if (activePlay != null) {
+                plays.set(playIndex, activePlay);
+            }
+        }
+        return plays;
+    }
+
     /**
      * Add a player to an existing or create a new play if missing
      * 
@@ -248,30 +522,32 @@ public class Play {
      * @param player
      *            Information about the player joining the given play
      * @return Returns a {@link Play} that is setup between player1 and player2
+     * @throws ConflictException
+     *             This exception is thrown when the given play was modified by
+     *             someone else since it was read.
      */
-    public static Play addPlayerInPlay(Play play, Player player) {
+    public static Play addPlayerInPlay(Play play, Player player) throws ConflictException {
 
         //make sure the given play is either null, or contains atleast one slot for this player
-        if (player != null && (play == null || play.getPlayer1() == null || play.getPlayer2Id() == null)) {
+        if (player != null && (play == null || play.getPlayer1Id() == null || play.getPlayer2Id() == null)) {
             //save the player first
             player.createOrUpdate();
 
             //setup the board, if play is null or board is not found
-            if (play == null || play.getBoardId() == null) {
-                Board board = Board.setupBoard(true);
+            if (play == null || play.getBoard() == null) {
                 //update/create the play
                 play = play != null ? play : new Play();
-                play.setBoardId(board.getId());
+                play.setBoard(Board.setupBoard(false));
             }
             //if first player is missing, add this given player as first
-            if (play.getPlayer1() == null) {
-                play.setPlayer1Id(player.getId());
+            if (play.getPlayer1Id() == null) {
+                play.setPlayer1(player);
                 //update play status as WAITING as only player1 has joined
                 play.setPlayState(PlayState.WAITING);
             }
             //if player1 is already present, add as player2
             else {
-                play.setPlayer2Id(player.getId());
+                play.setPlayer2(player);
                 //update play status as IN_PROGRESS as both players have joined
                 play.setPlayState(PlayState.IN_PROGRESS);
             }
@@ -293,27 +569,39 @@ public class Play {
     public static Play startTwoPlayerGame(Player player1, Player player2) {
 
         if (player1 != null && player2 != null) {
-            //save the players first
-            player1.createOrUpdate();
-            player2.createOrUpdate();
-
-            //setup the board
-            Board board = Board.setupBoard(true);
-
-            //update/create the play
-            Play play = new Play();
-            play.setBoardId(board.getId());
-            play.setPlayer1Id(player1.getId());
-            play.setPlayer2Id(player2.getId());
-            play.setPlayState(PlayState.IN_PROGRESS);
-            play = play.createOrUpdate();
-            return play;
+            //the players are saved along with the play, in a single batch. the play embeds their new ids
+            for (Player player : new Player[] {player1, player2}) {
+                if (player.getId() == null) {
+                    player.setId(new ObjectId().toHexString());
+                }
+            }
+            return newGame(player1, player2).insert(new WriteBatch().save(player1).save(player2));
         }
         return null;
     }
 
     /**
-     * Execute a move performed by the Player. Updates this play too.
+     * Creates a play between two players that are already saved. The play,
+     * along with its setup board, is created with a single insert.
+     * 
+     * @param player1
+     *            Information about the first player
+     * @param player2
+     *            Information about the second player
+     * @return Returns a {@link Play} that is IN_PROGRESS between player1 and
+     *         player2
+     */
+    public static Play startGame(Player player1, Player player2) {
+
+        return newGame(player1, player2).insert();
+    }
+
+    /**
+     * Execute a move performed by the Player on the board embedded in this
+     * play. The play, along with its board, is persisted with a single write,
+     * and the move is then appended to the {@link MoveLog}. This returns once
+     * the move is durable: if it could not be logged, the play is saved in
+     * mongo right away.
      * 
      * @param playerId
      *            PlayerId who is performing the move
@@ -322,40 +610,43 @@ public class Play {
      * @throws BadMoveException
      *             This exception is thrown when attempting a bad move. E.g.
      *             Playing at an index with 0 stones
+     * @throws ConflictException
+     *             This exception is thrown when the play was modified by
+     *             someone else since it was read. The move is not persisted.
+     * @throws IllegalStateException
+     *             If the move could neither be logged nor saved. It is kept
+     *             in memory, and saved with the next flush.
      */
-    public void makeMove(String playerId, Integer pitIndex) throws BadMoveException {
+    public void makeMove(String playerId, Integer pitIndex) throws BadMoveException, ConflictException {
 
-        Board board = null;
         if (playerId != null) {
-            //fetch the board in this play
-            board = Board.getBoard(boardId);
-            Player player1 = getPlayer1();
-            Player player2 = getPlayer2();
+            Board board = getBoard();
             if (board != null) {
+                boolean isPlayer1;
                 if (playerId.equalsIgnoreCase(player1Id)) {
-                    isPlayer1sMove = board.makeMove(true, pitIndex);
-                    //update player1 move counter
-                    if (player1 != null) {
-                        board.setPlayer1Moves(board.getPlayer1Moves() + 1);
-                    }
-                    else {
-                        log.severe(String.format("Player1: %s not found. Move count not updated", player1Id));
-                    }
+                    isPlayer1 = true;
                 }
-                else if (player2Id.equalsIgnoreCase(player2Id)) {
-                    isPlayer1sMove = !board.makeMove(false, pitIndex);
-                    //update player2 move counter
-                    if (player2 != null) {
-                        board.setPlayer2Moves(board.getPlayer2Moves() + 1);
-                    }
-                    else {
-                        log.severe(String.format("Player1: %s not found. Move count not updated", player2Id));
+                else if (playerId.equalsIgnoreCase(player2Id)) {
+                    isPlayer1 = false;
+                }
+                else {
+                    throw new BadMoveException(
+                        String.format("Player with id: %s is not part of Play with id: %s", playerId, id));
+                }
+                Move move = new Move(id, MoveLog.getLastSeq(this) + 1, playerId, isPlayer1, pitIndex);
+                applyMove(isPlayer1, pitIndex);
+                //persist the play, along with the board, once the move is completely applied
+                createOrUpdate();
+                try {
+                    MoveLog.append(this, move).join();
+                }
+                catch (CompletionException e) {
+                    //a move is only acknowledged once durable. without its log entry, the play itself is saved
+                    if (!PlaySessionStore.getInstance().flush(id)) {
+                        throw new IllegalStateException(String.format(
+                            "Move: %s of play: %s could neither be logged nor saved", move.getSeq(), id), e);
                     }
                 }
-                //update the board
-                board.createOrUpdate();
-                //check for playState and winner updates
-                updatePlayLeader(board);
             }
             else {
                 log.severe(
@@ -368,7 +659,77 @@ public class Play {
     }
 
     /**
-     * Updates the playState and leader for this play based on the given board
+     * Applies a move on the board embedded in this play, and updates the turn,
+     * the move counters, the playState and the leader. This is not persisted.
+     * 
+     * @param isPlayer1
+     *            True if the move is made by player1, else player2
+     * @param pitIndex
+     *            The 0-based pit index on which the move is made
+     * @throws BadMoveException
+     *             This exception is thrown when attempting a bad move
+     */
+    void applyMove(boolean isPlayer1, Integer pitIndex) throws BadMoveException {
+
+        Board board = getBoard();
+        if (isPlayer1) {
+            isPlayer1sMove = board.makeMove(true, pitIndex);
+            //update player1 move counter
+            board.setPlayer1Moves(board.getPlayer1Moves() + 1);
+        }
+        else {
+            isPlayer1sMove = !board.makeMove(false, pitIndex);
+            //update player2 move counter
+            board.setPlayer2Moves(board.getPlayer2Moves() + 1);
+        }
+        //check for playState and winner updates
+        updatePlayLeader(board);
+    }
+
+    /**
+     * Prepares a play read from the storage, and keeps it in memory if it is
+     * active. A play missing in the storage is read from the
+     * {@link PlayArchive}.
+     */
+    private static Play loaded(String playId, Play play) {
+
+        if (play == null) {
+            //finished plays are moved out of the storage after a while
+            return PlayArchive.getInstance().getPlay(playId);
+        }
+        //embed the players of plays saved without them, before keeping the play in memory
+        play.getPlayer1();
+        play.getPlayer2();
+        //moves of an active play could have been logged, but not saved in the play
+        if (PlaySessionStore.getInstance().isEnabled() && MoveLog.applyMissingMoves(play)) {
+            try {
+                play.createOrUpdate();
+            }
+            catch (ConflictException e) {
+                log.warning(String.format("Replayed moves of play: %s not saved: %s", playId, e.getMessage()));
+            }
+        }
+        PlaySessionStore.getInstance().activate(play);
+        return play;
+    }
+
+    /**
+     * Creates a play between two players, with its setup board. The play is
+     * not saved.
+     */
+    private static Play newGame(Player player1, Player player2) {
+
+        Play play = new Play();
+        play.setBoard(Board.setupBoard(false));
+        play.setPlayer1(player1);
+        play.setPlayer2(player2);
+        play.setPlayState(PlayState.IN_PROGRESS);
+        return play;
+    }
+
+    /**
+     * Updates the playState and leader for this play based on the given board.
+     * This is not persisted.
      * 
      * @param board
      *            The board that is linked to this play
@@ -378,6 +739,7 @@ public class Play {
         if (board != null) {
             //set play state
             if (board.isCompleted()) {
+                isResultPending = isResultPending || !PlayState.COMPLETED.equals(playState);
                 setPlayState(PlayState.COMPLETED);
             }
             Boolean isPlayer1Winner = board.isPlayer1Leader();
@@ -393,8 +755,6 @@ public class Play {
             else {
                 leaderId = null;
             }
-            //update the play
-            createOrUpdate();
         }
     }
 }
@@ -0,0 +1,579 @@
+package com.shravan.gameofstones.model;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.repository.GameRepository;
+import com.shravan.gameofstones.repository.Repositories;
+import com.shravan.gameofstones.util.JSONFormatter;
+
+/**
+ * Moves the plays that are {@link PlayState#COMPLETED} or
+ * {@link PlayState#ABORTED}, and were not changed for longer than the
+ * configured time, out of the storage into append-only segment files on the
+ * local disk. Archived plays are still served by {@link Play#getPlay(String)}.
+ * <p>
+ * Each sweep writes the finished plays, read in batches, into one new segment
+ * per batch:
+ * <ul>
+ * <li>The segment is newline delimited JSON: one line per play, having the
+ * play id, the play with its board and players embedded, and its moves. The
+ * lines are sorted by play id, and gzipped in blocks of blockSize plays. Every
+ * block is a gzip member of its own, so the segment is a valid gzip file as a
+ * whole, and a block is read without the others.</li>
+ * <li>A sparse index is written next to the segment (.idx) once the segment is
+ * forced to disk: one line per block, having its first and last play id, its
+ * offset and its length. The index is renamed into place, so a segment without
+ * an index was never completed and is dropped at startup.</li>
+ * <li>Only then are the plays, their moves, snapshots and standalone boards
+ * removed from the storage. A play found in both is served from the
+ * storage.</li>
+ * </ul>
+ * The indexes of all segments are held in memory. A lookup picks the block of
+ * each segment whose play id range holds the play, newest segment first, and
+ * only decompresses those blocks.
+ * <p>
+ * Configured with the system properties:
+ * <ul>
+ * <li>gameofstones.archive.enabled: Set to true to archive the finished
+ * plays, and serve the archived ones. Default false. Ignored on a node of a
+ * cluster (gameofstones.cluster.self is set): the segments are local to the
+ * node, and the plays archived by a node would not be served by the
+ * others</li>
+ * <li>gameofstones.archive.path: Directory of the segments. Default
+ * gameofstones-data/archive</li>
+ * <li>gameofstones.archive.afterMillis: Finished plays not changed for this
+ * long are archived. Default 24 hours, so that aborted plays are archived
+ * before mongo removes them (gameofstones.reaper.retentionMillis)</li>
+ * <li>gameofstones.archive.intervalMillis: Delay between two sweeps. Default
+ * 1 hour</li>
+ * <li>gameofstones.archive.batchSize: Maximum plays read at once, and written
+ * in one segment. Default 5000</li>
+ * <li>gameofstones.archive.blockSize: Plays per compressed block. Default
+ * 64</li>
+ * </ul>
+ *
+ * @author shravanshetty
+ */
+public class PlayArchive {
+
+    private static Logger log = Logger.getLogger(PlayArchive.class.getSimpleName());
+    private static final PlayArchive playArchive = new PlayArchive(
+        isArchiveEnabled(),
+        Paths.get(System.getProperty("gameofstones.archive.path", "gameofstones-data/archive")),
+        Long.getLong("gameofstones.archive.afterMillis", TimeUnit.HOURS.toMillis(24)),
+        Long.getLong("gameofstones.archive.intervalMillis", TimeUnit.HOURS.toMillis(1)),
+        Integer.getInteger("gameofstones.archive.batchSize", 5000),
+        Integer.getInteger("gameofstones.archive.blockSize", 64));
+
+    private static final String SEGMENT_PREFIX = "plays-";
+    private static final String SEGMENT_SUFFIX = ".ndjson.gz";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final String INCOMPLETE_INDEX_SUFFIX = ".idx.tmp";
+
+    private final boolean enabled;
+    private final Path directory;
+    private final long afterMillis;
+    private final long intervalMillis;
+    private final int batchSize;
+    private final int blockSize;
+    private final ObjectMapper mapper = JSONFormatter.getMapper();
+    /**
+     * The indexed segments, newest first. Replaced as a whole when a segment
+     * is added, and loaded with the first access.
+     */
+    private volatile List<Segment> segments;
+    private final Object segmentsLock = new Object();
+    private int nextSegmentNumber;
+    private ScheduledExecutorService sweeper;
+
+    PlayArchive(boolean enabled, Path directory, long afterMillis, long intervalMillis, int batchSize,
+        int blockSize) {
+        this.enabled = enabled;
+        this.directory = directory.toAbsolutePath();
+        this.afterMillis = afterMillis;
+        this.intervalMillis = intervalMillis;
+        this.batchSize = batchSize;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Retuns a singeton instance of this type
+     *
+     * @return PlayArchive singleton instance
+     */
+    public static PlayArchive getInstance() {
+
+        return playArchive;
+    }
+
+    /**
+     * Starts the periodic sweep, if enabled and not already started
+     */
+    public synchronized void start() {
+
+        if (enabled && sweeper == null) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "play-archiver");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        archive();
+                    }
+                    catch (Exception e) {
+                        log.severe("Sweep of finished plays failed: " + e.getMessage());
+                    }
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic sweep
+     */
+    public synchronized void stop() {
+
+        if (sweeper != null) {
+            sweeper.shutdown();
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Archives all the plays finished for longer than the configured time, and
+     * removes them from the storage
+     *
+     * @return The number of plays archived
+     * @throws IOException
+     *             If a segment could not be written. The plays of the segment
+     *             are left in the storage.
+     */
+    public synchronized int archive() throws IOException {
+
+        Date finishedBefore = new Date(System.currentTimeMillis() - afterMillis);
+        List<PlayState> finishedStates = Arrays.asList(PlayState.COMPLETED, PlayState.ABORTED);
+        GameRepository gameRepository = Repositories.getGameRepository();
+        int archivedPlays = 0;
+        String afterPlayId = null;
+        while (true) {
+            List<Play> finishedPlays = gameRepository.getIdlePlays(finishedStates, finishedBefore, afterPlayId,
+                batchSize);
+            List<Play> plays = new ArrayList<Play>(finishedPlays.size());
+            Map<String, List<Move>> movesByPlayId = new HashMap<String, List<Move>>();
+            List<String> playIds = new ArrayList<String>();
+            List<String> boardIds = new ArrayList<String>();
+            for (Play play : finishedPlays) {
+                //a play still kept in memory is archived by a later sweep
+                if (PlaySessionStore.getInstance().get(play.getId()) != null) {
+                    continue;
+                }
+                //embed the board and players saved before they were embedded, so the archive has them
+                play.getBoard();
+                play.getPlayer1();
+                play.getPlayer2();
+                plays.add(play);
+                playIds.add(play.getId());
+                movesByPlayId.put(play.getId(), gameRepository.getMoves(play.getId(), 1, Integer.MAX_VALUE));
+                if (play.getBoardId() != null) {
+                    boardIds.add(play.getBoardId());
+                }
+            }
+            if (!plays.isEmpty()) {
+                addSegment(writeSegment(plays, movesByPlayId));
+                //the plays first, so a play is never served from the storage without its moves
+                gameRepository.removePlays(playIds);
+                gameRepository.removeMoves(playIds);
+                gameRepository.removeSnapshots(playIds);
+                gameRepository.removeBoards(boardIds);
+                archivedPlays += plays.size();
+            }
+            //plays kept in memory are left behind by the next page
+            if (finishedPlays.size() < batchSize) {
+                break;
+            }
+            afterPlayId = finishedPlays.get(finishedPlays.size() - 1).getId();
+        }
+        if (archivedPlays > 0) {
+            log.info(String.format("Archived %s plays finished before: %s", archivedPlays, finishedBefore));
+        }
+        return archivedPlays;
+    }
+
+    /**
+     * Reads an archived play
+     *
+     * @param playId
+     * @return The play as it was archived, or null if it is not archived, or
+     *         the archive is disabled or cannot be read
+     */
+    public Play getPlay(String playId) {
+
+        JsonNode recordNode = getRecord(playId);
+        try {
+            return recordNode != null ? mapper.treeToValue(recordNode.get("play"), Play.class) : null;
+        }
+        catch (IOException e) {
+            log.severe(String.format("Archived play: %s not read: %s", playId, e.getMessage()));
+            return null;
+        }
+    }
+
+    /**
+     * Reads the moves archived along with a play
+     *
+     * @param playId
+     * @return The moves of the play, ordered by their {@link Move#seq}. Null
+     *         if the play is not archived, or the archive is disabled or
+     *         cannot be read
+     */
+    public List<Move> getMoves(String playId) {
+
+        JsonNode recordNode = getRecord(playId);
+        if (recordNode == null) {
+            return null;
+        }
+        List<Move> moves = new ArrayList<Move>();
+        JsonNode movesNode = recordNode.get("moves");
+        try {
+            if (movesNode != null) {
+                for (JsonNode moveNode : movesNode) {
+                    moves.add(mapper.treeToValue(moveNode, Move.class));
+                }
+            }
+        }
+        catch (IOException e) {
+            log.severe(String.format("Moves of archived play: %s not read: %s", playId, e.getMessage()));
+            return null;
+        }
+        return moves;
+    }
+
+    /**
+     * Gets the number of segments in the archive
+     *
+     * @return
+     */
+    public int getSegmentCount() {
+
+        return getSegments().size();
+    }
+
+    //private methods
+
+    /**
+     * Reads the line of an archived play, having the play and its moves
+     *
+     * @return The line, or null if the play is not archived, or the archive is
+     *         disabled or cannot be read
+     */
+    private JsonNode getRecord(String playId) {
+
+        if (!enabled) {
+            return null;
+        }
+        List<Segment> archivedSegments;
+        try {
+            archivedSegments = getSegments();
+        }
+        catch (IllegalStateException e) {
+            //a play missing in the storage is then not found, and the archive is read again with the next lookup
+            log.severe(e.getMessage());
+            return null;
+        }
+        for (Segment segment : archivedSegments) {
+            Block block = segment.getBlock(playId);
+            if (block != null) {
+                try {
+                    JsonNode recordNode = readRecord(segment, block, playId);
+                    if (recordNode != null) {
+                        return recordNode;
+                    }
+                }
+                catch (IOException e) {
+                    log.severe(String.format("Block at: %s of archive segment: %s not read: %s", block.offset,
+                        segment.path, e.getMessage()));
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isArchiveEnabled() {
+
+        boolean isEnabled = Boolean.parseBoolean(System.getProperty("gameofstones.archive.enabled", "false"));
+        if (isEnabled && System.getProperty("gameofstones.cluster.self") != null) {
+            log.warning("Play archive disabled on a node of a cluster: its plays would only be served by this node");
+            return false;
+        }
+        return isEnabled;
+    }
+
+    private List<Segment> getSegments() {
+
+        List<Segment> loadedSegments = segments;
+        if (loadedSegments == null) {
+            synchronized (segmentsLock) {
+                if (segments == null) {
+                    segments = loadSegments();
+                }
+                loadedSegments = segments;
+            }
+        }
+        return loadedSegments;
+    }
+
+    private void addSegment(Segment segment) {
+
+        List<Segment> currentSegments = getSegments();
+        synchronized (segmentsLock) {
+            List<Segment> updatedSegments = new ArrayList<Segment>();
+            updatedSegments.add(segment);
+            updatedSegments.addAll(currentSegments);
+            segments = Collections.unmodifiableList(updatedSegments);
+        }
+    }
+
+    /**
+     * Reads the indexes of all the segments in the directory, and drops the
+     * segments that were not completed
+     *
+     * @return The segments, newest first
+     */
+    private List<Segment> loadSegments() {
+
+        List<Segment> loadedSegments = new ArrayList<Segment>();
+        if (!Files.isDirectory(directory)) {
+            return loadedSegments;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            List<Path> segmentPaths = new ArrayList<Path>();
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (fileName.endsWith(INCOMPLETE_INDEX_SUFFIX)) {
+                    Files.delete(file);
+                }
+                else if (fileName.endsWith(SEGMENT_SUFFIX)) {
+                    segmentPaths.add(file);
+                    nextSegmentNumber = Math.max(nextSegmentNumber, getSegmentNumber(fileName) + 1);
+                }
+            }
+            //segment numbers have the same number of digits, so the names sort like the numbers
+            Collections.sort(segmentPaths, Collections.reverseOrder());
+            for (Path segmentPath : segmentPaths) {
+                Path indexPath = getIndexPath(segmentPath);
+                if (Files.exists(indexPath)) {
+                    loadedSegments.add(readIndex(segmentPath, indexPath));
+                }
+                else {
+                    //its plays were not removed from the storage
+                    log.warning("Archive segment: " + segmentPath + " was not completed. Removed");
+                    Files.delete(segmentPath);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(
+                String.format("Archive: %s cannot be read: %s", directory, e.getMessage()), e);
+        }
+        log.info(String.format("Loaded %s archive segments from: %s", loadedSegments.size(), directory));
+        return loadedSegments;
+    }
+
+    private Segment readIndex(Path segmentPath, Path indexPath) throws IOException {
+
+        Segment segment = new Segment(segmentPath);
+        for (String line : Files.readAllLines(indexPath, StandardCharsets.UTF_8)) {
+            if (!line.isEmpty()) {
+                String[] fields = line.split(" ");
+                segment.blocks.put(fields[0],
+                    new Block(fields[0], fields[1], Long.parseLong(fields[2]), Integer.parseInt(fields[3])));
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Writes the given plays into a new segment, sorted by id, and its index
+     *
+     * @return The segment written
+     */
+    private Segment writeSegment(List<Play> plays, Map<String, List<Move>> movesByPlayId) throws IOException {
+
+        getSegments();
+        Files.createDirectories(directory);
+        Collections.sort(plays, new Comparator<Play>() {
+
+            @Override
+            public int compare(Play play1, Play play2) {
+
+                return play1.getId().compareTo(play2.getId());
+            }
+        });
+        Path segmentPath = directory.resolve(String.format("%s%06d%s", SEGMENT_PREFIX, nextSegmentNumber++,
+            SEGMENT_SUFFIX));
+        Segment segment = new Segment(segmentPath);
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.WRITE)) {
+            for (int fromIndex = 0; fromIndex < plays.size(); fromIndex += blockSize) {
+                List<Play> blockPlays = plays.subList(fromIndex, Math.min(fromIndex + blockSize, plays.size()));
+                ByteArrayOutputStream blockBytes = new ByteArrayOutputStream();
+                try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(blockBytes)) {
+                    for (Play play : blockPlays) {
+                        ObjectNode recordNode = mapper.createObjectNode();
+                        //first, so a line is matched without parsing it
+                        recordNode.put("playId", play.getId());
+                        recordNode.putPOJO("play", play);
+                        recordNode.putPOJO("moves", movesByPlayId.get(play.getId()));
+                        gzipOutputStream.write(mapper.writeValueAsBytes(recordNode));
+                        gzipOutputStream.write('\n');
+                    }
+                }
+                long offset = channel.position();
+                ByteBuffer buffer = ByteBuffer.wrap(blockBytes.toByteArray());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                String firstPlayId = blockPlays.get(0).getId();
+                String lastPlayId = blockPlays.get(blockPlays.size() - 1).getId();
+                segment.blocks.put(firstPlayId, new Block(firstPlayId, lastPlayId, offset, blockBytes.size()));
+            }
+            channel.force(true);
+        }
+        Path indexPath = getIndexPath(segmentPath);
+        Path incompleteIndexPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(incompleteIndexPath, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Writer writer = Channels.newWriter(channel, StandardCharsets.UTF_8.name());
+            for (Block block : segment.blocks.values()) {
+                writer.write(String.format("%s %s %s %s\n", block.firstPlayId, block.lastPlayId, block.offset,
+                    block.length));
+            }
+            writer.flush();
+            channel.force(true);
+        }
+        Files.move(incompleteIndexPath, indexPath, StandardCopyOption.ATOMIC_MOVE);
+        return segment;
+    }
+
+    /**
+     * Decompresses the given block, and reads the play from its line
+     *
+     * @return The play, or null if the block does not have it
+     */
+    private JsonNode readRecord(Segment segment, Block block, String playId) throws IOException {
+
+        byte[] blockBytes = new byte[block.length];
+        try (RandomAccessFile segmentFile = new RandomAccessFile(segment.path.toFile(), "r")) {
+            segmentFile.seek(block.offset);
+            segmentFile.readFully(blockBytes);
+        }
+        String linePrefix = "{\"playId\":\"" + playId + "\"";
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+            new GZIPInputStream(new ByteArrayInputStream(blockBytes)), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(linePrefix)) {
+                    return mapper.readTree(line);
+                }
+            }
+        }
+        return null;
+    }
+
+    private static Path getIndexPath(Path segmentPath) {
+
+        String fileName = segmentPath.getFileName().toString();
+        return segmentPath.resolveSibling(
+            fileName.substring(0, fileName.length() - SEGMENT_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private static int getSegmentNumber(String fileName) {
+
+        return Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(), fileName.indexOf('.')));
+    }
+
+    /**
+     * A segment file, with the index of its blocks by their first play id
+     */
+    private static class Segment {
+
+        private final Path path;
+        private final TreeMap<String, Block> blocks = new TreeMap<String, Block>();
+
+        Segment(Path path) {
+            this.path = path;
+        }
+
+        /**
+         * Gets the block whose play id range holds the given play id. The
+         * blocks of a segment never overlap.
+         *
+         * @return The block, or null if no block can have the play
+         */
+        Block getBlock(String playId) {
+
+            Map.Entry<String, Block> entry = blocks.floorEntry(playId);
+            return entry != null && entry.getValue().lastPlayId.compareTo(playId) >= 0 ? entry.getValue() : null;
+        }
+    }
+
+    private static class Block {
+
+        private final String firstPlayId;
+        private final String lastPlayId;
+        private final long offset;
+        private final int length;
+
+        Block(String firstPlayId, String lastPlayId, long offset, int length) {
+            this.firstPlayId = firstPlayId;
+            this.lastPlayId = lastPlayId;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+}
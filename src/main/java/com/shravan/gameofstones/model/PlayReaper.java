@@ -0,0 +1,214 @@
+package com.shravan.gameofstones.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import com.shravan.gameofstones.core.PlayLocks;
+import com.shravan.gameofstones.exception.ConflictException;
+import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.repository.Repositories;
+
+/**
+ * Periodically aborts the plays that are {@link PlayState#WAITING} or
+ * {@link PlayState#IN_PROGRESS}, but were not changed for longer than the
+ * configured TTL. The standalone {@link Board} of an aborted play (if any) is
+ * removed right away, and the play itself is removed by mongo once its
+ * {@link Play#getExpireAt()} is reached (TTL index), along with its
+ * {@link Move}s and {@link BoardSnapshot}s, which expire at the same time.
+ * <p>
+ * The idle plays are found with a range scan on the (playState, lastActivity)
+ * index, so the plays collection is never scanned as a whole.
+ * <p>
+ * Configured with the system properties:
+ * <ul>
+ * <li>gameofstones.reaper.enabled: Set to false to never abort idle plays.
+ * Default true</li>
+ * <li>gameofstones.reaper.idleTtlMillis: Plays not changed for this long are
+ * aborted. Default 24 hours</li>
+ * <li>gameofstones.reaper.intervalMillis: Delay between two sweeps. Default 10
+ * minutes</li>
+ * <li>gameofstones.reaper.retentionMillis: Aborted plays are removed from
+ * mongo after this long. Default 7 days</li>
+ * <li>gameofstones.reaper.batchSize: Maximum idle plays read at once. Default
+ * 500</li>
+ * </ul>
+ *
+ * @author shravanshetty
+ */
+public class PlayReaper {
+
+    private static Logger log = Logger.getLogger(PlayReaper.class.getSimpleName());
+    private static final PlayReaper playReaper = new PlayReaper(
+        Boolean.parseBoolean(System.getProperty("gameofstones.reaper.enabled", "true")),
+        Long.getLong("gameofstones.reaper.idleTtlMillis", TimeUnit.HOURS.toMillis(24)),
+        Long.getLong("gameofstones.reaper.intervalMillis", TimeUnit.MINUTES.toMillis(10)),
+        Long.getLong("gameofstones.reaper.retentionMillis", TimeUnit.DAYS.toMillis(7)),
+        Integer.getInteger("gameofstones.reaper.batchSize", 500));
+
+    private final boolean enabled;
+    private final long idleTtlMillis;
+    private final long intervalMillis;
+    private final long retentionMillis;
+    private final int batchSize;
+    private ScheduledExecutorService sweeper;
+
+    PlayReaper(boolean enabled, long idleTtlMillis, long intervalMillis, long retentionMillis, int batchSize) {
+        this.enabled = enabled;
+        this.idleTtlMillis = idleTtlMillis;
+        this.intervalMillis = intervalMillis;
+        this.retentionMillis = retentionMillis;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Retuns a singeton instance of this type
+     *
+     * @return PlayReaper singleton instance
+     */
+    public static PlayReaper getInstance() {
+
+        return playReaper;
+    }
+
+    /**
+     * Starts the periodic sweep, if enabled and not already started
+     */
+    public synchronized void start() {
+
+        if (enabled && sweeper == null) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "play-reaper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sweeper.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        reap();
+                    }
+                    catch (Exception e) {
+                        log.severe("Sweep of idle plays failed: " + e.getMessage());
+                    }
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the periodic sweep
+     */
+    public synchronized void stop() {
+
+        if (sweeper != null) {
+            sweeper.shutdown();
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Aborts all the plays idle for longer than the TTL, removes their
+     * standalone boards and sets their moves to expire along with them
+     *
+     * @return The number of plays aborted
+     */
+    public int reap() {
+
+        Date idleSince = new Date(System.currentTimeMillis() - idleTtlMillis);
+        Date expireAt = new Date(System.currentTimeMillis() + retentionMillis);
+        List<PlayState> idleStates = Arrays.asList(PlayState.WAITING, PlayState.IN_PROGRESS);
+        int abortedPlays = 0;
+        String afterPlayId = null;
+        while (true) {
+            List<Play> idlePlays = Repositories.getGameRepository().getIdlePlays(idleStates, idleSince, afterPlayId,
+                batchSize);
+            List<String> boardIds = new ArrayList<String>();
+            List<String> abortedPlayIds = new ArrayList<String>();
+            for (Play idlePlay : idlePlays) {
+                if (abort(idlePlay, idleSince, expireAt)) {
+                    abortedPlayIds.add(idlePlay.getId());
+                    if (idlePlay.getBoardId() != null) {
+                        boardIds.add(idlePlay.getBoardId());
+                    }
+                }
+            }
+            if (!boardIds.isEmpty()) {
+                Repositories.getGameRepository().removeBoards(boardIds);
+            }
+            //only once the plays are aborted, as an active play must keep its moves
+            if (!abortedPlayIds.isEmpty()) {
+                Repositories.getGameRepository().expireMoves(abortedPlayIds, expireAt);
+            }
+            abortedPlays += abortedPlayIds.size();
+            //plays that are not aborted (e.g. of another node, or changed meanwhile) are left behind by the next page
+            if (idlePlays.size() < batchSize) {
+                break;
+            }
+            afterPlayId = idlePlays.get(idlePlays.size() - 1).getId();
+        }
+        if (abortedPlays > 0) {
+            log.info(String.format("Aborted %s plays idle since: %s", abortedPlays, idleSince));
+        }
+        return abortedPlays;
+    }
+
+    //private methods
+
+    /**
+     * Aborts the given play, if it is still idle. The play is updated like
+     * any other change, so a concurrent move either fails or keeps the play
+     * alive.
+     *
+     * @param idlePlay
+     *            The idle play as read from mongo
+     * @param idleSince
+     *            The play must not be changed after this time
+     * @param expireAt
+     *            The time the aborted play is removed at
+     * @return True if the play is aborted
+     */
+    private boolean abort(Play idlePlay, Date idleSince, Date expireAt) {
+
+        //a play of another node can be active there, with changes not flushed yet
+        if (!PlayRouter.getInstance().isLocal(idlePlay.getId()) || PlayRouter.getInstance().isMoving(
+            idlePlay.getId())) {
+            return false;
+        }
+        //no move runs meanwhile
+        PlayLocks.Lane lane = PlayLocks.getInstance().acquire(idlePlay.getId());
+        try {
+            //an active play could have been changed, and not flushed yet
+            Play activePlay = PlaySessionStore.getInstance().get(idlePlay.getId());
+            Play play = activePlay != null ? activePlay : idlePlay;
+            boolean isIdle = play.getLastActivity() == null || play.getLastActivity().before(idleSince);
+            if (!isIdle || !(PlayState.WAITING.equals(play.getPlayState()) ||
+                PlayState.IN_PROGRESS.equals(play.getPlayState()))) {
+                return false;
+            }
+            play.setPlayState(PlayState.ABORTED);
+            play.setExpireAt(expireAt);
+            play.createOrUpdate();
+            return true;
+        }
+        catch (ConflictException e) {
+            log.info(String.format("Idle play: %s was changed meanwhile. Not aborted", idlePlay.getId()));
+            return false;
+        }
+        finally {
+            lane.close();
+        }
+    }
+}
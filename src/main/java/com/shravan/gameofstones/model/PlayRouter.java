@@ -0,0 +1,315 @@
+package com.shravan.gameofstones.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+import com.shravan.gameofstones.core.ConsistentHashRing;
+import com.shravan.gameofstones.core.PlayLocks;
+
+/**
+ * Decides which node of the cluster owns a play, so that the plays are spread
+ * over the nodes and every play is only served (and kept in memory by the
+ * {@link PlaySessionStore}) by its owner. Plays are assigned to the nodes by
+ * consistent hashing of their id, see {@link ConsistentHashRing}. Requests for
+ * a play received by another node are forwarded to its owner.
+ * <p>
+ * A node is identified by the base URL of its REST resources, e.g.
+ * http://10.0.0.1:8080/rest. Only the allowed nodes can be set, so that
+ * requests are never forwarded to any other URL. When the nodes change
+ * ({@link #setNodes(Collection)}), the plays moving to another node are not
+ * served while they are released from memory, with their pending changes
+ * saved. Only then does the new owner serve them, reading their latest state
+ * from the storage. Moves logged but not yet saved in the play are replayed by
+ * the new owner, see {@link MoveLog#applyMissingMoves(Play)}.
+ * <p>
+ * The other state held in memory is not shared by the nodes. While plays are
+ * routed ({@link #isEnabled()}):
+ * <ul>
+ * <li>The {@link MatchmakingQueue} is served by the owner of
+ * {@link #MATCHMAKING_KEY}, so that all waiting players are paired by a single
+ * queue</li>
+ * <li>The {@link Leaderboard} is read from the storage, and the
+ * {@link RatingIndex} is not used: ratings are computed from the persisted
+ * ones, and ranks are not served</li>
+ * <li>The {@link PlayReaper} only aborts the plays of this node</li>
+ * <li>The {@link PlayArchive} is disabled, and the cache of mongo documents
+ * is off by default, on every node having gameofstones.cluster.self set</li>
+ * </ul>
+ * <p>
+ * Configured with the system properties:
+ * <ul>
+ * <li>gameofstones.cluster.self: The URL of this node. Without it, every play
+ * is served by this node</li>
+ * <li>gameofstones.cluster.nodes: The URLs of all the nodes, comma
+ * separated</li>
+ * <li>gameofstones.cluster.allowedNodes: The URLs of the nodes that can ever
+ * join, comma separated. Default the configured nodes</li>
+ * <li>gameofstones.cluster.virtualNodes: Times each node is placed on the
+ * ring. Default 128</li>
+ * </ul>
+ *
+ * @author shravanshetty
+ */
+public class PlayRouter {
+
+    /**
+     * The routing key of the matchmaking requests
+     */
+    public static final String MATCHMAKING_KEY = "matchmaking";
+    private static Logger log = Logger.getLogger(PlayRouter.class.getSimpleName());
+    private static final PlayRouter playRouter = new PlayRouter(System.getProperty("gameofstones.cluster.self"),
+        split(System.getProperty("gameofstones.cluster.nodes", "")),
+        split(System.getProperty("gameofstones.cluster.allowedNodes",
+            System.getProperty("gameofstones.cluster.nodes", ""))),
+        Integer.getInteger("gameofstones.cluster.virtualNodes", 128));
+
+    private final String self;
+    private final Set<String> allowedNodes;
+    private final int virtualNodes;
+    private volatile ConsistentHashRing ring;
+    /**
+     * The ring being switched to, while the plays moving away from this node
+     * are released. Null otherwise.
+     */
+    private volatile ConsistentHashRing nextRing;
+
+    /**
+     * Creates the router of a node, allowing the given nodes only
+     *
+     * @param self
+     *            The URL of this node. Null to serve every play locally.
+     * @param nodes
+     *            The URLs of all the nodes
+     * @param virtualNodes
+     *            Times each node is placed on the ring
+     */
+    public PlayRouter(String self, Collection<String> nodes, int virtualNodes) {
+        this(self, nodes, nodes, virtualNodes);
+    }
+
+    /**
+     * Creates the router of a node. A process is a single node, routing with
+     * {@link #getInstance()}, unless several nodes are embedded in it (e.g. in
+     * tests).
+     *
+     * @param self
+     *            The URL of this node. Null to serve every play locally.
+     * @param nodes
+     *            The URLs of all the nodes
+     * @param allowedNodes
+     *            The URLs of the nodes that can ever be set
+     * @param virtualNodes
+     *            Times each node is placed on the ring
+     */
+    public PlayRouter(String self, Collection<String> nodes, Collection<String> allowedNodes, int virtualNodes) {
+        this.self = self;
+        this.allowedNodes = new HashSet<String>(allowedNodes);
+        this.virtualNodes = virtualNodes;
+        this.ring = new ConsistentHashRing(nodes, virtualNodes);
+    }
+
+    /**
+     * Retuns a singeton instance of this type
+     *
+     * @return PlayRouter singleton instance
+     */
+    public static PlayRouter getInstance() {
+
+        return playRouter;
+    }
+
+    /**
+     * Checks if plays are routed to their owner. Requires the URL of this
+     * node, and at least one node.
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+
+        return self != null && !ring.getNodes().isEmpty();
+    }
+
+    /**
+     * Gets the URL of this node
+     *
+     * @return
+     */
+    public String getSelf() {
+
+        return self;
+    }
+
+    /**
+     * Gets the URLs of all the nodes
+     *
+     * @return
+     */
+    public List<String> getNodes() {
+
+        return ring.getNodes();
+    }
+
+    /**
+     * Gets the node owning the given play
+     *
+     * @param playId
+     *            A playId, or another routing key e.g. {@link #MATCHMAKING_KEY}
+     * @return The URL of the owner, or of this node if routing is disabled
+     */
+    public String getOwner(String playId) {
+
+        return isEnabled() ? ring.getOwner(playId) : self;
+    }
+
+    /**
+     * Checks if the given play is served by this node
+     *
+     * @param playId
+     *            A playId, or another routing key e.g. {@link #MATCHMAKING_KEY}
+     * @return
+     */
+    public boolean isLocal(String playId) {
+
+        return self == null || isOwner(ring, playId);
+    }
+
+    /**
+     * Checks if the given play is moving away from this node, while the nodes
+     * change. Such a play must not be served by any node till it is released.
+     *
+     * @param playId
+     *            A playId, or another routing key e.g. {@link #MATCHMAKING_KEY}
+     * @return
+     */
+    public boolean isMoving(String playId) {
+
+        ConsistentHashRing handoverRing = nextRing;
+        return handoverRing != null && isOwner(ring, playId) && !isOwner(handoverRing, playId);
+    }
+
+    /**
+     * Checks if the given nodes can be set
+     *
+     * @param nodes
+     * @return True if all the nodes are allowed
+     */
+    public boolean isAllowed(Collection<String> nodes) {
+
+        return allowedNodes.containsAll(nodes);
+    }
+
+    /**
+     * Replaces the nodes of the cluster, e.g. when a node joins or leaves.
+     * The active plays this node no longer owns are released first, once the
+     * request updating them (if any) is done, and are not served meanwhile.
+     * Only then are the new owners used. Must be called on every node with
+     * the same nodes: first on the nodes losing plays (e.g. the leaving node),
+     * then on the ones gaining plays (e.g. the joining node), so that a play
+     * is only served by its new owner once released by the previous one. In
+     * between, the requests forwarded to a node not owning the play yet fail,
+     * and can be sent again.
+     *
+     * @param nodes
+     *            The URLs of all the nodes. A leaving node is left out, and
+     *            releases all its plays, forwarding the requests it still
+     *            receives. Cannot be empty on a node, as a node without nodes
+     *            would serve every play.
+     * @return The number of plays released
+     * @throws IllegalStateException
+     *             If a play could not be saved. The nodes are not changed,
+     *             and the plays not released yet are served again.
+     */
+    public synchronized int setNodes(Collection<String> nodes) {
+
+        if (self != null && nodes.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Nodes of node: %s cannot be empty", self));
+        }
+        ConsistentHashRing previousRing = ring;
+        ConsistentHashRing newRing = new ConsistentHashRing(nodes, virtualNodes);
+        if (self == null) {
+            ring = newRing;
+            return 0;
+        }
+        int releasedPlays;
+        nextRing = newRing;
+        try {
+            releasedPlays = releasePlays(previousRing, newRing, true);
+            ring = newRing;
+        }
+        finally {
+            nextRing = null;
+        }
+        //requests that were routed right before the handover started could have activated a play since
+        releasedPlays += releasePlays(previousRing, newRing, false);
+        log.info(String.format("Nodes changed from: %s to: %s. Released %s plays", previousRing.getNodes(),
+            ring.getNodes(), releasedPlays));
+        return releasedPlays;
+    }
+
+    //private methods
+
+    /**
+     * Releases the active plays this node owns with the previous ring, and not
+     * with the new one. The last moves of each play are logged before the new
+     * owner replays them.
+     *
+     * @param isFailureThrown
+     *            True to stop at the first play that could not be saved.
+     *            Else the failure is logged, and the play is saved by the
+     *            next flush.
+     * @return The number of plays released
+     */
+    private int releasePlays(ConsistentHashRing previousRing, ConsistentHashRing newRing,
+        boolean isFailureThrown) {
+
+        int releasedPlays = 0;
+        for (String playId : PlaySessionStore.getInstance().getActivePlayIds()) {
+            if (!isOwner(previousRing, playId) || isOwner(newRing, playId)) {
+                continue;
+            }
+            //the play is released once its update is done
+            PlayLocks.Lane lane = PlayLocks.getInstance().acquire(playId);
+            try {
+                MoveLog.awaitAppends(playId);
+                if (PlaySessionStore.getInstance().release(playId)) {
+                    releasedPlays++;
+                }
+                else if (PlaySessionStore.getInstance().get(playId) != null) {
+                    String message = String.format("Play: %s moving to node: %s could not be saved", playId,
+                        newRing.getOwner(playId));
+                    if (isFailureThrown) {
+                        throw new IllegalStateException(message + ". Nodes not changed");
+                    }
+                    log.severe(message);
+                }
+            }
+            finally {
+                lane.close();
+            }
+        }
+        return releasedPlays;
+    }
+
+    /**
+     * Checks if this node owns the given play with the given ring. A ring
+     * without nodes leaves every play to this node.
+     */
+    private boolean isOwner(ConsistentHashRing ownersRing, String playId) {
+
+        return ownersRing.getNodes().isEmpty() || self.equals(ownersRing.getOwner(playId));
+    }
+
+    private static List<String> split(String nodes) {
+
+        List<String> nodeList = new ArrayList<String>();
+        for (String node : nodes.split(",")) {
+            if (!node.trim().isEmpty()) {
+                nodeList.add(node.trim());
+            }
+        }
+        return nodeList;
+    }
+}
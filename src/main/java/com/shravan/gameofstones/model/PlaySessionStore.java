@@ -0,0 +1,496 @@
+package com.shravan.gameofstones.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.logging.Logger;
+import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.repository.Repositories;
+
+/**
+ * In-memory store of the plays that are {@link PlayState#IN_PROGRESS}. Reads
+ * and moves of these plays are served from memory, and the changes are flushed
+ * to mongo asynchronously in batches (write-behind). A play is written to mongo
+ * right away when it leaves the IN_PROGRESS state, and all pending changes are
+ * flushed on shutdown. A play is only removed from memory once its changes are
+ * saved.
+ * <p>
+ * Configured with the system properties:
+ * <ul>
+ * <li>gameofstones.session.enabled: Set to false to read and write all plays
+ * directly from mongo. Default true</li>
+ * <li>gameofstones.session.flushIntervalMillis: Delay between two flushes.
+ * Default 1000</li>
+ * <li>gameofstones.session.flushBatchSize: Maximum plays saved in one bulk
+ * write. A flush is started right away when these many plays are pending.
+ * Default 100</li>
+ * <li>gameofstones.session.idleTimeoutMillis: Plays not accessed for this long
+ * are removed from memory, once flushed. Default 30 minutes</li>
+ * </ul>
+ * Plays are copied in and out of the store, so callers never share state. The
+ * store also keeps the state of each play last saved in mongo, so that a flush
+ * only sends the fields changed since.
+ *
+ * @author shravanshetty
+ */
+public class PlaySessionStore {
+
+    private static Logger log = Logger.getLogger(PlaySessionStore.class.getSimpleName());
+    private static final PlaySessionStore playSessionStore = new PlaySessionStore(
+        Boolean.parseBoolean(System.getProperty("gameofstones.session.enabled", "true")),
+        Long.getLong("gameofstones.session.flushIntervalMillis", 1000L),
+        Integer.getInteger("gameofstones.session.flushBatchSize", 100),
+        Long.getLong("gameofstones.session.idleTimeoutMillis", TimeUnit.MINUTES.toMillis(30)));
+
+    private final boolean enabled;
+    private final long flushIntervalMillis;
+    private final int flushBatchSize;
+    private final long idleTimeoutMillis;
+    private final PlayRouter playRouter;
+    private final ConcurrentHashMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+    /**
+     * Ids of the plays that are active, by the id of their board
+     */
+    private final ConcurrentHashMap<String, String> playIdsByBoardId = new ConcurrentHashMap<String, String>();
+    /**
+     * Ids of the plays changed since they were last flushed
+     */
+    private final Set<String> dirtyPlayIds = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private ScheduledExecutorService flusher;
+    private boolean isShutdownHookAdded;
+
+    PlaySessionStore(boolean enabled, long flushIntervalMillis, int flushBatchSize, long idleTimeoutMillis) {
+        this(enabled, flushIntervalMillis, flushBatchSize, idleTimeoutMillis, PlayRouter.getInstance());
+    }
+
+    /**
+     * Creates the store of a node, keeping only the plays the given router
+     * serves locally
+     */
+    PlaySessionStore(boolean enabled, long flushIntervalMillis, int flushBatchSize, long idleTimeoutMillis,
+        PlayRouter playRouter) {
+        this.enabled = enabled;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flushBatchSize = flushBatchSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.playRouter = playRouter;
+    }
+
+    /**
+     * Retuns a singeton instance of this type
+     *
+     * @return PlaySessionStore singleton instance
+     */
+    public static PlaySessionStore getInstance() {
+
+        return playSessionStore;
+    }
+
+    public boolean isEnabled() {
+
+        return enabled;
+    }
+
+    /**
+     * Gets an active play
+     *
+     * @param playId
+     * @return A copy of the play, or null if the play is not active
+     */
+    public Play get(String playId) {
+
+        Session session = playId != null ? sessions.get(playId) : null;
+        if (session != null) {
+            session.lastAccess = System.currentTimeMillis();
+            return session.play.copy();
+        }
+        return null;
+    }
+
+    /**
+     * Gets the active play having the given board
+     *
+     * @param boardId
+     * @return A copy of the play, or null if the play is not active
+     */
+    public Play getByBoardId(String boardId) {
+
+        String playId = boardId != null ? playIdsByBoardId.get(boardId) : null;
+        return get(playId);
+    }
+
+    /**
+     * Keeps the given play in memory, if it is {@link PlayState#IN_PROGRESS}
+     * and its state is already saved in mongo. On a node of a cluster, only
+     * the plays this node owns, and that are not moving away, are kept: the
+     * others are served by their owner, which reads them from mongo.
+     *
+     * @param play
+     */
+    public void activate(Play play) {
+
+        if (enabled && play != null && play.getId() != null && PlayState.IN_PROGRESS.equals(play.getPlayState())
+            && playRouter.isLocal(play.getId()) && !playRouter.isMoving(play.getId())) {
+            Play savedPlay = play.copy();
+            Session session = new Session(savedPlay, savedPlay);
+            if (sessions.putIfAbsent(play.getId(), session) == null && play.getBoardId() != null) {
+                playIdsByBoardId.put(play.getBoardId(), play.getId());
+            }
+            startFlusher();
+        }
+    }
+
+    /**
+     * Updates an active play. The play must have been read with the given
+     * version, and its version already incremented by the caller. If the play
+     * is no longer {@link PlayState#IN_PROGRESS}, it is saved in mongo right
+     * away, and removed from memory once saved. If that save fails, the play
+     * stays in memory and is saved by the next flush.
+     *
+     * @param play
+     *            The updated play
+     * @param expectedVersion
+     *            The version of the play when it was read
+     * @return True if updated, false if the play was modified since it was
+     *         read. Null if the play is not active, in which case it must be
+     *         saved in mongo by the caller.
+     */
+    public Boolean update(final Play play, final Long expectedVersion) {
+
+        if (!enabled || play.getId() == null || !sessions.containsKey(play.getId())) {
+            return null;
+        }
+        final boolean isActive = PlayState.IN_PROGRESS.equals(play.getPlayState());
+        final Session[] replacedSession = new Session[1];
+        final Session[] updatedSession = new Session[1];
+        Session session = sessions.computeIfPresent(play.getId(), new BiFunction<String, Session, Session>() {
+
+            @Override
+            public Session apply(String playId, Session current) {
+
+                Long currentVersion = current.play.getVersion();
+                if (currentVersion == null ? expectedVersion != null : !currentVersion.equals(expectedVersion)) {
+                    return current;
+                }
+                replacedSession[0] = current;
+                updatedSession[0] = new Session(play.copy(), current.savedPlay);
+                return updatedSession[0];
+            }
+        });
+        if (replacedSession[0] == null) {
+            //either the version did not match, or the play was removed from memory meanwhile
+            return session != null ? false : null;
+        }
+        if (isActive) {
+            dirtyPlayIds.add(play.getId());
+            if (dirtyPlayIds.size() >= flushBatchSize) {
+                requestFlush();
+            }
+        }
+        else {
+            //the play is completed or aborted: save it right away. it is kept in memory till saved
+            dirtyPlayIds.remove(play.getId());
+            save(Collections.singletonList(replacedSession[0].savedPlay),
+                Collections.singletonList(updatedSession[0].play));
+        }
+        return true;
+    }
+
+    /**
+     * Updates the board of an active play, incrementing the version of the
+     * play
+     *
+     * @param board
+     * @return True if the board belongs to an active play and is updated
+     */
+    public boolean updateBoard(Board board) {
+
+        for (int attempt = 0; attempt < 3; attempt++) {
+            Play play = getByBoardId(board.getId());
+            if (play == null) {
+                return false;
+            }
+            Long expectedVersion = play.getVersion();
+            play.setBoard(board.copy());
+            play.setVersion(expectedVersion != null ? expectedVersion + 1 : 1L);
+            play.setLastActivity(new Date());
+            Boolean updated = update(play, expectedVersion);
+            if (updated == null) {
+                return false;
+            }
+            if (updated) {
+                return true;
+            }
+        }
+        log.warning(String.format("Board: %s kept being modified. Not updated", board.getId()));
+        return false;
+    }
+
+    /**
+     * Saves all the pending changes in mongo, in batches of the configured
+     * size. Also removes the plays idle for longer than the configured
+     * timeout.
+     */
+    public void flush() {
+
+        flushRequested.set(false);
+        List<Play> savedBatch = new ArrayList<Play>(flushBatchSize);
+        List<Play> batch = new ArrayList<Play>(flushBatchSize);
+        Iterator<String> dirtyPlayIdIterator = dirtyPlayIds.iterator();
+        while (dirtyPlayIdIterator.hasNext()) {
+            String playId = dirtyPlayIdIterator.next();
+            //remove before reading the play, so that a later update marks it dirty again
+            dirtyPlayIdIterator.remove();
+            Session session = sessions.get(playId);
+            if (session != null) {
+                savedBatch.add(session.savedPlay);
+                batch.add(session.play);
+            }
+            if (batch.size() == flushBatchSize) {
+                save(savedBatch, batch);
+                savedBatch = new ArrayList<Play>(flushBatchSize);
+                batch = new ArrayList<Play>(flushBatchSize);
+            }
+        }
+        save(savedBatch, batch);
+        evictIdleSessions();
+    }
+
+    /**
+     * Saves the pending changes of one play in mongo right away, e.g. when
+     * its last move could not be logged
+     *
+     * @param playId
+     * @return True if the play is saved, or has no pending changes
+     */
+    public boolean flush(String playId) {
+
+        Session session = sessions.get(playId);
+        if (session == null || !dirtyPlayIds.remove(playId)) {
+            return true;
+        }
+        return save(Collections.singletonList(session.savedPlay), Collections.singletonList(session.play));
+    }
+
+    /**
+     * Flushes the pending changes and the pending move log appends, and stops
+     * the background flush
+     */
+    public synchronized void shutdown() {
+
+        if (flusher != null) {
+            flusher.shutdown();
+            flusher = null;
+        }
+        //moves appended in the background are written before the daemon storage threads stop
+        MoveLog.awaitAppends();
+        flush();
+    }
+
+    /**
+     * Removes a play from memory, saving its pending changes first, e.g. once
+     * another node owns it. The play is read from mongo with its next access.
+     * A play whose changes could not be saved is kept in memory, and saved by
+     * the next flush.
+     *
+     * @param playId
+     * @return True if the play was active, and is saved and removed
+     */
+    public boolean release(String playId) {
+
+        while (true) {
+            Session session = sessions.get(playId);
+            if (session == null) {
+                return false;
+            }
+            if (dirtyPlayIds.remove(playId) &&
+                !save(Collections.singletonList(session.savedPlay), Collections.singletonList(session.play))) {
+                return false;
+            }
+            //an update since the save replaced the session, and is saved with the next attempt
+            if (sessions.remove(playId, session)) {
+                playIdsByBoardId.remove(String.valueOf(session.play.getBoardId()));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gets the ids of the plays held in memory
+     *
+     * @return A copy of the ids
+     */
+    public Set<String> getActivePlayIds() {
+
+        return new HashSet<String>(sessions.keySet());
+    }
+
+    /**
+     * Gets the number of plays held in memory
+     *
+     * @return
+     */
+    public int getActivePlayCount() {
+
+        return sessions.size();
+    }
+
+    /**
+     * Gets the number of plays changed in memory and not yet saved in mongo
+     *
+     * @return
+     */
+    public int getPendingFlushCount() {
+
+        return dirtyPlayIds.size();
+    }
+
+    //private methods
+
+    /**
+     * Saves the changes of the given plays in mongo with a single bulk write.
+     * Plays that could not be saved are marked as dirty again. Completed and
+     * aborted plays are removed from memory once saved.
+     *
+     * @return False if the plays could not be saved
+     */
+    private boolean save(List<Play> savedPlays, List<Play> plays) {
+
+        if (plays.isEmpty()) {
+            return true;
+        }
+        try {
+            Repositories.getGameRepository().updatePlayChangesIfNewer(savedPlays, plays);
+        }
+        catch (Exception e) {
+            log.severe(String.format("Flush of %s plays failed: %s", plays.size(), e.getMessage()));
+            for (Play play : plays) {
+                if (sessions.containsKey(play.getId())) {
+                    dirtyPlayIds.add(play.getId());
+                }
+            }
+            return false;
+        }
+        for (Play play : plays) {
+            Session session = sessions.get(play.getId());
+            if (session != null) {
+                session.savedPlay = play;
+                if (session.play == play && !PlayState.IN_PROGRESS.equals(play.getPlayState()) &&
+                    sessions.remove(play.getId(), session)) {
+                    playIdsByBoardId.remove(String.valueOf(play.getBoardId()));
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes the flushed plays that were not accessed within the idle timeout
+     */
+    private void evictIdleSessions() {
+
+        long idleSince = System.currentTimeMillis() - idleTimeoutMillis;
+        for (Map.Entry<String, Session> sessionEntry : sessions.entrySet()) {
+            Session session = sessionEntry.getValue();
+            //the play could have been updated since: it is saved before being removed
+            if (session.lastAccess < idleSince && !dirtyPlayIds.contains(sessionEntry.getKey())) {
+                release(sessionEntry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Starts a flush in the background, if one is not already requested
+     */
+    private void requestFlush() {
+
+        ScheduledExecutorService currentFlusher = flusher;
+        if (currentFlusher != null && flushRequested.compareAndSet(false, true)) {
+            currentFlusher.execute(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts the periodic flush, and the flush on shutdown, with the first
+     * active play
+     */
+    private synchronized void startFlusher() {
+
+        if (flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "play-session-flusher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            flusher.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    try {
+                        flush();
+                    }
+                    catch (Exception e) {
+                        log.severe("Flush of plays failed: " + e.getMessage());
+                    }
+                }
+            }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        //the flusher is started again after a shutdown, the hook is only added once
+        if (!isShutdownHookAdded) {
+            isShutdownHookAdded = true;
+            Runtime.getRuntime().addShutdownHook(new Thread("play-session-shutdown") {
+
+                @Override
+                public void run() {
+
+                    PlaySessionStore.this.shutdown();
+                }
+            });
+        }
+    }
+
+    /**
+     * An active play, along with its state last saved in mongo and the time it
+     * was last accessed
+     */
+    private static class Session {
+
+        private final Play play;
+        /**
+         * The play as last saved in mongo. Null if not known
+         */
+        private volatile Play savedPlay;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        Session(Play play, Play savedPlay) {
+            this.play = play;
+            this.savedPlay = savedPlay;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.shravan.gameofstones.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+import com.shravan.gameofstones.repository.EntityCursor;
+import com.shravan.gameofstones.repository.Repositories;
+
+/**
+ * One-time migration that embeds the board and the player snapshots in the
+ * plays saved before they were embedded. Plays are read with a single cursor
+ * and migrated in batches: the boards and players of a batch are fetched with
+ * one request each, and the plays are updated with one bulk write. Plays that
+ * are not migrated yet still embed their board and players when they are read.
+ *
+ * @author shravanshetty
+ */
+public class PlaySnapshotMigration {
+
+    private static Logger log = Logger.getLogger(PlaySnapshotMigration.class.getSimpleName());
+    static final String MIGRATION_ID = "embed-play-snapshots";
+    private static final int BATCH_SIZE = 500;
+
+    private PlaySnapshotMigration() {
+    }
+
+    /**
+     * Runs the migration in the background, unless it was already completed
+     */
+    public static void startOnce() {
+
+        Thread migrationThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    if (!Migration.isCompleted(MIGRATION_ID)) {
+                        migrate();
+                    }
+                }
+                catch (Exception e) {
+                    log.severe("Migration: " + MIGRATION_ID + " failed: " + e.getMessage());
+                }
+            }
+        }, "play-snapshot-migration");
+        migrationThread.setDaemon(true);
+        migrationThread.start();
+    }
+
+    /**
+     * Embeds the board and player snapshots in all the plays missing them, and
+     * records the migration as completed
+     *
+     * @return The number of plays migrated
+     * @throws Exception
+     *             If the plays could not be read
+     */
+    public static int migrate() throws Exception {
+
+        int migratedPlays = 0;
+        List<Play> batch = new ArrayList<Play>(BATCH_SIZE);
+        try (EntityCursor<Play> plays = Repositories.getGameRepository().streamPlaysMissingSnapshots()) {
+            for (Play play : plays) {
+                batch.add(play);
+                if (batch.size() == BATCH_SIZE) {
+                    migratedPlays += migrateBatch(batch);
+                    batch.clear();
+                }
+            }
+        }
+        migratedPlays += migrateBatch(batch);
+        new Migration(MIGRATION_ID).createOrUpdate();
+        log.info(String.format("Migration: %s embedded snapshots in %s plays", MIGRATION_ID, migratedPlays));
+        return migratedPlays;
+    }
+
+    //private methods
+
+    /**
+     * Embeds the snapshots in a batch of plays
+     *
+     * @return The number of plays having a snapshot to embed
+     */
+    private static int migrateBatch(List<Play> plays) {
+
+        if (plays.isEmpty()) {
+            return 0;
+        }
+        Set<String> playerIds = new HashSet<String>();
+        Set<String> boardIds = new HashSet<String>();
+        for (Play play : plays) {
+            if (play.getPlayer1Id() != null) {
+                playerIds.add(play.getPlayer1Id());
+            }
+            if (play.getPlayer2Id() != null) {
+                playerIds.add(play.getPlayer2Id());
+            }
+            if (play.getBoardId() != null) {
+                boardIds.add(play.getBoardId());
+            }
+        }
+        Map<String, Player> players = new HashMap<String, Player>();
+        for (Player player : Repositories.getGameRepository().getPlayers(playerIds)) {
+            players.put(player.getId(), player.snapshot());
+        }
+        Map<String, Board> boards = new HashMap<String, Board>();
+        for (Board board : Repositories.getGameRepository().getBoards(boardIds)) {
+            boards.put(board.getId(), board);
+        }
+        //snapshots are only set where still missing, so a snapshot embedded meanwhile is never overwritten
+        Map<String, Map<String, Object>> fieldsByPlayId = new HashMap<String, Map<String, Object>>();
+        for (Play play : plays) {
+            Map<String, Object> fields = new HashMap<String, Object>();
+            for (String missingSnapshot : play.getMissingSnapshots()) {
+                if ("board".equals(missingSnapshot)) {
+                    putIfFound(fields, missingSnapshot, boards.get(play.getBoardId()));
+                }
+                else {
+                    String playerId = "player1".equals(missingSnapshot) ? play.getPlayer1Id() : play.getPlayer2Id();
+                    putIfFound(fields, missingSnapshot, players.get(playerId));
+                }
+            }
+            if (!fields.isEmpty()) {
+                fieldsByPlayId.put(play.getId(), fields);
+            }
+        }
+        Repositories.getGameRepository().setMissingPlaySnapshots(fieldsByPlayId);
+        return fieldsByPlayId.size();
+    }
+
+    /**
+     * Adds the snapshot to the fields to be set, if it is found
+     */
+    private static void putIfFound(Map<String, Object> fields, String field, Object snapshot) {
+
+        if (snapshot != null) {
+            fields.put(field, snapshot);
+        }
+    }
+}
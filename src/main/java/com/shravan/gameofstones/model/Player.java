@@ -1,9 +1,8 @@
 package com.shravan.gameofstones.model;
 
-import org.bson.types.ObjectId;
 import org.jongo.marshall.jackson.oid.MongoId;
 import org.jongo.marshall.jackson.oid.MongoObjectId;
-import com.shravan.gameofstones.core.Mongodb;
+import com.shravan.gameofstones.repository.Repositories;
 
 public class Player {
 
@@ -42,13 +41,25 @@ public class Player {
         this.name = name;
     }
 
+    /**
+     * Creates a snapshot of this player, to be embedded in a {@link Play}
+     * 
+     * @return A player having only the id and name of this player
+     */
+    Player snapshot() {
+
+        Player player = new Player(name);
+        player.id = id;
+        return player;
+    }
+
     //mongo access methods
     /**
      * Simple method to create or update this entity in the mongoDb
      */
     public Player createOrUpdate() {
 
-        return Mongodb.getInstance().updateEntity(this);
+        return Repositories.getGameRepository().savePlayer(this);
     }
 
     /**
@@ -61,7 +72,7 @@ public class Player {
     public static Player getPlayer(String playerId) {
 
         if (playerId != null) {
-            return Mongodb.getInstance().getEntity("{_id: #}", Player.class, new ObjectId(playerId));
+            return Repositories.getGameRepository().getPlayer(playerId);
         }
         else {
             return null;
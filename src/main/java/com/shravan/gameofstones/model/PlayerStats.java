@@ -0,0 +1,162 @@
+package com.shravan.gameofstones.model;
+
+import org.jongo.marshall.jackson.oid.MongoId;
+import org.jongo.marshall.jackson.oid.MongoObjectId;
+import com.shravan.gameofstones.repository.Repositories;
+
+/**
+ * The results of a {@link Player} in the completed plays. The stats are
+ * incremented when a play is completed, and never recomputed from the plays.
+ * Players are ranked by their {@link PlayerStats#points}: 2 for a win and 1 for
+ * a draw, so the points of a player never decrease.
+ * <p>
+ * The Elo rating of the player is kept as the sum of all its changes since
+ * {@link RatingIndex#INITIAL_RATING}, so the changes of concurrent results are
+ * persisted as increments, in any order.
+ *
+ * @author shravanshetty
+ */
+public class PlayerStats {
+
+    public static final int POINTS_PER_WIN = 2;
+    public static final int POINTS_PER_DRAW = 1;
+
+    /**
+     * The id of the player
+     */
+    @MongoId
+    @MongoObjectId
+    private String id;
+    private String name;
+    private int wins;
+    private int losses;
+    private int draws;
+    private int points;
+    private double ratingChange;
+
+    public PlayerStats() {
+    }
+
+    //getters and setters
+    public String getId() {
+
+        return id;
+    }
+
+    public void setId(String id) {
+
+        this.id = id;
+    }
+
+    public String getName() {
+
+        return name;
+    }
+
+    public void setName(String name) {
+
+        this.name = name;
+    }
+
+    public int getWins() {
+
+        return wins;
+    }
+
+    public void setWins(int wins) {
+
+        this.wins = wins;
+    }
+
+    public int getLosses() {
+
+        return losses;
+    }
+
+    public void setLosses(int losses) {
+
+        this.losses = losses;
+    }
+
+    public int getDraws() {
+
+        return draws;
+    }
+
+    public void setDraws(int draws) {
+
+        this.draws = draws;
+    }
+
+    public int getPoints() {
+
+        return points;
+    }
+
+    public void setPoints(int points) {
+
+        this.points = points;
+    }
+
+    public double getRatingChange() {
+
+        return ratingChange;
+    }
+
+    public void setRatingChange(double ratingChange) {
+
+        this.ratingChange = ratingChange;
+    }
+
+    /**
+     * Gets the current Elo rating of the player
+     *
+     * @return
+     */
+    public double getRating() {
+
+        return RatingIndex.INITIAL_RATING + ratingChange;
+    }
+
+    public void setRating(double rating) {
+
+        this.ratingChange = rating - RatingIndex.INITIAL_RATING;
+    }
+
+    //mongo access methods
+
+    /**
+     * Increments the stats of a player by the result of one play
+     *
+     * @param player
+     *            The snapshot of the player
+     * @param wins
+     *            1 if the player won, else 0
+     * @param losses
+     *            1 if the player lost, else 0
+     * @param draws
+     *            1 if the play was a draw, else 0
+     * @param ratingChange
+     *            The change of the rating of the player with this result
+     * @return The stats of the player, including this result
+     */
+    public static PlayerStats increment(Player player, int wins, int losses, int draws, double ratingChange) {
+
+        return Repositories.getGameRepository().incrementPlayerStats(player, wins, losses, draws,
+            wins * POINTS_PER_WIN + draws * POINTS_PER_DRAW, ratingChange);
+    }
+
+    /**
+     * Get the stats of a player
+     *
+     * @param playerId
+     * @return The stats, or null if the player has not completed any play
+     */
+    public static PlayerStats getPlayerStats(String playerId) {
+
+        if (playerId != null) {
+            return Repositories.getGameRepository().getPlayerStats(playerId);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,379 @@
+package com.shravan.gameofstones.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+import com.shravan.gameofstones.repository.EntityCursor;
+import com.shravan.gameofstones.repository.Repositories;
+
+/**
+ * Elo ratings of all the players that completed a play, indexed in memory by
+ * rating. The players are counted per rating bucket (1 rating point wide) in a
+ * Fenwick tree, ordered from the highest rating down, so the rank of a player
+ * and the players around any rank are found in O(log buckets), without
+ * counting in mongo.
+ * <p>
+ * Ratings are persisted in the {@link PlayerStats} of the players, and the
+ * index is rebuilt from them with a single streaming read, at startup or with
+ * the first access.
+ * <p>
+ * The nodes of a cluster record different results, so the index is not used
+ * on a node of a cluster (see {@link PlayRouter#isEnabled()}): the rating
+ * changes are computed from the persisted ratings, and ranks are not
+ * served.
+ *
+ * @author shravanshetty
+ */
+public class RatingIndex {
+
+    private static Logger log = Logger.getLogger(RatingIndex.class.getSimpleName());
+    private static final RatingIndex ratingIndex = new RatingIndex();
+
+    public static final double INITIAL_RATING = 1500;
+    /**
+     * Maximum change of a rating with one result
+     */
+    static final double K_FACTOR = 32;
+    /**
+     * Ratings are clamped into [0, MAX_RATING) for the index only
+     */
+    static final int MAX_RATING = 4000;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Double> ratings = new HashMap<String, Double>();
+    /**
+     * Fenwick tree of the player counts, by bucket position. Position 1 is
+     * the highest rating bucket.
+     */
+    private final int[] counts = new int[MAX_RATING + 1];
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private final Set<String>[] playerIdsByPosition = new Set[MAX_RATING + 1];
+    private volatile boolean isLoaded;
+
+    RatingIndex() {
+    }
+
+    /**
+     * Retuns a singeton instance of this type
+     *
+     * @return RatingIndex singleton instance
+     */
+    public static RatingIndex getInstance() {
+
+        return ratingIndex;
+    }
+
+    /**
+     * Rebuilds the index from mongo in the background, if not already built
+     */
+    public void startLoading() {
+
+        if (PlayRouter.getInstance().isEnabled()) {
+            return;
+        }
+        Thread loadingThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    load();
+                }
+                catch (Exception e) {
+                    log.severe("Rating index could not be built: " + e.getMessage());
+                }
+            }
+        }, "rating-index-loader");
+        loadingThread.setDaemon(true);
+        loadingThread.start();
+    }
+
+    /**
+     * Computes the Elo rating changes of a result between two players, and
+     * applies them to the index. The changes must then be persisted by the
+     * caller; as they are increments, concurrent results can be persisted in
+     * any order.
+     *
+     * @param player1Id
+     * @param player2Id
+     * @param player1Score
+     *            1 if player1 won, 0.5 for a draw, 0 if player1 lost
+     * @return The rating changes of player1 and player2
+     */
+    public double[] recordResult(String player1Id, String player2Id, double player1Score) {
+
+        if (PlayRouter.getInstance().isEnabled()) {
+            double player1Change = getRatingChange(getPersistedRating(player1Id), getPersistedRating(player2Id),
+                player1Score);
+            return new double[] {player1Change, -player1Change};
+        }
+        load();
+        lock.writeLock().lock();
+        try {
+            double player1Rating = getOrInitial(player1Id);
+            double player2Rating = getOrInitial(player2Id);
+            double player1Change = getRatingChange(player1Rating, player2Rating, player1Score);
+            put(player1Id, player1Rating + player1Change);
+            put(player2Id, player2Rating - player1Change);
+            return new double[] {player1Change, -player1Change};
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Checks if the ranks are served by this index. Not on a node of a
+     * cluster.
+     *
+     * @return
+     */
+    public boolean isEnabled() {
+
+        return !PlayRouter.getInstance().isEnabled();
+    }
+
+    /**
+     * Gets the rating and rank of a player
+     *
+     * @param playerId
+     * @return The rating of the player, or null if the player is not rated
+     */
+    public Rating getRating(String playerId) {
+
+        load();
+        lock.readLock().lock();
+        try {
+            Double rating = ratings.get(playerId);
+            if (rating == null) {
+                return null;
+            }
+            //players with a higher rating bucket are ahead. players in the same bucket share the rank
+            return new Rating(playerId, rating, prefixCount(getPosition(rating) - 1) + 1);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the players ranked around a player, best first
+     *
+     * @param playerId
+     * @param count
+     *            Maximum number of players returned, including the player
+     * @return The ratings of the players around the player. Empty if the
+     *         player is not rated.
+     */
+    public List<Rating> getNearbyRatings(String playerId, int count) {
+
+        load();
+        lock.readLock().lock();
+        try {
+            Double rating = ratings.get(playerId);
+            if (rating == null || count <= 0) {
+                return new ArrayList<Rating>();
+            }
+            //never more than the rated players, whatever the count asked for
+            List<Rating> nearbyRatings = new ArrayList<Rating>(Math.min(count, ratings.size()));
+            int ratedPlayers = prefixCount(MAX_RATING);
+            int playerRank = prefixCount(getPosition(rating) - 1) + 1;
+            int firstRank = Math.max(1, Math.min(playerRank - count / 2, ratedPlayers - count + 1));
+            //walk the buckets from the one holding the first rank
+            int rank = firstRank;
+            while (nearbyRatings.size() < count && rank <= ratedPlayers) {
+                int position = findPosition(rank);
+                int bucketRank = prefixCount(position - 1) + 1;
+                int skipped = rank - bucketRank;
+                for (String nearbyPlayerId : playerIdsByPosition[position]) {
+                    if (skipped-- > 0) {
+                        continue;
+                    }
+                    if (nearbyRatings.size() == count) {
+                        break;
+                    }
+                    nearbyRatings.add(new Rating(nearbyPlayerId, ratings.get(nearbyPlayerId), bucketRank));
+                    rank++;
+                }
+            }
+            return nearbyRatings;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Gets the number of rated players
+     *
+     * @return
+     */
+    public int getRatedPlayerCount() {
+
+        load();
+        lock.readLock().lock();
+        try {
+            return ratings.size();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Reads the ratings of all players from mongo with a single cursor, once
+     */
+    void load() {
+
+        if (!isLoaded) {
+            lock.writeLock().lock();
+            try {
+                if (!isLoaded) {
+                    try (EntityCursor<PlayerStats> allStats = Repositories.getGameRepository().streamPlayerStats()) {
+                        for (PlayerStats stats : allStats) {
+                            put(stats.getId(), stats.getRating());
+                        }
+                    }
+                    isLoaded = true;
+                    log.info(String.format("Rating index built with %s players", ratings.size()));
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Sets the rating of a player, to be used instead of reading mongo
+     */
+    void put(String playerId, double rating) {
+
+        Double previousRating = ratings.put(playerId, rating);
+        if (previousRating != null) {
+            int previousPosition = getPosition(previousRating);
+            playerIdsByPosition[previousPosition].remove(playerId);
+            addCount(previousPosition, -1);
+        }
+        int position = getPosition(rating);
+        if (playerIdsByPosition[position] == null) {
+            playerIdsByPosition[position] = new LinkedHashSet<String>();
+        }
+        playerIdsByPosition[position].add(playerId);
+        addCount(position, 1);
+    }
+
+    /**
+     * Marks the index as built, to be used without reading mongo
+     */
+    void setLoaded() {
+
+        isLoaded = true;
+    }
+
+    //private methods
+
+    private double getOrInitial(String playerId) {
+
+        Double rating = ratings.get(playerId);
+        return rating != null ? rating : INITIAL_RATING;
+    }
+
+    private static double getPersistedRating(String playerId) {
+
+        PlayerStats stats = Repositories.getGameRepository().getPlayerStats(playerId);
+        return stats != null ? stats.getRating() : INITIAL_RATING;
+    }
+
+    /**
+     * Gets the Elo rating change of player1, for a result against player2.
+     * The change of player2 is the opposite.
+     */
+    private static double getRatingChange(double player1Rating, double player2Rating, double player1Score) {
+
+        double player1Expected = 1 / (1 + Math.pow(10, (player2Rating - player1Rating) / 400));
+        return K_FACTOR * (player1Score - player1Expected);
+    }
+
+    /**
+     * Gets the bucket position of a rating. The highest bucket is at 1.
+     */
+    private static int getPosition(double rating) {
+
+        int bucket = (int) Math.max(0, Math.min(MAX_RATING - 1, Math.floor(rating)));
+        return MAX_RATING - bucket;
+    }
+
+    private void addCount(int position, int delta) {
+
+        for (; position <= MAX_RATING; position += position & -position) {
+            counts[position] += delta;
+        }
+    }
+
+    /**
+     * Gets the number of players in the buckets at positions 1 to the given
+     * one
+     */
+    private int prefixCount(int position) {
+
+        int count = 0;
+        for (; position > 0; position -= position & -position) {
+            count += counts[position];
+        }
+        return count;
+    }
+
+    /**
+     * Finds the position of the bucket holding the player of the given rank
+     * (binary lifting on the Fenwick tree)
+     */
+    private int findPosition(int rank) {
+
+        int position = 0;
+        for (int step = Integer.highestOneBit(MAX_RATING); step > 0; step >>= 1) {
+            int nextPosition = position + step;
+            if (nextPosition <= MAX_RATING && counts[nextPosition] < rank) {
+                position = nextPosition;
+                rank -= counts[nextPosition];
+            }
+        }
+        return position + 1;
+    }
+
+    /**
+     * The rating and rank of a player
+     */
+    public static class Rating {
+
+        private final String playerId;
+        private final double rating;
+        private final int rank;
+
+        Rating(String playerId, double rating, int rank) {
+            this.playerId = playerId;
+            this.rating = rating;
+            this.rank = rank;
+        }
+
+        public String getPlayerId() {
+
+            return playerId;
+        }
+
+        public double getRating() {
+
+            return rating;
+        }
+
+        public int getRank() {
+
+            return rank;
+        }
+    }
+}
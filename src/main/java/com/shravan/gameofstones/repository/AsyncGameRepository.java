@@ -0,0 +1,86 @@
+package com.shravan.gameofstones.repository;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import com.shravan.gameofstones.core.WriteBatch;
+
+/**
+ * Sends writes to the {@link GameRepository} from a pool of storage threads
+ * of its own, and returns a {@link CompletableFuture} of each write right away.
+ * The futures are only used by the {@link com.shravan.gameofstones.model.MoveLog}
+ * to chain the writes of a play in order: a move request still waits for the
+ * write of its own move before it is answered.
+ * <p>
+ * The pool has gameofstones.storage.threads threads (default 16) and queues up
+ * to gameofstones.storage.queueSize requests (default 10000). When the queue is
+ * full the request is sent from the requesting thread, which slows the
+ * requests down to what the storage can take.
+ *
+ * @author shravanshetty
+ */
+public class AsyncGameRepository {
+
+    private static final AsyncGameRepository asyncGameRepository = new AsyncGameRepository(
+        Integer.getInteger("gameofstones.storage.threads", 16),
+        Integer.getInteger("gameofstones.storage.queueSize", 10000));
+
+    private final ThreadPoolExecutor executor;
+
+    AsyncGameRepository(int threads, int queueSize) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+
+                    Thread thread = new Thread(runnable, "storage-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Retuns a singeton instance of this type
+     *
+     * @return AsyncGameRepository singleton instance
+     */
+    public static AsyncGameRepository getInstance() {
+
+        return asyncGameRepository;
+    }
+
+    /**
+     * Gets the number of requests waiting for a storage thread
+     *
+     * @return
+     */
+    public int getQueuedRequestCount() {
+
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Writes a batch of entities. See {@link GameRepository#write(WriteBatch)}
+     *
+     * @param batch
+     * @return Completed once the whole batch is written
+     */
+    public CompletableFuture<Void> write(final WriteBatch batch) {
+
+        return CompletableFuture.runAsync(new Runnable() {
+
+            @Override
+            public void run() {
+
+                Repositories.getGameRepository().write(batch);
+            }
+        }, executor);
+    }
+}
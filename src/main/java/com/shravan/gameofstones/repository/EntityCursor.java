@@ -0,0 +1,20 @@
+package com.shravan.gameofstones.repository;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * A cursor over entities read from a {@link GameRepository}, in the order of
+ * the query. The entities can be fetched lazily while iterating, so the cursor
+ * must always be closed.
+ *
+ * @author shravanshetty
+ */
+public interface EntityCursor<T> extends Iterator<T>, Iterable<T>, Closeable {
+
+    /**
+     * Releases the resources of this cursor. Never fails.
+     */
+    @Override
+    void close();
+}
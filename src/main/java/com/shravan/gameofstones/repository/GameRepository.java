@@ -0,0 +1,324 @@
+package com.shravan.gameofstones.repository;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import com.shravan.gameofstones.core.WriteBatch;
+import com.shravan.gameofstones.model.Board;
+import com.shravan.gameofstones.model.BoardSnapshot;
+import com.shravan.gameofstones.model.Migration;
+import com.shravan.gameofstones.model.Move;
+import com.shravan.gameofstones.model.Play;
+import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.model.Player;
+import com.shravan.gameofstones.model.PlayerStats;
+
+/**
+ * Storage of all the entities of the game. Entities are always copied in and
+ * out of the storage: changing an entity after it was saved or read never
+ * changes the stored one. New entities get an {@link org.bson.types.ObjectId}
+ * as their id, when they are saved.
+ * <p>
+ * Every method is a single request to the storage, so the number of requests
+ * of an operation can be asserted with {@link GameRepository#getRequestCount()}.
+ * The implementation used is selected at startup by {@link Repositories}.
+ *
+ * @author shravanshetty
+ */
+public interface GameRepository {
+
+    /**
+     * Gets the number of requests sent to this storage so far
+     *
+     * @return
+     */
+    long getRequestCount();
+
+    /**
+     * Writes all the entities of the batch in order, with as few requests as
+     * the storage allows (one per run of entities of the same kind, with
+     * mongo). Supported: the save of a {@link Player}, the insert of a
+     * {@link Play}, of a {@link Move} and of a {@link BoardSnapshot}.
+     *
+     * @param batch
+     */
+    void write(WriteBatch batch);
+
+    //plays
+
+    Play getPlay(String playId);
+
+    /**
+     * Gets the play embedding the given board
+     *
+     * @param boardId
+     * @return The play, or null if no play embeds the board
+     */
+    Play getPlayByBoardId(String boardId);
+
+    /**
+     * Inserts a new play, assigning its id
+     *
+     * @param play
+     */
+    void insertPlay(Play play);
+
+    /**
+     * Replaces a play, only if the stored play still has the expected version
+     * (compare-and-set). The caller must have already updated the version in
+     * the given play.
+     *
+     * @param play
+     * @param expectedVersion
+     *            The version of the play when it was read. Null if it was
+     *            stored without a version.
+     * @return True if the play is replaced, false if it was modified or
+     *         removed in the meantime
+     */
+    boolean updatePlayIfVersion(Play play, Long expectedVersion);
+
+    /**
+     * Replaces all the given plays, with a single request. Each play only
+     * replaces the stored one if the stored version is older; plays missing
+     * in the storage are not created.
+     *
+     * @param plays
+     * @return The number of plays replaced
+     */
+    int updatePlaysIfNewer(Collection<Play> plays);
+
+    /**
+     * Saves the changes of the given plays, like
+     * {@link #updatePlaysIfNewer(Collection)}, sending only the fields changed
+     * since each play was last saved, where the storage allows it
+     *
+     * @param savedPlays
+     *            The plays as last saved, in the order of the plays. An item
+     *            is null if the saved state of the play is not known.
+     * @param plays
+     * @return The number of plays saved
+     */
+    int updatePlayChangesIfNewer(List<Play> savedPlays, List<Play> plays);
+
+    /**
+     * Sets the given board in the play embedding it, increments the version
+     * of the play and sets its last activity to now
+     *
+     * @param board
+     * @return The number of plays updated
+     */
+    int updatePlayBoard(Board board);
+
+    /**
+     * Gets a page of the plays in one of the given states, not changed since
+     * the given time (or never), ordered by their id. Plays that are left as
+     * they are do not hold back the next pages.
+     *
+     * @param playStates
+     * @param idleSince
+     * @param afterPlayId
+     *            If not null, only the plays after this one: the last play of
+     *            the previous page
+     * @param limit
+     *            Maximum number of plays returned
+     * @return
+     */
+    List<Play> getIdlePlays(List<PlayState> playStates, Date idleSince, String afterPlayId, int limit);
+
+    /**
+     * Gets a page of plays, newest first. The next page starts after the last
+     * play of this one (keyset pagination on the play id), so every page is
+     * read with the same cost, however many plays were listed before.
+     *
+     * @param playerId
+     *            If not null, only the plays of this player
+     * @param playState
+     *            If not null, only the plays in this state
+     * @param afterPlayId
+     *            If not null, only the plays older than this one: the last
+     *            play of the previous page
+     * @param limit
+     *            Maximum number of plays returned
+     * @return
+     */
+    List<Play> getPlays(String playerId, PlayState playState, String afterPlayId, int limit);
+
+    /**
+     * Streams the plays having a board or player id, but not the embedded
+     * board or player snapshot, ordered by id. Only the ids of the plays and
+     * of their board and players may be read: the plays must not be saved.
+     *
+     * @return A cursor over the plays. Must be closed.
+     */
+    EntityCursor<Play> streamPlaysMissingSnapshots();
+
+    /**
+     * Sets the given snapshots in many plays, with a single request. A
+     * snapshot is only set where it is still missing, so a snapshot set
+     * meanwhile is never overwritten.
+     *
+     * @param snapshotsByPlayId
+     *            The snapshots to be set (board, player1 or player2), by the
+     *            id of the play
+     * @return The number of snapshots set
+     */
+    int setMissingPlaySnapshots(Map<String, Map<String, Object>> snapshotsByPlayId);
+
+    /**
+     * Removes the given plays, e.g. once they are archived. Their moves and
+     * snapshots are removed with {@link #removeMoves(Collection)} and
+     * {@link #removeSnapshots(Collection)}.
+     *
+     * @param playIds
+     * @return The number of plays removed
+     */
+    int removePlays(Collection<String> playIds);
+
+    //standalone boards, saved before boards were embedded in plays
+
+    Board getBoard(String boardId);
+
+    List<Board> getBoards(Collection<String> boardIds);
+
+    Board saveBoard(Board board);
+
+    int removeBoards(Collection<String> boardIds);
+
+    //players
+
+    Player getPlayer(String playerId);
+
+    List<Player> getPlayers(Collection<String> playerIds);
+
+    /**
+     * Inserts or replaces a player, assigning its id if it is new
+     *
+     * @param player
+     * @return The saved player
+     */
+    Player savePlayer(Player player);
+
+    //move log
+
+    /**
+     * Appends a move. A play never has two moves with the same
+     * {@link Move#getSeq()}.
+     *
+     * @param move
+     * @throws RuntimeException
+     *             If the move was already appended
+     */
+    void insertMove(Move move);
+
+    /**
+     * Gets the moves of a play, ordered by their {@link Move#getSeq()}
+     *
+     * @param playId
+     * @param fromSeq
+     *            The first move returned
+     * @param toSeq
+     *            The last move returned
+     * @return
+     */
+    List<Move> getMoves(String playId, int fromSeq, int toSeq);
+
+    /**
+     * Streams the moves of a play, ordered by their {@link Move#getSeq()}
+     *
+     * @return A cursor over the moves. Must be closed.
+     */
+    EntityCursor<Move> streamMoves(String playId, int fromSeq, int toSeq);
+
+    /**
+     * Counts the moves of a play within the given range
+     *
+     * @param playId
+     * @param fromSeq
+     *            The first move counted
+     * @param toSeq
+     *            The last move counted
+     * @return
+     */
+    long countMoves(String playId, int fromSeq, int toSeq);
+
+    void insertSnapshot(BoardSnapshot snapshot);
+
+    /**
+     * Gets the latest snapshot of a play taken at or before the given move
+     *
+     * @param playId
+     * @param maxSeq
+     * @return The snapshot, or null if there is none
+     */
+    BoardSnapshot getLatestSnapshot(String playId, int maxSeq);
+
+    /**
+     * Removes all the moves of the given plays
+     *
+     * @param playIds
+     * @return The number of moves removed
+     */
+    int removeMoves(Collection<String> playIds);
+
+    /**
+     * Removes all the snapshots of the given plays
+     *
+     * @param playIds
+     * @return The number of snapshots removed
+     */
+    int removeSnapshots(Collection<String> playIds);
+
+    /**
+     * Sets the time the moves and snapshots of the given plays expire, so
+     * that the storage removes them along with their expiring plays (see
+     * {@link Play#getExpireAt()})
+     *
+     * @param playIds
+     * @param expireAt
+     * @return The number of moves and snapshots set to expire
+     */
+    int expireMoves(Collection<String> playIds, Date expireAt);
+
+    //player stats
+
+    PlayerStats getPlayerStats(String playerId);
+
+    /**
+     * Increments the stats of a player, creating them if needed, and returns
+     * the stats as incremented. Increments of concurrent requests are never
+     * lost.
+     *
+     * @param player
+     *            The player, whose name is also set in the stats
+     * @param wins
+     * @param losses
+     * @param draws
+     * @param points
+     * @param ratingChange
+     * @return
+     */
+    PlayerStats incrementPlayerStats(Player player, int wins, int losses, int draws, int points,
+        double ratingChange);
+
+    /**
+     * Gets the stats with the most points, then most wins, then by player id
+     *
+     * @param limit
+     * @return
+     */
+    List<PlayerStats> getTopPlayerStats(int limit);
+
+    /**
+     * Streams the stats of all players, in no particular order
+     *
+     * @return A cursor over the stats. Must be closed.
+     */
+    EntityCursor<PlayerStats> streamPlayerStats();
+
+    //migrations
+
+    boolean isMigrationCompleted(String migrationId);
+
+    void saveMigration(Migration migration);
+}
@@ -0,0 +1,855 @@
+package com.shravan.gameofstones.repository;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import org.bson.BasicBSONEncoder;
+import org.bson.types.ObjectId;
+import org.jongo.Mapper;
+import org.jongo.ObjectIdUpdater;
+import org.jongo.bson.Bson;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
+import com.shravan.gameofstones.core.Mongodb;
+import com.shravan.gameofstones.core.WriteBatch;
+import com.shravan.gameofstones.model.Board;
+import com.shravan.gameofstones.model.BoardSnapshot;
+import com.shravan.gameofstones.model.Leaderboard;
+import com.shravan.gameofstones.model.Migration;
+import com.shravan.gameofstones.model.Move;
+import com.shravan.gameofstones.model.Play;
+import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.model.Player;
+import com.shravan.gameofstones.model.PlayerStats;
+
+/**
+ * {@link GameRepository} keeping all entities in concurrent maps of this
+ * process, to run without mongo (tests, load tests and benchmarks). Nothing
+ * survives a restart.
+ * <p>
+ * Entities are stored as the same BSON documents mongo would store, so they
+ * are copied in and out exactly like with mongo. Plays are replaced with a
+ * compare-and-set on the stored document, so the version checks behave like
+ * the conditional updates in mongo. Plays expiring by their
+ * {@link Play#getExpireAt()} are not removed.
+ *
+ * @author shravanshetty
+ */
+public class InMemoryGameRepository implements GameRepository {
+
+    private final Mapper mapper = Mongodb.createMapper();
+    private final AtomicLong requests = new AtomicLong();
+    private final ConcurrentHashMap<String, PlayDocument> plays = new ConcurrentHashMap<String, PlayDocument>();
+    private final ConcurrentHashMap<String, String> playIdsByBoardId = new ConcurrentHashMap<String, String>();
+    /**
+     * The ids of all plays, and of the plays of each player. Object ids are
+     * ordered by creation.
+     */
+    private final ConcurrentSkipListSet<String> playIds = new ConcurrentSkipListSet<String>();
+    private final ConcurrentHashMap<String, ConcurrentSkipListSet<String>> playIdsByPlayerId =
+        new ConcurrentHashMap<String, ConcurrentSkipListSet<String>>();
+    private final ConcurrentHashMap<String, byte[]> boards = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentHashMap<String, byte[]> players = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, byte[]>> movesByPlayId =
+        new ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, byte[]>>();
+    private final ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, byte[]>> snapshotsByPlayId =
+        new ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, byte[]>>();
+    private final ConcurrentHashMap<String, byte[]> playerStats = new ConcurrentHashMap<String, byte[]>();
+    private final ConcurrentHashMap<String, byte[]> migrations = new ConcurrentHashMap<String, byte[]>();
+
+    private final Function<String, ConcurrentSkipListSet<String>> newIdSet =
+        new Function<String, ConcurrentSkipListSet<String>>() {
+
+            @Override
+            public ConcurrentSkipListSet<String> apply(String playerId) {
+
+                return new ConcurrentSkipListSet<String>();
+            }
+        };
+    private final Function<String, ConcurrentSkipListMap<Integer, byte[]>> newSeqMap =
+        new Function<String, ConcurrentSkipListMap<Integer, byte[]>>() {
+
+            @Override
+            public ConcurrentSkipListMap<Integer, byte[]> apply(String playId) {
+
+                return new ConcurrentSkipListMap<Integer, byte[]>();
+            }
+        };
+
+    @Override
+    public long getRequestCount() {
+
+        return requests.get();
+    }
+
+    @Override
+    public void write(WriteBatch batch) {
+
+        requests.incrementAndGet();
+        for (WriteBatch.Write write : batch.getWrites()) {
+            Object entity = write.getEntity();
+            if (entity instanceof Player && !write.isInsert()) {
+                put(players, DocumentType.PLAYER, assignId(entity), encode(entity));
+            }
+            else if (entity instanceof Play && write.isInsert()) {
+                insertPlayDocument((Play) entity);
+            }
+            else if (entity instanceof Move && write.isInsert()) {
+                insertMoveDocument((Move) entity);
+            }
+            else if (entity instanceof BoardSnapshot && write.isInsert()) {
+                insertSnapshotDocument((BoardSnapshot) entity);
+            }
+            else {
+                throw new IllegalArgumentException(String.format("%s of %s is not supported in a batch",
+                    write.isInsert() ? "Insert" : "Save", entity.getClass().getSimpleName()));
+            }
+        }
+    }
+
+    //plays
+
+    @Override
+    public Play getPlay(String playId) {
+
+        requests.incrementAndGet();
+        PlayDocument document = plays.get(playId);
+        return document != null ? decode(document.bson, Play.class) : null;
+    }
+
+    @Override
+    public Play getPlayByBoardId(String boardId) {
+
+        requests.incrementAndGet();
+        String playId = playIdsByBoardId.get(boardId);
+        PlayDocument document = playId != null ? plays.get(playId) : null;
+        return document != null ? decode(document.bson, Play.class) : null;
+    }
+
+    @Override
+    public void insertPlay(Play play) {
+
+        requests.incrementAndGet();
+        insertPlayDocument(play);
+    }
+
+    @Override
+    public boolean updatePlayIfVersion(Play play, Long expectedVersion) {
+
+        requests.incrementAndGet();
+        PlayDocument document = new PlayDocument(play.getVersion(), encode(play));
+        while (true) {
+            PlayDocument storedDocument = plays.get(play.getId());
+            if (storedDocument == null || !Objects.equals(storedDocument.version, expectedVersion)) {
+                return false;
+            }
+            if (replacePlay(play.getId(), storedDocument, document)) {
+                indexPlay(play);
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public int updatePlaysIfNewer(Collection<Play> playsToUpdate) {
+
+        requests.incrementAndGet();
+        int updatedPlays = 0;
+        for (Play play : playsToUpdate) {
+            PlayDocument document = new PlayDocument(play.getVersion(), encode(play));
+            //a play without a version is older than any versioned one
+            long version = play.getVersion() != null ? play.getVersion() : 0L;
+            while (true) {
+                PlayDocument storedDocument = plays.get(play.getId());
+                if (storedDocument == null || (storedDocument.version != null && storedDocument.version >= version)) {
+                    break;
+                }
+                if (replacePlay(play.getId(), storedDocument, document)) {
+                    indexPlay(play);
+                    updatedPlays++;
+                    break;
+                }
+            }
+        }
+        return updatedPlays;
+    }
+
+    @Override
+    public int updatePlayChangesIfNewer(List<Play> savedPlays, List<Play> plays) {
+
+        //the documents are replaced whole in memory
+        return updatePlaysIfNewer(plays);
+    }
+
+    @Override
+    public int updatePlayBoard(Board board) {
+
+        requests.incrementAndGet();
+        String playId = playIdsByBoardId.get(board.getId());
+        if (playId == null) {
+            return 0;
+        }
+        while (true) {
+            PlayDocument storedDocument = plays.get(playId);
+            if (storedDocument == null) {
+                return 0;
+            }
+            Play play = decode(storedDocument.bson, Play.class);
+            play.setBoard(board);
+            play.setLastActivity(new Date());
+            play.setVersion(play.getVersion() != null ? play.getVersion() + 1 : 1L);
+            if (replacePlay(playId, storedDocument, new PlayDocument(play.getVersion(), encode(play)))) {
+                return 1;
+            }
+        }
+    }
+
+    @Override
+    public List<Play> getIdlePlays(List<PlayState> playStates, Date idleSince, String afterPlayId, int limit) {
+
+        requests.incrementAndGet();
+        List<Play> idlePlays = new ArrayList<Play>();
+        for (String playId : afterPlayId != null ? playIds.tailSet(afterPlayId, false) : playIds) {
+            PlayDocument document = plays.get(playId);
+            if (document == null) {
+                continue;
+            }
+            Play play = decode(document.bson, Play.class);
+            if (playStates.contains(play.getPlayState()) &&
+                (play.getLastActivity() == null || play.getLastActivity().before(idleSince))) {
+                idlePlays.add(play);
+                if (idlePlays.size() == limit) {
+                    break;
+                }
+            }
+        }
+        return idlePlays;
+    }
+
+    @Override
+    public List<Play> getPlays(String playerId, PlayState playState, String afterPlayId, int limit) {
+
+        requests.incrementAndGet();
+        List<Play> pageOfPlays = new ArrayList<Play>();
+        NavigableSet<String> candidateIds = playerId != null ? playIdsByPlayerId.get(playerId) : playIds;
+        if (candidateIds == null) {
+            return pageOfPlays;
+        }
+        if (afterPlayId != null) {
+            candidateIds = candidateIds.headSet(afterPlayId, false);
+        }
+        Iterator<String> candidateIdIterator = candidateIds.descendingIterator();
+        while (candidateIdIterator.hasNext() && pageOfPlays.size() < limit) {
+            PlayDocument document = plays.get(candidateIdIterator.next());
+            Play play = document != null ? decode(document.bson, Play.class) : null;
+            if (play != null && (playState == null || playState == play.getPlayState())) {
+                pageOfPlays.add(play);
+            }
+        }
+        return pageOfPlays;
+    }
+
+    @Override
+    public EntityCursor<Play> streamPlaysMissingSnapshots() {
+
+        requests.incrementAndGet();
+        TreeMap<String, Play> playsMissingSnapshots = new TreeMap<String, Play>();
+        for (Map.Entry<String, PlayDocument> document : plays.entrySet()) {
+            DBObject playObject = toDBObject(document.getValue().bson);
+            if (isMissing(playObject, "board", "boardId") || isMissing(playObject, "player1", "player1Id") ||
+                isMissing(playObject, "player2", "player2Id")) {
+                playsMissingSnapshots.put(document.getKey(), decode(document.getValue().bson, Play.class));
+            }
+        }
+        return new ListCursor<Play>(new ArrayList<Play>(playsMissingSnapshots.values()));
+    }
+
+    @Override
+    public int setMissingPlaySnapshots(Map<String, Map<String, Object>> snapshotsByPlayId) {
+
+        requests.incrementAndGet();
+        int setSnapshots = 0;
+        for (Map.Entry<String, Map<String, Object>> snapshots : snapshotsByPlayId.entrySet()) {
+            DBObject values = mapper.getMarshaller().marshall(snapshots.getValue()).toDBObject();
+            while (true) {
+                PlayDocument storedDocument = plays.get(snapshots.getKey());
+                if (storedDocument == null) {
+                    break;
+                }
+                DBObject playObject = toDBObject(storedDocument.bson);
+                int setInPlay = 0;
+                for (String field : values.keySet()) {
+                    if (playObject.get(field) == null) {
+                        playObject.put(field, values.get(field));
+                        setInPlay++;
+                    }
+                }
+                if (setInPlay == 0 || replacePlay(snapshots.getKey(), storedDocument,
+                    new PlayDocument(storedDocument.version, new BasicBSONEncoder().encode(playObject)))) {
+                    setSnapshots += setInPlay;
+                    break;
+                }
+            }
+        }
+        return setSnapshots;
+    }
+
+    @Override
+    public int removePlays(Collection<String> playIdsToRemove) {
+
+        requests.incrementAndGet();
+        int removedPlays = 0;
+        for (String playId : playIdsToRemove) {
+            final PlayDocument[] removedDocument = new PlayDocument[1];
+            plays.computeIfPresent(playId, new BiFunction<String, PlayDocument, PlayDocument>() {
+
+                @Override
+                public PlayDocument apply(String playId, PlayDocument storedDocument) {
+
+                    written(DocumentType.PLAY, playId, 0, null);
+                    removedDocument[0] = storedDocument;
+                    return null;
+                }
+            });
+            if (removedDocument[0] != null) {
+                unindexPlay(decode(removedDocument[0].bson, Play.class));
+                removedPlays++;
+            }
+        }
+        return removedPlays;
+    }
+
+    //standalone boards
+
+    @Override
+    public Board getBoard(String boardId) {
+
+        requests.incrementAndGet();
+        return decode(boards.get(boardId), Board.class);
+    }
+
+    @Override
+    public List<Board> getBoards(Collection<String> boardIds) {
+
+        requests.incrementAndGet();
+        return decodeAll(boards, boardIds, Board.class);
+    }
+
+    @Override
+    public Board saveBoard(Board board) {
+
+        requests.incrementAndGet();
+        put(boards, DocumentType.BOARD, assignId(board), encode(board));
+        return board;
+    }
+
+    @Override
+    public int removeBoards(Collection<String> boardIds) {
+
+        requests.incrementAndGet();
+        int removedBoards = 0;
+        for (String boardId : boardIds) {
+            removedBoards += boards.containsKey(boardId) ? 1 : 0;
+            put(boards, DocumentType.BOARD, boardId, null);
+        }
+        return removedBoards;
+    }
+
+    //players
+
+    @Override
+    public Player getPlayer(String playerId) {
+
+        requests.incrementAndGet();
+        return decode(players.get(playerId), Player.class);
+    }
+
+    @Override
+    public List<Player> getPlayers(Collection<String> playerIds) {
+
+        requests.incrementAndGet();
+        return decodeAll(players, playerIds, Player.class);
+    }
+
+    @Override
+    public Player savePlayer(Player player) {
+
+        requests.incrementAndGet();
+        put(players, DocumentType.PLAYER, assignId(player), encode(player));
+        return player;
+    }
+
+    //move log
+
+    @Override
+    public void insertMove(Move move) {
+
+        requests.incrementAndGet();
+        insertMoveDocument(move);
+    }
+
+    @Override
+    public List<Move> getMoves(String playId, int fromSeq, int toSeq) {
+
+        requests.incrementAndGet();
+        List<Move> moves = new ArrayList<Move>();
+        ConcurrentSkipListMap<Integer, byte[]> moveDocuments = movesByPlayId.get(playId);
+        if (moveDocuments != null && fromSeq <= toSeq) {
+            ConcurrentNavigableMap<Integer, byte[]> range = moveDocuments.subMap(fromSeq, true, toSeq, true);
+            for (byte[] moveDocument : range.values()) {
+                moves.add(decode(moveDocument, Move.class));
+            }
+        }
+        return moves;
+    }
+
+    @Override
+    public EntityCursor<Move> streamMoves(String playId, int fromSeq, int toSeq) {
+
+        return new ListCursor<Move>(getMoves(playId, fromSeq, toSeq));
+    }
+
+    @Override
+    public long countMoves(String playId, int fromSeq, int toSeq) {
+
+        requests.incrementAndGet();
+        ConcurrentSkipListMap<Integer, byte[]> moveDocuments = movesByPlayId.get(playId);
+        if (moveDocuments == null || fromSeq > toSeq) {
+            return 0;
+        }
+        return moveDocuments.subMap(fromSeq, true, toSeq, true).size();
+    }
+
+    @Override
+    public void insertSnapshot(BoardSnapshot snapshot) {
+
+        requests.incrementAndGet();
+        insertSnapshotDocument(snapshot);
+    }
+
+    @Override
+    public BoardSnapshot getLatestSnapshot(String playId, int maxSeq) {
+
+        requests.incrementAndGet();
+        ConcurrentSkipListMap<Integer, byte[]> snapshotDocuments = snapshotsByPlayId.get(playId);
+        Map.Entry<Integer, byte[]> latest = snapshotDocuments != null ? snapshotDocuments.floorEntry(maxSeq) : null;
+        return latest != null ? decode(latest.getValue(), BoardSnapshot.class) : null;
+    }
+
+    @Override
+    public int removeMoves(Collection<String> playIds) {
+
+        requests.incrementAndGet();
+        return removeSeqDocuments(movesByPlayId, DocumentType.MOVE, playIds);
+    }
+
+    @Override
+    public int removeSnapshots(Collection<String> playIds) {
+
+        requests.incrementAndGet();
+        return removeSeqDocuments(snapshotsByPlayId, DocumentType.SNAPSHOT, playIds);
+    }
+
+    /**
+     * Expired plays are kept in memory, and so are their moves
+     */
+    @Override
+    public int expireMoves(Collection<String> playIds, Date expireAt) {
+
+        requests.incrementAndGet();
+        return 0;
+    }
+
+    //player stats
+
+    @Override
+    public PlayerStats getPlayerStats(String playerId) {
+
+        requests.incrementAndGet();
+        return decode(playerStats.get(playerId), PlayerStats.class);
+    }
+
+    @Override
+    public PlayerStats incrementPlayerStats(final Player player, final int wins, final int losses, final int draws,
+        final int points, final double ratingChange) {
+
+        requests.incrementAndGet();
+        byte[] statsDocument = playerStats.compute(player.getId(), new BiFunction<String, byte[], byte[]>() {
+
+            @Override
+            public byte[] apply(String playerId, byte[] storedStats) {
+
+                PlayerStats stats = storedStats != null ? decode(storedStats, PlayerStats.class) : new PlayerStats();
+                stats.setId(playerId);
+                stats.setName(player.getName());
+                stats.setWins(stats.getWins() + wins);
+                stats.setLosses(stats.getLosses() + losses);
+                stats.setDraws(stats.getDraws() + draws);
+                stats.setPoints(stats.getPoints() + points);
+                stats.setRatingChange(stats.getRatingChange() + ratingChange);
+                byte[] statsDocument = encode(stats);
+                written(DocumentType.PLAYER_STATS, playerId, 0, statsDocument);
+                return statsDocument;
+            }
+        });
+        return decode(statsDocument, PlayerStats.class);
+    }
+
+    @Override
+    public List<PlayerStats> getTopPlayerStats(int limit) {
+
+        requests.incrementAndGet();
+        List<PlayerStats> allStats = decodeAll(playerStats, playerStats.keySet(), PlayerStats.class);
+        Collections.sort(allStats, Leaderboard.RANKING);
+        return allStats.size() > limit ? new ArrayList<PlayerStats>(allStats.subList(0, limit)) : allStats;
+    }
+
+    @Override
+    public EntityCursor<PlayerStats> streamPlayerStats() {
+
+        requests.incrementAndGet();
+        return new ListCursor<PlayerStats>(decodeAll(playerStats, playerStats.keySet(), PlayerStats.class));
+    }
+
+    //migrations
+
+    @Override
+    public boolean isMigrationCompleted(String migrationId) {
+
+        requests.incrementAndGet();
+        return migrations.containsKey(migrationId);
+    }
+
+    @Override
+    public void saveMigration(Migration migration) {
+
+        requests.incrementAndGet();
+        put(migrations, DocumentType.MIGRATION, migration.getId(), encode(migration));
+    }
+
+    //storage hooks
+
+    /**
+     * Called with every write of a document, within the atomic update of the
+     * document in its map: the writes of a document are seen here in the
+     * order they are applied. Does nothing; overridden to persist the
+     * documents.
+     *
+     * @param type
+     * @param id
+     *            The id of the document, or the play id of a move or snapshot
+     * @param seq
+     *            The seq of a move or snapshot, else 0
+     * @param document
+     *            The BSON document, or null if the document is removed
+     */
+    void written(DocumentType type, String id, int seq, byte[] document) {
+
+    }
+
+    /**
+     * Puts a document that was written before into its map, without calling
+     * {@link InMemoryGameRepository#written(DocumentType, String, int, byte[])}
+     *
+     * @param type
+     * @param id
+     * @param seq
+     * @param document
+     *            The BSON document, or null to remove the document
+     */
+    void restore(DocumentType type, String id, int seq, byte[] document) {
+
+        switch (type) {
+            case PLAY:
+                if (document != null) {
+                    Play play = decode(document, Play.class);
+                    plays.put(id, new PlayDocument(play.getVersion(), document));
+                    indexPlay(play);
+                }
+                else {
+                    plays.remove(id);
+                    playIds.remove(id);
+                }
+                break;
+            case BOARD:
+                restore(boards, id, document);
+                break;
+            case PLAYER:
+                restore(players, id, document);
+                break;
+            case MOVE:
+                restore(movesByPlayId.computeIfAbsent(id, newSeqMap), seq, document);
+                break;
+            case SNAPSHOT:
+                restore(snapshotsByPlayId.computeIfAbsent(id, newSeqMap), seq, document);
+                break;
+            case PLAYER_STATS:
+                restore(playerStats, id, document);
+                break;
+            case MIGRATION:
+                restore(migrations, id, document);
+                break;
+        }
+    }
+
+    //private methods
+
+    /**
+     * Inserts a new play, without counting a request
+     */
+    private void insertPlayDocument(Play play) {
+
+        String playId = assignId(play);
+        final PlayDocument document = new PlayDocument(play.getVersion(), encode(play));
+        PlayDocument storedDocument = plays.computeIfAbsent(playId, new Function<String, PlayDocument>() {
+
+            @Override
+            public PlayDocument apply(String playId) {
+
+                written(DocumentType.PLAY, playId, 0, document.bson);
+                return document;
+            }
+        });
+        if (storedDocument != document) {
+            throw new IllegalStateException(String.format("Play with id: %s already exists", playId));
+        }
+        indexPlay(play);
+    }
+
+    /**
+     * Appends a move, without counting a request
+     */
+    private void insertMoveDocument(Move move) {
+
+        assignId(move);
+        ConcurrentSkipListMap<Integer, byte[]> moveDocuments = movesByPlayId.computeIfAbsent(move.getPlayId(),
+            newSeqMap);
+        //the moves of a play are appended one by one. the lock keeps the check and the write together
+        synchronized (moveDocuments) {
+            if (moveDocuments.containsKey(move.getSeq())) {
+                throw new IllegalStateException(
+                    String.format("Move: %s of play: %s already exists", move.getSeq(), move.getPlayId()));
+            }
+            byte[] moveDocument = encode(move);
+            written(DocumentType.MOVE, move.getPlayId(), move.getSeq(), moveDocument);
+            moveDocuments.put(move.getSeq(), moveDocument);
+        }
+    }
+
+    private void insertSnapshotDocument(BoardSnapshot snapshot) {
+
+        assignId(snapshot);
+        ConcurrentSkipListMap<Integer, byte[]> snapshotDocuments = snapshotsByPlayId.computeIfAbsent(
+            snapshot.getPlayId(), newSeqMap);
+        synchronized (snapshotDocuments) {
+            byte[] snapshotDocument = encode(snapshot);
+            written(DocumentType.SNAPSHOT, snapshot.getPlayId(), snapshot.getSeq(), snapshotDocument);
+            snapshotDocuments.put(snapshot.getSeq(), snapshotDocument);
+        }
+    }
+
+    /**
+     * Replaces a play, if the stored document is still the expected one
+     *
+     * @return true if the play was replaced
+     */
+    private boolean replacePlay(String playId, final PlayDocument expectedDocument,
+        final PlayDocument document) {
+
+        final boolean[] isReplaced = new boolean[1];
+        plays.computeIfPresent(playId, new BiFunction<String, PlayDocument, PlayDocument>() {
+
+            @Override
+            public PlayDocument apply(String playId, PlayDocument storedDocument) {
+
+                if (storedDocument != expectedDocument) {
+                    return storedDocument;
+                }
+                written(DocumentType.PLAY, playId, 0, document.bson);
+                isReplaced[0] = true;
+                return document;
+            }
+        });
+        return isReplaced[0];
+    }
+
+    /**
+     * Removes all the moves or snapshots of the given plays
+     *
+     * @return The number of documents removed
+     */
+    private int removeSeqDocuments(
+        ConcurrentHashMap<String, ConcurrentSkipListMap<Integer, byte[]>> documentsByPlayId, DocumentType type,
+        Collection<String> playIds) {
+
+        int removedDocuments = 0;
+        for (String playId : playIds) {
+            ConcurrentSkipListMap<Integer, byte[]> documents = documentsByPlayId.remove(playId);
+            if (documents != null) {
+                synchronized (documents) {
+                    for (Integer seq : documents.keySet()) {
+                        written(type, playId, seq, null);
+                        removedDocuments++;
+                    }
+                    documents.clear();
+                }
+            }
+        }
+        return removedDocuments;
+    }
+
+    /**
+     * Puts or removes a document
+     *
+     * @param document
+     *            The BSON document, or null to remove the document
+     */
+    private void put(ConcurrentHashMap<String, byte[]> documents, final DocumentType type, String id,
+        final byte[] document) {
+
+        documents.compute(id, new BiFunction<String, byte[], byte[]>() {
+
+            @Override
+            public byte[] apply(String id, byte[] storedDocument) {
+
+                if (document != null || storedDocument != null) {
+                    written(type, id, 0, document);
+                }
+                return document;
+            }
+        });
+    }
+
+    private static <K> void restore(Map<K, byte[]> documents, K key, byte[] document) {
+
+        if (document != null) {
+            documents.put(key, document);
+        }
+        else {
+            documents.remove(key);
+        }
+    }
+
+    /**
+     * Sets a new object id in the given entity, if it has none
+     *
+     * @return The id of the entity
+     */
+    private String assignId(Object entity) {
+
+        ObjectIdUpdater objectIdUpdater = mapper.getObjectIdUpdater();
+        if (objectIdUpdater.mustGenerateObjectId(entity)) {
+            objectIdUpdater.setObjectId(entity, new ObjectId());
+        }
+        return String.valueOf(objectIdUpdater.getId(entity));
+    }
+
+    /**
+     * Indexes the play by its board id and player ids, like the indexes in
+     * mongo
+     */
+    private void indexPlay(Play play) {
+
+        playIds.add(play.getId());
+        if (play.getBoardId() != null) {
+            playIdsByBoardId.put(play.getBoardId(), play.getId());
+        }
+        if (play.getPlayer1Id() != null) {
+            playIdsByPlayerId.computeIfAbsent(play.getPlayer1Id(), newIdSet).add(play.getId());
+        }
+        if (play.getPlayer2Id() != null) {
+            playIdsByPlayerId.computeIfAbsent(play.getPlayer2Id(), newIdSet).add(play.getId());
+        }
+    }
+
+    /**
+     * Removes a removed play from the indexes of its board and players
+     */
+    private void unindexPlay(Play play) {
+
+        playIds.remove(play.getId());
+        if (play.getBoardId() != null) {
+            playIdsByBoardId.remove(play.getBoardId(), play.getId());
+        }
+        for (String playerId : new String[] {play.getPlayer1Id(), play.getPlayer2Id()}) {
+            Set<String> playerPlayIds = playerId != null ? playIdsByPlayerId.get(playerId) : null;
+            if (playerPlayIds != null) {
+                playerPlayIds.remove(play.getId());
+            }
+        }
+    }
+
+    private byte[] encode(Object entity) {
+
+        return mapper.getMarshaller().marshall(entity).toByteArray();
+    }
+
+    private <T> T decode(byte[] document, Class<T> expected) {
+
+        return document != null ? mapper.getUnmarshaller().unmarshall(Bson.createDocument(document), expected)
+            : null;
+    }
+
+    private <T> List<T> decodeAll(Map<String, byte[]> documents, Collection<String> ids, Class<T> expected) {
+
+        List<T> entities = new ArrayList<T>(ids.size());
+        for (String id : ids) {
+            byte[] document = documents.get(id);
+            if (document != null) {
+                entities.add(decode(document, expected));
+            }
+        }
+        return entities;
+    }
+
+    private static DBObject toDBObject(byte[] document) {
+
+        return new DefaultDBDecoder().decode(document, (DBCollection) null);
+    }
+
+    /**
+     * Checks if the snapshot field is missing, while the id field is set
+     */
+    private static boolean isMissing(DBObject playObject, String snapshotField, String idField) {
+
+        return playObject.get(snapshotField) == null && playObject.get(idField) != null;
+    }
+
+    /**
+     * The kinds of documents stored, one map each
+     */
+    enum DocumentType {
+        PLAY, BOARD, PLAYER, MOVE, SNAPSHOT, PLAYER_STATS, MIGRATION
+    }
+
+    /**
+     * A stored play, along with its version for compare-and-set. Documents
+     * are compared by identity.
+     */
+    private static class PlayDocument {
+
+        private final Long version;
+        private final byte[] bson;
+
+        PlayDocument(Long version, byte[] bson) {
+            this.version = version;
+            this.bson = bson;
+        }
+    }
+}
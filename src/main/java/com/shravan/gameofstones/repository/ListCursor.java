@@ -0,0 +1,41 @@
+package com.shravan.gameofstones.repository;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * {@link EntityCursor} over entities that are already read
+ *
+ * @author shravanshetty
+ */
+class ListCursor<T> implements EntityCursor<T> {
+
+    private final Iterator<T> entities;
+
+    ListCursor(List<T> entities) {
+        this.entities = entities.iterator();
+    }
+
+    @Override
+    public boolean hasNext() {
+
+        return entities.hasNext();
+    }
+
+    @Override
+    public T next() {
+
+        return entities.next();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+
+        return this;
+    }
+
+    @Override
+    public void close() {
+
+    }
+}
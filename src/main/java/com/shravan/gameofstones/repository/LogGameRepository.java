@@ -0,0 +1,449 @@
+package com.shravan.gameofstones.repository;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * {@link GameRepository} for a single node without mongo: the entities are
+ * kept and read in memory like with the {@link InMemoryGameRepository}, and
+ * every write is appended to a memory-mapped log file, so nothing is lost with
+ * a restart.
+ * <p>
+ * Each record of the log holds a whole BSON document, or the removal of a
+ * document, along with its length and CRC32. The offset of the latest record
+ * of every document is indexed in memory:
+ * <ul>
+ * <li>A write only copies the record into the mapped file. The pages are
+ * forced to disk in batches, every gameofstones.log.syncMillis (default 20):
+ * a crash of the process loses nothing, a crash of the machine loses at most
+ * the last batch.</li>
+ * <li>When the log holds more than twice its live records, and at least
+ * gameofstones.log.compactionBytes (default 64MB), the live records are copied
+ * into a new log which atomically replaces the current one.</li>
+ * <li>At startup the log is replayed into memory. It is cut at the first
+ * record that is incomplete or does not match its CRC, as left by a crash in
+ * the middle of a write.</li>
+ * </ul>
+ * The log is mapped as a single buffer, so it is limited to 2GB of records.
+ *
+ * @author shravanshetty
+ */
+public class LogGameRepository extends InMemoryGameRepository implements Closeable {
+
+    private static Logger log = Logger.getLogger(LogGameRepository.class.getSimpleName());
+    public static final String PATH_PROPERTY = "gameofstones.log.path";
+
+    private static final int MAGIC = 0x474F534C;
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    /**
+     * Length and CRC32 of the record
+     */
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int INITIAL_CAPACITY = 1 << 20;
+
+    private final Path path;
+    private final Path compactionPath;
+    private final long compactionBytes;
+    /**
+     * Guards the log, and the index of its records
+     */
+    private final Object logLock = new Object();
+    private final Map<RecordKey, Integer> offsets = new HashMap<RecordKey, Integer>();
+    private final ScheduledExecutorService syncer;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int position;
+    /**
+     * Bytes of the records that are still the latest of their document
+     */
+    private long liveBytes;
+    private boolean isDirty;
+    private boolean isClosed;
+
+    /**
+     * Opens the log, or creates it if the file does not exist, and reads all
+     * its documents into memory
+     *
+     * @param path
+     * @throws IOException
+     *             If the log cannot be opened, or the file is not a log
+     */
+    public LogGameRepository(Path path) throws IOException {
+        this(path, Long.getLong("gameofstones.log.syncMillis", 20),
+            Long.getLong("gameofstones.log.compactionBytes", 64L << 20));
+    }
+
+    LogGameRepository(Path path, long syncIntervalMillis, long compactionBytes) throws IOException {
+        this.path = path.toAbsolutePath();
+        this.compactionPath = Paths.get(this.path + ".compact");
+        this.compactionBytes = compactionBytes;
+        if (this.path.getParent() != null) {
+            Files.createDirectories(this.path.getParent());
+        }
+        //a compaction that did not complete. the log is still the previous one
+        Files.deleteIfExists(compactionPath);
+        recover();
+        syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+
+                Thread thread = new Thread(runnable, "game-log-syncer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        syncer.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    sync();
+                }
+                catch (Exception e) {
+                    log.severe("Sync of the game log failed: " + e.getMessage());
+                }
+            }
+        }, syncIntervalMillis, syncIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Gets the size of the log, in bytes
+     *
+     * @return
+     */
+    public long getLogSize() {
+
+        synchronized (logLock) {
+            return position;
+        }
+    }
+
+    /**
+     * Gets the bytes of the log records that are the latest of their document
+     *
+     * @return
+     */
+    public long getLiveBytes() {
+
+        synchronized (logLock) {
+            return HEADER_SIZE + liveBytes;
+        }
+    }
+
+    /**
+     * Forces the records written so far to disk, and compacts the log if it
+     * has grown too much
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+
+        synchronized (logLock) {
+            if (isClosed) {
+                return;
+            }
+            if (isDirty) {
+                buffer.force();
+                isDirty = false;
+            }
+            if (position > compactionBytes && position - HEADER_SIZE > 2 * liveBytes) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Forces the log to disk and closes it. The repository cannot be written
+     * to anymore.
+     */
+    @Override
+    public void close() throws IOException {
+
+        syncer.shutdown();
+        synchronized (logLock) {
+            if (!isClosed) {
+                buffer.force();
+                channel.close();
+                isClosed = true;
+            }
+        }
+    }
+
+    @Override
+    void written(DocumentType type, String id, int seq, byte[] document) {
+
+        byte[] idBytes = id.getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 1 + 2 + idBytes.length + 4 + 4 + (document != null ? document.length : 0);
+        synchronized (logLock) {
+            if (isClosed) {
+                throw new IllegalStateException("Game log: " + path + " is closed");
+            }
+            int offset = position;
+            ensureCapacity(offset + RECORD_HEADER_SIZE + payloadLength);
+            buffer.position(offset + RECORD_HEADER_SIZE);
+            buffer.put((byte) type.ordinal());
+            buffer.putShort((short) idBytes.length);
+            buffer.put(idBytes);
+            buffer.putInt(seq);
+            buffer.putInt(document != null ? document.length : -1);
+            if (document != null) {
+                buffer.put(document);
+            }
+            buffer.putInt(offset + 4, checksum(buffer, offset + RECORD_HEADER_SIZE, payloadLength));
+            buffer.putInt(offset, payloadLength);
+            position = offset + RECORD_HEADER_SIZE + payloadLength;
+            index(new RecordKey(type, id, seq), offset, document != null);
+            isDirty = true;
+        }
+    }
+
+    /**
+     * Copies the latest record of every document into a new log, and replaces
+     * the current log with it. Writes wait meanwhile.
+     *
+     * @throws IOException
+     */
+    void compact() throws IOException {
+
+        synchronized (logLock) {
+            long sizeBefore = position;
+            //copy the records in their order in the log
+            TreeMap<Integer, RecordKey> liveRecords = new TreeMap<Integer, RecordKey>();
+            for (Map.Entry<RecordKey, Integer> offset : offsets.entrySet()) {
+                liveRecords.put(offset.getValue(), offset.getKey());
+            }
+            FileChannel compactedChannel = FileChannel.open(compactionPath, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer compactedBuffer;
+            int compactedPosition = HEADER_SIZE;
+            try {
+                compactedBuffer = compactedChannel.map(MapMode.READ_WRITE, 0,
+                    Math.max(INITIAL_CAPACITY, getCapacity(HEADER_SIZE + liveBytes)));
+                compactedBuffer.putInt(0, MAGIC);
+                compactedBuffer.putInt(4, FORMAT_VERSION);
+                for (Map.Entry<Integer, RecordKey> liveRecord : liveRecords.entrySet()) {
+                    int offset = liveRecord.getKey();
+                    int recordLength = RECORD_HEADER_SIZE + buffer.getInt(offset);
+                    ByteBuffer record = buffer.duplicate();
+                    record.limit(offset + recordLength).position(offset);
+                    compactedBuffer.position(compactedPosition);
+                    compactedBuffer.put(record);
+                    offsets.put(liveRecord.getValue(), compactedPosition);
+                    compactedPosition += recordLength;
+                }
+                compactedBuffer.force();
+                compactedChannel.force(true);
+                Files.move(compactionPath, path, StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (IOException | RuntimeException e) {
+                //the index must point into the current log again
+                compactedChannel.close();
+                Files.deleteIfExists(compactionPath);
+                offsets.clear();
+                liveBytes = 0;
+                position = HEADER_SIZE;
+                readRecords(buffer, false);
+                throw e;
+            }
+            channel.close();
+            channel = compactedChannel;
+            buffer = compactedBuffer;
+            position = compactedPosition;
+            log.info(String.format("Game log compacted from %s to %s bytes", sizeBefore, position));
+        }
+    }
+
+    //private methods
+
+    /**
+     * Opens the log and replays all its records into memory. The log is cut
+     * after the last complete record.
+     */
+    private void recover() throws IOException {
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IOException(String.format("Game log: %s is larger than 2GB", path));
+        }
+        position = HEADER_SIZE;
+        if (fileSize == 0) {
+            buffer = channel.map(MapMode.READ_WRITE, 0, INITIAL_CAPACITY);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, FORMAT_VERSION);
+            buffer.force();
+            return;
+        }
+        buffer = channel.map(MapMode.READ_ONLY, 0, fileSize);
+        if (fileSize < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException(String.format("File: %s is not a game log", path));
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            channel.close();
+            throw new IOException(String.format("Game log: %s has the unknown format: %s", path,
+                buffer.getInt(4)));
+        }
+        int records = readRecords(buffer, true);
+        //cut what follows the last record, so it is never read as a record. the file grows again with zeros
+        channel.truncate(position);
+        buffer = channel.map(MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, getCapacity(position)));
+        log.info(String.format("Game log: %s recovered with %s records, %s bytes", path, records, position));
+    }
+
+    /**
+     * Reads the records of the log from the current position, up to the first
+     * one that is incomplete or does not match its CRC, and indexes them
+     *
+     * @param isRestoring
+     *            true to put the documents into memory too
+     * @return The number of records read
+     */
+    private int readRecords(ByteBuffer logBuffer, boolean isRestoring) {
+
+        int records = 0;
+        while (position + RECORD_HEADER_SIZE <= logBuffer.capacity()) {
+            int offset = position;
+            int payloadLength = logBuffer.getInt(offset);
+            int payloadOffset = offset + RECORD_HEADER_SIZE;
+            if (payloadLength <= 0 || payloadLength > logBuffer.capacity() - payloadOffset) {
+                break;
+            }
+            if (logBuffer.getInt(offset + 4) != checksum(logBuffer, payloadOffset, payloadLength)) {
+                log.warning(String.format("Game log: %s is cut at the corrupt record at: %s", path, offset));
+                break;
+            }
+            ByteBuffer payload = logBuffer.duplicate();
+            payload.limit(payloadOffset + payloadLength).position(payloadOffset);
+            DocumentType type = DocumentType.values()[payload.get()];
+            byte[] idBytes = new byte[payload.getShort()];
+            payload.get(idBytes);
+            String id = new String(idBytes, StandardCharsets.UTF_8);
+            int seq = payload.getInt();
+            int documentLength = payload.getInt();
+            byte[] document = null;
+            if (documentLength >= 0) {
+                document = new byte[documentLength];
+                payload.get(document);
+            }
+            if (isRestoring) {
+                restore(type, id, seq, document);
+            }
+            index(new RecordKey(type, id, seq), offset, document != null);
+            position = payloadOffset + payloadLength;
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Sets the record at the given offset as the latest of its document
+     */
+    private void index(RecordKey key, int offset, boolean isLive) {
+
+        Integer previousOffset = isLive ? offsets.put(key, offset) : offsets.remove(key);
+        if (previousOffset != null) {
+            liveBytes -= RECORD_HEADER_SIZE + buffer.getInt(previousOffset);
+        }
+        if (isLive) {
+            liveBytes += RECORD_HEADER_SIZE + buffer.getInt(offset);
+        }
+    }
+
+    /**
+     * Maps a larger part of the file, if the given size does not fit in the
+     * mapped buffer
+     */
+    private void ensureCapacity(long size) {
+
+        if (size > buffer.capacity()) {
+            if (size > Integer.MAX_VALUE) {
+                throw new IllegalStateException(String.format("Game log: %s is full", path));
+            }
+            try {
+                buffer = channel.map(MapMode.READ_WRITE, 0, getCapacity(size));
+            }
+            catch (IOException e) {
+                throw new IllegalStateException(String.format("Game log: %s cannot grow: %s", path,
+                    e.getMessage()), e);
+            }
+        }
+    }
+
+    /**
+     * Gets the mapped size holding the given size: the next power of 2, up to
+     * 2GB
+     */
+    private static int getCapacity(long size) {
+
+        long capacity = Long.highestOneBit(Math.max(1, size));
+        capacity = capacity < size ? capacity << 1 : capacity;
+        return (int) Math.min(capacity, Integer.MAX_VALUE);
+    }
+
+    private static int checksum(ByteBuffer logBuffer, int offset, int length) {
+
+        ByteBuffer payload = logBuffer.duplicate();
+        payload.limit(offset + length).position(offset);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Identifies a document of the log
+     */
+    private static class RecordKey {
+
+        private final DocumentType type;
+        private final String id;
+        private final int seq;
+
+        RecordKey(DocumentType type, String id, int seq) {
+            this.type = type;
+            this.id = id;
+            this.seq = seq;
+        }
+
+        @Override
+        public boolean equals(Object object) {
+
+            if (!(object instanceof RecordKey)) {
+                return false;
+            }
+            RecordKey key = (RecordKey) object;
+            return type == key.type && seq == key.seq && id.equals(key.id);
+        }
+
+        @Override
+        public int hashCode() {
+
+            return Objects.hash(type, id, seq);
+        }
+    }
+}
@@ -0,0 +1,407 @@
+package com.shravan.gameofstones.repository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+import org.bson.types.ObjectId;
+import org.jongo.MongoCursor;
+import com.shravan.gameofstones.core.Mongodb;
+import com.shravan.gameofstones.core.WriteBatch;
+import com.shravan.gameofstones.model.Board;
+import com.shravan.gameofstones.model.BoardSnapshot;
+import com.shravan.gameofstones.model.Migration;
+import com.shravan.gameofstones.model.Move;
+import com.shravan.gameofstones.model.Play;
+import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.model.Player;
+import com.shravan.gameofstones.model.PlayerStats;
+
+/**
+ * {@link GameRepository} storing every entity in its own mongo collection, via
+ * {@link Mongodb}. The indexes used by the queries are created along with the
+ * repository:
+ * <ul>
+ * <li>Move {playId, seq}, unique, so a move is never logged twice</li>
+ * <li>BoardSnapshot {playId, seq: -1}</li>
+ * <li>Move {expireAt} and BoardSnapshot {expireAt}, TTL indexes removing the
+ * moves of an aborted play along with the play</li>
+ * <li>Play {playState, lastActivity}, to find the idle plays with a range
+ * scan</li>
+ * <li>Play {expireAt}, a TTL index removing the plays once expired</li>
+ * <li>Play {board._id}, to find the play embedding a board</li>
+ * <li>Play {player1Id, playState, _id: -1}, {player2Id, playState, _id: -1}
+ * and {playState, _id: -1}, to list the plays of a player or in a state, newest
+ * first</li>
+ * <li>PlayerStats {points: -1, wins: -1, _id}, for the leaderboard</li>
+ * </ul>
+ *
+ * @author shravanshetty
+ */
+public class MongoGameRepository implements GameRepository {
+
+    private static Logger log = Logger.getLogger(MongoGameRepository.class.getSimpleName());
+    private static final String IDLE_PLAYS_QUERY = "{$or: [{playState: {$in: #}, lastActivity: {$lt: #}}, "
+        + "{playState: {$in: #}, lastActivity: null}]}";
+    private static final String IDLE_PLAYS_AFTER_QUERY = "{_id: {$gt: #}, $or: [{playState: {$in: #}, "
+        + "lastActivity: {$lt: #}}, {playState: {$in: #}, lastActivity: null}]}";
+    private static final String PLAYS_MISSING_SNAPSHOTS_QUERY = "{$or: [{board: null, boardId: {$ne: null}}, "
+        + "{player1: null, player1Id: {$ne: null}}, {player2: null, player2Id: {$ne: null}}]}";
+    /**
+     * The fields telling which snapshots a play is missing. The embedded
+     * snapshots themselves are not read
+     */
+    private static final String PLAYS_MISSING_SNAPSHOTS_PROJECTION = "{boardId: 1, player1Id: 1, player2Id: 1, "
+        + "'board._id': 1, 'player1._id': 1, 'player2._id': 1}";
+    private static final String TOP_PLAYER_STATS_SORT = "{points: -1, wins: -1, _id: 1}";
+
+    private final Mongodb mongodb;
+
+    public MongoGameRepository(Mongodb mongodb) {
+        this.mongodb = mongodb;
+        mongodb.ensureIndex(Move.class, "{playId: 1, seq: 1}", "{unique: true}");
+        mongodb.ensureIndex(BoardSnapshot.class, "{playId: 1, seq: -1}", "{}");
+        mongodb.ensureIndex(Move.class, "{expireAt: 1}", "{expireAfterSeconds: 0}");
+        mongodb.ensureIndex(BoardSnapshot.class, "{expireAt: 1}", "{expireAfterSeconds: 0}");
+        mongodb.ensureIndex(Play.class, "{playState: 1, lastActivity: 1}", "{}");
+        mongodb.ensureIndex(Play.class, "{expireAt: 1}", "{expireAfterSeconds: 0}");
+        mongodb.ensureIndex(Play.class, "{'board._id': 1}", "{}");
+        mongodb.ensureIndex(Play.class, "{player1Id: 1, playState: 1, _id: -1}", "{}");
+        mongodb.ensureIndex(Play.class, "{player2Id: 1, playState: 1, _id: -1}", "{}");
+        mongodb.ensureIndex(Play.class, "{playState: 1, _id: -1}", "{}");
+        mongodb.ensureIndex(PlayerStats.class, TOP_PLAYER_STATS_SORT, "{}");
+    }
+
+    @Override
+    public long getRequestCount() {
+
+        return mongodb.getRoundTripCount();
+    }
+
+    @Override
+    public void write(WriteBatch batch) {
+
+        mongodb.write(batch);
+    }
+
+    //plays
+
+    @Override
+    public Play getPlay(String playId) {
+
+        return mongodb.getEntity("{_id: #}", Play.class, new ObjectId(playId));
+    }
+
+    @Override
+    public Play getPlayByBoardId(String boardId) {
+
+        return mongodb.getEntity("{'board._id': #}", Play.class, new ObjectId(boardId));
+    }
+
+    @Override
+    public void insertPlay(Play play) {
+
+        mongodb.insertEntity(play);
+    }
+
+    @Override
+    public boolean updatePlayIfVersion(Play play, Long expectedVersion) {
+
+        return mongodb.updateEntityIfVersion(play, new ObjectId(play.getId()), expectedVersion);
+    }
+
+    @Override
+    public int updatePlaysIfNewer(Collection<Play> plays) {
+
+        return mongodb.updateEntitiesIfNewer(Play.class, plays);
+    }
+
+    @Override
+    public int updatePlayChangesIfNewer(List<Play> savedPlays, List<Play> plays) {
+
+        return mongodb.updateChangesIfNewer(Play.class, savedPlays, plays);
+    }
+
+    @Override
+    public int updatePlayBoard(Board board) {
+
+        return mongodb.updateEntities(Play.class, "{'board._id': #}", new Object[] {new ObjectId(board.getId())},
+            "{$set: {board: #, lastActivity: #}, $inc: {version: 1}}", board, new Date());
+    }
+
+    @Override
+    public List<Play> getIdlePlays(List<PlayState> playStates, Date idleSince, String afterPlayId, int limit) {
+
+        List<String> states = getStateNames(playStates);
+        //only a page of the matched plays is kept while sorting them
+        if (afterPlayId == null) {
+            return mongodb.getSortedEntities(IDLE_PLAYS_QUERY, "{_id: 1}", limit, Play.class, states, idleSince,
+                states);
+        }
+        return mongodb.getSortedEntities(IDLE_PLAYS_AFTER_QUERY, "{_id: 1}", limit, Play.class,
+            new ObjectId(afterPlayId), states, idleSince, states);
+    }
+
+    @Override
+    public List<Play> getPlays(String playerId, PlayState playState, String afterPlayId, int limit) {
+
+        StringBuilder query = new StringBuilder("{");
+        List<Object> params = new ArrayList<Object>();
+        if (playerId != null) {
+            //without a state, all the states are matched, so the sort on _id is still merged from the indexes
+            query.append("$or: [{player1Id: #, playState: {$in: #}}, {player2Id: #, playState: {$in: #}}]");
+            List<String> states = getStateNames(
+                playState != null ? Collections.singletonList(playState) : Arrays.asList(PlayState.values()));
+            params.addAll(Arrays.<Object> asList(playerId, states, playerId, states));
+        }
+        else if (playState != null) {
+            query.append("playState: #");
+            params.add(playState.name());
+        }
+        if (afterPlayId != null) {
+            query.append(params.isEmpty() ? "" : ", ").append("_id: {$lt: #}");
+            params.add(new ObjectId(afterPlayId));
+        }
+        query.append("}");
+        return mongodb.getSortedEntities(query.toString(), "{_id: -1}", limit, Play.class, params.toArray());
+    }
+
+    @Override
+    public EntityCursor<Play> streamPlaysMissingSnapshots() {
+
+        return new MongoEntityCursor<Play>(
+            mongodb.streamEntities(PLAYS_MISSING_SNAPSHOTS_QUERY, PLAYS_MISSING_SNAPSHOTS_PROJECTION, "{_id: 1}",
+                Play.class));
+    }
+
+    @Override
+    public int setMissingPlaySnapshots(Map<String, Map<String, Object>> snapshotsByPlayId) {
+
+        return mongodb.setMissingFields(Play.class, snapshotsByPlayId);
+    }
+
+    @Override
+    public int removePlays(Collection<String> playIds) {
+
+        return mongodb.removeEntities(Play.class, "{_id: {$in: #}}", toObjectIds(playIds));
+    }
+
+    //standalone boards
+
+    @Override
+    public Board getBoard(String boardId) {
+
+        return mongodb.getEntity("{_id: #}", Board.class, new ObjectId(boardId));
+    }
+
+    @Override
+    public List<Board> getBoards(Collection<String> boardIds) {
+
+        return mongodb.getEntities("{_id: {$in: #}}", Board.class, toObjectIds(boardIds));
+    }
+
+    @Override
+    public Board saveBoard(Board board) {
+
+        return mongodb.updateEntity(board);
+    }
+
+    @Override
+    public int removeBoards(Collection<String> boardIds) {
+
+        return mongodb.removeEntities(Board.class, "{_id: {$in: #}}", toObjectIds(boardIds));
+    }
+
+    //players
+
+    @Override
+    public Player getPlayer(String playerId) {
+
+        return mongodb.getEntity("{_id: #}", Player.class, new ObjectId(playerId));
+    }
+
+    @Override
+    public List<Player> getPlayers(Collection<String> playerIds) {
+
+        return mongodb.getEntities("{_id: {$in: #}}", Player.class, toObjectIds(playerIds));
+    }
+
+    @Override
+    public Player savePlayer(Player player) {
+
+        return mongodb.updateEntity(player);
+    }
+
+    //move log
+
+    @Override
+    public void insertMove(Move move) {
+
+        mongodb.insertEntity(move);
+    }
+
+    @Override
+    public List<Move> getMoves(String playId, int fromSeq, int toSeq) {
+
+        return mongodb.getSortedEntities("{playId: #, seq: {$gte: #, $lte: #}}", "{seq: 1}", 0, Move.class, playId,
+            fromSeq, toSeq);
+    }
+
+    @Override
+    public EntityCursor<Move> streamMoves(String playId, int fromSeq, int toSeq) {
+
+        return new MongoEntityCursor<Move>(mongodb.streamEntities("{playId: #, seq: {$gte: #, $lte: #}}",
+            "{seq: 1}", Move.class, playId, fromSeq, toSeq));
+    }
+
+    @Override
+    public long countMoves(String playId, int fromSeq, int toSeq) {
+
+        return mongodb.count(Move.class, "{playId: #, seq: {$gte: #, $lte: #}}", playId, fromSeq, toSeq);
+    }
+
+    @Override
+    public void insertSnapshot(BoardSnapshot snapshot) {
+
+        mongodb.insertEntity(snapshot);
+    }
+
+    @Override
+    public BoardSnapshot getLatestSnapshot(String playId, int maxSeq) {
+
+        List<BoardSnapshot> snapshots = mongodb.getSortedEntities("{playId: #, seq: {$lte: #}}", "{seq: -1}", 1,
+            BoardSnapshot.class, playId, maxSeq);
+        return snapshots != null && !snapshots.isEmpty() ? snapshots.get(0) : null;
+    }
+
+    @Override
+    public int removeMoves(Collection<String> playIds) {
+
+        return mongodb.removeEntities(Move.class, "{playId: {$in: #}}", playIds);
+    }
+
+    @Override
+    public int removeSnapshots(Collection<String> playIds) {
+
+        return mongodb.removeEntities(BoardSnapshot.class, "{playId: {$in: #}}", playIds);
+    }
+
+    @Override
+    public int expireMoves(Collection<String> playIds, Date expireAt) {
+
+        Object[] queryParams = new Object[] {playIds};
+        return mongodb.updateEntities(Move.class, "{playId: {$in: #}}", queryParams, "{$set: {expireAt: #}}",
+            expireAt) + mongodb.updateEntities(BoardSnapshot.class, "{playId: {$in: #}}", queryParams,
+                "{$set: {expireAt: #}}", expireAt);
+    }
+
+    //player stats
+
+    @Override
+    public PlayerStats getPlayerStats(String playerId) {
+
+        return mongodb.getEntity("{_id: #}", PlayerStats.class, new ObjectId(playerId));
+    }
+
+    @Override
+    public PlayerStats incrementPlayerStats(Player player, int wins, int losses, int draws, int points,
+        double ratingChange) {
+
+        return mongodb.upsertEntity(PlayerStats.class, "{_id: #}", new Object[] {new ObjectId(player.getId())},
+            "{$set: {name: #}, $inc: {wins: #, losses: #, draws: #, points: #, ratingChange: #}}", player.getName(),
+            wins, losses, draws, points, ratingChange);
+    }
+
+    @Override
+    public List<PlayerStats> getTopPlayerStats(int limit) {
+
+        return mongodb.getSortedEntities("{}", TOP_PLAYER_STATS_SORT, limit, PlayerStats.class);
+    }
+
+    @Override
+    public EntityCursor<PlayerStats> streamPlayerStats() {
+
+        return new MongoEntityCursor<PlayerStats>(mongodb.streamEntities("{}", "{}", PlayerStats.class));
+    }
+
+    //migrations
+
+    @Override
+    public boolean isMigrationCompleted(String migrationId) {
+
+        return mongodb.count(Migration.class, "{_id: #}", migrationId) > 0;
+    }
+
+    @Override
+    public void saveMigration(Migration migration) {
+
+        mongodb.updateEntity(migration);
+    }
+
+    //private methods
+
+    private static List<String> getStateNames(List<PlayState> playStates) {
+
+        List<String> states = new ArrayList<String>(playStates.size());
+        for (PlayState playState : playStates) {
+            states.add(playState.name());
+        }
+        return states;
+    }
+
+    private static List<ObjectId> toObjectIds(Collection<String> ids) {
+
+        List<ObjectId> objectIds = new ArrayList<ObjectId>(ids.size());
+        for (String id : ids) {
+            objectIds.add(new ObjectId(id));
+        }
+        return objectIds;
+    }
+
+    /**
+     * Wraps a jongo cursor, fetching the entities in batches while iterating
+     */
+    private static class MongoEntityCursor<T> implements EntityCursor<T> {
+
+        private final MongoCursor<T> cursor;
+
+        MongoEntityCursor(MongoCursor<T> cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public boolean hasNext() {
+
+            return cursor.hasNext();
+        }
+
+        @Override
+        public T next() {
+
+            return cursor.next();
+        }
+
+        @Override
+        public Iterator<T> iterator() {
+
+            return this;
+        }
+
+        @Override
+        public void close() {
+
+            try {
+                cursor.close();
+            }
+            catch (IOException e) {
+                log.warning("Cursor not closed: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.shravan.gameofstones.repository;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Logger;
+import com.shravan.gameofstones.core.Mongodb;
+
+/**
+ * Holds the {@link GameRepository} used by all the entities, selected at
+ * startup with the system property gameofstones.storage:
+ * <ul>
+ * <li>mongo: {@link MongoGameRepository}. Default</li>
+ * <li>memory: {@link InMemoryGameRepository}, nothing survives a restart</li>
+ * <li>log: {@link LogGameRepository}, in the file set with the system property
+ * gameofstones.log.path. Default gameofstones-data/games.log</li>
+ * </ul>
+ *
+ * @author shravanshetty
+ */
+public class Repositories {
+
+    private static Logger log = Logger.getLogger(Repositories.class.getSimpleName());
+    public static final String STORAGE_PROPERTY = "gameofstones.storage";
+
+    private static volatile GameRepository gameRepository;
+
+    private Repositories() {
+    }
+
+    /**
+     * Gets the configured repository, creating it with the first access
+     *
+     * @return GameRepository singleton instance
+     */
+    public static GameRepository getGameRepository() {
+
+        GameRepository repository = gameRepository;
+        if (repository == null) {
+            synchronized (Repositories.class) {
+                repository = gameRepository;
+                if (repository == null) {
+                    repository = createGameRepository(System.getProperty(STORAGE_PROPERTY, "mongo"));
+                    gameRepository = repository;
+                }
+            }
+        }
+        return repository;
+    }
+
+    /**
+     * Replaces the repository used by all the entities. Used to embed the game
+     * with a custom storage, or to start tests with an empty one.
+     *
+     * @param repository
+     *            If null, the configured repository is used again, created
+     *            with the next access
+     */
+    public static void setGameRepository(GameRepository repository) {
+
+        gameRepository = repository;
+    }
+
+    //private methods
+
+    private static GameRepository createGameRepository(String storage) {
+
+        log.info("Storing the game in: " + storage);
+        switch (storage) {
+            case "memory":
+                return new InMemoryGameRepository();
+            case "log":
+                Path logPath = Paths.get(System.getProperty(LogGameRepository.PATH_PROPERTY,
+                    "gameofstones-data/games.log"));
+                try {
+                    return new LogGameRepository(logPath);
+                }
+                catch (IOException e) {
+                    throw new IllegalStateException(
+                        String.format("Game log: %s cannot be opened: %s", logPath, e.getMessage()), e);
+                }
+            case "mongo":
+                return new MongoGameRepository(Mongodb.getInstance());
+            default:
+                throw new IllegalArgumentException(
+                    String.format("Storage: %s is unknown. Use mongo, memory or log in %s", storage, STORAGE_PROPERTY));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.shravan.gameofstones.resource;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.PUT;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response.Status;
+import com.shravan.gameofstones.core.RestResponse;
+import com.shravan.gameofstones.model.PlayRouter;
+import com.shravan.gameofstones.util.JSONFormatter;
+
+@Path("cluster")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class ClusterResource {
+
+    private final PlayRouter playRouter;
+
+    /**
+     * Serves the {@link PlayRouter} of this process
+     */
+    public ClusterResource() {
+        this(PlayRouter.getInstance());
+    }
+
+    public ClusterResource(PlayRouter playRouter) {
+        this.playRouter = playRouter;
+    }
+
+    /**
+     * Resource method to fetch the nodes the plays are routed to
+     *
+     * @return {@link RestResponse} having the URL of this node (self) and of
+     *         all the nodes as the result
+     */
+    @GET
+    public RestResponse getCluster() {
+
+        return RestResponse.ok(JSONFormatter.serialize(getNodes()));
+    }
+
+    /**
+     * Resource method to replace the nodes, when a node joins or leaves. The
+     * plays this node no longer owns are released, see
+     * {@link PlayRouter#setNodes(java.util.Collection)}. Must be sent to every
+     * node with the same nodes, the leaving node first and the joining node
+     * last. Only the allowed nodes can be set
+     * (gameofstones.cluster.allowedNodes), as requests are forwarded to them.
+     *
+     * @param nodes
+     *            The URLs of all the nodes. Cannot be empty. Without this node,
+     *            this node leaves: it releases all its plays, and forwards the
+     *            requests it still receives.
+     * @return {@link RestResponse} having the URL of this node (self), of all
+     *         the nodes and the number of plays released as the result
+     */
+    @PUT
+    @Path("nodes")
+    public RestResponse setNodes(List<String> nodes) {
+
+        if (nodes == null) {
+            return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(), "Nodes cannot be null");
+        }
+        if (nodes.isEmpty()) {
+            //a node without nodes would serve every play
+            return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(), "Nodes cannot be empty");
+        }
+        if (!playRouter.isAllowed(nodes)) {
+            return RestResponse.forbidden(String.format("Nodes: %s are not all allowed", nodes));
+        }
+        int releasedPlays;
+        try {
+            releasedPlays = playRouter.setNodes(nodes);
+        }
+        catch (IllegalStateException e) {
+            return RestResponse.error(Status.SERVICE_UNAVAILABLE.getStatusCode(),
+                e.getMessage() + ". Please try again");
+        }
+        Map<String, Object> cluster = getNodes();
+        cluster.put("releasedPlays", releasedPlays);
+        return RestResponse.ok(JSONFormatter.serialize(cluster));
+    }
+
+    //private methods
+
+    private Map<String, Object> getNodes() {
+
+        Map<String, Object> cluster = new LinkedHashMap<String, Object>();
+        cluster.put("self", playRouter.getSelf());
+        cluster.put("nodes", playRouter.getNodes());
+        return cluster;
+    }
+}
@@ -1,7 +1,11 @@
 package com.shravan.gameofstones.resource;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
 import javax.ws.rs.GET;
@@ -11,12 +15,23 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import com.shravan.gameofstones.core.PlayLocks;
 import com.shravan.gameofstones.core.RestResponse;
 import com.shravan.gameofstones.exception.BadMoveException;
+import com.shravan.gameofstones.exception.ConflictException;
+import com.shravan.gameofstones.model.MatchmakingQueue;
+import com.shravan.gameofstones.model.Move;
+import com.shravan.gameofstones.model.MoveLog;
 import com.shravan.gameofstones.model.Play;
 import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.model.PlayArchive;
+import com.shravan.gameofstones.model.PlayReaper;
+import com.shravan.gameofstones.model.PlaySnapshotMigration;
 import com.shravan.gameofstones.model.Player;
+import com.shravan.gameofstones.model.RatingIndex;
 import com.shravan.gameofstones.util.JSONFormatter;
 
 @Path("play")
@@ -24,6 +39,17 @@ import com.shravan.gameofstones.util.JSONFormatter;
 @Produces(MediaType.APPLICATION_JSON)
 public class PlayResource {
 
+    static {
+        //idle plays are aborted in the background, once the resources are loaded
+        PlayReaper.getInstance().start();
+        //finished plays are moved to the archive in the background
+        PlayArchive.getInstance().start();
+        //plays saved before their board and players were embedded are migrated once
+        PlaySnapshotMigration.startOnce();
+        //ratings are indexed in memory from the persisted player stats
+        RatingIndex.getInstance().startLoading();
+    }
+
     @GET
     @Path("ping")
     public String ping() {
@@ -58,6 +84,109 @@ public class PlayResource {
         }
     }
 
+    /**
+     * Resource method to stream the history of a {@link Play}, as newline
+     * delimited JSON. Every line has a move and the state of the play right
+     * after it. See {@link MoveLog#writeHistory(Play, Integer, Integer, OutputStream)}
+     * 
+     * @param playId
+     *            A valid playId whose history is fetched
+     * @param fromSeq
+     *            The first move to be fetched (1-based). If null, from the
+     *            first move.
+     * @param toSeq
+     *            The last move to be fetched. If null, till the last move.
+     * @return The streamed history, or a {@link RestResponse} with the error.
+     *         If moves are missing in the log, the history is incomplete and
+     *         not streamed. The history of an archived play is streamed from
+     *         the moves archived along with it.
+     */
+    @GET
+    @Path("{playId}/history")
+    @Produces({MoveLog.NDJSON, MediaType.APPLICATION_JSON})
+    public Response getPlayHistory(@PathParam("playId") String playId, @QueryParam("fromSeq") Integer fromSeq,
+        @QueryParam("toSeq") Integer toSeq) {
+
+        if (fromSeq != null && toSeq != null && fromSeq > toSeq) {
+            return RestResponse.error(Status.BAD_REQUEST.getStatusCode(),
+                String.format("fromSeq: %s cannot be after toSeq: %s", fromSeq, toSeq)).buildResponse();
+        }
+        final Play play = playId != null ? Play.getPlay(playId) : null;
+        if (play == null) {
+            return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(),
+                String.format("Play for Id: %s not found", playId)).buildResponse();
+        }
+        //the status is sent before the history, so the moves are checked first
+        int missingMoves = MoveLog.countMissingMoves(play, toSeq);
+        //the moves of an archived play are no longer logged, but archived along with it
+        final List<Move> archivedMoves = missingMoves > 0 ? PlayArchive.getInstance().getMoves(playId) : null;
+        if (archivedMoves != null) {
+            missingMoves = MoveLog.countMissingMoves(play, archivedMoves, toSeq);
+        }
+        if (missingMoves > 0) {
+            return RestResponse.error(Status.INTERNAL_SERVER_ERROR.getStatusCode(),
+                String.format("History of play: %s is incomplete. %s moves are not logged", playId, missingMoves))
+                .buildResponse();
+        }
+        final Integer firstSeq = fromSeq;
+        final Integer lastSeq = toSeq;
+        StreamingOutput history = new StreamingOutput() {
+
+            @Override
+            public void write(OutputStream outputStream) throws IOException {
+
+                if (archivedMoves != null) {
+                    MoveLog.writeHistory(play, archivedMoves, firstSeq, lastSeq, outputStream);
+                }
+                else {
+                    MoveLog.writeHistory(play, firstSeq, lastSeq, outputStream);
+                }
+            }
+        };
+        return Response.ok(history, MoveLog.NDJSON).build();
+    }
+
+    /**
+     * Resource method to pair the given {@link Player} with another player
+     * looking for a game. Waits for an opponent, up to the configured
+     * {@link MatchmakingQueue#getTimeoutMillis()}
+     * 
+     * @param player
+     *            The player looking for a game
+     * @return {@link RestResponse} having the {@link Play#getFullPlayDetails()}
+     *         of the started play as the result
+     */
+    @POST
+    @Path("matchmaking")
+    public RestResponse matchmaking(Player player) {
+
+        if (player != null) {
+            player.createOrUpdate();
+            try {
+                Play play = MatchmakingQueue.getInstance().match(player);
+                if (play != null) {
+                    return RestResponse.ok(JSONFormatter.serialize(play.getFullPlayDetails()));
+                }
+                return RestResponse.error(Status.NOT_FOUND.getStatusCode(),
+                    String.format("No opponent found for player: %s within %s ms. Please try again", player.getId(),
+                        MatchmakingQueue.getInstance().getTimeoutMillis()));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return RestResponse.error(Status.SERVICE_UNAVAILABLE.getStatusCode(),
+                    String.format("Matchmaking of player: %s was interrupted", player.getId()));
+            }
+            catch (ExecutionException e) {
+                return RestResponse.error(Status.INTERNAL_SERVER_ERROR.getStatusCode(),
+                    String.format("Play for player: %s could not be started: %s", player.getId(),
+                        e.getCause().getMessage()));
+            }
+        }
+        else {
+            return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(), "Player cannot be null");
+        }
+    }
+
     /**
      * Resource method to add a {@link Player} to a two player game
      * 
@@ -75,10 +204,21 @@ public class PlayResource {
     @Produces(MediaType.APPLICATION_JSON)
     public RestResponse playerJoin(@QueryParam("playId") String playId, Player player) {
 
-        Play play = Play.getPlay(playId);
         if (player != null) {
-            play = Play.addPlayerInPlay(play, player);
-            return RestResponse.ok(JSONFormatter.serialize(play.getFullPlayDetails()));
+            //wait for any ongoing update on the play being joined
+            PlayLocks.Lane lane = playId != null ? PlayLocks.getInstance().acquire(playId) : null;
+            try {
+                Play play = Play.addPlayerInPlay(Play.getPlay(playId), player);
+                return RestResponse.ok(JSONFormatter.serialize(play.getFullPlayDetails()));
+            }
+            catch (ConflictException e) {
+                return RestResponse.error(Status.CONFLICT.getStatusCode(), e.getMessage());
+            }
+            finally {
+                if (lane != null) {
+                    lane.close();
+                }
+            }
         }
         else {
             return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(), String.format(
@@ -124,21 +264,33 @@ public class PlayResource {
     public RestResponse resetPlay(@PathParam("playId") String playId) {
 
         if (playId != null) {
-            Play play = Play.getPlay(playId);
-            if (play != null) {
-                if (!Arrays.asList(PlayState.COMPLETED, PlayState.ABORTED).contains(play.getPlayState())) {
-                    play.setPlayState(PlayState.ABORTED);
-                    play.createOrUpdate();
-                    return RestResponse.ok(JSONFormatter.serialize(play.getFullPlayDetails()));
+            //wait for any ongoing move on this play
+            PlayLocks.Lane lane = PlayLocks.getInstance().acquire(playId);
+            try {
+                Play play = Play.getPlay(playId);
+                if (play != null) {
+                    if (!Arrays.asList(PlayState.COMPLETED, PlayState.ABORTED).contains(play.getPlayState())) {
+                        play.setPlayState(PlayState.ABORTED);
+                        try {
+                            play.createOrUpdate();
+                        }
+                        catch (ConflictException e) {
+                            return RestResponse.error(Status.CONFLICT.getStatusCode(), e.getMessage());
+                        }
+                        return RestResponse.ok(JSONFormatter.serialize(play.getFullPlayDetails()));
+                    }
+                    else {
+                        return RestResponse.error(Status.NOT_ACCEPTABLE.getStatusCode(),
+                            String.format("Play: %s is not ongoing to abort! Status:", playId, play.getPlayState()));
+                    }
                 }
                 else {
-                    return RestResponse.error(Status.NOT_ACCEPTABLE.getStatusCode(),
-                        String.format("Play: %s is not ongoing to abort! Status:", playId, play.getPlayState()));
+                    return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(),
+                        String.format("No Play with id: %s found to reset", playId));
                 }
             }
-            else {
-                return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(),
-                    String.format("No Play with id: %s found to reset", playId));
+            finally {
+                lane.close();
             }
         }
         else {
@@ -165,41 +317,58 @@ public class PlayResource {
         @PathParam("pitIndex") Integer pitIndex) {
 
         if (playId != null) {
-            Play play = Play.getPlay(playId);
-            //check if the play is indeed found
-            if (play != null) {
-                //check if the play is already inprogress, not waiting for players etc
-                if (PlayState.IN_PROGRESS.equals(play.getPlayState())) {
-                    //make sure if the move is performed by the right player (and not player2 making player1s)
-                    boolean isPlayer1ValidMove = play.isPlayer1sMove() && play.getPlayer1Id().equals(playerId);
-                    boolean isPlayer2ValidMove = !play.isPlayer1sMove() && play.getPlayer2Id().equals(playerId);
-                    if (isPlayer1ValidMove || isPlayer2ValidMove) {
-                        try {
-                            play.makeMove(playerId, pitIndex);
-                            return RestResponse.ok(JSONFormatter.serialize(play.getFullPlayDetails()));
+            //moves on the same play are made one after the other
+            PlayLocks.Lane lane = PlayLocks.getInstance().acquire(playId);
+            try {
+                Play play = Play.getPlay(playId);
+                //check if the play is indeed found
+                if (play != null) {
+                    //check if the play is already inprogress, not waiting for players etc
+                    if (PlayState.IN_PROGRESS.equals(play.getPlayState())) {
+                        //make sure if the move is performed by the right player (and not player2 making player1s)
+                        boolean isPlayer1ValidMove = play.isPlayer1sMove() && play.getPlayer1Id().equals(playerId);
+                        boolean isPlayer2ValidMove = !play.isPlayer1sMove() && play.getPlayer2Id().equals(playerId);
+                        if (isPlayer1ValidMove || isPlayer2ValidMove) {
+                            try {
+                                play.makeMove(playerId, pitIndex);
+                                return RestResponse.ok(JSONFormatter.serialize(play.getFullPlayDetails()));
+                            }
+                            catch (BadMoveException e) {
+                                return RestResponse.error(Status.BAD_REQUEST.getStatusCode(), e.getMessage());
+                            }
+                            //another move on this play was saved since it was read
+                            catch (ConflictException e) {
+                                return RestResponse.error(Status.CONFLICT.getStatusCode(), e.getMessage());
+                            }
+                            //the move is applied, but not durable yet
+                            catch (IllegalStateException e) {
+                                return RestResponse.error(Status.INTERNAL_SERVER_ERROR.getStatusCode(),
+                                    e.getMessage());
+                            }
                         }
-                        catch (BadMoveException e) {
-                            return RestResponse.error(Status.BAD_REQUEST.getStatusCode(), e.getMessage());
+                        //check if the player is currently not part of the game
+                        else if (Arrays.asList(play.getPlayer1Id(), play.getPlayer2Id()).contains(playerId)) {
+                            return RestResponse.error(Status.NOT_ACCEPTABLE.getStatusCode(),
+                                String.format("Its not Player with id: %s chance for a move.", playerId, play.getId()));
+                        }
+                        else {
+                            return RestResponse.error(Status.FORBIDDEN.getStatusCode(), String.format(
+                                "Given Player with id: %s is not part of Play with id: %s", playerId, play.getId()));
                         }
-                    }
-                    //check if the player is currently not part of the game
-                    else if (Arrays.asList(play.getPlayer1Id(), play.getPlayer2Id()).contains(playerId)) {
-                        return RestResponse.error(Status.NOT_ACCEPTABLE.getStatusCode(),
-                            String.format("Its not Player with id: %s chance for a move.", playerId, play.getId()));
                     }
                     else {
-                        return RestResponse.error(Status.FORBIDDEN.getStatusCode(), String.format(
-                            "Given Player with id: %s is not part of Play with id: %s", playerId, play.getId()));
+                        return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(),
+                            String.format("The given Play with id: %s is not inprogress. Status: %s", play.getId(),
+                                play.getPlayState()));
                     }
                 }
                 else {
-                    return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(), String.format(
-                        "The given Play with id: %s is not inprogress. Status: %s", play.getId(), play.getPlayState()));
+                    return RestResponse.error(Status.NOT_FOUND.getStatusCode(),
+                        String.format("No Play with id: %s found to make a move.", playId));
                 }
             }
-            else {
-                return RestResponse.error(Status.NOT_FOUND.getStatusCode(),
-                    String.format("No Play with id: %s found to make a move.", playId));
+            finally {
+                lane.close();
             }
         }
         else {
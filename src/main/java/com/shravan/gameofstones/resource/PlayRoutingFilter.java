@@ -0,0 +1,201 @@
+package com.shravan.gameofstones.resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.logging.Logger;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.PathSegment;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import com.shravan.gameofstones.core.RestResponse;
+import com.shravan.gameofstones.model.PlayRouter;
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerRequestFilter;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+
+/**
+ * Forwards the requests on a play to the node owning it (see
+ * {@link PlayRouter}), so that any node accepts every request. The response
+ * of the owner, streamed back as is, has the URL of the node that served it in
+ * the header {@link #NODE_HEADER}.
+ * <p>
+ * A forwarded request is marked with the header {@link #FORWARDED_HEADER}, and
+ * never forwarded again, so a request is forwarded at most once. It is only
+ * served if the node receiving it owns the play: while the nodes do not agree
+ * on the owners, or while the play moves to another node (see
+ * {@link PlayRouter#isMoving(String)}), the request fails with
+ * {@link Status#SERVICE_UNAVAILABLE}, and can be sent again. Matchmaking
+ * requests are routed to the owner of {@link PlayRouter#MATCHMAKING_KEY}. The
+ * other requests creating a play (simultaneous start, joining without a
+ * playId) are served locally. If the owner cannot be reached, the request
+ * fails with {@link Status#SERVICE_UNAVAILABLE} as well.
+ * <p>
+ * Configured with the system properties:
+ * <ul>
+ * <li>gameofstones.cluster.connectTimeoutMillis: Time waited to connect to the
+ * owner. Default 1000</li>
+ * <li>gameofstones.cluster.readTimeoutMillis: Time waited for each read from
+ * the owner. Default 60000, longer than a player waits for an opponent</li>
+ * </ul>
+ *
+ * @author shravanshetty
+ */
+public class PlayRoutingFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    private static Logger log = Logger.getLogger(PlayRoutingFilter.class.getSimpleName());
+    public static final String NODE_HEADER = "X-GameOfStones-Node";
+    public static final String FORWARDED_HEADER = "X-GameOfStones-Forwarded-By";
+    private static final int CONNECT_TIMEOUT_MILLIS = Integer.getInteger("gameofstones.cluster.connectTimeoutMillis",
+        1000);
+    private static final int READ_TIMEOUT_MILLIS = Integer.getInteger("gameofstones.cluster.readTimeoutMillis",
+        60000);
+
+    private final PlayRouter playRouter;
+
+    /**
+     * Routes with the {@link PlayRouter} of this process
+     */
+    public PlayRoutingFilter() {
+        this(PlayRouter.getInstance());
+    }
+
+    public PlayRoutingFilter(PlayRouter playRouter) {
+        this.playRouter = playRouter;
+    }
+
+    @Override
+    public ContainerRequest filter(ContainerRequest request) {
+
+        if (!playRouter.isEnabled()) {
+            return request;
+        }
+        String routingKey = getRoutingKey(request);
+        if (routingKey == null) {
+            return request;
+        }
+        boolean isForwarded = request.getHeaderValue(FORWARDED_HEADER) != null;
+        if (playRouter.isMoving(routingKey) || (isForwarded && !playRouter.isLocal(routingKey))) {
+            throw new WebApplicationException(RestResponse.error(Status.SERVICE_UNAVAILABLE.getStatusCode(),
+                String.format("Node: %s does not serve: %s for now. Please try again", playRouter.getSelf(),
+                    routingKey)).buildResponse());
+        }
+        if (!playRouter.isLocal(routingKey)) {
+            throw new WebApplicationException(forward(request, routingKey, playRouter.getOwner(routingKey)));
+        }
+        return request;
+    }
+
+    @Override
+    public ContainerResponse filter(ContainerRequest request, ContainerResponse response) {
+
+        //a forwarded response already names the owner
+        if (playRouter.isEnabled() && !response.getHttpHeaders().containsKey(NODE_HEADER)) {
+            response.getHttpHeaders().putSingle(NODE_HEADER, playRouter.getSelf());
+        }
+        return response;
+    }
+
+    //private methods
+
+    /**
+     * Gets the key the request is routed by: the id of the play the request is
+     * about, or {@link PlayRouter#MATCHMAKING_KEY}
+     *
+     * @return The routing key, or null if the request is served by any node
+     */
+    private static String getRoutingKey(ContainerRequest request) {
+
+        List<PathSegment> segments = request.getPathSegments(true);
+        if (segments.size() < 2 || !"play".equals(segments.get(0).getPath())) {
+            return null;
+        }
+        String resource = segments.get(1).getPath();
+        switch (resource) {
+            case "makeMove":
+            case "reset":
+                return segments.size() > 2 ? segments.get(2).getPath() : null;
+            case "twoPlayer":
+                return segments.size() > 2 && "player".equals(segments.get(2).getPath()) ? request
+                    .getQueryParameters().getFirst("playId") : null;
+            case "matchmaking":
+                return PlayRouter.MATCHMAKING_KEY;
+            case "ping":
+                return null;
+            default:
+                //play/{playId} and play/{playId}/history
+                return resource.isEmpty() ? null : resource;
+        }
+    }
+
+    /**
+     * Sends the request to the owner of the routing key, and streams its
+     * response back
+     */
+    private Response forward(ContainerRequest request, String routingKey, String owner) {
+
+        String query = request.getRequestUri().getRawQuery();
+        String url = owner + "/" + request.getPath(false) + (query != null ? "?" + query : "");
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+            connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+            connection.setRequestMethod(request.getMethod());
+            connection.setRequestProperty(FORWARDED_HEADER, playRouter.getSelf());
+            for (String header : new String[] {HttpHeaders.CONTENT_TYPE, HttpHeaders.ACCEPT}) {
+                if (request.getHeaderValue(header) != null) {
+                    connection.setRequestProperty(header, request.getHeaderValue(header));
+                }
+            }
+            if (HttpMethod.POST.equals(request.getMethod()) || HttpMethod.PUT.equals(request.getMethod())) {
+                connection.setDoOutput(true);
+                try (OutputStream outputStream = connection.getOutputStream()) {
+                    copy(request.getEntityInputStream(), outputStream);
+                }
+            }
+            int status = connection.getResponseCode();
+            final InputStream inputStream = status >= 400 ? connection.getErrorStream()
+                : connection.getInputStream();
+            ResponseBuilder responseBuilder = Response.status(status).entity(new StreamingOutput() {
+
+                @Override
+                public void write(OutputStream outputStream) throws IOException {
+
+                    //the connection is kept alive for the next request, once its response is read
+                    if (inputStream != null) {
+                        try (InputStream responseStream = inputStream) {
+                            copy(responseStream, outputStream);
+                        }
+                    }
+                }
+            });
+            if (connection.getContentType() != null) {
+                responseBuilder.type(connection.getContentType());
+            }
+            return responseBuilder.header(NODE_HEADER, connection.getHeaderField(NODE_HEADER)).build();
+        }
+        catch (IOException e) {
+            log.warning(String.format("Request on: %s not forwarded to: %s: %s", routingKey, owner,
+                e.getMessage()));
+            return RestResponse.error(Status.SERVICE_UNAVAILABLE.getStatusCode(),
+                String.format("Node: %s owning: %s cannot be reached", owner, routingKey)).buildResponse();
+        }
+    }
+
+    private static void copy(InputStream inputStream, OutputStream outputStream) throws IOException {
+
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = inputStream.read(buffer)) != -1) {
+            outputStream.write(buffer, 0, length);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.shravan.gameofstones.resource;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response.Status;
+import com.shravan.gameofstones.core.RestResponse;
+import com.shravan.gameofstones.model.Leaderboard;
+import com.shravan.gameofstones.model.Player;
+import com.shravan.gameofstones.model.PlayerStats;
+import com.shravan.gameofstones.model.RatingIndex;
+import com.shravan.gameofstones.model.RatingIndex.Rating;
+import com.shravan.gameofstones.util.JSONFormatter;
+
+@Path("players")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class PlayerResource {
+
+    public static final int DEFAULT_NEARBY_COUNT = 10;
+    public static final int MAX_NEARBY_COUNT = 100;
+    /**
+     * Ranks are indexed in memory, which the nodes of a cluster do not share.
+     * See {@link RatingIndex}
+     */
+    private static final String RANKS_NOT_SERVED = "Ranks are not served by the nodes of a cluster";
+
+    /**
+     * Resource method to fetch the top players, best first
+     *
+     * @param limit
+     *            Maximum number of players to be fetched. Defaults to the
+     *            configured {@link Leaderboard#getSize()}
+     * @return {@link RestResponse} having the list of {@link PlayerStats} as
+     *         the result
+     */
+    @GET
+    @Path("leaderboard")
+    public RestResponse getLeaderboard(@QueryParam("limit") Integer limit) {
+
+        if (limit != null && limit <= 0) {
+            return RestResponse.error(Status.BAD_REQUEST.getStatusCode(),
+                String.format("Limit: %s must be positive", limit));
+        }
+        Leaderboard leaderboard = Leaderboard.getInstance();
+        return RestResponse.ok(JSONFormatter.serialize(
+            leaderboard.getTopPlayers(limit != null ? limit : leaderboard.getSize())));
+    }
+
+    /**
+     * Resource method to fetch the wins, losses and draws of a {@link Player}
+     *
+     * @param playerId
+     *            A valid playerId whose stats are fetched
+     * @return {@link RestResponse} having the {@link PlayerStats} as the result
+     */
+    @GET
+    @Path("{playerId}/stats")
+    public RestResponse getPlayerStats(@PathParam("playerId") String playerId) {
+
+        PlayerStats playerStats = PlayerStats.getPlayerStats(playerId);
+        if (playerStats != null) {
+            return RestResponse.ok(JSONFormatter.serialize(playerStats));
+        }
+        else {
+            return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(),
+                String.format("No completed plays found for player: %s", playerId));
+        }
+    }
+
+    /**
+     * Resource method to fetch the rating and rank of a {@link Player}
+     *
+     * @param playerId
+     *            A valid playerId whose rating is fetched
+     * @return {@link RestResponse} having the {@link Rating} as the result
+     */
+    @GET
+    @Path("{playerId}/rating")
+    public RestResponse getRating(@PathParam("playerId") String playerId) {
+
+        if (!RatingIndex.getInstance().isEnabled()) {
+            return RestResponse.error(Status.SERVICE_UNAVAILABLE.getStatusCode(), RANKS_NOT_SERVED);
+        }
+        Rating rating = RatingIndex.getInstance().getRating(playerId);
+        if (rating != null) {
+            return RestResponse.ok(JSONFormatter.serialize(rating));
+        }
+        else {
+            return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(),
+                String.format("No completed plays found for player: %s", playerId));
+        }
+    }
+
+    /**
+     * Resource method to fetch the players ranked around a {@link Player}
+     *
+     * @param playerId
+     *            A valid playerId
+     * @param count
+     *            Maximum number of players to be fetched, including the
+     *            player. Default {@link PlayerResource#DEFAULT_NEARBY_COUNT},
+     *            at most {@link PlayerResource#MAX_NEARBY_COUNT}
+     * @return {@link RestResponse} having the list of {@link Rating} as the
+     *         result, best first
+     */
+    @GET
+    @Path("{playerId}/nearby")
+    public RestResponse getNearbyRatings(@PathParam("playerId") String playerId,
+        @QueryParam("count") Integer count) {
+
+        if (count != null && (count <= 0 || count > MAX_NEARBY_COUNT)) {
+            return RestResponse.error(Status.BAD_REQUEST.getStatusCode(),
+                String.format("Count: %s must be between 1 and %s", count, MAX_NEARBY_COUNT));
+        }
+        RatingIndex ratingIndex = RatingIndex.getInstance();
+        if (!ratingIndex.isEnabled()) {
+            return RestResponse.error(Status.SERVICE_UNAVAILABLE.getStatusCode(), RANKS_NOT_SERVED);
+        }
+        if (ratingIndex.getRating(playerId) == null) {
+            return RestResponse.error(Status.PRECONDITION_FAILED.getStatusCode(),
+                String.format("No completed plays found for player: %s", playerId));
+        }
+        return RestResponse.ok(JSONFormatter.serialize(
+            ratingIndex.getNearbyRatings(playerId, count != null ? count : DEFAULT_NEARBY_COUNT)));
+    }
+}
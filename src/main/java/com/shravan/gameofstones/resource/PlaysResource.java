@@ -0,0 +1,73 @@
+package com.shravan.gameofstones.resource;
+
+import java.util.List;
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response.Status;
+import org.bson.types.ObjectId;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.shravan.gameofstones.core.RestResponse;
+import com.shravan.gameofstones.model.Play;
+import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.util.JSONFormatter;
+
+@Path("plays")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class PlaysResource {
+
+    public static final int DEFAULT_LIMIT = 20;
+    public static final int MAX_LIMIT = 100;
+
+    /**
+     * Resource method to list the plays, newest first, one page at a time
+     *
+     * @param playerId
+     *            If given, only the plays of this player
+     * @param state
+     *            If given, only the plays in this {@link PlayState}
+     * @param after
+     *            If given, the plays after this playId: the next of the
+     *            previous page
+     * @param limit
+     *            Maximum number of plays in the page. Default
+     *            {@link PlaysResource#DEFAULT_LIMIT}, at most
+     *            {@link PlaysResource#MAX_LIMIT}
+     * @return {@link RestResponse} having the {@link Play#getFullPlayDetails()}
+     *         of the plays in the page, and the next playId to be passed as
+     *         after, or null if this is the last page
+     */
+    @GET
+    public RestResponse getPlays(@QueryParam("playerId") String playerId, @QueryParam("state") String state,
+        @QueryParam("after") String after, @QueryParam("limit") Integer limit) {
+
+        if (limit != null && (limit <= 0 || limit > MAX_LIMIT)) {
+            return RestResponse.error(Status.BAD_REQUEST.getStatusCode(),
+                String.format("Limit: %s must be between 1 and %s", limit, MAX_LIMIT));
+        }
+        PlayState playState = state != null ? PlayState.getValue(state) : null;
+        if (state != null && playState == null) {
+            return RestResponse.error(Status.BAD_REQUEST.getStatusCode(),
+                String.format("State: %s is not a valid play state", state));
+        }
+        if (after != null && !ObjectId.isValid(after)) {
+            return RestResponse.error(Status.BAD_REQUEST.getStatusCode(),
+                String.format("After: %s is not a valid playId", after));
+        }
+        int pageSize = limit != null ? limit : DEFAULT_LIMIT;
+        //one more play is read to know if there is a next page
+        List<Play> plays = Play.getPlays(playerId, playState, after, pageSize + 1);
+        ObjectNode pageNode = JSONFormatter.getMapper().createObjectNode();
+        ArrayNode playsNode = pageNode.putArray("plays");
+        for (Play play : plays.subList(0, Math.min(pageSize, plays.size()))) {
+            playsNode.add(play.getFullPlayDetails());
+        }
+        pageNode.put("next", plays.size() > pageSize ? plays.get(pageSize - 1).getId() : null);
+        return RestResponse.ok(JSONFormatter.serialize(pageNode));
+    }
+}
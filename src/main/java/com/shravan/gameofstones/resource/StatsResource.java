@@ -0,0 +1,59 @@
+package com.shravan.gameofstones.resource;
+
+import javax.ws.rs.Consumes;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import com.shravan.gameofstones.core.MongoCacheStats;
+import com.shravan.gameofstones.core.MongoPoolStats;
+import com.shravan.gameofstones.core.MongoWriteStats;
+import com.shravan.gameofstones.core.Mongodb;
+import com.shravan.gameofstones.core.RestResponse;
+import com.shravan.gameofstones.util.JSONFormatter;
+
+@Path("stats")
+@Consumes(MediaType.APPLICATION_JSON)
+@Produces(MediaType.APPLICATION_JSON)
+public class StatsResource {
+
+    /**
+     * Resource method to monitor the connection pool of mongo
+     *
+     * @return {@link RestResponse} having the {@link MongoPoolStats} as the
+     *         result
+     */
+    @GET
+    @Path("mongo")
+    public RestResponse getMongoStats() {
+
+        return RestResponse.ok(JSONFormatter.serialize(Mongodb.getInstance().getPoolStats()));
+    }
+
+    /**
+     * Resource method to monitor the write batches flushed to mongo
+     *
+     * @return {@link RestResponse} having the {@link MongoWriteStats} as the
+     *         result
+     */
+    @GET
+    @Path("mongo/writes")
+    public RestResponse getMongoWriteStats() {
+
+        return RestResponse.ok(JSONFormatter.serialize(Mongodb.getInstance().getWriteStats()));
+    }
+
+    /**
+     * Resource method to monitor the lookups served by the read-through cache
+     * of mongo
+     *
+     * @return {@link RestResponse} having the {@link MongoCacheStats} as the
+     *         result
+     */
+    @GET
+    @Path("mongo/cache")
+    public RestResponse getMongoCacheStats() {
+
+        return RestResponse.ok(JSONFormatter.serialize(Mongodb.getInstance().getCacheStats()));
+    }
+}
@@ -0,0 +1,69 @@
+package com.shravan.gameofstones.core;
+
+import static org.junit.Assert.assertThat;
+import org.bson.types.ObjectId;
+import org.hamcrest.Matchers;
+import org.jongo.marshall.Marshaller;
+import org.junit.Test;
+import com.mongodb.DBObject;
+import com.shravan.gameofstones.model.Board;
+import com.shravan.gameofstones.model.Play;
+
+/**
+ * Test class to check that the {@link DocumentDiff} only updates the fields of
+ * a play changed by a move
+ *
+ * @author shravanshetty
+ */
+public class DocumentDiffTest {
+
+    /**
+     * Make a move on a copy of a play. The update must set the changed pits
+     * and the new leader, increment the move counter and the version, and
+     * leave the rest of the document alone.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void moveModifierTest() throws Exception {
+
+        Marshaller marshaller = Mongodb.createMapper().getMarshaller();
+        String playId = new ObjectId().toHexString();
+        String boardId = new ObjectId().toHexString();
+        Play savedPlay = newPlay(playId, boardId);
+        Play play = newPlay(playId, boardId);
+        play.getBoard().makeMove(true, 0);
+        play.getBoard().setPlayer1Moves(1);
+        play.setLeaderId("player1");
+        play.setVersion(2L);
+        DBObject saved = marshaller.marshall(savedPlay).toDBObject();
+
+        DBObject modifier = DocumentDiff.getModifier(saved, marshaller.marshall(play).toDBObject());
+        assertThat(modifier.keySet(), Matchers.containsInAnyOrder("$set", "$inc"));
+        DBObject set = (DBObject) modifier.get("$set");
+        assertThat(set.keySet(), Matchers.containsInAnyOrder("board.player1Pits.0", "board.player1Pits.1",
+            "board.player1Pits.2", "board.player1Pits.3", "board.player1Pits.4", "board.player1Pits.5",
+            "board.player1Pits.6", "leaderId"));
+        assertThat(set.get("board.player1Pits.0"), Matchers.is((Object) 0));
+        assertThat(set.get("board.player1Pits.6"), Matchers.is((Object) 1));
+        DBObject inc = (DBObject) modifier.get("$inc");
+        assertThat(inc.keySet(), Matchers.containsInAnyOrder("board.player1Moves", "version"));
+        assertThat(inc.get("version"), Matchers.is((Object) 1L));
+        //nothing changed
+        assertThat(DocumentDiff.getModifier(saved, marshaller.marshall(savedPlay).toDBObject()).keySet(),
+            Matchers.empty());
+    }
+
+    //private methods
+
+    private static Play newPlay(String playId, String boardId) {
+
+        Board board = Board.setupBoard(false);
+        board.setId(boardId);
+        Play play = new Play();
+        play.setId(playId);
+        play.setBoard(board);
+        play.setVersion(1L);
+        return play;
+    }
+}
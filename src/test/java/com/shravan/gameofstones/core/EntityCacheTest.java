@@ -0,0 +1,100 @@
+package com.shravan.gameofstones.core;
+
+import static org.junit.Assert.assertThat;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+/**
+ * Test class to check that the {@link EntityCache} bounds its documents, and
+ * never serves a document read before a write to it
+ *
+ * @author shravanshetty
+ */
+public class EntityCacheTest {
+
+    private static final byte[] DOCUMENT = new byte[] {1, 2, 3};
+
+    /**
+     * Cache more documents than the cache of a collection holds. The least
+     * recently read one must be evicted, and an expired one must be missed.
+     */
+    @Test
+    public void evictionTest() {
+
+        final AtomicLong now = new AtomicLong(1000);
+        EntityCache entityCache = new EntityCache(Arrays.asList("Player"), 2, 50, new LongSupplier() {
+
+            @Override
+            public long getAsLong() {
+
+                return now.get();
+            }
+        });
+        assertThat(entityCache.isCached("Player"), Matchers.is(true));
+        assertThat(entityCache.isCached("Play"), Matchers.is(false));
+        long generation = entityCache.getGeneration("Player");
+        entityCache.put("Player", "1", "1", DOCUMENT, generation);
+        entityCache.put("Player", "2", "2", DOCUMENT, generation);
+        //read 1, so that 2 is the least recently read
+        assertThat(entityCache.get("Player", "1"), Matchers.is(DOCUMENT));
+        entityCache.put("Player", "3", "3", DOCUMENT, generation);
+        assertThat(entityCache.get("Player", "2"), Matchers.nullValue());
+        assertThat(entityCache.get("Player", "1"), Matchers.is(DOCUMENT));
+        //still served right before its ttl, and expired at it
+        now.addAndGet(49);
+        assertThat(entityCache.get("Player", "1"), Matchers.is(DOCUMENT));
+        now.addAndGet(1);
+        assertThat(entityCache.get("Player", "3"), Matchers.nullValue());
+
+        MongoCacheStats stats = entityCache.getStats();
+        assertThat(stats.getHits(), Matchers.is(3L));
+        assertThat(stats.getMisses(), Matchers.is(2L));
+        assertThat(stats.getEvictions(), Matchers.is(2L));
+        assertThat(stats.getSize(), Matchers.is(1));
+    }
+
+    /**
+     * A write by query to a collection drops all its documents, and a
+     * document read before the write must not be cached after it
+     */
+    @Test
+    public void invalidationTest() {
+
+        EntityCache entityCache = new EntityCache(Arrays.asList("Player", "Board"), 10, 60000);
+        entityCache.put("Player", "1", "1", DOCUMENT, entityCache.getGeneration("Player"));
+        entityCache.put("Board", "1", "1", DOCUMENT, entityCache.getGeneration("Board"));
+        long generationBeforeWrite = entityCache.getGeneration("Player");
+        entityCache.invalidate("Player");
+        assertThat(entityCache.get("Player", "1"), Matchers.nullValue());
+        assertThat(entityCache.get("Board", "1"), Matchers.is(DOCUMENT));
+        //a read that started before the write
+        entityCache.put("Player", "2", "2", DOCUMENT, generationBeforeWrite);
+        assertThat(entityCache.get("Player", "2"), Matchers.nullValue());
+        assertThat(entityCache.getStats().getInvalidations(), Matchers.is(1L));
+    }
+
+    /**
+     * A write of entities must only drop the documents of these entities,
+     * whatever the queries they were read with
+     */
+    @Test
+    public void invalidationByIdTest() {
+
+        EntityCache entityCache = new EntityCache(Arrays.asList("Player"), 10, 60000);
+        long generation = entityCache.getGeneration("Player");
+        entityCache.put("Player", "byId:1", "1", DOCUMENT, generation);
+        entityCache.put("Player", "byName:Player1", "1", DOCUMENT, generation);
+        entityCache.put("Player", "byId:2", "2", DOCUMENT, generation);
+        entityCache.invalidate("Player", Arrays.asList("1"));
+        assertThat(entityCache.get("Player", "byId:1"), Matchers.nullValue());
+        assertThat(entityCache.get("Player", "byName:Player1"), Matchers.nullValue());
+        assertThat(entityCache.get("Player", "byId:2"), Matchers.is(DOCUMENT));
+        //a read that started before the write
+        entityCache.put("Player", "byId:1", "1", DOCUMENT, generation);
+        assertThat(entityCache.get("Player", "byId:1"), Matchers.nullValue());
+        assertThat(entityCache.getStats().getSize(), Matchers.is(1));
+    }
+}
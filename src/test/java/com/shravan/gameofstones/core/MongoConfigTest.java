@@ -0,0 +1,63 @@
+package com.shravan.gameofstones.core;
+
+import static org.junit.Assert.assertThat;
+import java.util.Arrays;
+import java.util.Properties;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test class to check the precedence of the settings of the {@link MongoConfig}
+ *
+ * @author shravanshetty
+ */
+public class MongoConfigTest {
+
+    @After
+    public void tearDown() {
+
+        System.clearProperty("gameofstones.mongo.port");
+        System.clearProperty("gameofstones.mongo.maxPoolSize");
+    }
+
+    /**
+     * A system property must override the config file, and the config file
+     * must override the default
+     *
+     * @throws Exception
+     */
+    @Test
+    public void settingPrecedenceTest() throws Exception {
+
+        Properties fileProperties = new Properties();
+        fileProperties.setProperty("gameofstones.mongo.port", "27018");
+        fileProperties.setProperty("gameofstones.mongo.maxPoolSize", "20");
+        fileProperties.setProperty("gameofstones.mongo.cachedCollections", "Player, Board,");
+        System.setProperty("gameofstones.mongo.maxPoolSize", "50");
+        MongoConfig config = new MongoConfig(fileProperties);
+        assertThat(config.getHost(), Matchers.is("localhost"));
+        assertThat(config.getPort(), Matchers.is(27018));
+        assertThat(config.getMaxPoolSize(), Matchers.is(50));
+        assertThat(config.getCachedCollections(), Matchers.is(Arrays.asList("Player", "Board")));
+    }
+
+    /**
+     * A setting that is not a number must be reported with its name
+     *
+     * @throws Exception
+     */
+    @Test
+    public void invalidSettingTest() throws Exception {
+
+        System.setProperty("gameofstones.mongo.port", "port");
+        try {
+            new MongoConfig(new Properties()).getPort();
+            Assert.fail("An invalid port must not be accepted");
+        }
+        catch (IllegalArgumentException e) {
+            assertThat(e.getMessage(), Matchers.containsString("gameofstones.mongo.port"));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.shravan.gameofstones.core;
+
+import static org.junit.Assert.assertThat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+/**
+ * Test class to check the {@link Mongodb} client setup. The client connects
+ * lazily, so none of these tests needs a running mongo.
+ *
+ * @author shravanshetty
+ */
+public class MongodbTest {
+
+    /**
+     * Concurrent first accesses must all get the same client
+     *
+     * @throws Exception
+     */
+    @Test
+    public void concurrentGetInstanceTest() throws Exception {
+
+        int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Mongodb>> instances = new ArrayList<Future<Mongodb>>();
+            for (int thread = 0; thread < threads; thread++) {
+                instances.add(executor.submit(new Callable<Mongodb>() {
+
+                    @Override
+                    public Mongodb call() throws Exception {
+
+                        start.await();
+                        return Mongodb.getInstance();
+                    }
+                }));
+            }
+            start.countDown();
+            Mongodb mongodb = Mongodb.getInstance();
+            for (Future<Mongodb> instance : instances) {
+                assertThat(instance.get(), Matchers.sameInstance(mongodb));
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The pool stats must report the configured pool, and never more
+     * connections than it holds
+     *
+     * @throws Exception
+     */
+    @Test
+    public void poolStatsTest() throws Exception {
+
+        MongoConfig config = MongoConfig.load();
+        MongoPoolStats stats = Mongodb.getInstance().getPoolStats();
+        assertThat(stats.getHost(), Matchers.is(config.getHost()));
+        assertThat(stats.getPort(), Matchers.is(config.getPort()));
+        assertThat(stats.getMaxSize(), Matchers.is(config.getMaxPoolSize()));
+        assertThat(stats.getInUse(), Matchers.lessThanOrEqualTo(stats.getSize()));
+        assertThat(stats.getSize(), Matchers.lessThanOrEqualTo(stats.getMaxSize()));
+        assertThat(stats.getTimedRequests(), Matchers.lessThanOrEqualTo(stats.getRoundTrips()));
+        assertThat(stats.getAverageWaitMillis(), Matchers.lessThanOrEqualTo(stats.getMaxWaitMillis()));
+    }
+}
@@ -0,0 +1,130 @@
+package com.shravan.gameofstones.core;
+
+import static org.junit.Assert.assertThat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+
+/**
+ * Test class to check that the {@link PlayLocks} serialize the updates on a
+ * play, without blocking the updates on other plays
+ *
+ * @author shravanshetty
+ */
+public class PlayLocksTest {
+
+    private static final int THREADS = 16;
+    private static final int UPDATES_PER_THREAD = 2000;
+    private static final int HOT_PLAYS = 4;
+
+    /**
+     * Fire interleaved, unsynchronized read-modify-write updates from many
+     * threads on a few hot plays. No update must be lost, no two threads must
+     * be in the same lane at once and all lanes must be reclaimed at the end.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void hotPlaysStressTest() throws Exception {
+
+        final PlayLocks playLocks = new PlayLocks();
+        final int[] moveCounters = new int[HOT_PLAYS];
+        final AtomicInteger[] threadsInLane = new AtomicInteger[HOT_PLAYS];
+        final AtomicInteger overlappingUpdates = new AtomicInteger();
+        for (int playIndex = 0; playIndex < HOT_PLAYS; playIndex++) {
+            threadsInLane[playIndex] = new AtomicInteger();
+        }
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<int[]>> results = new ArrayList<Future<int[]>>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            final long seed = thread;
+            results.add(executor.submit(new Callable<int[]>() {
+
+                @Override
+                public int[] call() throws Exception {
+
+                    Random random = new Random(seed);
+                    int[] updates = new int[HOT_PLAYS];
+                    startLatch.await();
+                    for (int update = 0; update < UPDATES_PER_THREAD; update++) {
+                        int playIndex = random.nextInt(HOT_PLAYS);
+                        PlayLocks.Lane lane = playLocks.acquire("play" + playIndex);
+                        try {
+                            if (threadsInLane[playIndex].incrementAndGet() != 1) {
+                                overlappingUpdates.incrementAndGet();
+                            }
+                            int moves = moveCounters[playIndex];
+                            if (update % 50 == 0) {
+                                Thread.yield();
+                            }
+                            moveCounters[playIndex] = moves + 1;
+                            threadsInLane[playIndex].decrementAndGet();
+                        }
+                        finally {
+                            lane.close();
+                        }
+                        updates[playIndex]++;
+                    }
+                    return updates;
+                }
+            }));
+        }
+        startLatch.countDown();
+        int[] expectedMoves = new int[HOT_PLAYS];
+        for (Future<int[]> result : results) {
+            int[] updates = result.get(60, TimeUnit.SECONDS);
+            for (int playIndex = 0; playIndex < HOT_PLAYS; playIndex++) {
+                expectedMoves[playIndex] += updates[playIndex];
+            }
+        }
+        executor.shutdown();
+        assertThat(overlappingUpdates.get(), Matchers.is(0));
+        for (int playIndex = 0; playIndex < HOT_PLAYS; playIndex++) {
+            assertThat(moveCounters[playIndex], Matchers.is(expectedMoves[playIndex]));
+        }
+        //idle lanes are reclaimed
+        assertThat(playLocks.getActiveLaneCount(), Matchers.is(0));
+    }
+
+    /**
+     * A play being updated must not block the updates on another play
+     *
+     * @throws Exception
+     */
+    @Test
+    public void otherPlaysNotBlockedTest() throws Exception {
+
+        final PlayLocks playLocks = new PlayLocks();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        PlayLocks.Lane lane = playLocks.acquire("play1");
+        try {
+            Future<String> otherPlayUpdate = executor.submit(new Callable<String>() {
+
+                @Override
+                public String call() throws Exception {
+
+                    try (PlayLocks.Lane otherLane = playLocks.acquire("play2")) {
+                        return otherLane.getPlayId();
+                    }
+                }
+            });
+            assertThat(otherPlayUpdate.get(5, TimeUnit.SECONDS), Matchers.is("play2"));
+            assertThat(playLocks.getActiveLaneCount(), Matchers.is(1));
+        }
+        finally {
+            lane.close();
+            executor.shutdown();
+        }
+        assertThat(playLocks.getActiveLaneCount(), Matchers.is(0));
+    }
+}
@@ -0,0 +1,193 @@
+package com.shravan.gameofstones.core;
+
+import static org.junit.Assert.assertThat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.mongodb.MongoException;
+
+/**
+ * Test class to check that the {@link WriteCoalescer} flushes the batches of
+ * concurrent requests together, and gives every batch the result of its own
+ * writes
+ *
+ * @author shravanshetty
+ */
+public class WriteCoalescerTest {
+
+    private static final int BATCHES = 5;
+    private static final long WINDOW_MILLIS = 200;
+
+    private ExecutorService executor;
+    /**
+     * The batches of every flush
+     */
+    private List<List<WriteBatch>> flushes;
+    /**
+     * The batches written by all the flushes
+     */
+    private List<WriteBatch> writtenBatches;
+
+    @Before
+    public void setup() {
+
+        executor = Executors.newFixedThreadPool(BATCHES);
+        flushes = Collections.synchronizedList(new ArrayList<List<WriteBatch>>());
+        writtenBatches = Collections.synchronizedList(new ArrayList<WriteBatch>());
+    }
+
+    @After
+    public void tearDown() {
+
+        executor.shutdownNow();
+    }
+
+    /**
+     * Batches written concurrently within the window must be flushed together
+     *
+     * @throws Exception
+     */
+    @Test
+    public void coalesceTest() throws Exception {
+
+        WriteCoalescer writeCoalescer = new WriteCoalescer(WINDOW_MILLIS, newFlusher(null, false));
+        List<WriteBatch> batches = newBatches();
+        for (Future<Void> written : writeAll(writeCoalescer, batches)) {
+            written.get();
+        }
+        assertThat(flushes, Matchers.hasSize(1));
+        assertThat(writtenBatches, Matchers.containsInAnyOrder(batches.toArray()));
+    }
+
+    /**
+     * A write failing in a flush known to stop at it must only fail its own
+     * batch. The batches after it must be flushed again, and written.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void failedBatchTest() throws Exception {
+
+        List<WriteBatch> batches = newBatches();
+        WriteBatch failingBatch = batches.get(2);
+        WriteCoalescer writeCoalescer = new WriteCoalescer(WINDOW_MILLIS, newFlusher(failingBatch, true));
+        List<Future<Void>> results = writeAll(writeCoalescer, batches);
+        for (int index = 0; index < BATCHES; index++) {
+            if (batches.get(index) == failingBatch) {
+                assertThat(getFailure(results.get(index)), Matchers.instanceOf(MongoException.class));
+            }
+            else {
+                results.get(index).get();
+            }
+        }
+        assertThat(writtenBatches, Matchers.hasSize(BATCHES - 1));
+        assertThat(writtenBatches, Matchers.not(Matchers.hasItem(failingBatch)));
+    }
+
+    /**
+     * A write failing in a flush not known to stop at it must fail its own
+     * batch and the ones after it, but not the batches written before it
+     *
+     * @throws Exception
+     */
+    @Test
+    public void failedFlushTest() throws Exception {
+
+        List<WriteBatch> batches = newBatches();
+        WriteBatch failingBatch = batches.get(2);
+        WriteCoalescer writeCoalescer = new WriteCoalescer(WINDOW_MILLIS, newFlusher(failingBatch, false));
+        List<Future<Void>> results = writeAll(writeCoalescer, batches);
+        int failedBatches = 0;
+        for (int index = 0; index < BATCHES; index++) {
+            Throwable failure = getFailure(results.get(index));
+            assertThat(failure == null, Matchers.is(writtenBatches.contains(batches.get(index))));
+            failedBatches += failure != null ? 1 : 0;
+        }
+        assertThat(getFailure(results.get(2)), Matchers.instanceOf(MongoException.class));
+        assertThat(flushes, Matchers.hasSize(1));
+        assertThat(failedBatches, Matchers.is(BATCHES - writtenBatches.size()));
+    }
+
+    //private methods
+
+    /**
+     * Creates a flusher writing all the batches, but the failing one
+     *
+     * @param failingBatch
+     *            The batch whose write fails. Null if none.
+     * @param isNextBatchesUnwritten
+     *            True if the flush stops at the failed write
+     */
+    private WriteCoalescer.Flusher newFlusher(final WriteBatch failingBatch, final boolean isNextBatchesUnwritten) {
+
+        return new WriteCoalescer.Flusher() {
+
+            @Override
+            public void flush(List<WriteBatch> batches) {
+
+                flushes.add(new ArrayList<WriteBatch>(batches));
+                int failedIndex = batches.indexOf(failingBatch);
+                if (failedIndex < 0) {
+                    writtenBatches.addAll(batches);
+                    return;
+                }
+                writtenBatches.addAll(batches.subList(0, failedIndex));
+                throw new WriteCoalescer.FailedBatchException(failedIndex, isNextBatchesUnwritten,
+                    new MongoException("Write failed"));
+            }
+        };
+    }
+
+    private static List<WriteBatch> newBatches() {
+
+        List<WriteBatch> batches = new ArrayList<WriteBatch>();
+        for (int index = 0; index < BATCHES; index++) {
+            batches.add(new WriteBatch().insert(new Object()));
+        }
+        return batches;
+    }
+
+    /**
+     * Writes every batch from its own thread, all at once
+     */
+    private List<Future<Void>> writeAll(final WriteCoalescer writeCoalescer, List<WriteBatch> batches) {
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for (final WriteBatch batch : batches) {
+            results.add(executor.submit(new Callable<Void>() {
+
+                @Override
+                public Void call() throws Exception {
+
+                    start.await();
+                    writeCoalescer.write(batch);
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        return results;
+    }
+
+    private static Throwable getFailure(Future<Void> result) throws InterruptedException {
+
+        try {
+            result.get();
+            return null;
+        }
+        catch (ExecutionException e) {
+            return e.getCause();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.shravan.gameofstones.engine;
+
+import static org.junit.Assert.assertThat;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+import com.shravan.gameofstones.exception.BadMoveException;
+
+/**
+ * Test class to check the game rules of the {@link MoveEngine}. These run
+ * completely in memory.
+ *
+ * @author shravanshetty
+ */
+public class MoveEngineTest {
+
+    /**
+     * Simple test to validate that the first move from the first pit gives
+     * player1 another turn, and that the given pits are not modified.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void firstMoveExtraTurnTest() throws Exception {
+
+        int[] pits = MoveEngine.setupPits();
+        MoveOutcome outcome = MoveEngine.makeMove(pits, true, 0);
+        assertThat(outcome.isExtraTurn(), Matchers.is(true));
+        assertThat(outcome.isCapture(), Matchers.is(false));
+        assertThat(outcome.isGameOver(), Matchers.is(false));
+        assertThat(outcome.getPits(), Matchers.is(new int[] {0, 7, 7, 7, 7, 7, 1, 6, 6, 6, 6, 6, 6, 0}));
+        assertThat(outcome.getPlayer1Score(), Matchers.is(1));
+        //the input state is untouched
+        assertThat(pits, Matchers.is(MoveEngine.setupPits()));
+    }
+
+    /**
+     * Simple test to validate that the last stone landing in an empty pit
+     * captures the stones of the opposite pit
+     *
+     * @throws Exception
+     */
+    @Test
+    public void captureTest() throws Exception {
+
+        int[] pits = MoveEngine.setupPits();
+        MoveEngine.applyMove(pits, true, 0);
+        int flags = MoveEngine.applyMove(pits, true, 1);
+        assertThat(flags, Matchers.is(MoveEngine.CAPTURE));
+        assertThat(pits, Matchers.is(new int[] {1, 7, 8, 8, 8, 8, 2, 6, 6, 6, 6, 0, 6, 0}));
+    }
+
+    /**
+     * Sowing more stones than the pits of a player wraps around the players
+     * pits, skipping the opponent pits
+     *
+     * @throws Exception
+     */
+    @Test
+    public void multipleLapsTest() throws Exception {
+
+        int[] pits = new int[] {0, 0, 0, 100, 0, 0, 0, 1, 1, 1, 1, 1, 1, 0};
+        MoveOutcome outcome = MoveEngine.makeMove(pits, true, 3);
+        //100 stones is 14 full laps and 2 more stones, landing on index 5
+        assertThat(outcome.getPits(), Matchers.is(new int[] {14, 14, 14, 14, 15, 15, 14, 1, 1, 1, 1, 1, 1, 0}));
+        assertThat(outcome.isExtraTurn(), Matchers.is(false));
+        assertThat(outcome.isCapture(), Matchers.is(false));
+    }
+
+    /**
+     * A move emptying the last pit of a player completes the game, moving all
+     * the stones to the big pits
+     *
+     * @throws Exception
+     */
+    @Test
+    public void gameOverTest() throws Exception {
+
+        int[] pits = new int[] {0, 0, 0, 0, 0, 1, 30, 2, 3, 0, 0, 0, 0, 36};
+        MoveOutcome outcome = MoveEngine.makeMove(pits, true, 5);
+        assertThat(outcome.isExtraTurn(), Matchers.is(true));
+        assertThat(outcome.isGameOver(), Matchers.is(true));
+        assertThat(outcome.getPits(), Matchers.is(new int[] {0, 0, 0, 0, 0, 0, 31, 0, 0, 0, 0, 0, 0, 41}));
+        assertThat(outcome.getPlayer1Score(), Matchers.is(31));
+        assertThat(outcome.getPlayer2Score(), Matchers.is(41));
+    }
+
+    /**
+     * A move on an empty pit is not allowed
+     *
+     * @throws Exception
+     */
+    @Test(expected = BadMoveException.class)
+    public void emptyPitMoveTest() throws Exception {
+
+        int[] pits = MoveEngine.setupPits();
+        MoveEngine.applyMove(pits, true, 0);
+        MoveEngine.applyMove(pits, true, 0);
+    }
+
+    /**
+     * A move on the big pit is not allowed
+     *
+     * @throws Exception
+     */
+    @Test(expected = BadMoveException.class)
+    public void bigPitMoveTest() throws Exception {
+
+        MoveEngine.applyMove(MoveEngine.setupPits(), false, MoveEngine.BIG_PIT_INDEX);
+    }
+}
@@ -0,0 +1,113 @@
+package com.shravan.gameofstones.model;
+
+import static org.junit.Assert.assertThat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.logging.Logger;
+import org.bson.types.ObjectId;
+import org.hamcrest.Matchers;
+import org.jongo.Mapper;
+import org.jongo.bson.Bson;
+import org.jongo.bson.BsonDocument;
+import org.junit.Test;
+import com.shravan.gameofstones.core.Mongodb;
+import com.shravan.gameofstones.engine.MoveEngine;
+import com.shravan.gameofstones.exception.BadMoveException;
+
+/**
+ * Test class to compare the size and the encoding time of the plays stored with
+ * their board packed, against the plays stored with the board field by field
+ *
+ * @author shravanshetty
+ */
+public class BoardPackingTest {
+
+    private static Logger log = Logger.getLogger(BoardPackingTest.class.getSimpleName());
+    private static final int GAMES = 50;
+    private static final int MAX_MOVES_PER_GAME = 1000;
+
+    /**
+     * Play random games, and encode the play after every move, as it is saved
+     * by a flush. Every packed play must be read back with the same board, by
+     * either mapper. Packed boards must be less than 40% of the size of the
+     * unpacked boards, and packed plays less than 75%.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void packedPlaySizeTest() throws Exception {
+
+        List<Play> corpus = playRandomGames(new Random(7));
+        Mapper unpackedMapper = Mongodb.createMapper();
+        Mapper packedMapper = Mongodb.createMapper(true);
+        long unpackedBytes = 0;
+        long packedBytes = 0;
+        long unpackedBoardBytes = 0;
+        long packedBoardBytes = 0;
+        long unpackedNanos = 0;
+        long packedNanos = 0;
+        for (Play play : corpus) {
+            long startNanos = System.nanoTime();
+            BsonDocument unpackedDocument = unpackedMapper.getMarshaller().marshall(play);
+            unpackedNanos += System.nanoTime() - startNanos;
+            startNanos = System.nanoTime();
+            BsonDocument packedDocument = packedMapper.getMarshaller().marshall(play);
+            packedNanos += System.nanoTime() - startNanos;
+            unpackedBytes += unpackedDocument.getSize();
+            packedBytes += packedDocument.getSize();
+            unpackedBoardBytes += unpackedMapper.getMarshaller().marshall(play.getBoard()).getSize();
+            packedBoardBytes += packedMapper.getMarshaller().marshall(play.getBoard()).getSize();
+
+            //documents in either form are read by both mappers
+            byte[] packedBson = packedDocument.toByteArray();
+            for (Mapper mapper : new Mapper[] {unpackedMapper, packedMapper}) {
+                Board board = mapper.getUnmarshaller().unmarshall(Bson.createDocument(packedBson), Play.class)
+                                    .getBoard();
+                assertThat(board.getId(), Matchers.is(play.getBoardId()));
+                assertThat(board.getPits(), Matchers.is(play.getBoard().getPits()));
+                assertThat(board.getPlayer2Moves(), Matchers.is(play.getBoard().getPlayer2Moves()));
+            }
+        }
+        log.info(String.format("%s plays. Unpacked: %s bytes (boards: %s), %.1f ms. "
+            + "Packed: %s bytes (boards: %s), %.1f ms", corpus.size(), unpackedBytes, unpackedBoardBytes,
+            unpackedNanos / 1e6, packedBytes, packedBoardBytes, packedNanos / 1e6));
+        assertThat(packedBoardBytes * 10, Matchers.lessThan(unpackedBoardBytes * 4));
+        assertThat(packedBytes * 100, Matchers.lessThan(unpackedBytes * 75));
+    }
+
+    //private methods
+
+    /**
+     * Plays random moves till every game is completed
+     *
+     * @return A copy of each play after every move
+     */
+    private static List<Play> playRandomGames(Random random) throws BadMoveException {
+
+        List<Play> corpus = new ArrayList<Play>();
+        for (int game = 0; game < GAMES; game++) {
+            Play play = new Play();
+            play.setId(new ObjectId().toHexString());
+            play.setBoard(Board.setupBoard(false));
+            play.setPlayer1Id(new ObjectId().toHexString());
+            play.setPlayer2Id(new ObjectId().toHexString());
+            play.setPlayState(Play.PlayState.IN_PROGRESS);
+            play.setVersion(0L);
+            for (int move = 0; move < MAX_MOVES_PER_GAME && !play.getBoard().isCompleted(); move++) {
+                boolean isPlayer1 = play.isPlayer1sMove();
+                int[] pits = play.getBoard().getPits();
+                int offset = isPlayer1 ? 0 : MoveEngine.PITS_PER_PLAYER;
+                int pitIndex;
+                do {
+                    pitIndex = random.nextInt(MoveEngine.BIG_PIT_INDEX);
+                }
+                while (pits[offset + pitIndex] == 0);
+                play.applyMove(isPlayer1, pitIndex);
+                play.setVersion(play.getVersion() + 1);
+                corpus.add(play.copy());
+            }
+        }
+        return corpus;
+    }
+}
@@ -0,0 +1,67 @@
+package com.shravan.gameofstones.model;
+
+import static org.junit.Assert.assertThat;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.shravan.gameofstones.repository.InMemoryGameRepository;
+import com.shravan.gameofstones.repository.Repositories;
+
+/**
+ * Test class to check that the {@link Leaderboard} keeps the latest stats of
+ * every top player
+ *
+ * @author shravanshetty
+ */
+public class LeaderboardTest {
+
+    @Before
+    public void setup() {
+
+        Repositories.setGameRepository(new InMemoryGameRepository());
+    }
+
+    @After
+    public void tearDown() {
+
+        //back to the configured storage
+        Repositories.setGameRepository(null);
+    }
+
+    /**
+     * Stats of two results of a player applied out of order. The older stats
+     * must not replace the newer ones, so the points of the player do not go
+     * back.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void outOfOrderStatsTest() throws Exception {
+
+        Leaderboard leaderboard = new Leaderboard(2);
+        leaderboard.update(newStats("player1", 2, 0));
+        leaderboard.update(newStats("player1", 1, 0));
+        leaderboard.update(newStats("player2", 0, 1));
+        assertThat(leaderboard.getTopPlayers(2), Matchers.hasSize(2));
+        PlayerStats topStats = leaderboard.getTopPlayers(1).get(0);
+        assertThat(topStats.getId(), Matchers.is("player1"));
+        assertThat(topStats.getWins(), Matchers.is(2));
+        assertThat(topStats.getPoints(), Matchers.is(2 * PlayerStats.POINTS_PER_WIN));
+        //newer stats still replace the kept ones
+        leaderboard.update(newStats("player1", 2, 1));
+        assertThat(leaderboard.getTopPlayers(1).get(0).getLosses(), Matchers.is(1));
+    }
+
+    //private methods
+
+    private static PlayerStats newStats(String playerId, int wins, int losses) {
+
+        PlayerStats stats = new PlayerStats();
+        stats.setId(playerId);
+        stats.setWins(wins);
+        stats.setLosses(losses);
+        stats.setPoints(wins * PlayerStats.POINTS_PER_WIN);
+        return stats;
+    }
+}
@@ -0,0 +1,110 @@
+package com.shravan.gameofstones.model;
+
+import static org.junit.Assert.assertThat;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import org.bson.types.ObjectId;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+import com.shravan.gameofstones.model.Play.PlayState;
+
+/**
+ * Test class to check that the {@link MatchmakingQueue} pairs every waiting
+ * player exactly once
+ *
+ * @author shravanshetty
+ */
+public class MatchmakingQueueTest {
+
+    private static final int THREADS = 16;
+    private static final int PLAYERS_PER_THREAD = 250;
+
+    /**
+     * Creates the plays in memory, instead of in mongo
+     */
+    private final Map<String, Play> startedPlays = new ConcurrentHashMap<String, Play>();
+    private final BiFunction<Player, Player, Play> startGame = new BiFunction<Player, Player, Play>() {
+
+        @Override
+        public Play apply(Player player1, Player player2) {
+
+            Play play = new Play();
+            play.setId(new ObjectId().toString());
+            play.setPlayer1Id(player1.getId());
+            play.setPlayer2Id(player2.getId());
+            play.setPlayState(PlayState.IN_PROGRESS);
+            startedPlays.put(play.getId(), play);
+            return play;
+        }
+    };
+
+    /**
+     * Many players enter the lobby at once. Every player must be paired with
+     * exactly one other player, and get the play created for the pair.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void concurrentPairingTest() throws Exception {
+
+        final MatchmakingQueue matchmakingQueue = new MatchmakingQueue(TimeUnit.SECONDS.toMillis(30), startGame);
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS * 4);
+        List<Future<Play>> results = new ArrayList<Future<Play>>();
+        List<String> playerIds = new ArrayList<String>();
+        for (int playerIndex = 0; playerIndex < THREADS * PLAYERS_PER_THREAD; playerIndex++) {
+            final Player player = new Player("Player" + playerIndex);
+            player.setId(new ObjectId().toString());
+            playerIds.add(player.getId());
+            results.add(executor.submit(new Callable<Play>() {
+
+                @Override
+                public Play call() throws Exception {
+
+                    startLatch.await();
+                    return matchmakingQueue.match(player);
+                }
+            }));
+        }
+        startLatch.countDown();
+        Set<String> pairedPlayerIds = new HashSet<String>();
+        for (int playerIndex = 0; playerIndex < results.size(); playerIndex++) {
+            Play play = results.get(playerIndex).get(60, TimeUnit.SECONDS);
+            assertThat(play, Matchers.notNullValue());
+            String playerId = playerIds.get(playerIndex);
+            assertThat(playerId, Matchers.isOneOf(play.getPlayer1Id(), play.getPlayer2Id()));
+            assertThat(play.getPlayer1Id(), Matchers.not(play.getPlayer2Id()));
+            assertThat(pairedPlayerIds.add(playerId), Matchers.is(true));
+        }
+        executor.shutdown();
+        assertThat(startedPlays.size(), Matchers.is(THREADS * PLAYERS_PER_THREAD / 2));
+        assertThat(matchmakingQueue.getWaitingCount(), Matchers.is(0));
+    }
+
+    /**
+     * A player without an opponent leaves the lobby after the timeout
+     *
+     * @throws Exception
+     */
+    @Test
+    public void unmatchedPlayerTimeoutTest() throws Exception {
+
+        MatchmakingQueue matchmakingQueue = new MatchmakingQueue(50, startGame);
+        Player player = new Player("Player1");
+        player.setId(new ObjectId().toString());
+        assertThat(matchmakingQueue.match(player), Matchers.nullValue());
+        assertThat(matchmakingQueue.getWaitingCount(), Matchers.is(0));
+        assertThat(startedPlays.isEmpty(), Matchers.is(true));
+    }
+}
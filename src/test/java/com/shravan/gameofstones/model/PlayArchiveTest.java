@@ -0,0 +1,203 @@
+package com.shravan.gameofstones.model;
+
+import static org.junit.Assert.assertThat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.bson.types.ObjectId;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.repository.GameRepository;
+import com.shravan.gameofstones.repository.InMemoryGameRepository;
+import com.shravan.gameofstones.repository.Repositories;
+import com.shravan.gameofstones.util.JSONFormatter;
+
+/**
+ * Test class to check that the {@link PlayArchive} moves the finished plays
+ * out of the storage, and still serves them
+ *
+ * @author shravanshetty
+ */
+public class PlayArchiveTest {
+
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private Path tempDirectory;
+
+    @Before
+    public void setup() throws IOException {
+
+        Repositories.setGameRepository(new InMemoryGameRepository());
+        tempDirectory = Files.createTempDirectory("gameofstones");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+
+        //back to the configured storage
+        Repositories.setGameRepository(null);
+        Files.walkFileTree(tempDirectory, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+
+                Files.delete(directory);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Archive a storage having finished and unfinished plays, some changed
+     * recently. Only the finished plays not changed for a day must be removed
+     * from the storage, along with their moves, and be read back from the
+     * archive, also after its index is loaded again.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void archiveTest() throws Exception {
+
+        GameRepository repository = Repositories.getGameRepository();
+        Player player1 = newPlayer("Player1");
+        Player player2 = newPlayer("Player2");
+        Play completedPlay = newPlay(player1, player2, PlayState.COMPLETED, 2 * DAY_MILLIS);
+        repository.insertMove(new Move(completedPlay.getId(), 1, player1.getId(), true, 0));
+        repository.insertMove(new Move(completedPlay.getId(), 2, player2.getId(), false, 3));
+        Play abortedPlay = newPlay(player1, player2, PlayState.ABORTED, 3 * DAY_MILLIS);
+        Play otherAbortedPlay = newPlay(player2, player1, PlayState.ABORTED, 2 * DAY_MILLIS);
+        Play idlePlay = newPlay(player1, player2, PlayState.IN_PROGRESS, 2 * DAY_MILLIS);
+        Play recentPlay = newPlay(player1, player2, PlayState.COMPLETED, 0);
+
+        Path directory = tempDirectory.resolve("archive");
+        PlayArchive playArchive = new PlayArchive(true, directory, DAY_MILLIS, DAY_MILLIS, 100, 2);
+        assertThat(playArchive.getPlay(completedPlay.getId()), Matchers.nullValue());
+        assertThat(playArchive.archive(), Matchers.is(3));
+        assertThat(playArchive.getSegmentCount(), Matchers.is(1));
+        for (Play archivedPlay : new Play[] {completedPlay, abortedPlay, otherAbortedPlay}) {
+            assertThat(repository.getPlay(archivedPlay.getId()), Matchers.nullValue());
+        }
+        assertThat(repository.getMoves(completedPlay.getId(), 1, 2), Matchers.empty());
+        assertThat(repository.getPlay(idlePlay.getId()), Matchers.notNullValue());
+        assertThat(repository.getPlay(recentPlay.getId()), Matchers.notNullValue());
+        //nothing left to archive
+        assertThat(playArchive.archive(), Matchers.is(0));
+
+        for (PlayArchive archive : new PlayArchive[] {playArchive,
+            new PlayArchive(true, directory, DAY_MILLIS, DAY_MILLIS, 100, 2)}) {
+            Play archivedPlay = archive.getPlay(completedPlay.getId());
+            assertThat(archivedPlay.getPlayState(), Matchers.is(PlayState.COMPLETED));
+            assertThat(archivedPlay.getBoard().getPits(), Matchers.is(completedPlay.getBoard().getPits()));
+            assertThat(archivedPlay.getPlayer2().getName(), Matchers.is("Player2"));
+            assertThat(archive.getPlay(otherAbortedPlay.getId()).getPlayer1Id(), Matchers.is(player2.getId()));
+            assertThat(archive.getPlay(idlePlay.getId()), Matchers.nullValue());
+            List<Move> archivedMoves = archive.getMoves(completedPlay.getId());
+            assertThat(archivedMoves.size(), Matchers.is(2));
+            assertThat(archivedMoves.get(1).getPitIndex(), Matchers.is(3));
+            assertThat(archive.getMoves(abortedPlay.getId()), Matchers.empty());
+            assertThat(archive.getMoves(idlePlay.getId()), Matchers.nullValue());
+        }
+    }
+
+    /**
+     * The history of an archived play must be written from the moves archived
+     * along with it, as its moves are no longer logged
+     *
+     * @throws Exception
+     */
+    @Test
+    public void archivedHistoryTest() throws Exception {
+
+        GameRepository repository = Repositories.getGameRepository();
+        Player player1 = newPlayer("Player1");
+        Player player2 = newPlayer("Player2");
+        //a play having made both moves
+        Board board = Board.setupBoard(false);
+        board.setPlayer1Moves(1);
+        board.setPlayer2Moves(1);
+        Play completedPlay = newPlay(player1, player2, board, PlayState.COMPLETED, 2 * DAY_MILLIS);
+        repository.insertMove(new Move(completedPlay.getId(), 1, player1.getId(), true, 0));
+        repository.insertMove(new Move(completedPlay.getId(), 2, player2.getId(), false, 3));
+        PlayArchive playArchive = new PlayArchive(true, tempDirectory.resolve("archive"), DAY_MILLIS, DAY_MILLIS,
+            100, 2);
+        assertThat(playArchive.archive(), Matchers.is(1));
+
+        Play archivedPlay = playArchive.getPlay(completedPlay.getId());
+        List<Move> archivedMoves = playArchive.getMoves(completedPlay.getId());
+        assertThat(MoveLog.countMissingMoves(archivedPlay, archivedMoves, null), Matchers.is(0));
+        ByteArrayOutputStream historyStream = new ByteArrayOutputStream();
+        MoveLog.writeHistory(archivedPlay, archivedMoves, 2, null, historyStream);
+        String[] historyLines = historyStream.toString("UTF-8").split("\n");
+        assertThat(historyLines.length, Matchers.is(1));
+        JsonNode historyNode = JSONFormatter.getMapper().readTree(historyLines[0]);
+        assertThat(historyNode.get("seq").asInt(), Matchers.is(2));
+        assertThat(historyNode.get("move").get("pitIndex").asInt(), Matchers.is(3));
+        //a move missing in the archive
+        assertThat(MoveLog.countMissingMoves(archivedPlay, archivedMoves.subList(1, 2), 2), Matchers.is(1));
+    }
+
+    /**
+     * An archive that cannot be read must not fail the lookup of a play: the
+     * play is not found. A disabled archive must not be read at all.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void unreadableArchiveTest() throws Exception {
+
+        Path directory = Files.createDirectory(tempDirectory.resolve("archive"));
+        Files.createFile(directory.resolve("plays-000001.ndjson.gz"));
+        //an index that is not a file
+        Files.createDirectory(directory.resolve("plays-000001.idx"));
+        PlayArchive playArchive = new PlayArchive(true, directory, DAY_MILLIS, DAY_MILLIS, 100, 2);
+        assertThat(playArchive.getPlay(new ObjectId().toString()), Matchers.nullValue());
+        PlayArchive disabledArchive = new PlayArchive(false, directory, DAY_MILLIS, DAY_MILLIS, 100, 2);
+        assertThat(disabledArchive.getPlay(new ObjectId().toString()), Matchers.nullValue());
+    }
+
+    //private methods
+
+    private static Player newPlayer(String name) {
+
+        Player player = new Player();
+        player.setName(name);
+        return Repositories.getGameRepository().savePlayer(player);
+    }
+
+    private static Play newPlay(Player player1, Player player2, PlayState playState, long idleMillis) {
+
+        return newPlay(player1, player2, Board.setupBoard(false), playState, idleMillis);
+    }
+
+    private static Play newPlay(Player player1, Player player2, Board board, PlayState playState,
+        long idleMillis) {
+
+        Play play = new Play();
+        play.setBoard(board);
+        play.setPlayer1(player1);
+        play.setPlayer2(player2);
+        play.setPlayState(playState);
+        play.setVersion(1L);
+        play.setLastActivity(new Date(System.currentTimeMillis() - idleMillis));
+        Repositories.getGameRepository().insertPlay(play);
+        return play;
+    }
+}
@@ -0,0 +1,170 @@
+package com.shravan.gameofstones.model;
+
+import static org.junit.Assert.assertThat;
+import java.util.Arrays;
+import java.util.List;
+import org.hamcrest.Matchers;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.repository.InMemoryGameRepository;
+import com.shravan.gameofstones.repository.Repositories;
+
+/**
+ * Test class to check that the {@link PlaySessionStore} never drops the
+ * changes of a play it could not save
+ *
+ * @author shravanshetty
+ */
+public class PlaySessionStoreTest {
+
+    private FailingRepository repository;
+    private PlaySessionStore playSessionStore;
+
+    @Before
+    public void setup() {
+
+        repository = new FailingRepository();
+        Repositories.setGameRepository(repository);
+        playSessionStore = new PlaySessionStore(true, 60000L, 100, 60000L);
+    }
+
+    @After
+    public void tearDown() {
+
+        playSessionStore.shutdown();
+        //back to the configured storage
+        Repositories.setGameRepository(null);
+    }
+
+    /**
+     * A completed play whose save fails must stay in memory, and be saved by
+     * the next flush
+     *
+     * @throws Exception
+     */
+    @Test
+    public void failedSaveOfCompletedPlayTest() throws Exception {
+
+        Play play = newActivePlay();
+        repository.isFailing = true;
+        Play completedPlay = playSessionStore.get(play.getId());
+        completedPlay.setPlayState(PlayState.COMPLETED);
+        completedPlay.setVersion(2L);
+        assertThat(playSessionStore.update(completedPlay, 1L), Matchers.is(true));
+        assertThat(repository.getPlay(play.getId()).getPlayState(), Matchers.is(PlayState.IN_PROGRESS));
+        assertThat(playSessionStore.get(play.getId()).getPlayState(), Matchers.is(PlayState.COMPLETED));
+        assertThat(playSessionStore.getPendingFlushCount(), Matchers.is(1));
+
+        repository.isFailing = false;
+        playSessionStore.flush();
+        assertThat(repository.getPlay(play.getId()).getPlayState(), Matchers.is(PlayState.COMPLETED));
+        //saved: no longer kept in memory
+        assertThat(playSessionStore.get(play.getId()), Matchers.nullValue());
+        assertThat(playSessionStore.getActivePlayCount(), Matchers.is(0));
+    }
+
+    /**
+     * A play released while its changes cannot be saved must stay in memory,
+     * till a later release saves them
+     *
+     * @throws Exception
+     */
+    @Test
+    public void failedSaveOfReleasedPlayTest() throws Exception {
+
+        Play play = newActivePlay();
+        Play changedPlay = playSessionStore.get(play.getId());
+        changedPlay.setLeaderId(play.getPlayer1Id());
+        changedPlay.setVersion(2L);
+        assertThat(playSessionStore.update(changedPlay, 1L), Matchers.is(true));
+        repository.isFailing = true;
+        assertThat(playSessionStore.release(play.getId()), Matchers.is(false));
+        assertThat(playSessionStore.get(play.getId()), Matchers.notNullValue());
+        assertThat(playSessionStore.getPendingFlushCount(), Matchers.is(1));
+
+        repository.isFailing = false;
+        assertThat(playSessionStore.release(play.getId()), Matchers.is(true));
+        assertThat(playSessionStore.get(play.getId()), Matchers.nullValue());
+        assertThat(repository.getPlay(play.getId()).getLeaderId(), Matchers.is(play.getPlayer1Id()));
+    }
+
+    /**
+     * On a node of a cluster, only the plays owned by the node must be kept
+     * in memory: a play created by another node is served by its owner
+     */
+    @Test
+    public void ownedPlaysTest() {
+
+        List<String> nodes = Arrays.asList("http://10.0.0.1:8080/rest", "http://10.0.0.2:8080/rest");
+        PlayRouter playRouter = new PlayRouter(nodes.get(0), nodes, 64);
+        PlaySessionStore nodeSessionStore = new PlaySessionStore(true, 60000L, 100, 60000L, playRouter);
+        try {
+            Play ownedPlay = null;
+            Play otherPlay = null;
+            while (ownedPlay == null || otherPlay == null) {
+                Play play = newPlay();
+                if (playRouter.isLocal(play.getId())) {
+                    ownedPlay = play;
+                }
+                else {
+                    otherPlay = play;
+                }
+            }
+            nodeSessionStore.activate(ownedPlay);
+            nodeSessionStore.activate(otherPlay);
+            assertThat(nodeSessionStore.get(ownedPlay.getId()), Matchers.notNullValue());
+            assertThat(nodeSessionStore.get(otherPlay.getId()), Matchers.nullValue());
+            assertThat(nodeSessionStore.getActivePlayIds(), Matchers.contains(ownedPlay.getId()));
+        }
+        finally {
+            nodeSessionStore.shutdown();
+        }
+    }
+
+    //private methods
+
+    private Play newActivePlay() {
+
+        Play play = newPlay();
+        playSessionStore.activate(play);
+        return play;
+    }
+
+    /**
+     * Saves a new play, without keeping it in memory
+     */
+    private Play newPlay() {
+
+        Player player1 = new Player();
+        player1.setName("Player1");
+        Player player2 = new Player();
+        player2.setName("Player2");
+        Play play = new Play();
+        play.setBoard(Board.setupBoard(false));
+        play.setPlayer1(repository.savePlayer(player1));
+        play.setPlayer2(repository.savePlayer(player2));
+        play.setPlayState(PlayState.IN_PROGRESS);
+        play.setVersion(1L);
+        repository.insertPlay(play);
+        return play;
+    }
+
+    /**
+     * Fails the saves of the changed plays while {@link #isFailing}
+     */
+    private static class FailingRepository extends InMemoryGameRepository {
+
+        private volatile boolean isFailing;
+
+        @Override
+        public int updatePlayChangesIfNewer(List<Play> savedPlays, List<Play> plays) {
+
+            if (isFailing) {
+                throw new IllegalStateException("Storage is not reachable");
+            }
+            return super.updatePlayChangesIfNewer(savedPlays, plays);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.shravan.gameofstones.model;
+
+import static org.junit.Assert.assertThat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+import com.shravan.gameofstones.model.RatingIndex.Rating;
+
+/**
+ * Test class to check the ranks and the nearby players found by the
+ * {@link RatingIndex}, against sorting all the ratings
+ *
+ * @author shravanshetty
+ */
+public class RatingIndexTest {
+
+    private static final int PLAYERS = 5000;
+
+    /**
+     * Rates many players randomly. The rank of every player must be one more
+     * than the number of players in a higher rating bucket.
+     */
+    @Test
+    public void rankTest() {
+
+        Map<String, Double> ratings = new HashMap<String, Double>();
+        RatingIndex ratingIndex = createRatingIndex(ratings);
+        for (Map.Entry<String, Double> rating : ratings.entrySet()) {
+            int higherRatedPlayers = 0;
+            for (Double otherRating : ratings.values()) {
+                if (Math.floor(otherRating) > Math.floor(rating.getValue())) {
+                    higherRatedPlayers++;
+                }
+            }
+            Rating indexedRating = ratingIndex.getRating(rating.getKey());
+            assertThat(indexedRating.getRating(), Matchers.is(rating.getValue()));
+            assertThat(indexedRating.getRank(), Matchers.is(higherRatedPlayers + 1));
+        }
+        assertThat(ratingIndex.getRating("unrated"), Matchers.nullValue());
+    }
+
+    /**
+     * The players near a player must be the players ranked around it, best
+     * first, including the player itself. Players at the top and bottom still
+     * get the requested count.
+     */
+    @Test
+    public void nearbyRatingsTest() {
+
+        Map<String, Double> ratings = new HashMap<String, Double>();
+        RatingIndex ratingIndex = createRatingIndex(ratings);
+        //rating buckets of all players, best first
+        List<Double> sortedBuckets = new ArrayList<Double>();
+        for (Double rating : ratings.values()) {
+            sortedBuckets.add(Math.floor(rating));
+        }
+        Collections.sort(sortedBuckets, Collections.reverseOrder());
+        for (String playerId : new ArrayList<String>(ratings.keySet()).subList(0, 200)) {
+            List<Rating> nearbyRatings = ratingIndex.getNearbyRatings(playerId, 11);
+            assertThat(nearbyRatings.size(), Matchers.is(11));
+            boolean isPlayerIncluded = false;
+            List<Double> nearbyBuckets = new ArrayList<Double>();
+            for (Rating nearbyRating : nearbyRatings) {
+                isPlayerIncluded |= nearbyRating.getPlayerId().equals(playerId);
+                nearbyBuckets.add(Math.floor(nearbyRating.getRating()));
+            }
+            assertThat(isPlayerIncluded, Matchers.is(true));
+            //the players returned are consecutive in the ranking
+            assertThat(Collections.indexOfSubList(sortedBuckets, nearbyBuckets), Matchers.not(-1));
+        }
+        Rating bestRating = Collections.max(ratingIndex.getNearbyRatings(ratings.keySet().iterator().next(),
+            PLAYERS), new Comparator<Rating>() {
+
+                @Override
+                public int compare(Rating rating, Rating otherRating) {
+
+                    return Double.compare(rating.getRating(), otherRating.getRating());
+                }
+            });
+        assertThat(bestRating.getRank(), Matchers.is(1));
+    }
+
+    /**
+     * A result changes both ratings by the same amount, in opposite
+     * directions. The winner moves ahead of the loser.
+     */
+    @Test
+    public void eloResultTest() {
+
+        RatingIndex ratingIndex = new RatingIndex();
+        ratingIndex.setLoaded();
+        double[] ratingChanges = ratingIndex.recordResult("player1", "player2", 1);
+        assertThat(ratingChanges[0], Matchers.is(RatingIndex.K_FACTOR / 2));
+        assertThat(ratingChanges[1], Matchers.is(-RatingIndex.K_FACTOR / 2));
+        assertThat(ratingIndex.getRating("player1").getRank(), Matchers.is(1));
+        assertThat(ratingIndex.getRating("player2").getRank(), Matchers.is(2));
+        //the favourite gains less with a win than it loses with a loss
+        assertThat(ratingIndex.recordResult("player1", "player2", 1)[0],
+            Matchers.lessThan(-ratingIndex.recordResult("player1", "player2", 0)[0]));
+        assertThat(ratingIndex.getRatedPlayerCount(), Matchers.is(2));
+    }
+
+    //private methods
+
+    /**
+     * Creates an index of random ratings, including updated ones
+     */
+    private static RatingIndex createRatingIndex(Map<String, Double> ratings) {
+
+        Random random = new Random(7);
+        RatingIndex ratingIndex = new RatingIndex();
+        ratingIndex.setLoaded();
+        for (int playerIndex = 0; playerIndex < PLAYERS; playerIndex++) {
+            ratings.put("player" + playerIndex, RatingIndex.INITIAL_RATING + random.nextGaussian() * 200);
+        }
+        for (Map.Entry<String, Double> rating : ratings.entrySet()) {
+            ratingIndex.put(rating.getKey(), RatingIndex.INITIAL_RATING);
+        }
+        for (Map.Entry<String, Double> rating : ratings.entrySet()) {
+            ratingIndex.put(rating.getKey(), rating.getValue());
+        }
+        return ratingIndex;
+    }
+}
@@ -0,0 +1,158 @@
+package com.shravan.gameofstones.repository;
+
+import static org.junit.Assert.assertThat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+import com.shravan.gameofstones.model.Play;
+import com.shravan.gameofstones.model.Play.PlayState;
+
+/**
+ * Test class to check that the {@link InMemoryGameRepository} behaves like
+ * mongo for the versioned updates of a play, and the paging of the idle plays
+ *
+ * @author shravanshetty
+ */
+public class InMemoryGameRepositoryTest {
+
+    private static final int THREADS = 8;
+    private static final int UPDATES_PER_THREAD = 500;
+
+    /**
+     * Entities read from the repository are copies: changing them must not
+     * change the stored play until it is updated
+     */
+    @Test
+    public void readCopyTest() {
+
+        InMemoryGameRepository repository = new InMemoryGameRepository();
+        Play play = new Play();
+        play.setVersion(1L);
+        repository.insertPlay(play);
+        assertThat(play.getId(), Matchers.notNullValue());
+        Play readPlay = repository.getPlay(play.getId());
+        readPlay.setLastActivity(new Date());
+        assertThat(repository.getPlay(play.getId()).getLastActivity(), Matchers.nullValue());
+    }
+
+    /**
+     * Fire concurrent read-modify-write updates on one play, each retried
+     * until its version matches. Every update must be applied exactly once,
+     * and an update with an outdated version must be rejected.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void versionedUpdateTest() throws Exception {
+
+        final InMemoryGameRepository repository = new InMemoryGameRepository();
+        final Play play = new Play();
+        play.setVersion(0L);
+        repository.insertPlay(play);
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            results.add(executorService.submit(new Callable<Integer>() {
+
+                @Override
+                public Integer call() throws Exception {
+
+                    int conflicts = 0;
+                    for (int update = 0; update < UPDATES_PER_THREAD; update++) {
+                        while (true) {
+                            Play storedPlay = repository.getPlay(play.getId());
+                            Long version = storedPlay.getVersion();
+                            storedPlay.setVersion(version + 1);
+                            if (repository.updatePlayIfVersion(storedPlay, version)) {
+                                break;
+                            }
+                            conflicts++;
+                        }
+                    }
+                    return conflicts;
+                }
+            }));
+        }
+        for (Future<Integer> result : results) {
+            result.get();
+        }
+        executorService.shutdown();
+        Play updatedPlay = repository.getPlay(play.getId());
+        assertThat(updatedPlay.getVersion(), Matchers.is((long) THREADS * UPDATES_PER_THREAD));
+        //an update from the first version is outdated
+        assertThat(repository.updatePlayIfVersion(updatedPlay, 0L), Matchers.is(false));
+    }
+
+    /**
+     * A play saved without a version is older than any versioned one: it
+     * must not replace a versioned play, but must be replaced by one
+     */
+    @Test
+    public void unversionedUpdateTest() {
+
+        InMemoryGameRepository repository = new InMemoryGameRepository();
+        Play play = new Play();
+        play.setVersion(1L);
+        repository.insertPlay(play);
+        Play unversionedPlay = repository.getPlay(play.getId());
+        unversionedPlay.setVersion(null);
+        assertThat(repository.updatePlaysIfNewer(Arrays.asList(unversionedPlay)), Matchers.is(0));
+        assertThat(repository.getPlay(play.getId()).getVersion(), Matchers.is(1L));
+
+        Play newerPlay = repository.getPlay(play.getId());
+        newerPlay.setVersion(2L);
+        assertThat(repository.updatePlaysIfNewer(Arrays.asList(newerPlay)), Matchers.is(1));
+        assertThat(repository.getPlay(play.getId()).getVersion(), Matchers.is(2L));
+    }
+
+    /**
+     * Page through the idle plays by their id. Every idle play must be found
+     * once, whether or not it was changed meanwhile, and the recent or
+     * finished plays not at all.
+     */
+    @Test
+    public void idlePlaysPagingTest() {
+
+        InMemoryGameRepository repository = new InMemoryGameRepository();
+        Date idleSince = new Date();
+        List<String> idlePlayIds = new ArrayList<String>();
+        for (int playIndex = 0; playIndex < 5; playIndex++) {
+            idlePlayIds.add(newPlay(repository, PlayState.IN_PROGRESS, new Date(idleSince.getTime() - 1000)));
+            newPlay(repository, PlayState.IN_PROGRESS, new Date(idleSince.getTime() + 1000));
+            newPlay(repository, PlayState.COMPLETED, null);
+        }
+        List<PlayState> idleStates = Arrays.asList(PlayState.IN_PROGRESS);
+        List<String> pagedPlayIds = new ArrayList<String>();
+        String afterPlayId = null;
+        while (true) {
+            List<Play> idlePlays = repository.getIdlePlays(idleStates, idleSince, afterPlayId, 2);
+            for (Play idlePlay : idlePlays) {
+                pagedPlayIds.add(idlePlay.getId());
+            }
+            if (idlePlays.size() < 2) {
+                break;
+            }
+            afterPlayId = idlePlays.get(idlePlays.size() - 1).getId();
+        }
+        assertThat(pagedPlayIds, Matchers.is(idlePlayIds));
+    }
+
+    //private methods
+
+    private static String newPlay(InMemoryGameRepository repository, PlayState playState, Date lastActivity) {
+
+        Play play = new Play();
+        play.setPlayState(playState);
+        play.setLastActivity(lastActivity);
+        play.setVersion(1L);
+        repository.insertPlay(play);
+        return play.getId();
+    }
+}
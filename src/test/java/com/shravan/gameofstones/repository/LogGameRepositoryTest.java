@@ -0,0 +1,110 @@
+package com.shravan.gameofstones.repository;
+
+import static org.junit.Assert.assertThat;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+import com.shravan.gameofstones.model.Board;
+import com.shravan.gameofstones.model.Move;
+import com.shravan.gameofstones.model.Play;
+import com.shravan.gameofstones.model.Player;
+
+/**
+ * Test class to check that the {@link LogGameRepository} recovers its
+ * documents after a restart, a torn write and a compaction
+ *
+ * @author shravanshetty
+ */
+public class LogGameRepositoryTest {
+
+    /**
+     * Write all kinds of documents, reopen the log with a torn record at its
+     * end, as left by a crash in the middle of a write. All the documents
+     * written before must be back, and the log must accept new writes.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void recoveryTest() throws Exception {
+
+        Path logPath = Files.createTempDirectory("gameofstones").resolve("games.log");
+        LogGameRepository repository = new LogGameRepository(logPath, 10, Long.MAX_VALUE);
+        Player player = new Player();
+        player.setName("Player1");
+        repository.savePlayer(player);
+        Board board = Board.setupBoard(false);
+        repository.saveBoard(board);
+        Board removedBoard = Board.setupBoard(false);
+        repository.saveBoard(removedBoard);
+        repository.removeBoards(Arrays.asList(removedBoard.getId()));
+        Play play = new Play();
+        play.setVersion(1L);
+        repository.insertPlay(play);
+        play.setVersion(2L);
+        repository.updatePlayIfVersion(play, 1L);
+        repository.insertMove(new Move(play.getId(), 1, player.getId(), true, 0));
+        repository.insertMove(new Move(play.getId(), 2, player.getId(), false, 7));
+        repository.incrementPlayerStats(player, 1, 0, 0, 2, 16);
+        long logSize = repository.getLogSize();
+        repository.close();
+
+        //a record with a length, but without the payload matching its crc
+        try (RandomAccessFile logFile = new RandomAccessFile(logPath.toFile(), "rw")) {
+            logFile.seek(logSize);
+            logFile.writeInt(64);
+            logFile.writeInt(12345);
+            logFile.write(new byte[] {1, 2, 3});
+        }
+
+        repository = new LogGameRepository(logPath, 10, Long.MAX_VALUE);
+        assertThat(repository.getLogSize(), Matchers.is(logSize));
+        assertThat(repository.getPlayer(player.getId()).getName(), Matchers.is("Player1"));
+        assertThat(repository.getBoard(board.getId()).getPlayer1Pits(), Matchers.is(board.getPlayer1Pits()));
+        assertThat(repository.getBoard(removedBoard.getId()), Matchers.nullValue());
+        assertThat(repository.getPlay(play.getId()).getVersion(), Matchers.is(2L));
+        assertThat(repository.getMoves(play.getId(), 1, 2).size(), Matchers.is(2));
+        assertThat(repository.getPlayerStats(player.getId()).getPoints(), Matchers.is(2));
+        play.setVersion(3L);
+        repository.updatePlayIfVersion(play, 2L);
+        repository.close();
+
+        repository = new LogGameRepository(logPath, 10, Long.MAX_VALUE);
+        assertThat(repository.getPlay(play.getId()).getVersion(), Matchers.is(3L));
+        repository.close();
+    }
+
+    /**
+     * Update a play many times and compact the log. Only the latest version
+     * must be kept, and read back after a restart.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void compactionTest() throws Exception {
+
+        Path logPath = Files.createTempDirectory("gameofstones").resolve("games.log");
+        LogGameRepository repository = new LogGameRepository(logPath, 10, Long.MAX_VALUE);
+        Play play = new Play();
+        play.setVersion(0L);
+        repository.insertPlay(play);
+        for (long version = 1; version <= 1000; version++) {
+            play.setVersion(version);
+            repository.updatePlayIfVersion(play, version - 1);
+        }
+        long logSize = repository.getLogSize();
+        repository.compact();
+        assertThat(repository.getLogSize(), Matchers.is(repository.getLiveBytes()));
+        assertThat(repository.getLogSize() * 100, Matchers.lessThan(logSize));
+        //the log is written to after the compaction
+        play.setVersion(1001L);
+        repository.updatePlayIfVersion(play, 1000L);
+        repository.close();
+
+        repository = new LogGameRepository(logPath, 10, Long.MAX_VALUE);
+        assertThat(repository.getPlay(play.getId()).getVersion(), Matchers.is(1001L));
+        repository.close();
+    }
+}
@@ -0,0 +1,422 @@
+package com.shravan.gameofstones.resource;
+
+import static org.junit.Assert.assertThat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.MediaType;
+import org.bson.types.ObjectId;
+import org.codehaus.jackson.jaxrs.JacksonJsonProvider;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.shravan.gameofstones.core.RestResponse;
+import com.shravan.gameofstones.model.Board;
+import com.shravan.gameofstones.model.Play;
+import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.model.PlayRouter;
+import com.shravan.gameofstones.model.PlaySessionStore;
+import com.shravan.gameofstones.model.Player;
+import com.shravan.gameofstones.repository.GameRepository;
+import com.shravan.gameofstones.repository.InMemoryGameRepository;
+import com.shravan.gameofstones.repository.Repositories;
+import com.shravan.gameofstones.util.JSONFormatter;
+import com.sun.jersey.api.container.httpserver.HttpServerFactory;
+import com.sun.jersey.api.core.DefaultResourceConfig;
+import com.sun.jersey.api.core.ResourceConfig;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Test class to check that the plays are served by their owner node, whichever
+ * node receives the request. Several nodes are embedded in this process, each
+ * with its own HTTP server and {@link PlayRouter}. They share the storage, and
+ * a single {@link PlaySessionStore} (as the other singletons of the process):
+ * a play activated by its owner is seen active by every node, and is released
+ * by the node it moves away from. So these tests cannot tell which node keeps
+ * a play in memory: that a node only keeps the plays it owns is checked by
+ * the PlaySessionStoreTest.
+ *
+ * @author shravanshetty
+ */
+public class ClusterRoutingTest extends TestFramework {
+
+    private static final int NODES = 3;
+    private static final int PLAYS = 30;
+
+    /**
+     * Send requests on many plays to nodes not owning them. Each must be
+     * served by the owner of the play. Then remove a node: only its plays
+     * must move to another node, its active plays must be released with their
+     * changes saved, and it must keep forwarding the requests it receives.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void routingTest() throws Exception {
+
+        //the plays left active by other tests are not released by the nodes
+        for (String playId : PlaySessionStore.getInstance().getActivePlayIds()) {
+            PlaySessionStore.getInstance().release(playId);
+        }
+        List<String> nodes = newNodes();
+        List<PlayRouter> playRouters = new ArrayList<PlayRouter>();
+        List<HttpServer> servers = new ArrayList<HttpServer>();
+        try {
+            for (String node : nodes) {
+                PlayRouter playRouter = new PlayRouter(node, nodes, 64);
+                playRouters.add(playRouter);
+                servers.add(startNode(node, playRouter));
+            }
+            Player player1 = newPlayer("Player1");
+            Player player2 = newPlayer("Player2");
+            List<String> playIds = new ArrayList<String>();
+            Map<String, String> owners = new HashMap<String, String>();
+            for (int playIndex = 0; playIndex < PLAYS; playIndex++) {
+                String playId = newPlay(player1, player2);
+                playIds.add(playId);
+                owners.put(playId, playRouters.get(0).getOwner(playId));
+            }
+            //every node owns some plays
+            assertThat(new HashSet<String>(owners.values()), Matchers.hasSize(NODES));
+
+            //each play is read through every node, and served by its owner
+            for (String playId : playIds) {
+                for (String node : nodes) {
+                    NodeResponse response = send(HttpMethod.GET, node + "/play/" + playId);
+                    assertThat(response.node, Matchers.is(owners.get(playId)));
+                    assertThat(response.json.get("code").asInt(), Matchers.is(200));
+                }
+            }
+
+            //a move on a play of the leaving node, sent to another node
+            String leavingNode = nodes.get(NODES - 1);
+            String movedPlayId = null;
+            for (String playId : playIds) {
+                if (leavingNode.equals(owners.get(playId))) {
+                    movedPlayId = playId;
+                    break;
+                }
+            }
+            NodeResponse moveResponse = send(HttpMethod.POST,
+                nodes.get(0) + "/play/makeMove/" + movedPlayId + "/" + player1.getId() + "/0");
+            assertThat(moveResponse.node, Matchers.is(leavingNode));
+            assertThat(moveResponse.json.get("code").asInt(), Matchers.is(200));
+            assertThat(PlaySessionStore.getInstance().get(movedPlayId), Matchers.notNullValue());
+
+            List<String> remainingNodes = nodes.subList(0, NODES - 1);
+            int releasedPlays = 0;
+            //the leaving node first, as it loses plays
+            for (int node = NODES - 1; node >= 0; node--) {
+                releasedPlays += playRouters.get(node).setNodes(remainingNodes);
+            }
+            //the plays read before were activated: only the ones of the leaving node are released
+            assertThat(releasedPlays, Matchers.is(Collections.frequency(owners.values(), leavingNode)));
+            for (String playId : playIds) {
+                assertThat(PlaySessionStore.getInstance().get(playId) == null,
+                    Matchers.is(leavingNode.equals(owners.get(playId))));
+            }
+            assertThat(Repositories.getGameRepository().getPlay(movedPlayId).getBoard().getPlayer1Pits().get(0),
+                Matchers.is(0));
+            for (String playId : playIds) {
+                String owner = playRouters.get(0).getOwner(playId);
+                if (!leavingNode.equals(owners.get(playId))) {
+                    assertThat(owner, Matchers.is(owners.get(playId)));
+                }
+                NodeResponse response = send(HttpMethod.GET, leavingNode + "/play/" + playId);
+                assertThat(response.node, Matchers.is(owner));
+                assertThat(response.json.get("code").asInt(), Matchers.is(200));
+            }
+        }
+        finally {
+            for (HttpServer server : servers) {
+                server.stop(0);
+            }
+        }
+    }
+
+    /**
+     * A request forwarded to a node not owning the play (e.g. by a node not
+     * knowing the latest nodes yet) must not be served, but fail with a
+     * retryable 503. The owner must serve it.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void forwardedRequestTest() throws Exception {
+
+        List<String> nodes = newNodes();
+        List<HttpServer> servers = new ArrayList<HttpServer>();
+        try {
+            for (String node : nodes) {
+                servers.add(startNode(node, new PlayRouter(node, nodes, 64)));
+            }
+            String playId = newPlay(newPlayer("Player1"), newPlayer("Player2"));
+            PlayRouter playRouter = new PlayRouter(nodes.get(0), nodes, 64);
+            String owner = playRouter.getOwner(playId);
+            for (String node : nodes) {
+                NodeResponse response = send(HttpMethod.GET, node + "/play/" + playId, nodes.get(0));
+                assertThat(response.node, Matchers.is(node));
+                assertThat(response.json.get("code").asInt(), Matchers.is(node.equals(owner) ? 200 : 503));
+            }
+        }
+        finally {
+            for (HttpServer server : servers) {
+                server.stop(0);
+            }
+        }
+    }
+
+    /**
+     * Create a play through a node not owning it, as the creation of a play is
+     * not routed. The play must be served by its owner from then on, and
+     * still once its owner leaves, with its moves saved.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void nonOwnerCreationTest() throws Exception {
+
+        List<String> nodes = newNodes();
+        List<PlayRouter> playRouters = new ArrayList<PlayRouter>();
+        List<HttpServer> servers = new ArrayList<HttpServer>();
+        try {
+            for (String node : nodes) {
+                PlayRouter playRouter = new PlayRouter(node, nodes, 64);
+                playRouters.add(playRouter);
+                servers.add(startNode(node, playRouter));
+            }
+            String creatingNode = nodes.get(0);
+            String playId = null;
+            String owner = creatingNode;
+            while (creatingNode.equals(owner)) {
+                NodeResponse response = send(HttpMethod.POST, creatingNode + "/play/twoPlayer/simultaneous", null,
+                    "{\"1\": {\"name\": \"Player1\"}, \"2\": {\"name\": \"Player2\"}}");
+                assertThat(response.node, Matchers.is(creatingNode));
+                assertThat(response.json.get("code").asInt(), Matchers.is(200));
+                playId = JSONFormatter.getMapper().readTree(response.json.get("result").asText()).get("id").asText();
+                owner = playRouters.get(0).getOwner(playId);
+            }
+            String player1Id = Repositories.getGameRepository().getPlay(playId).getPlayer1Id();
+            NodeResponse moveResponse = send(HttpMethod.POST,
+                creatingNode + "/play/makeMove/" + playId + "/" + player1Id + "/0");
+            assertThat(moveResponse.node, Matchers.is(owner));
+            assertThat(moveResponse.json.get("code").asInt(), Matchers.is(200));
+
+            //the owner leaves first, as it loses plays
+            List<String> remainingNodes = new ArrayList<String>(nodes);
+            remainingNodes.remove(owner);
+            playRouters.get(nodes.indexOf(owner)).setNodes(remainingNodes);
+            for (int node = 0; node < NODES; node++) {
+                if (!nodes.get(node).equals(owner)) {
+                    playRouters.get(node).setNodes(remainingNodes);
+                }
+            }
+            assertThat(PlaySessionStore.getInstance().get(playId), Matchers.nullValue());
+            assertThat(Repositories.getGameRepository().getPlay(playId).getBoard().getPlayer1Pits().get(0),
+                Matchers.is(0));
+            String newOwner = playRouters.get(0).getOwner(playId);
+            for (String node : nodes) {
+                NodeResponse response = send(HttpMethod.GET, node + "/play/" + playId);
+                assertThat(response.node, Matchers.is(newOwner));
+                assertThat(response.json.get("code").asInt(), Matchers.is(200));
+            }
+        }
+        finally {
+            for (HttpServer server : servers) {
+                server.stop(0);
+            }
+        }
+    }
+
+    /**
+     * Only the allowed nodes can be set, as requests are forwarded to them.
+     * No nodes must not be set, as the node would then serve every play. Nodes
+     * without this node must make it leave, forwarding every play.
+     */
+    @Test
+    public void disallowedNodesTest() {
+
+        List<String> nodes = Arrays.asList("http://10.0.0.1:8080/rest", "http://10.0.0.2:8080/rest");
+        PlayRouter playRouter = new PlayRouter(nodes.get(0), nodes, 64);
+        ClusterResource clusterResource = new ClusterResource(playRouter);
+        RestResponse response = clusterResource.setNodes(Arrays.asList(nodes.get(0), "http://169.254.169.254"));
+        assertThat(response.getCode(), Matchers.is(403));
+        assertThat(playRouter.getNodes(), Matchers.containsInAnyOrder(nodes.toArray()));
+        response = clusterResource.setNodes(Collections.<String> emptyList());
+        assertThat(response.getCode(), Matchers.is(412));
+        assertThat(playRouter.getNodes(), Matchers.containsInAnyOrder(nodes.toArray()));
+        response = clusterResource.setNodes(nodes.subList(0, 1));
+        assertThat(response.getCode(), Matchers.is(200));
+        assertThat(playRouter.getNodes(), Matchers.contains(nodes.get(0)));
+
+        response = clusterResource.setNodes(nodes.subList(1, 2));
+        assertThat(response.getCode(), Matchers.is(200));
+        assertThat(playRouter.isEnabled(), Matchers.is(true));
+        assertThat(playRouter.isLocal(new ObjectId().toString()), Matchers.is(false));
+        assertThat(playRouter.isLocal(PlayRouter.MATCHMAKING_KEY), Matchers.is(false));
+    }
+
+    /**
+     * If a play moving to another node cannot be saved, the nodes must not be
+     * changed, so that the play is never served by two nodes. The play must be
+     * kept active, and served again by this node.
+     */
+    @Test
+    public void failedHandoverTest() {
+
+        List<String> nodes = Arrays.asList("http://10.0.0.1:8080/rest", "http://10.0.0.2:8080/rest");
+        PlayRouter playRouter = new PlayRouter(nodes.get(0), nodes, 64);
+        String playId = null;
+        Player player1 = newPlayer("Player1");
+        Player player2 = newPlayer("Player2");
+        while (playId == null || !playRouter.isLocal(playId)) {
+            playId = newPlay(player1, player2);
+        }
+        Play play = Play.getPlay(playId);
+        Long version = play.getVersion();
+        play.getBoard().getPlayer1Pits().set(0, 0);
+        play.setVersion(version + 1);
+        assertThat(PlaySessionStore.getInstance().update(play, version), Matchers.is(true));
+        GameRepository gameRepository = Repositories.getGameRepository();
+        Repositories.setGameRepository(new InMemoryGameRepository() {
+
+            @Override
+            public int updatePlayChangesIfNewer(List<Play> savedPlays, List<Play> plays) {
+
+                throw new IllegalStateException("Storage unavailable");
+            }
+        });
+        try {
+            RestResponse response = new ClusterResource(playRouter).setNodes(nodes.subList(1, 2));
+            assertThat(response.getCode(), Matchers.is(503));
+            assertThat(playRouter.getNodes(), Matchers.containsInAnyOrder(nodes.toArray()));
+            assertThat(playRouter.isLocal(playId), Matchers.is(true));
+            assertThat(playRouter.isMoving(playId), Matchers.is(false));
+            assertThat(PlaySessionStore.getInstance().get(playId), Matchers.notNullValue());
+        }
+        finally {
+            Repositories.setGameRepository(gameRepository);
+            PlaySessionStore.getInstance().release(playId);
+        }
+    }
+
+    //private methods
+
+    /**
+     * Gets the URLs of nodes on free local ports
+     */
+    private static List<String> newNodes() throws IOException {
+
+        List<String> nodes = new ArrayList<String>();
+        for (int node = 0; node < NODES; node++) {
+            try (ServerSocket socket = new ServerSocket(0)) {
+                nodes.add("http://localhost:" + socket.getLocalPort() + "/rest");
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Starts the HTTP server of a node, serving the play resources through the
+     * routing filter of the node
+     */
+    private static HttpServer startNode(String node, PlayRouter playRouter) throws IOException {
+
+        ResourceConfig resourceConfig = new DefaultResourceConfig(PlayResource.class);
+        resourceConfig.getSingletons().add(new ClusterResource(playRouter));
+        resourceConfig.getSingletons().add(new JacksonJsonProvider());
+        resourceConfig.getFeatures().put(ResourceConfig.FEATURE_DISABLE_WADL, true);
+        PlayRoutingFilter playRoutingFilter = new PlayRoutingFilter(playRouter);
+        //the filter lists are read from these properties
+        resourceConfig.getProperties().put(ResourceConfig.PROPERTY_CONTAINER_REQUEST_FILTERS,
+            Collections.<Object> singletonList(playRoutingFilter));
+        resourceConfig.getProperties().put(ResourceConfig.PROPERTY_CONTAINER_RESPONSE_FILTERS,
+            Collections.<Object> singletonList(playRoutingFilter));
+        HttpServer server = HttpServerFactory.create(node + "/", resourceConfig);
+        server.start();
+        return server;
+    }
+
+    private static NodeResponse send(String method, String url) throws IOException {
+
+        return send(method, url, null);
+    }
+
+    private static NodeResponse send(String method, String url, String forwardedBy) throws IOException {
+
+        return send(method, url, forwardedBy, "{}");
+    }
+
+    /**
+     * Sends a request, as forwarded by the given node if any. The body is
+     * only sent with a POST.
+     */
+    private static NodeResponse send(String method, String url, String forwardedBy, String body)
+        throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("Accept", MediaType.APPLICATION_JSON);
+        if (forwardedBy != null) {
+            connection.setRequestProperty(PlayRoutingFilter.FORWARDED_HEADER, forwardedBy);
+        }
+        if (HttpMethod.POST.equals(method)) {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", MediaType.APPLICATION_JSON);
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        ByteArrayOutputStream responseBody = new ByteArrayOutputStream();
+        try (InputStream inputStream = connection.getResponseCode() >= 400 ? connection.getErrorStream()
+            : connection.getInputStream()) {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = inputStream.read(buffer)) != -1) {
+                responseBody.write(buffer, 0, length);
+            }
+        }
+        NodeResponse response = new NodeResponse();
+        response.node = connection.getHeaderField(PlayRoutingFilter.NODE_HEADER);
+        response.json = JSONFormatter.getMapper().readTree(responseBody.toByteArray());
+        return response;
+    }
+
+    private static Player newPlayer(String name) {
+
+        Player player = new Player();
+        player.setName(name);
+        return Repositories.getGameRepository().savePlayer(player);
+    }
+
+    private static String newPlay(Player player1, Player player2) {
+
+        Play play = new Play();
+        play.setBoard(Board.setupBoard(false));
+        play.setPlayer1(player1);
+        play.setPlayer2(player2);
+        play.setPlayState(PlayState.IN_PROGRESS);
+        play.setVersion(1L);
+        Repositories.getGameRepository().insertPlay(play);
+        return play.getId();
+    }
+
+    private static class NodeResponse {
+
+        private String node;
+        private JsonNode json;
+    }
+}
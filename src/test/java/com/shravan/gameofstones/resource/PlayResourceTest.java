@@ -1,23 +1,48 @@
 package com.shravan.gameofstones.resource;
 
 import static org.junit.Assert.assertThat;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
+import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
 import org.hamcrest.Matchers;
 import org.junit.Assert;
 import org.junit.Test;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.shravan.gameofstones.core.RestResponse;
+import com.shravan.gameofstones.core.WriteBatch;
+import com.shravan.gameofstones.exception.ConflictException;
 import com.shravan.gameofstones.model.Board;
+import com.shravan.gameofstones.model.Move;
+import com.shravan.gameofstones.model.MoveLog;
 import com.shravan.gameofstones.model.Play;
 import com.shravan.gameofstones.model.Play.PlayState;
+import com.shravan.gameofstones.model.PlayReaper;
+import com.shravan.gameofstones.model.PlaySessionStore;
+import com.shravan.gameofstones.model.PlaySnapshotMigration;
 import com.shravan.gameofstones.model.Player;
+import com.shravan.gameofstones.model.PlayerStats;
+import com.shravan.gameofstones.repository.GameRepository;
+import com.shravan.gameofstones.repository.InMemoryGameRepository;
+import com.shravan.gameofstones.repository.Repositories;
 import com.shravan.gameofstones.util.JSONFormatter;
 
 /**
@@ -71,6 +96,24 @@ public class PlayResourceTest extends TestFramework {
         assertThat(play.getPlayState(), Matchers.is(PlayState.IN_PROGRESS));
     }
 
+    /**
+     * Starting a two player play saves both players and inserts the play with
+     * a single batch of writes
+     * 
+     * @throws Exception
+     */
+    @Test
+    public void playStartSingleWriteTest() throws Exception {
+
+        GameRepository repository = Repositories.getGameRepository();
+        long requestsBeforeStart = repository.getRequestCount();
+        Play play = Play.startTwoPlayerGame(new Player("Player1"), new Player("Player2"));
+        assertThat(repository.getRequestCount() - requestsBeforeStart, Matchers.is(1L));
+        assertThat(Player.getPlayer(play.getPlayer1Id()).getName(), Matchers.is("Player1"));
+        assertThat(Player.getPlayer(play.getPlayer2Id()).getName(), Matchers.is("Player2"));
+        assertThat(repository.getPlay(play.getId()).getPlayer1().getId(), Matchers.is(play.getPlayer1Id()));
+    }
+
     /**
      * Simple test to make sure a game is still persists in the db with reset
      * 
@@ -112,6 +155,237 @@ public class PlayResourceTest extends TestFramework {
         assertThat(board.getPlayer2Moves(), Matchers.is(0));
     }
 
+    /**
+     * Simple test to validate that a move on an active play is served from
+     * memory and only appended to the move log, and is saved in mongo (along
+     * with its board) once flushed. The full details of the play are then
+     * served without any further read.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void makeMoveRoundTripTest() throws Exception {
+
+        //start a play and make a move
+        makeFirstMoveTest();
+        GameRepository repository = Repositories.getGameRepository();
+        long roundTripsBeforeMove = repository.getRequestCount();
+        Play play = Play.getPlay(playId);
+        play.makeMove(player1Id, 1);
+        //the move is appended. only a background flush can also have reached mongo
+        assertThat(repository.getRequestCount() - roundTripsBeforeMove, Matchers.lessThanOrEqualTo(2L));
+        assertThat(repository.getMoves(playId, 1, Integer.MAX_VALUE).size(), Matchers.is(2));
+        //the move is persisted once flushed
+        PlaySessionStore.getInstance().flush();
+        Play savedPlay = repository.getPlay(playId);
+        assertThat(savedPlay.getBoard().getPlayer1Pits(), Matchers.contains(1, 7, 8, 8, 8, 8, 2));
+        assertThat(savedPlay.getBoard().getPlayer1Moves(), Matchers.is(2));
+        //nothing is left to flush: the full details come from the embedded board and players, without any read
+        long roundTripsBeforeDetails = repository.getRequestCount();
+        JsonNode playNode = JSONFormatter.getMapper().readTree(JSONFormatter.serialize(play.getFullPlayDetails()));
+        assertThat(repository.getRequestCount() - roundTripsBeforeDetails, Matchers.is(0L));
+        assertThat(playNode.get("board").get("player1Pits").toString(), Matchers.is("[1,7,8,8,8,8,2]"));
+        assertThat(playNode.get("player1Score").asInt(), Matchers.is(2));
+        assertThat(playNode.get("player1").get("id").asText(), Matchers.is(player1Id));
+        assertThat(playNode.get("player1").get("name").asText(), Matchers.is("Player1"));
+        assertThat(playNode.get("player2").get("id").asText(), Matchers.is(player2Id));
+        assertThat(playNode.get("player2").get("name").asText(), Matchers.is("Player2"));
+    }
+
+    /**
+     * A move that could not be logged must still be durable once answered:
+     * the play is saved in mongo right away
+     *
+     * @throws Exception
+     */
+    @Test
+    public void unloggedMoveTest() throws Exception {
+
+        final AtomicBoolean isLogFailing = new AtomicBoolean();
+        Repositories.setGameRepository(new InMemoryGameRepository() {
+
+            @Override
+            public void write(WriteBatch batch) {
+
+                if (isLogFailing.get() && batch.getWrites().get(0).getEntity() instanceof Move) {
+                    throw new IllegalStateException("Move log is not reachable");
+                }
+                super.write(batch);
+            }
+        });
+        playStartTest();
+        isLogFailing.set(true);
+        RestResponse makeMoveResponse = new PlayResource().makeMove(playId, player1Id, 0);
+        assertThat(makeMoveResponse.getResult(), Matchers.notNullValue());
+        GameRepository repository = Repositories.getGameRepository();
+        assertThat(repository.getMoves(playId, 1, Integer.MAX_VALUE), Matchers.empty());
+        assertThat(repository.getPlay(playId).getBoard().getPlayer1Moves(), Matchers.is(1));
+        assertThat(PlaySessionStore.getInstance().getPendingFlushCount(), Matchers.is(0));
+    }
+
+    /**
+     * Simple test to validate that the state of a play after any of its moves
+     * is rebuilt from the move log
+     *
+     * @throws Exception
+     */
+    @Test
+    public void moveLogReplayTest() throws Exception {
+
+        //start a play and make three moves
+        player2MakeFirstMoveTest();
+        Play play = Play.getPlay(playId);
+        Play replayedPlay = MoveLog.replay(play, null);
+        assertThat(replayedPlay.getBoard().getPlayer1Pits(), Matchers.contains(1, 0, 8, 8, 8, 8, 2));
+        assertThat(replayedPlay.getBoard().getPlayer2Pits(), Matchers.contains(7, 7, 7, 7, 8, 0, 1));
+        assertThat(replayedPlay.isPlayer1sMove(), Matchers.is(true));
+        assertThat(replayedPlay.getLeaderId(), Matchers.is(play.getLeaderId()));
+        //replay till the second move
+        replayedPlay = MoveLog.replay(play, 2);
+        assertThat(replayedPlay.getBoard().getPlayer1Pits(), Matchers.contains(1, 7, 8, 8, 8, 8, 2));
+        assertThat(replayedPlay.getBoard().getPlayer2Pits(), Matchers.contains(6, 6, 6, 6, 0, 6, 0));
+        assertThat(replayedPlay.isPlayer1sMove(), Matchers.is(false));
+        assertThat(replayedPlay.getBoard().getPlayer1Moves(), Matchers.is(2));
+        assertThat(replayedPlay.getBoard().getPlayer2Moves(), Matchers.is(0));
+        //the play itself is not modified
+        assertThat(play.getBoard().getPlayer2Moves(), Matchers.is(1));
+    }
+
+    /**
+     * Simple test to validate that the history of a play is streamed as one
+     * line per move, within the given range, and is not served when moves
+     * are missing in the log
+     *
+     * @throws Exception
+     */
+    @Test
+    public void playHistoryTest() throws Exception {
+
+        //start a play and make three moves
+        player2MakeFirstMoveTest();
+        Response historyResponse = new PlayResource().getPlayHistory(playId, 2, null);
+        assertThat(historyResponse.getStatus(), Matchers.is(Status.OK.getStatusCode()));
+        ByteArrayOutputStream historyStream = new ByteArrayOutputStream();
+        ((StreamingOutput) historyResponse.getEntity()).write(historyStream);
+        String[] historyLines = historyStream.toString("UTF-8").split("\n");
+        assertThat(historyLines.length, Matchers.is(2));
+        JsonNode secondMoveNode = JSONFormatter.getMapper().readTree(historyLines[0]);
+        assertThat(secondMoveNode.get("seq").asInt(), Matchers.is(2));
+        assertThat(secondMoveNode.get("move").get("playerId").asText(), Matchers.is(player1Id));
+        assertThat(secondMoveNode.get("isPlayer1sMove").asBoolean(), Matchers.is(false));
+        JsonNode thirdMoveNode = JSONFormatter.getMapper().readTree(historyLines[1]);
+        assertThat(thirdMoveNode.get("seq").asInt(), Matchers.is(3));
+        Board board = JSONFormatter.deserialize(thirdMoveNode.get("board").toString(), false, Board.class);
+        assertThat(board.getPlayer1Pits(), Matchers.contains(1, 0, 8, 8, 8, 8, 2));
+        assertThat(board.getPlayer2Pits(), Matchers.contains(7, 7, 7, 7, 8, 0, 1));
+        //an invalid range is rejected
+        historyResponse = new PlayResource().getPlayHistory(playId, 3, 2);
+        assertThat(historyResponse.getStatus(), Matchers.is(Status.BAD_REQUEST.getStatusCode()));
+        //a history missing moves is not served as complete
+        Repositories.getGameRepository().removeMoves(Collections.singleton(playId));
+        historyResponse = new PlayResource().getPlayHistory(playId, 2, null);
+        assertThat(historyResponse.getStatus(), Matchers.is(Status.INTERNAL_SERVER_ERROR.getStatusCode()));
+    }
+
+    /**
+     * Simple test to validate that reading an active play does not touch
+     * mongo
+     *
+     * @throws Exception
+     */
+    @Test
+    public void activePlayReadTest() throws Exception {
+
+        //start a play and make a move
+        makeFirstMoveTest();
+        GameRepository repository = Repositories.getGameRepository();
+        PlaySessionStore.getInstance().flush();
+        long roundTripsBeforeReads = repository.getRequestCount();
+        for (int read = 0; read < 3; read++) {
+            RestResponse playResponse = new PlayResource().getPlay(playId);
+            assertThat(playResponse.getCode(), Matchers.is(Status.OK.getStatusCode()));
+        }
+        assertThat(repository.getRequestCount() - roundTripsBeforeReads, Matchers.is(0L));
+    }
+
+    /**
+     * Simple test to validate that a move on a play that was modified since it
+     * was read is rejected, and does not overwrite the other move
+     *
+     * @throws Exception
+     */
+    @Test
+    public void concurrentMoveConflictTest() throws Exception {
+
+        //start a play and read it twice, as two concurrent requests would
+        playStartTest();
+        Play play = Play.getPlay(playId);
+        Play stalePlay = Play.getPlay(playId);
+        play.makeMove(player1Id, 0);
+        try {
+            stalePlay.makeMove(player1Id, 2);
+            Assert.fail("Move on an outdated play must not be saved");
+        }
+        catch (ConflictException e) {
+            //expected
+        }
+        //only the first move is persisted
+        Play savedPlay = Play.getPlay(playId);
+        assertThat(savedPlay.getVersion(), Matchers.is(1L));
+        assertThat(savedPlay.getBoard().getPlayer1Pits(), Matchers.contains(0, 7, 7, 7, 7, 7, 1));
+        assertThat(savedPlay.getBoard().getPlayer1Moves(), Matchers.is(1));
+    }
+
+    /**
+     * Fire interleaved moves from many threads on the same play. Moves on a
+     * play are serialized, so none of them must run into a conflict, and every
+     * successful move must be counted on the board.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void concurrentMovesOnHotPlayTest() throws Exception {
+
+        playStartTest();
+        final AtomicInteger successfulMoves = new AtomicInteger();
+        final AtomicInteger conflicts = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> results = new ArrayList<Future<?>>();
+        for (int thread = 0; thread < 8; thread++) {
+            results.add(executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    Random random = new Random();
+                    for (int move = 0; move < 25; move++) {
+                        //both players keep trying, so moves on the play are interleaved
+                        String playerId = random.nextBoolean() ? player1Id : player2Id;
+                        RestResponse response = new PlayResource().makeMove(playId, playerId, random.nextInt(6));
+                        if (response.getCode() == Status.OK.getStatusCode()) {
+                            successfulMoves.incrementAndGet();
+                        }
+                        else if (response.getCode() == Status.CONFLICT.getStatusCode()) {
+                            conflicts.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+        assertThat(conflicts.get(), Matchers.is(0));
+        Board board = Play.getPlay(playId).getBoard();
+        assertThat(board.getPlayer1Moves() + board.getPlayer2Moves(), Matchers.is(successfulMoves.get()));
+        int stones = 0;
+        for (int pitIndex = 0; pitIndex < 7; pitIndex++) {
+            stones += board.getPlayer1Pits().get(pitIndex) + board.getPlayer2Pits().get(pitIndex);
+        }
+        assertThat(stones, Matchers.is(6 * 6 * 2));
+    }
+
     /**
      * Simple test to validate if a player2 can make a move when its actually
      * player1s move
@@ -362,6 +636,39 @@ public class PlayResourceTest extends TestFramework {
         assertThat(play.getPlayState(), Matchers.is(PlayState.COMPLETED));
     }
 
+    /**
+     * Simple test to validate that the result of a completed play is added to
+     * the stats of its players, and to the leaderboard
+     *
+     * @throws Exception
+     */
+    @Test
+    public void completedPlayLeaderboardTest() throws Exception {
+
+        completedPlayTest();
+        Play play = Play.getPlay(playId);
+        String winnerId = play.getLeaderId();
+        String loserId = player1Id.equals(winnerId) ? player2Id : player1Id;
+        PlayerStats winnerStats = JSONFormatter.deserialize(
+            new PlayerResource().getPlayerStats(winnerId).getResult().toString(), false, PlayerStats.class);
+        assertThat(winnerStats.getWins(), Matchers.is(1));
+        assertThat(winnerStats.getPoints(), Matchers.is(PlayerStats.POINTS_PER_WIN));
+        PlayerStats loserStats = JSONFormatter.deserialize(
+            new PlayerResource().getPlayerStats(loserId).getResult().toString(), false, PlayerStats.class);
+        assertThat(loserStats.getLosses(), Matchers.is(1));
+        assertThat(loserStats.getPoints(), Matchers.is(0));
+        //the winner is ranked above the loser
+        List<PlayerStats> topPlayers = JSONFormatter.deserialize(
+            new PlayerResource().getLeaderboard(null).getResult().toString(), false,
+            new TypeReference<List<PlayerStats>>() {});
+        List<String> topPlayerIds = new ArrayList<String>();
+        for (PlayerStats topPlayer : topPlayers) {
+            topPlayerIds.add(topPlayer.getId());
+        }
+        assertThat(topPlayerIds, Matchers.hasItems(winnerId, loserId));
+        assertThat(topPlayerIds.indexOf(winnerId), Matchers.lessThan(topPlayerIds.indexOf(loserId)));
+    }
+
     /**
      * A play that is completed must be not switched to aborted
      * 
@@ -434,6 +741,91 @@ public class PlayResourceTest extends TestFramework {
         assertThat(makeMoveResponse.getCode(), Matchers.is(Status.OK.getStatusCode()));
     }
 
+    /**
+     * Simple test to validate that a play waiting for longer than the TTL is
+     * aborted by the reaper, and set to expire along with its moves
+     *
+     * @throws Exception
+     */
+    @Test
+    public void idlePlayReaperTest() throws Exception {
+
+        final Map<String, Date> expiringMoves = new HashMap<String, Date>();
+        Repositories.setGameRepository(new InMemoryGameRepository() {
+
+            @Override
+            public int expireMoves(Collection<String> playIds, Date expireAt) {
+
+                for (String playId : playIds) {
+                    expiringMoves.put(playId, expireAt);
+                }
+                return super.expireMoves(playIds, expireAt);
+            }
+        });
+        //setup a game with one player, idle for two days
+        twoPlayerGameFirstJoinsTest();
+        Date twoDaysAgo = new Date(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(2));
+        Play idlePlay = Repositories.getGameRepository().getPlay(playId);
+        idlePlay.setLastActivity(twoDaysAgo);
+        Repositories.getGameRepository().updatePlayIfVersion(idlePlay, idlePlay.getVersion());
+        assertThat(PlayReaper.getInstance().reap(), Matchers.is(1));
+        Play play = Play.getPlay(playId);
+        assertThat(play.getPlayState(), Matchers.is(PlayState.ABORTED));
+        assertThat(play.getExpireAt(), Matchers.notNullValue());
+        assertThat(expiringMoves, Matchers.hasEntry(playId, play.getExpireAt()));
+        //a recently changed play is not aborted
+        twoPlayerGameSecondJoinsTest();
+        assertThat(PlayReaper.getInstance().reap(), Matchers.is(0));
+        assertThat(Play.getPlay(playId).getPlayState(), Matchers.is(PlayState.IN_PROGRESS));
+    }
+
+    /**
+     * Simple test to validate that the full details of a play are read with a
+     * single request to mongo, as its board and players are embedded
+     *
+     * @throws Exception
+     */
+    @Test
+    public void fullPlayDetailsSingleReadTest() throws Exception {
+
+        //a waiting play is not kept in memory
+        twoPlayerGameFirstJoinsTest();
+        GameRepository repository = Repositories.getGameRepository();
+        long roundTripsBeforeRead = repository.getRequestCount();
+        RestResponse playResponse = new PlayResource().getPlay(playId);
+        assertThat(repository.getRequestCount() - roundTripsBeforeRead, Matchers.is(1L));
+        JsonNode playNode = JSONFormatter.getMapper().readTree(playResponse.getResult().toString());
+        assertThat(playNode.get("player1").get("name").asText(), Matchers.is("Player1"));
+        assertThat(playNode.get("board").get("player1Pits").size(), Matchers.is(7));
+    }
+
+    /**
+     * Simple test to validate that the migration embeds the board and players
+     * in a play saved with their ids only
+     *
+     * @throws Exception
+     */
+    @Test
+    public void playSnapshotMigrationTest() throws Exception {
+
+        Player player1 = new Player("Player1").createOrUpdate();
+        Player player2 = new Player("Player2").createOrUpdate();
+        Board board = Board.setupBoard(true);
+        Play legacyPlay = new Play();
+        legacyPlay.setPlayer1Id(player1.getId());
+        legacyPlay.setPlayer2Id(player2.getId());
+        legacyPlay.setBoardId(board.getId());
+        legacyPlay.setPlayState(PlayState.IN_PROGRESS);
+        Repositories.getGameRepository().insertPlay(legacyPlay);
+        assertThat(PlaySnapshotMigration.migrate(), Matchers.is(1));
+        Play migratedPlay = Repositories.getGameRepository().getPlay(legacyPlay.getId());
+        assertThat(migratedPlay.getPlayer1().getName(), Matchers.is("Player1"));
+        assertThat(migratedPlay.getPlayer2().getName(), Matchers.is("Player2"));
+        assertThat(migratedPlay.getBoard().getId(), Matchers.is(board.getId()));
+        //nothing is left to migrate
+        assertThat(PlaySnapshotMigration.migrate(), Matchers.is(0));
+    }
+
     //private methods
 
     /**
@@ -0,0 +1,82 @@
+package com.shravan.gameofstones.resource;
+
+import static org.junit.Assert.assertThat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.ws.rs.core.Response.Status;
+import org.hamcrest.Matchers;
+import org.junit.Test;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.shravan.gameofstones.core.RestResponse;
+import com.shravan.gameofstones.model.Play;
+import com.shravan.gameofstones.model.Player;
+import com.shravan.gameofstones.util.JSONFormatter;
+
+/**
+ * Test class to check the {@link PlaysResource} resource methods
+ *
+ * @author shravanshetty
+ */
+public class PlaysResourceTest extends TestFramework {
+
+    /**
+     * Start three plays and abort the oldest. The plays must be listed newest
+     * first, page by page, and filtered by player and by state.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void listPlaysTest() throws Exception {
+
+        List<String> playIds = new ArrayList<String>();
+        for (int playIndex = 0; playIndex < 3; playIndex++) {
+            Map<String, Player> twoPlayerGame = new HashMap<String, Player>();
+            twoPlayerGame.put("1", new Player("Player1"));
+            twoPlayerGame.put("2", new Player("Player2"));
+            RestResponse playResponse = new PlayResource().startTwoPlayerPlay(twoPlayerGame);
+            playIds.add(JSONFormatter.getMapper().readTree(playResponse.getResult().toString()).get("id").asText());
+        }
+        new PlayResource().resetPlay(playIds.get(0));
+
+        PlaysResource playsResource = new PlaysResource();
+        JsonNode firstPage = getPage(playsResource.getPlays(null, null, null, 2));
+        assertThat(getPlayIds(firstPage), Matchers.contains(playIds.get(2), playIds.get(1)));
+        assertThat(firstPage.get("next").asText(), Matchers.is(playIds.get(1)));
+        JsonNode lastPage = getPage(playsResource.getPlays(null, null, firstPage.get("next").asText(), 2));
+        assertThat(getPlayIds(lastPage), Matchers.contains(playIds.get(0)));
+        assertThat(lastPage.get("next").isNull(), Matchers.is(true));
+
+        //filtered by state and by player
+        JsonNode abortedPage = getPage(playsResource.getPlays(null, "aborted", null, null));
+        assertThat(getPlayIds(abortedPage), Matchers.contains(playIds.get(0)));
+        String player2Id = Play.getPlay(playIds.get(1)).getPlayer2Id();
+        JsonNode playerPage = getPage(playsResource.getPlays(player2Id, "IN_PROGRESS", null, null));
+        assertThat(getPlayIds(playerPage), Matchers.contains(playIds.get(1)));
+
+        //invalid parameters
+        assertThat(playsResource.getPlays(null, "unknown", null, null).getCode(),
+            Matchers.is(Status.BAD_REQUEST.getStatusCode()));
+        assertThat(playsResource.getPlays(null, null, "notAnId", null).getCode(),
+            Matchers.is(Status.BAD_REQUEST.getStatusCode()));
+        assertThat(playsResource.getPlays(null, null, null, PlaysResource.MAX_LIMIT + 1).getCode(),
+            Matchers.is(Status.BAD_REQUEST.getStatusCode()));
+    }
+
+    //private methods
+
+    private static JsonNode getPage(RestResponse pageResponse) throws Exception {
+
+        return JSONFormatter.getMapper().readTree(pageResponse.getResult().toString());
+    }
+
+    private static List<String> getPlayIds(JsonNode page) {
+
+        List<String> playIds = new ArrayList<String>();
+        for (JsonNode play : page.get("plays")) {
+            playIds.add(play.get("id").asText());
+        }
+        return playIds;
+    }
+}
@@ -4,38 +4,47 @@ import org.hamcrest.Matchers;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
-import com.mongodb.DB;
 import com.shravan.gameofstones.core.Mongodb;
+import com.shravan.gameofstones.model.MoveLog;
+import com.shravan.gameofstones.repository.InMemoryGameRepository;
+import com.shravan.gameofstones.repository.Repositories;
 
+/**
+ * Starts every test with an empty storage. Tests run in memory, unless the
+ * system property gameofstones.storage is set to mongo.
+ */
 public class TestFramework {
 
     //Used to check if mongo is running
     private Mongodb mongodb = null;
+    private boolean isMongoAvailable;
 
     @Before
     public void setup() {
 
+        if (!"mongo".equals(System.getProperty(Repositories.STORAGE_PROPERTY))) {
+            Repositories.setGameRepository(new InMemoryGameRepository());
+            return;
+        }
         //make sure to use the test datastore
         Mongodb.IS_TEST = true;
         //try to connect to mongo and clear the for old data
         mongodb = Mongodb.getInstance();
-        if (mongodb != null) {
-            DB database = mongodb.getJongo().getDatabase();
-            if (database != null) {
-                database.dropDatabase();
-            }
-        }
         String message = "Is mongo server running??.";
-        Assert.assertThat(message, mongodb, Matchers.notNullValue());
+        isMongoAvailable = mongodb.isAvailable();
+        Assert.assertThat(message, isMongoAvailable, Matchers.is(true));
+        mongodb.getJongo().getDatabase().dropDatabase();
     }
 
     @After
     public void tearDown() {
 
+        //moves appended in the background must not reach the storage of the next test
+        MoveLog.awaitAppends();
         //make sure to reset the database
         Mongodb.IS_TEST = false;
         //clear the for old data
-        if (mongodb != null) {
+        if (isMongoAvailable) {
             mongodb.getJongo().getDatabase().dropDatabase();
         }
     }